@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.concurrent;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ThreadFactory} that creates daemon threads named after a common
+ * prefix, so that background tasks never prevent the JVM from exiting and are
+ * easy to spot in thread dumps.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+  private final String prefix;
+
+  private final AtomicInteger threadCount = new AtomicInteger(0);
+
+  /**
+   * Constructor.
+   *
+   * @param prefix
+   *          the prefix used to name the created threads
+   */
+  public NamedThreadFactory(String prefix) {
+
+    this.prefix = prefix;
+  }
+
+  public Thread newThread(Runnable r) {
+
+    Thread t = new Thread(r, String.format("%s-%d", prefix,
+      threadCount.incrementAndGet()));
+    t.setDaemon(true);
+    return t;
+  }
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.concurrent;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches a set of files and directories for changes by periodically comparing
+ * their modification time and size.
+ *
+ * Directories are watched recursively: files created, modified or removed
+ * below a watched directory are reported. Changes are debounced: the listener
+ * is notified only once the watched files have stopped changing for a whole
+ * poll interval, so that a burst of updates (e.g. a fetch-crl run, or a
+ * certificate and key being copied in place) results in a single notification
+ * listing all the files that changed.
+ */
+public class PollingFileWatcher {
+
+  public static final Logger log = LoggerFactory
+    .getLogger(PollingFileWatcher.class);
+
+  /**
+   * A listener notified when watched files change.
+   */
+  public interface Listener {
+
+    /**
+     * Called when a set of watched files has changed and has been stable for a
+     * whole poll interval.
+     *
+     * @param changedFiles
+     *          the files that were created, modified or removed
+     */
+    public void filesChanged(Set<File> changedFiles);
+  }
+
+  /**
+   * The modification time and size of a file, as seen at the last poll.
+   */
+  private static final class FileStamp {
+
+    final long lastModified;
+    final long length;
+
+    FileStamp(File f) {
+
+      lastModified = f.lastModified();
+      length = f.length();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+      if (!(obj instanceof FileStamp))
+        return false;
+
+      FileStamp other = (FileStamp) obj;
+      return lastModified == other.lastModified && length == other.length;
+    }
+
+    @Override
+    public int hashCode() {
+
+      return (int) (lastModified ^ (lastModified >>> 32) ^ length);
+    }
+  }
+
+  private final List<File> roots;
+  private final FileFilter filter;
+  private final long pollIntervalInMsec;
+  private final Listener listener;
+
+  private Map<File, FileStamp> stamps = new HashMap<File, FileStamp>();
+  private Set<File> pendingChanges = new HashSet<File>();
+
+  private ScheduledExecutorService executor;
+
+  /**
+   * Constructor.
+   *
+   * @param roots
+   *          the files and directories to watch
+   * @param filter
+   *          a filter applied to the files found in watched directories, may
+   *          be null
+   * @param pollIntervalInMsec
+   *          how often the files are checked for changes
+   * @param listener
+   *          the listener notified of changes
+   */
+  public PollingFileWatcher(List<File> roots, FileFilter filter,
+    long pollIntervalInMsec, Listener listener) {
+
+    if (pollIntervalInMsec <= 0)
+      throw new IllegalArgumentException(
+        "Poll interval must be a positive number");
+
+    this.roots = roots;
+    this.filter = filter;
+    this.pollIntervalInMsec = pollIntervalInMsec;
+    this.listener = listener;
+  }
+
+  /**
+   * Records the current state of the watched files and starts watching them in
+   * background.
+   */
+  public synchronized void start() {
+
+    if (executor != null)
+      return;
+
+    stamps = scan();
+
+    executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(
+      "file-watcher"));
+
+    executor.scheduleWithFixedDelay(new Runnable() {
+
+      public void run() {
+
+        poll();
+      }
+    }, pollIntervalInMsec, pollIntervalInMsec, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops watching files.
+   */
+  public synchronized void stop() {
+
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Checks the watched files for changes, notifying the listener if changes
+   * detected by previous polls have settled.
+   */
+  public void poll() {
+
+    Set<File> changes;
+
+    synchronized (this) {
+
+      Map<File, FileStamp> current = scan();
+      Set<File> changed = diff(stamps, current);
+      stamps = current;
+
+      if (!changed.isEmpty()) {
+        pendingChanges.addAll(changed);
+        return;
+      }
+
+      if (pendingChanges.isEmpty())
+        return;
+
+      changes = pendingChanges;
+      pendingChanges = new HashSet<File>();
+    }
+
+    try {
+      listener.filesChanged(Collections.unmodifiableSet(changes));
+    } catch (Throwable t) {
+      log.error("Error handling change of files {}: {}", changes,
+        t.getMessage());
+      log.debug(t.getMessage(), t);
+    }
+  }
+
+  private Map<File, FileStamp> scan() {
+
+    Map<File, FileStamp> result = new HashMap<File, FileStamp>();
+
+    for (File root : roots)
+      scan(root, result, true);
+
+    return result;
+  }
+
+  private void scan(File f, Map<File, FileStamp> result, boolean isRoot) {
+
+    if (f.isDirectory()) {
+
+      File[] children = f.listFiles();
+
+      if (children == null)
+        return;
+
+      for (File c : children)
+        scan(c, result, false);
+
+    } else if (isRoot || filter == null || filter.accept(f)) {
+
+      result.put(f, new FileStamp(f));
+    }
+  }
+
+  private static Set<File> diff(Map<File, FileStamp> before,
+    Map<File, FileStamp> after) {
+
+    Set<File> changed = new HashSet<File>();
+
+    for (Map.Entry<File, FileStamp> e : after.entrySet()) {
+      if (!e.getValue().equals(before.get(e.getKey())))
+        changed.add(e.getKey());
+    }
+
+    for (File f : before.keySet()) {
+      if (!after.containsKey(f))
+        changed.add(f);
+    }
+
+    return changed;
+  }
+}
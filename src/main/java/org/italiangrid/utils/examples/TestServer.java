@@ -16,6 +16,7 @@
 package org.italiangrid.utils.examples;
 
 import java.io.IOException;
+import java.util.concurrent.Future;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -33,11 +34,11 @@ import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.italiangrid.utils.https.JettyRunThread;
 import org.italiangrid.utils.https.SSLOptions;
 import org.italiangrid.utils.https.ServerFactory;
+import org.italiangrid.utils.https.StartupTimings;
 import org.italiangrid.utils.https.impl.canl.CANLListener;
 import org.italiangrid.utils.voms.VOMSSecurityContextHandler;
-import org.italiangrid.voms.VOMSValidators;
-import org.italiangrid.voms.store.VOMSTrustStore;
-import org.italiangrid.voms.store.impl.DefaultVOMSTrustStore;
+import org.italiangrid.utils.voms.VOMSValidatorLoader;
+import org.italiangrid.voms.ac.VOMSACValidator;
 import org.italiangrid.voms.util.CertificateValidatorBuilder;
 
 import eu.emi.security.authn.x509.X509CertChainValidatorExt;
@@ -79,10 +80,13 @@ public class TestServer {
       .lazyAnchorsLoading(false).validationErrorListener(l)
       .storeUpdateListener(l).trustAnchorsUpdateInterval(0L).build();
 
-    VOMSTrustStore ts = new DefaultVOMSTrustStore();
+    StartupTimings timings = new StartupTimings();
+
+    Future<VOMSACValidator> vomsValidator = VOMSValidatorLoader.load(
+      validator, timings);
 
     Server s = ServerFactory.newServer(hostname, port, options, validator, 300,
-      500);
+      500, timings);
 
     HashSessionIdManager idManager = new HashSessionIdManager();
     s.setSessionIdManager(idManager);
@@ -90,8 +94,8 @@ public class TestServer {
     HashSessionManager sessionManager = new HashSessionManager();
     SessionHandler sessions = new SessionHandler(sessionManager);
 
-    Handler vomsHandler = new VOMSSecurityContextHandler(
-      VOMSValidators.newValidator(ts, validator), secure);
+    Handler vomsHandler = new VOMSSecurityContextHandler(vomsValidator,
+      validator, secure);
 
     HandlerCollection handlers = new HandlerCollection();
 
@@ -19,6 +19,12 @@ import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
+import org.italiangrid.voms.util.CertificateValidatorBuilder;
+
+import eu.emi.security.authn.x509.CrlCheckingMode;
+import eu.emi.security.authn.x509.NamespaceCheckingMode;
+import eu.emi.security.authn.x509.OCSPCheckingMode;
+
 /**
  * This class provides a container for a set of commonly used SSL connector
  * configuration options.
@@ -54,15 +60,65 @@ public final class SSLOptions {
    */
   public static final long DEFAULT_TRUST_STORE_REFRESH_INTERVAL_IN_MSECS = 600000L;
 
+  /**
+   * Default service credential refresh interval. A value of zero disables
+   * reloading the certificate and key files when they change
+   */
+  public static final long DEFAULT_CREDENTIAL_REFRESH_INTERVAL_IN_MSECS = 0L;
+
+  /**
+   * Default certificate blocklist refresh interval. Sets how often the
+   * blocklist file is checked for changes
+   */
+  public static final long DEFAULT_BLOCKLIST_REFRESH_INTERVAL_IN_MSECS = 60000L;
+
+  /**
+   * Default time a client chain which failed validation is refused without
+   * being validated again
+   */
+  public static final long DEFAULT_FAILED_VALIDATION_CACHE_TTL_IN_MSECS = 30000L;
+
+  /**
+   * Default CRL checking mode
+   */
+  public static final CrlCheckingMode DEFAULT_CRL_CHECKING_MODE = CrlCheckingMode.IF_VALID;
+
+  /**
+   * Default OCSP checking mode
+   */
+  public static final OCSPCheckingMode DEFAULT_OCSP_CHECKING_MODE = OCSPCheckingMode.IGNORE;
+
+  /**
+   * Default namespace checking mode
+   */
+  public static final NamespaceCheckingMode DEFAULT_NAMESPACE_CHECKING_MODE = CertificateValidatorBuilder.DEFAULT_NS_CHECKS;
+
   private String certificateFile = DEFAULT_CERT;
   private String keyFile = DEFAULT_KEY;
   private char[] keyPassword = null;
   private String trustStoreDirectory = DEFAULT_TRUST_STORE_DIR;
 
   private long trustStoreRefreshIntervalInMsec = DEFAULT_TRUST_STORE_REFRESH_INTERVAL_IN_MSECS;
+  private long credentialRefreshIntervalInMsec = DEFAULT_CREDENTIAL_REFRESH_INTERVAL_IN_MSECS;
+  private String blocklistFile = null;
+  private long blocklistRefreshIntervalInMsec = DEFAULT_BLOCKLIST_REFRESH_INTERVAL_IN_MSECS;
+  private boolean incrementalTrustStoreReload = false;
+  private String trustStoreSnapshotFile = null;
+  private String crlIndexDirectory = null;
+  private int sessionCacheSize = -1;
+  private int sessionTimeoutInSecs = -1;
+  private boolean handshakeCounting = false;
   private boolean wantClientAuth = true;
   private boolean needClientAuth = true;
 
+  private CrlCheckingMode crlCheckingMode = DEFAULT_CRL_CHECKING_MODE;
+  private OCSPCheckingMode ocspCheckingMode = DEFAULT_OCSP_CHECKING_MODE;
+  private int ocspCacheSize = 0;
+  private int failedValidationCacheSize = 0;
+  private long failedValidationCacheTtlInMsec = DEFAULT_FAILED_VALIDATION_CACHE_TTL_IN_MSECS;
+  private long validationErrorSummaryIntervalInMsec = 0L;
+  private NamespaceCheckingMode namespaceCheckingMode = DEFAULT_NAMESPACE_CHECKING_MODE;
+
   private Set<String> includeProtocols;
   private Set<String> excludeProtocols;
 
@@ -114,6 +170,297 @@ public final class SSLOptions {
     this.trustStoreRefreshIntervalInMsec = trustStoreRefreshIntervalInMsec;
   }
 
+  public long getCredentialRefreshIntervalInMsec() {
+
+    return credentialRefreshIntervalInMsec;
+  }
+
+  /**
+   * Sets how often the certificate and key files are checked for changes. When
+   * a change is detected, the service credential is reloaded and used for new
+   * handshakes, without affecting established connections. A value of zero
+   * disables credential reloading.
+   * 
+   * @param credentialRefreshIntervalInMsec
+   *          the check interval in milliseconds
+   */
+  public void setCredentialRefreshIntervalInMsec(
+    long credentialRefreshIntervalInMsec) {
+
+    this.credentialRefreshIntervalInMsec = credentialRefreshIntervalInMsec;
+  }
+
+  public String getBlocklistFile() {
+
+    return blocklistFile;
+  }
+
+  /**
+   * Sets the file listing the client certificates that are refused during the
+   * TLS handshake, before their chain is validated. Each line holds the
+   * SHA-256 fingerprint of a certificate, in hex, or a subject DN, in OpenSSL
+   * or RFC2253 form; a chain is refused if any of its certificates matches.
+   * Lines starting with <code>#</code> are comments. The file is reloaded when
+   * it changes. A <code>null</code> value (the default) disables the
+   * blocklist.
+   * 
+   * @param blocklistFile
+   *          the blocklist file path
+   */
+  public void setBlocklistFile(String blocklistFile) {
+
+    this.blocklistFile = blocklistFile;
+  }
+
+  public long getBlocklistRefreshIntervalInMsec() {
+
+    return blocklistRefreshIntervalInMsec;
+  }
+
+  /**
+   * Sets how often the blocklist file is checked for changes. A value of zero
+   * disables blocklist reloading.
+   * 
+   * @param blocklistRefreshIntervalInMsec
+   *          the check interval in milliseconds
+   */
+  public void setBlocklistRefreshIntervalInMsec(
+    long blocklistRefreshIntervalInMsec) {
+
+    this.blocklistRefreshIntervalInMsec = blocklistRefreshIntervalInMsec;
+  }
+
+  public boolean isIncrementalTrustStoreReload() {
+
+    return incrementalTrustStoreReload;
+  }
+
+  /**
+   * Sets whether the trust store directory is watched for changes and only
+   * the CA certificates, CRLs and namespace files that changed are reloaded,
+   * instead of periodically reloading the whole directory. When enabled, the
+   * trust store refresh interval sets how often the directory is checked for
+   * changes.
+   * 
+   * @param incrementalTrustStoreReload
+   *          <code>true</code> to enable incremental reloading
+   */
+  public void setIncrementalTrustStoreReload(
+    boolean incrementalTrustStoreReload) {
+
+    this.incrementalTrustStoreReload = incrementalTrustStoreReload;
+  }
+
+  public String getTrustStoreSnapshotFile() {
+
+    return trustStoreSnapshotFile;
+  }
+
+  /**
+   * Sets the file where a binary snapshot of the parsed trust store is saved.
+   * At startup the snapshot is used for all the CA certificates, CRLs and
+   * namespace files that have not changed since it was written, so that only
+   * changed files are parsed. Setting a snapshot file enables incremental
+   * trust store reloading. A <code>null</code> value disables snapshots.
+   * 
+   * @param trustStoreSnapshotFile
+   *          the snapshot file path
+   */
+  public void setTrustStoreSnapshotFile(String trustStoreSnapshotFile) {
+
+    this.trustStoreSnapshotFile = trustStoreSnapshotFile;
+  }
+
+  public String getCrlIndexDirectory() {
+
+    return crlIndexDirectory;
+  }
+
+  /**
+   * Sets the directory where CRLs are compiled into memory-mapped indexes of
+   * their revoked serial numbers. When set, revocation checks look up the
+   * certificate serial number in the index instead of decoding the whole CRL
+   * on each handshake, and indexes are rebuilt only when a CRL changes.
+   * Setting an index directory enables incremental trust store reloading. A
+   * <code>null</code> value disables CRL indexing.
+   * 
+   * @param crlIndexDirectory
+   *          the index directory path
+   */
+  public void setCrlIndexDirectory(String crlIndexDirectory) {
+
+    this.crlIndexDirectory = crlIndexDirectory;
+  }
+
+  public int getSessionCacheSize() {
+
+    return sessionCacheSize;
+  }
+
+  /**
+   * Sets the maximum number of TLS sessions cached for resumption. Clients
+   * resuming a cached session skip the full handshake, including certificate
+   * chain validation. A value of zero means no limit, while a negative value
+   * (the default) keeps the JSSE default.
+   * 
+   * @param sessionCacheSize
+   *          the maximum number of cached sessions
+   */
+  public void setSessionCacheSize(int sessionCacheSize) {
+
+    this.sessionCacheSize = sessionCacheSize;
+  }
+
+  public int getSessionTimeoutInSecs() {
+
+    return sessionTimeoutInSecs;
+  }
+
+  /**
+   * Sets how long a TLS session can be resumed after it was established. A
+   * value of zero means no limit, while a negative value (the default) keeps
+   * the JSSE default.
+   * 
+   * @param sessionTimeoutInSecs
+   *          the session timeout in seconds
+   */
+  public void setSessionTimeoutInSecs(int sessionTimeoutInSecs) {
+
+    this.sessionTimeoutInSecs = sessionTimeoutInSecs;
+  }
+
+  public boolean isHandshakeCounting() {
+
+    return handshakeCounting;
+  }
+
+  /**
+   * Sets whether the connector counts full and resumed TLS handshakes, see
+   * {@link org.italiangrid.utils.https.impl.HandshakeCountingSslConnector}.
+   * Counting wraps each SSL engine, and is disabled by default. Engines are
+   * also wrapped when the failed validation cache is enabled, as failures are
+   * counted by client address.
+   * 
+   * @param handshakeCounting
+   *          <code>true</code> to count handshakes
+   */
+  public void setHandshakeCounting(boolean handshakeCounting) {
+
+    this.handshakeCounting = handshakeCounting;
+  }
+
+  public CrlCheckingMode getCrlCheckingMode() {
+
+    return crlCheckingMode;
+  }
+
+  public void setCrlCheckingMode(CrlCheckingMode crlCheckingMode) {
+
+    this.crlCheckingMode = crlCheckingMode;
+  }
+
+  public OCSPCheckingMode getOcspCheckingMode() {
+
+    return ocspCheckingMode;
+  }
+
+  public void setOcspCheckingMode(OCSPCheckingMode ocspCheckingMode) {
+
+    this.ocspCheckingMode = ocspCheckingMode;
+  }
+
+  public int getOcspCacheSize() {
+
+    return ocspCacheSize;
+  }
+
+  /**
+   * Sets the maximum number of OCSP responses cached in memory. When greater
+   * than zero, and OCSP checks are enabled, responders are queried in
+   * background: responses are cached until their nextUpdate time, refreshed
+   * ahead of expiration for certificates seen recently, and an expired response
+   * is used while it is being refreshed. A value of zero (the default) leaves
+   * OCSP checks to the CANL validator, which queries responders during the
+   * handshake.
+   * 
+   * @param ocspCacheSize
+   *          the maximum number of cached responses
+   */
+  public void setOcspCacheSize(int ocspCacheSize) {
+
+    this.ocspCacheSize = ocspCacheSize;
+  }
+
+  public int getFailedValidationCacheSize() {
+
+    return failedValidationCacheSize;
+  }
+
+  /**
+   * Sets the maximum number of client chains which failed validation that
+   * are remembered. When greater than zero, a chain presented again within
+   * the failed validation cache TTL is refused during the handshake without
+   * being validated or logged again, and refused handshakes are counted by
+   * client address. A value of zero (the default) disables the cache.
+   * 
+   * @param failedValidationCacheSize
+   *          the maximum number of remembered chains
+   */
+  public void setFailedValidationCacheSize(int failedValidationCacheSize) {
+
+    this.failedValidationCacheSize = failedValidationCacheSize;
+  }
+
+  public long getFailedValidationCacheTtlInMsec() {
+
+    return failedValidationCacheTtlInMsec;
+  }
+
+  /**
+   * Sets how long a client chain which failed validation is refused without
+   * being validated again. The cache is also cleared whenever the trust store
+   * is reloaded.
+   * 
+   * @param failedValidationCacheTtlInMsec
+   *          the time to live, in milliseconds
+   */
+  public void setFailedValidationCacheTtlInMsec(
+    long failedValidationCacheTtlInMsec) {
+
+    this.failedValidationCacheTtlInMsec = failedValidationCacheTtlInMsec;
+  }
+
+  public long getValidationErrorSummaryIntervalInMsec() {
+
+    return validationErrorSummaryIntervalInMsec;
+  }
+
+  /**
+   * Sets how often certificate validation errors are summarized in the logs.
+   * When greater than zero, errors are counted by error code and issuer, and a
+   * summary with a few examples is logged at most once per interval. A value
+   * of zero (the default) logs every validation error.
+   * 
+   * @param validationErrorSummaryIntervalInMsec
+   *          the summary interval, in milliseconds
+   */
+  public void setValidationErrorSummaryIntervalInMsec(
+    long validationErrorSummaryIntervalInMsec) {
+
+    this.validationErrorSummaryIntervalInMsec = validationErrorSummaryIntervalInMsec;
+  }
+
+  public NamespaceCheckingMode getNamespaceCheckingMode() {
+
+    return namespaceCheckingMode;
+  }
+
+  public void setNamespaceCheckingMode(
+    NamespaceCheckingMode namespaceCheckingMode) {
+
+    this.namespaceCheckingMode = namespaceCheckingMode;
+  }
+
   public boolean isWantClientAuth() {
 
     return wantClientAuth;
@@ -51,7 +51,10 @@ public class ServerFactory {
   public static final Logger log = LoggerFactory.getLogger(ServerFactory.class);
 
   /**
-   * The configurator used to configure the SSL connector.
+   * The configurator used to configure the SSL connector. The configurator is
+   * stateless and can be safely shared: connectors configured with the same
+   * trust settings share the validator held by the
+   * {@link org.italiangrid.utils.https.impl.canl.CertChainValidatorRegistry}.
    */
   private static final JettySSLConnectorConfigurator configurator = new CANLSSLConnectorConfigurator();
 
@@ -141,6 +144,38 @@ public class ServerFactory {
     X509CertChainValidatorExt validator, int maxConnections,
     int maxRequestQueueSize) {
 
+    return newServer(host, port, options, validator, maxConnections,
+      maxRequestQueueSize, null);
+  }
+
+  /**
+   * 
+   * Returns a new Jetty server configured to listen on the host:port passed as
+   * argument and according to the SSL configuration options provided,
+   * recording how long each startup phase took.
+   * 
+   * The service credential is loaded while the validator is built, so that the
+   * server can be started as soon as the SSL context is ready. Slower,
+   * independent steps (e.g., loading the VOMS trust store with
+   * {@link org.italiangrid.utils.voms.VOMSValidatorLoader}) can run
+   * concurrently and record their phases in the same timings.
+   * 
+   * @param host
+   * @param port
+   * @param options
+   * @param validator
+   *          the validator, or <code>null</code> to use the one configured by
+   *          the options
+   * @param maxConnections
+   * @param maxRequestQueueSize
+   * @param timings
+   *          where phase timings are recorded, may be <code>null</code>
+   * @return a {@link Server} configured as requested
+   */
+  public static Server newServer(String host, int port, SSLOptions options,
+    X509CertChainValidatorExt validator, int maxConnections,
+    int maxRequestQueueSize, StartupTimings timings) {
+
     Server server = new Server();
 
     server.setSendServerVersion(false);
@@ -149,7 +184,7 @@ public class ServerFactory {
     configureThreadPool(server, maxConnections, maxRequestQueueSize);
 
     CANLSSLConnectorConfigurator configurator = new CANLSSLConnectorConfigurator(
-      validator);
+      validator, timings);
 
     Connector connector = configurator.configureConnector(host, port, options);
 
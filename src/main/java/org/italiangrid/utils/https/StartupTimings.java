@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records how long each phase of a server startup took. Phases may be
+ * recorded concurrently, by the threads that run them, and are reported in
+ * the order they completed.
+ */
+public class StartupTimings {
+
+  /**
+   * Loading the service certificate and private key.
+   */
+  public static final String CREDENTIAL = "credential";
+
+  /**
+   * Building the certificate chain validator and loading its trust anchors.
+   */
+  public static final String VALIDATOR = "validator";
+
+  /**
+   * Creating the SSL context.
+   */
+  public static final String SSL_CONTEXT = "sslContext";
+
+  /**
+   * Creating the HTTPS connector.
+   */
+  public static final String CONNECTOR = "connector";
+
+  /**
+   * Loading the VOMS trust store.
+   */
+  public static final String VOMS_TRUST_STORE = "vomsTrustStore";
+
+  /**
+   * Building the VOMS attribute certificate validator.
+   */
+  public static final String VOMS_VALIDATOR = "vomsValidator";
+
+  private final long startTime = System.nanoTime();
+
+  private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+  /**
+   * Records the duration of a phase.
+   *
+   * @param phase
+   *          the phase name
+   * @param startNanos
+   *          the phase start time, as returned by {@link System#nanoTime()}
+   * @return the phase duration in milliseconds
+   */
+  public long record(String phase, long startNanos) {
+
+    long elapsed = (System.nanoTime() - startNanos) / 1000000L;
+
+    synchronized (phases) {
+      phases.put(phase, elapsed);
+    }
+
+    return elapsed;
+  }
+
+  /**
+   * @return the duration in milliseconds of each phase recorded so far
+   */
+  public Map<String, Long> getPhases() {
+
+    synchronized (phases) {
+      return Collections
+        .unmodifiableMap(new LinkedHashMap<String, Long>(phases));
+    }
+  }
+
+  /**
+   * @param phase
+   *          the phase name
+   * @return the duration of the phase in milliseconds, or -1 if it has not
+   *         been recorded
+   */
+  public long getPhase(String phase) {
+
+    synchronized (phases) {
+      Long elapsed = phases.get(phase);
+      return elapsed == null ? -1 : elapsed;
+    }
+  }
+
+  /**
+   * @return the milliseconds elapsed since these timings were created
+   */
+  public long getElapsed() {
+
+    return (System.nanoTime() - startTime) / 1000000L;
+  }
+
+  @Override
+  public String toString() {
+
+    StringBuilder sb = new StringBuilder("[");
+
+    for (Map.Entry<String, Long> e : getPhases().entrySet()) {
+      if (sb.length() > 1)
+        sb.append(", ");
+      sb.append(e.getKey()).append(": ").append(e.getValue()).append(" ms");
+    }
+
+    return sb.append("]").toString();
+  }
+}
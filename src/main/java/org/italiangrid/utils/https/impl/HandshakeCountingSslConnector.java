@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import org.eclipse.jetty.server.ssl.SslSelectChannelConnector;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+
+/**
+ * A {@link SslSelectChannelConnector} that counts full and resumed TLS
+ * handshakes.
+ *
+ * Up to TLS 1.2, a handshake resumed a session if it ends with the ID of a
+ * session established earlier on this connector. As many session IDs are
+ * tracked as the server session cache holds sessions.
+ */
+public class HandshakeCountingSslConnector extends SslSelectChannelConnector {
+
+  /**
+   * The JSSE default session cache size, used when the cache is unbounded
+   */
+  static final int DEFAULT_TRACKED_SESSIONS = 20480;
+
+  private final HandshakeStats handshakeStats;
+
+  public HandshakeCountingSslConnector(SslContextFactory sslContextFactory) {
+
+    this(sslContextFactory, DEFAULT_TRACKED_SESSIONS);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param sslContextFactory
+   *          the SSL context factory
+   * @param maxTrackedSessions
+   *          how many session IDs are tracked to tell resumed handshakes apart
+   */
+  public HandshakeCountingSslConnector(SslContextFactory sslContextFactory,
+    int maxTrackedSessions) {
+
+    super(sslContextFactory);
+    handshakeStats = new HandshakeStats(maxTrackedSessions);
+  }
+
+  /**
+   * @return as many sessions as the server session cache of the context holds
+   */
+  static int trackedSessions(SSLContext context) {
+
+    if (context.getServerSessionContext() == null)
+      return DEFAULT_TRACKED_SESSIONS;
+
+    int cacheSize = context.getServerSessionContext().getSessionCacheSize();
+    return cacheSize > 0 ? cacheSize : DEFAULT_TRACKED_SESSIONS;
+  }
+
+  @Override
+  protected SSLEngine createSSLEngine(SocketChannel channel)
+    throws IOException {
+
+    return new HandshakeRecordingSSLEngine(super.createSSLEngine(channel),
+      handshakeStats);
+  }
+
+  /**
+   * Returns the handshake counters for this connector.
+   *
+   * @return the handshake counters
+   */
+  public HandshakeStats getHandshakeStats() {
+
+    return handshakeStats;
+  }
+}
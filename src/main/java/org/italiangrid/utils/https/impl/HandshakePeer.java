@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl;
+
+/**
+ * Makes the address of the client being handshaked with available to the
+ * trust manager, whose interface only receives the certificate chain.
+ *
+ * The address is set by the engines created by a
+ * {@link HandshakeCountingSslConnector} while they process handshake data and
+ * run delegated handshake tasks, and is only available to code called by the
+ * engine on the same thread.
+ */
+public final class HandshakePeer {
+
+  private static final ThreadLocal<String> currentAddress = new ThreadLocal<String>();
+
+  private HandshakePeer() {
+
+  }
+
+  /**
+   * @return the address of the client being handshaked with by the current
+   *         thread, or <code>null</code> if unknown
+   */
+  public static String getAddress() {
+
+    return currentAddress.get();
+  }
+
+  /**
+   * Sets the address of the client being handshaked with, returning the
+   * previous one so that it can be restored.
+   */
+  static String set(String address) {
+
+    String previous = currentAddress.get();
+    currentAddress.set(address);
+    return previous;
+  }
+
+  static void restore(String previous) {
+
+    if (previous == null)
+      currentAddress.remove();
+    else
+      currentAddress.set(previous);
+  }
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl;
+
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * An {@link SSLEngine} that records each completed handshake in a
+ * {@link HandshakeStats}, and otherwise delegates to another engine.
+ *
+ * Up to TLS 1.2, a resumed handshake ends with the ID of the session it
+ * resumed, which the stats tell apart from the IDs of new sessions. TLS 1.3
+ * handshakes are told apart by whether the server cached the session they end
+ * with.
+ *
+ * The peer address is published through {@link HandshakePeer} while handshake
+ * data is processed.
+ */
+class HandshakeRecordingSSLEngine extends SSLEngine {
+
+  private final SSLEngine delegate;
+
+  private static final String TLS13 = "TLSv1.3";
+
+  private final HandshakeStats stats;
+
+  HandshakeRecordingSSLEngine(SSLEngine delegate, HandshakeStats stats) {
+
+    super(delegate.getPeerHost(), delegate.getPeerPort());
+    this.delegate = delegate;
+    this.stats = stats;
+  }
+
+  private SSLEngineResult record(SSLEngineResult result) {
+
+    if (result.getHandshakeStatus() != HandshakeStatus.FINISHED)
+      return result;
+
+    SSLSession session = delegate.getSession();
+
+    if (TLS13.equals(session.getProtocol())) {
+
+      // TLS 1.3 gives each handshake a new session ID: a resumed session
+      // takes the ID of the single-use ticket presented by the client, which
+      // the server drops from its cache, while a new session is cached under
+      // its own ID
+      SSLSessionContext context = session.getSessionContext();
+      stats.handshakeCompleted(context != null
+        && context.getSession(session.getId()) == null);
+
+    } else {
+
+      stats.handshakeCompleted(session.getId());
+    }
+
+    return result;
+  }
+
+  @Override
+  public SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length,
+    ByteBuffer dst) throws SSLException {
+
+    return record(delegate.wrap(srcs, offset, length, dst));
+  }
+
+  @Override
+  public SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts, int offset,
+    int length) throws SSLException {
+
+    String previous = HandshakePeer.set(getPeerHost());
+
+    try {
+
+      return record(delegate.unwrap(src, dsts, offset, length));
+
+    } finally {
+
+      HandshakePeer.restore(previous);
+    }
+  }
+
+  @Override
+  public Runnable getDelegatedTask() {
+
+    final Runnable task = delegate.getDelegatedTask();
+
+    if (task == null)
+      return null;
+
+    final String peerHost = getPeerHost();
+
+    return new Runnable() {
+
+      public void run() {
+
+        String previous = HandshakePeer.set(peerHost);
+
+        try {
+
+          task.run();
+
+        } finally {
+
+          HandshakePeer.restore(previous);
+        }
+      }
+    };
+  }
+
+  @Override
+  public void closeInbound() throws SSLException {
+
+    delegate.closeInbound();
+  }
+
+  @Override
+  public boolean isInboundDone() {
+
+    return delegate.isInboundDone();
+  }
+
+  @Override
+  public void closeOutbound() {
+
+    delegate.closeOutbound();
+  }
+
+  @Override
+  public boolean isOutboundDone() {
+
+    return delegate.isOutboundDone();
+  }
+
+  @Override
+  public String[] getSupportedCipherSuites() {
+
+    return delegate.getSupportedCipherSuites();
+  }
+
+  @Override
+  public String[] getEnabledCipherSuites() {
+
+    return delegate.getEnabledCipherSuites();
+  }
+
+  @Override
+  public void setEnabledCipherSuites(String[] suites) {
+
+    delegate.setEnabledCipherSuites(suites);
+  }
+
+  @Override
+  public String[] getSupportedProtocols() {
+
+    return delegate.getSupportedProtocols();
+  }
+
+  @Override
+  public String[] getEnabledProtocols() {
+
+    return delegate.getEnabledProtocols();
+  }
+
+  @Override
+  public void setEnabledProtocols(String[] protocols) {
+
+    delegate.setEnabledProtocols(protocols);
+  }
+
+  @Override
+  public SSLSession getSession() {
+
+    return delegate.getSession();
+  }
+
+  @Override
+  public void beginHandshake() throws SSLException {
+
+    delegate.beginHandshake();
+  }
+
+  @Override
+  public HandshakeStatus getHandshakeStatus() {
+
+    return delegate.getHandshakeStatus();
+  }
+
+  @Override
+  public void setUseClientMode(boolean mode) {
+
+    delegate.setUseClientMode(mode);
+  }
+
+  @Override
+  public boolean getUseClientMode() {
+
+    return delegate.getUseClientMode();
+  }
+
+  @Override
+  public void setNeedClientAuth(boolean need) {
+
+    delegate.setNeedClientAuth(need);
+  }
+
+  @Override
+  public boolean getNeedClientAuth() {
+
+    return delegate.getNeedClientAuth();
+  }
+
+  @Override
+  public void setWantClientAuth(boolean want) {
+
+    delegate.setWantClientAuth(want);
+  }
+
+  @Override
+  public boolean getWantClientAuth() {
+
+    return delegate.getWantClientAuth();
+  }
+
+  @Override
+  public void setEnableSessionCreation(boolean flag) {
+
+    delegate.setEnableSessionCreation(flag);
+  }
+
+  @Override
+  public boolean getEnableSessionCreation() {
+
+    return delegate.getEnableSessionCreation();
+  }
+
+  @Override
+  public SSLParameters getSSLParameters() {
+
+    return delegate.getSSLParameters();
+  }
+
+  @Override
+  public void setSSLParameters(SSLParameters params) {
+
+    delegate.setSSLParameters(params);
+  }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the TLS handshakes completed by a connector, telling full handshakes
+ * apart from those which resumed a cached session.
+ */
+public class HandshakeStats {
+
+  /**
+   * The IDs of the sessions established by full handshakes, most recently used
+   * last. Guarded by itself.
+   */
+  private final Map<ByteBuffer, Boolean> sessionIds;
+
+  private final AtomicLong fullHandshakes = new AtomicLong();
+
+  private final AtomicLong resumedHandshakes = new AtomicLong();
+
+  HandshakeStats(final int maxTrackedSessions) {
+
+    sessionIds = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+
+        return size() > maxTrackedSessions;
+      }
+    };
+  }
+
+  /**
+   * Records a completed handshake, which resumed a session if it ends with the
+   * ID of a session seen before.
+   *
+   * @param sessionId
+   *          the ID of the session the handshake ended with
+   */
+  void handshakeCompleted(byte[] sessionId) {
+
+    boolean resumed = false;
+
+    if (sessionId != null && sessionId.length > 0) {
+      synchronized (sessionIds) {
+        resumed = sessionIds.put(ByteBuffer.wrap(sessionId), Boolean.TRUE) != null;
+      }
+    }
+
+    handshakeCompleted(resumed);
+  }
+
+  /**
+   * Records a completed handshake.
+   *
+   * @param resumed
+   *          whether the handshake resumed a cached session
+   */
+  void handshakeCompleted(boolean resumed) {
+
+    if (resumed)
+      resumedHandshakes.incrementAndGet();
+    else
+      fullHandshakes.incrementAndGet();
+  }
+
+  /**
+   * @return the number of handshakes which established a new session
+   */
+  public long getFullHandshakes() {
+
+    return fullHandshakes.get();
+  }
+
+  /**
+   * @return the number of handshakes which resumed a cached session
+   */
+  public long getResumedHandshakes() {
+
+    return resumedHandshakes.get();
+  }
+
+  @Override
+  public String toString() {
+
+    return String.format("[full: %d, resumed: %d]", fullHandshakes.get(),
+      resumedHandshakes.get());
+  }
+}
@@ -18,6 +18,7 @@ package org.italiangrid.utils.https.impl;
 import java.util.Arrays;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.ssl.SslSelectChannelConnector;
@@ -68,6 +69,14 @@ public class SSLContextConnectorConfigurator implements
 
       log.debug("needClientAuth: {}", factory.getNeedClientAuth());
 
+      SSLSessionContext sessionContext = factory.getSslContext()
+        .getServerSessionContext();
+
+      if (sessionContext != null) {
+        log.debug("sessionCacheSize: {}", sessionContext.getSessionCacheSize());
+        log.debug("sessionTimeout: {}", sessionContext.getSessionTimeout());
+      }
+
       // Jetty strangely does not initialize includeProtocols and
       // includeCipherSuites, so we can get a null pointer exception
       // here if we do a get on those fields.
@@ -120,9 +129,19 @@ public class SSLContextConnectorConfigurator implements
       factory.setWantClientAuth(options.isWantClientAuth());
       factory.setNeedClientAuth(options.isNeedClientAuth());
 
+      configureSessionCache(options);
+
       logSSLContextFactoryConfig(factory);
 
-      connector = new SslSelectChannelConnector(factory);
+      // The failed validation cache learns client addresses from the
+      // engines wrapped by the handshake counting connector
+      if (options.isHandshakeCounting()
+        || options.getFailedValidationCacheSize() > 0)
+        connector = new HandshakeCountingSslConnector(factory,
+          HandshakeCountingSslConnector.trackedSessions(sslContext));
+      else
+        connector = new SslSelectChannelConnector(factory);
+
       connector.setHost(host);
       connector.setPort(port);
 
@@ -136,6 +155,27 @@ public class SSLContextConnectorConfigurator implements
 
   }
 
+  /**
+   * Applies the session cache settings to the server session context of the
+   * SSL context.
+   *
+   * @param options
+   *          the SSL configuration options
+   */
+  protected void configureSessionCache(SSLOptions options) {
+
+    SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+
+    if (sessionContext == null)
+      return;
+
+    if (options.getSessionCacheSize() >= 0)
+      sessionContext.setSessionCacheSize(options.getSessionCacheSize());
+
+    if (options.getSessionTimeoutInSecs() >= 0)
+      sessionContext.setSessionTimeout(options.getSessionTimeoutInSecs());
+  }
+
   /**
    * Sets the SSL context for this configurator
    *
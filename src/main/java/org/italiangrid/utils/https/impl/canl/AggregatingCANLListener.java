@@ -0,0 +1,324 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.italiangrid.utils.concurrent.NamedThreadFactory;
+
+import eu.emi.security.authn.x509.ValidationError;
+import eu.emi.security.authn.x509.ValidationErrorCode;
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.FormatMode;
+
+/**
+ * A {@link CANLListener} which, instead of logging each validation error,
+ * counts errors by error code and by issuing CA, and logs a summary at most
+ * once per interval.
+ *
+ * Only the first few errors for each error code in an interval are kept as
+ * examples in the summary, and the certificate chain is formatted only for
+ * those. Counters are updated without locking: an error is recorded in the
+ * interval that is current once recording starts, and a summary waits for the
+ * errors still being recorded in its interval, so each error is accounted for
+ * in exactly one summary.
+ */
+public class AggregatingCANLListener extends CANLListener {
+
+  /**
+   * The default number of examples logged for each error code in a summary.
+   */
+  public static final int DEFAULT_SAMPLES_PER_ERROR = 1;
+
+  /**
+   * The maximum number of distinct issuers counted in a summary. Errors for
+   * further issuers are counted under {@link #OTHER_ISSUERS}.
+   */
+  static final int MAX_ISSUERS = 1000;
+
+  /**
+   * The number of issuers listed in a summary.
+   */
+  static final int TOP_ISSUERS = 10;
+
+  static final String OTHER_ISSUERS = "other";
+
+  static final String UNKNOWN_ISSUER = "unknown";
+
+  /**
+   * Schedules the summaries of all listeners. Summaries are only scheduled
+   * when an error is reported, so an idle listener costs nothing.
+   */
+  private static final ScheduledExecutorService scheduler = Executors
+    .newSingleThreadScheduledExecutor(new NamedThreadFactory(
+      "validation-error-summary"));
+
+  /**
+   * The errors reported in a summary interval.
+   */
+  private static final class Interval {
+
+    final long startTime = System.currentTimeMillis();
+    final AtomicLong total = new AtomicLong();
+    final ConcurrentMap<ValidationErrorCode, AtomicLong> byError = new ConcurrentHashMap<ValidationErrorCode, AtomicLong>();
+    final ConcurrentMap<String, AtomicLong> byIssuer = new ConcurrentHashMap<String, AtomicLong>();
+    final Queue<String> samples = new ConcurrentLinkedQueue<String>();
+
+    /**
+     * The number of errors being recorded in this interval
+     */
+    final AtomicInteger writers = new AtomicInteger();
+  }
+
+  private final long summaryIntervalInMsec;
+
+  private final int samplesPerError;
+
+  private final AtomicReference<Interval> current = new AtomicReference<Interval>(
+    new Interval());
+
+  private final ConcurrentMap<ValidationErrorCode, AtomicLong> totals = new ConcurrentHashMap<ValidationErrorCode, AtomicLong>();
+
+  private final AtomicLong total = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param summaryIntervalInMsec
+   *          the minimum interval between two summaries
+   */
+  public AggregatingCANLListener(long summaryIntervalInMsec) {
+
+    this(summaryIntervalInMsec, DEFAULT_SAMPLES_PER_ERROR);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param summaryIntervalInMsec
+   *          the minimum interval between two summaries
+   * @param samplesPerError
+   *          the number of examples logged for each error code in a summary
+   */
+  public AggregatingCANLListener(long summaryIntervalInMsec,
+    int samplesPerError) {
+
+    if (summaryIntervalInMsec <= 0)
+      throw new IllegalArgumentException(
+        "Summary interval must be a positive number");
+
+    this.summaryIntervalInMsec = summaryIntervalInMsec;
+    this.samplesPerError = samplesPerError;
+  }
+
+  @Override
+  public boolean onValidationError(ValidationError error) {
+
+    total.incrementAndGet();
+    increment(totals, error.getErrorCode());
+
+    Interval interval;
+
+    while (true) {
+
+      interval = current.get();
+      interval.writers.incrementAndGet();
+
+      if (current.get() == interval)
+        break;
+
+      // The interval was swapped out before recording started, retry
+      interval.writers.decrementAndGet();
+    }
+
+    try {
+
+      record(interval, error);
+
+    } finally {
+      interval.writers.decrementAndGet();
+    }
+
+    return false;
+  }
+
+  private void record(Interval interval, ValidationError error) {
+
+    if (interval.total.incrementAndGet() == 1)
+      scheduleSummary();
+
+    long errorCount = increment(interval.byError, error.getErrorCode());
+    String issuer = getIssuer(error.getChain());
+
+    if (interval.byIssuer.size() >= MAX_ISSUERS
+      && !interval.byIssuer.containsKey(issuer))
+      issuer = OTHER_ISSUERS;
+
+    increment(interval.byIssuer, issuer);
+
+    if (errorCount <= samplesPerError)
+      interval.samples.add(String.format("%s: %s", error.getMessage(),
+        formatChain(error)));
+  }
+
+  /**
+   * Formats the certificate chain of a sampled error.
+   *
+   * @param error
+   *          the validation error
+   * @return the formatted chain
+   */
+  protected String formatChain(ValidationError error) {
+
+    return CertificateUtils.format(error.getChain(),
+      FormatMode.COMPACT_ONE_LINE);
+  }
+
+  /**
+   * Logs a summary of the errors reported since the last one, if any.
+   *
+   * @return the number of errors in the summary
+   */
+  public long logSummary() {
+
+    Interval interval = current.getAndSet(new Interval());
+
+    // Wait for the errors still being recorded in the interval
+    while (interval.writers.get() > 0)
+      Thread.yield();
+
+    if (interval.total.get() == 0)
+      return 0;
+
+    long elapsed = System.currentTimeMillis() - interval.startTime;
+
+    logger.warn(
+      "{} certificate validation errors in the last {} secs. By error: {}. "
+        + "By issuer: {}.",
+      new Object[] { interval.total.get(),
+        TimeUnit.MILLISECONDS.toSeconds(elapsed),
+        top(interval.byError, Integer.MAX_VALUE),
+        top(interval.byIssuer, TOP_ISSUERS) });
+
+    for (String sample : interval.samples)
+      logger.warn("Certificate validation error: {}", sample);
+
+    return interval.total.get();
+  }
+
+  /**
+   * @return the number of validation errors reported to this listener
+   */
+  public long getErrorCount() {
+
+    return total.get();
+  }
+
+  /**
+   * @param code
+   *          an error code
+   * @return the number of validation errors with the given code reported to
+   *         this listener
+   */
+  public long getErrorCount(ValidationErrorCode code) {
+
+    AtomicLong count = totals.get(code);
+    return count == null ? 0 : count.get();
+  }
+
+  private void scheduleSummary() {
+
+    scheduler.schedule(new Runnable() {
+
+      public void run() {
+
+        logSummary();
+      }
+    }, summaryIntervalInMsec, TimeUnit.MILLISECONDS);
+  }
+
+  private static String getIssuer(X509Certificate[] chain) {
+
+    if (chain == null || chain.length == 0)
+      return UNKNOWN_ISSUER;
+
+    return chain[chain.length - 1].getIssuerX500Principal().getName();
+  }
+
+  private static <K> long increment(ConcurrentMap<K, AtomicLong> counters,
+    K key) {
+
+    AtomicLong counter = counters.get(key);
+
+    if (counter == null) {
+      AtomicLong newCounter = new AtomicLong();
+      counter = counters.putIfAbsent(key, newCounter);
+      if (counter == null)
+        counter = newCounter;
+    }
+
+    return counter.incrementAndGet();
+  }
+
+  /**
+   * Formats the largest counters, in decreasing order.
+   */
+  private static <K> String top(Map<K, AtomicLong> counters, int limit) {
+
+    List<Map.Entry<K, AtomicLong>> entries = new ArrayList<Map.Entry<K, AtomicLong>>(
+      counters.entrySet());
+
+    Collections.sort(entries, new Comparator<Map.Entry<K, AtomicLong>>() {
+
+      public int compare(Map.Entry<K, AtomicLong> o1,
+        Map.Entry<K, AtomicLong> o2) {
+
+        long c1 = o1.getValue().get();
+        long c2 = o2.getValue().get();
+        return c1 < c2 ? 1 : (c1 == c2 ? 0 : -1);
+      }
+    });
+
+    StringBuilder sb = new StringBuilder("[");
+
+    for (int i = 0; i < entries.size() && i < limit; i++) {
+      if (i > 0)
+        sb.append(", ");
+      sb.append(entries.get(i).getKey()).append(": ")
+        .append(entries.get(i).getValue().get());
+    }
+
+    if (entries.size() > limit)
+      sb.append(", ...");
+
+    return sb.append("]").toString();
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.X509TrustManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A trust manager which refuses client chains holding a certificate listed in
+ * a {@link CertificateBlocklist}, before handing them to the wrapped trust
+ * manager for validation.
+ */
+class BlocklistTrustManager implements X509TrustManager {
+
+  public static final Logger log = LoggerFactory
+    .getLogger(BlocklistTrustManager.class);
+
+  private final X509TrustManager delegate;
+
+  private final CertificateBlocklist blocklist;
+
+  BlocklistTrustManager(X509TrustManager delegate,
+    CertificateBlocklist blocklist) {
+
+    this.delegate = delegate;
+    this.blocklist = blocklist;
+  }
+
+  public void checkClientTrusted(X509Certificate[] chain, String authType)
+    throws CertificateException {
+
+    X509Certificate blocked = blocklist.findBlocked(chain);
+
+    if (blocked != null) {
+
+      log.info("Refusing blocklisted certificate: {}",
+        blocked.getSubjectX500Principal());
+
+      throw new CertificateException("Certificate is blocklisted: "
+        + blocked.getSubjectX500Principal());
+    }
+
+    delegate.checkClientTrusted(chain, authType);
+  }
+
+  public void checkServerTrusted(X509Certificate[] chain, String authType)
+    throws CertificateException {
+
+    delegate.checkServerTrusted(chain, authType);
+  }
+
+  public X509Certificate[] getAcceptedIssuers() {
+
+    return delegate.getAcceptedIssuers();
+  }
+}
@@ -15,19 +15,35 @@
  */
 package org.italiangrid.utils.https.impl.canl;
 
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
 
 import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.util.component.AbstractLifeCycle.AbstractLifeCycleListener;
+import org.eclipse.jetty.util.component.AggregateLifeCycle;
+import org.eclipse.jetty.util.component.Destroyable;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.italiangrid.utils.concurrent.NamedThreadFactory;
 import org.italiangrid.utils.https.JettySSLConnectorConfigurator;
 import org.italiangrid.utils.https.SSLOptions;
+import org.italiangrid.utils.https.StartupTimings;
 import org.italiangrid.utils.https.impl.SSLContextConnectorConfigurator;
-import org.italiangrid.voms.util.CertificateValidatorBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import eu.emi.security.authn.x509.CrlCheckingMode;
 import eu.emi.security.authn.x509.NamespaceCheckingMode;
-import eu.emi.security.authn.x509.OCSPCheckingMode;
 import eu.emi.security.authn.x509.X509CertChainValidatorExt;
 import eu.emi.security.authn.x509.impl.PEMCredential;
 import eu.emi.security.authn.x509.impl.SocketFactoryCreator;
@@ -36,6 +52,10 @@ import eu.emi.security.authn.x509.impl.SocketFactoryCreator;
  * A {@link JettySSLConnectorConfigurator} that leverages the EMI Common
  * Authentication Library.
  *
+ * The service credential is loaded in a background thread while the
+ * certificate chain validator is acquired, and the time spent in each phase is
+ * recorded in the {@link StartupTimings} passed at construction time, if any.
+ *
  * @author andreaceccanti
  *
  */
@@ -47,51 +67,330 @@ public class CANLSSLConnectorConfigurator implements
 
   public static final NamespaceCheckingMode DEFAULT_NAMESPACE_CHECKING_MODE = NamespaceCheckingMode.EUGRIDPMA_AND_GLOBUS;
 
-  SSLContextConnectorConfigurator configurator;
+  /**
+   * The validator provided at construction time, if any. When null, the
+   * validator is obtained from the {@link CertChainValidatorRegistry}.
+   */
+  final X509CertChainValidatorExt certChainValidator;
 
-  X509CertChainValidatorExt certChainValidator;
+  /**
+   * Where startup phase timings are recorded, or null.
+   */
+  final StartupTimings startupTimings;
 
   public CANLSSLConnectorConfigurator() {
 
+    this(null, null);
   }
 
   public CANLSSLConnectorConfigurator(X509CertChainValidatorExt validator) {
 
+    this(validator, null);
+  }
+
+  public CANLSSLConnectorConfigurator(X509CertChainValidatorExt validator,
+    StartupTimings timings) {
+
     this.certChainValidator = validator;
+    this.startupTimings = timings;
   }
 
-  public Connector configureConnector(String host, int port, SSLOptions options) {
+  public Connector configureConnector(String host, int port,
+    final SSLOptions options) {
+
+    X509CertChainValidatorExt validator = certChainValidator;
+    List<Resource> resources = new ArrayList<Resource>();
+
+    final StartupTimings timings = (startupTimings == null) ? new StartupTimings()
+      : startupTimings;
+
+    ExecutorService executor = Executors
+      .newSingleThreadExecutor(new NamedThreadFactory("https-startup"));
 
     try {
 
-      PEMCredential serviceCredentials = new PEMCredential(
-        options.getKeyFile(), options.getCertificateFile(),
-        options.getKeyPassword());
-
-      if (certChainValidator == null) {
-        CANLListener l = new CANLListener();
-
-        certChainValidator = new CertificateValidatorBuilder()
-          .crlChecks(CrlCheckingMode.IF_VALID)
-          .ocspChecks(OCSPCheckingMode.IGNORE)
-          .lazyAnchorsLoading(false)
-          .trustAnchorsDir(options.getTrustStoreDirectory())
-          .trustAnchorsUpdateInterval(
-            options.getTrustStoreRefreshIntervalInMsec())
-          .storeUpdateListener(l).validationErrorListener(l).build();
+      Future<PEMCredential> credentialLoader = executor
+        .submit(new Callable<PEMCredential>() {
+
+          public PEMCredential call() throws Exception {
+
+            long start = System.nanoTime();
+
+            PEMCredential credential = new PEMCredential(options.getKeyFile(),
+              options.getCertificateFile(), options.getKeyPassword());
+
+            timings.record(StartupTimings.CREDENTIAL, start);
+            return credential;
+          }
+        });
+
+      long start = System.nanoTime();
+
+      if (validator == null) {
+        final X509CertChainValidatorExt sharedValidator = CertChainValidatorRegistry
+          .instance().acquire(options);
+
+        resources.add(new Resource(sharedValidator) {
+
+          public void destroy() {
+
+            sharedValidator.dispose();
+          }
+
+          void restart() {
+
+            CertChainValidatorRegistry.instance().reacquire(sharedValidator);
+          }
+        });
+
+        validator = sharedValidator;
+      }
+
+      timings.record(StartupTimings.VALIDATOR, start);
+
+      PEMCredential serviceCredentials = getCredential(credentialLoader);
+
+      start = System.nanoTime();
+      SSLContext sslContext;
+
+      if (options.getCredentialRefreshIntervalInMsec() > 0
+        || options.getBlocklistFile() != null
+        || options.getFailedValidationCacheSize() > 0) {
+        sslContext = newSSLContext(serviceCredentials, validator, options,
+          resources);
+      } else {
+        sslContext = SocketFactoryCreator.getSSLContext(serviceCredentials,
+          validator, null);
+      }
+
+      timings.record(StartupTimings.SSL_CONTEXT, start);
+
+      start = System.nanoTime();
+      SSLContextConnectorConfigurator configurator = new SSLContextConnectorConfigurator(
+        sslContext);
+
+      Connector connector = configurator.configureConnector(host, port,
+        options);
+
+      if (connector == null) {
+        destroy(resources);
+        return null;
       }
 
-      SSLContext sslContext = SocketFactoryCreator.getSSLContext(
-        serviceCredentials, certChainValidator, null);
+      timings.record(StartupTimings.CONNECTOR, start);
 
-      configurator = new SSLContextConnectorConfigurator(sslContext);
+      log.debug("HTTPS connector for {}:{} configured: {}", new Object[] {
+        host, port, timings });
 
-      return configurator.configureConnector(host, port, options);
+      bindToLifecycle(connector, resources);
+      return connector;
 
     } catch (Throwable t) {
       log.error("SSL initialization error!", t);
+      destroy(resources);
       return null;
+
+    } finally {
+      executor.shutdownNow();
+    }
+
+  }
+
+  /**
+   * Waits for the service credential to be loaded.
+   */
+  private PEMCredential getCredential(Future<PEMCredential> loader)
+    throws Exception {
+
+    try {
+
+      return loader.get();
+
+    } catch (ExecutionException e) {
+
+      if (e.getCause() instanceof Exception)
+        throw (Exception) e.getCause();
+
+      throw e;
+    }
+  }
+
+  /**
+   * Builds an SSL context whose service credential is reloaded when the
+   * certificate or key files change, and whose trust manager refuses
+   * blocklisted certificates and chains which failed validation recently, as
+   * configured in the options.
+   */
+  private SSLContext newSSLContext(PEMCredential serviceCredentials,
+    X509CertChainValidatorExt validator, SSLOptions options,
+    List<Resource> resources) throws GeneralSecurityException {
+
+    KeyManager keyManager = serviceCredentials.getKeyManager();
+
+    if (options.getCredentialRefreshIntervalInMsec() > 0) {
+
+      ReloadableKeyManager reloadableKeyManager = new ReloadableKeyManager(
+        serviceCredentials);
+
+      final PEMCredentialReloader reloader = new PEMCredentialReloader(
+        options, reloadableKeyManager);
+      reloader.start();
+
+      resources.add(new Resource(reloader) {
+
+        public void destroy() {
+
+          reloader.stop();
+        }
+
+        void restart() {
+
+          reloader.reload();
+          reloader.start();
+        }
+      });
+
+      keyManager = reloadableKeyManager;
+    }
+
+    X509TrustManager trustManager = SocketFactoryCreator
+      .getSSLTrustManager(validator);
+
+    if (options.getFailedValidationCacheSize() > 0) {
+
+      final FailedValidationCache failedValidationCache = new FailedValidationCache(
+        validator, options.getFailedValidationCacheSize(),
+        options.getFailedValidationCacheTtlInMsec());
+
+      resources.add(new Resource(failedValidationCache) {
+
+        public void destroy() {
+
+          failedValidationCache.destroy();
+        }
+
+        void restart() {
+
+          failedValidationCache.restart();
+        }
+      });
+
+      trustManager = new FailedValidationTrustManager(trustManager,
+        failedValidationCache);
+    }
+
+    if (options.getBlocklistFile() != null) {
+
+      final CertificateBlocklist blocklist = new CertificateBlocklist(options);
+      blocklist.start();
+
+      resources.add(new Resource(blocklist) {
+
+        public void destroy() {
+
+          blocklist.stop();
+        }
+
+        void restart() {
+
+          blocklist.reload();
+          blocklist.start();
+        }
+      });
+
+      trustManager = new BlocklistTrustManager(trustManager, blocklist);
+    }
+
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(new KeyManager[] { keyManager },
+      new TrustManager[] { trustManager }, null);
+
+    return sslContext;
+  }
+
+  /**
+   * A resource acquired while configuring a connector. {@link #destroy()}
+   * releases it, and {@link #restart()} acquires it again.
+   */
+  private abstract static class Resource implements Destroyable {
+
+    /**
+     * The object registered as connector bean
+     */
+    final Object bean;
+
+    Resource(Object bean) {
+
+      this.bean = bean;
     }
 
+    /**
+     * Acquires the resource again after it has been released.
+     */
+    abstract void restart();
+  }
+
+  private void destroy(List<Resource> resources) {
+
+    for (Resource r : resources)
+      r.destroy();
+  }
+
+  /**
+   * Ties the resources acquired while configuring the connector to the
+   * connector lifecycle, so that they are released when the connector is
+   * stopped (Jetty stops, but does not destroy, the connectors of a server
+   * being stopped), acquired again when it is restarted, and released when it
+   * is destroyed without having been started. The resources are also
+   * registered as connector beans, so that they can be looked up.
+   * 
+   * @param connector
+   *          the connector
+   * @param resources
+   *          the resources to release
+   */
+  private void bindToLifecycle(Connector connector,
+    final List<Resource> resources) {
+
+    if (resources.isEmpty())
+      return;
+
+    final AtomicBoolean released = new AtomicBoolean(false);
+
+    final Destroyable releaser = new Destroyable() {
+
+      public void destroy() {
+
+        if (released.compareAndSet(false, true))
+          CANLSSLConnectorConfigurator.this.destroy(resources);
+      }
+    };
+
+    connector.addLifeCycleListener(new AbstractLifeCycleListener() {
+
+      @Override
+      public void lifeCycleStarting(LifeCycle event) {
+
+        if (released.compareAndSet(true, false))
+          for (Resource r : resources)
+            r.restart();
+      }
+
+      @Override
+      public void lifeCycleStopped(LifeCycle event) {
+
+        releaser.destroy();
+      }
+    });
+
+    if (connector instanceof AggregateLifeCycle) {
+
+      AggregateLifeCycle beans = (AggregateLifeCycle) connector;
+
+      for (Resource r : resources)
+        beans.addBean(r.bean, false);
+
+      beans.addBean(releaser, true);
+    }
   }
 }
@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.util.List;
+
+import org.italiangrid.utils.https.impl.canl.TrustStoreSnapshot.FileStamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A directory holding the compiled form of CRLs.
+ *
+ * Each CRL file is compiled into an index file containing the DER encoded CRL
+ * followed by a {@link RevokedSerialIndex} of its revoked serial numbers. The
+ * index file is memory-mapped, so neither the CRL entries nor the index take
+ * heap space. An index file is reused as long as the modification time, size
+ * and SHA-256 digest of the CRL file it was compiled from do not change, and
+ * the SHA-256 digest of the compiled CRL and index stored at its end still
+ * matches, so a stale, truncated or corrupted index is compiled again rather
+ * than used.
+ */
+final class CRLIndexDirectory {
+
+  public static final Logger log = LoggerFactory
+    .getLogger(CRLIndexDirectory.class);
+
+  private static final int MAGIC = 0x43524c49;
+
+  private static final int VERSION = 2;
+
+  private static final String SUFFIX = ".idx";
+
+  private final File directory;
+
+  CRLIndexDirectory(File directory) {
+
+    this.directory = directory;
+  }
+
+  File getDirectory() {
+
+    return directory;
+  }
+
+  /**
+   * Returns the compiled form of a CRL file, compiling it if needed.
+   *
+   * @param crlFile
+   *          the CRL file
+   * @param factory
+   *          the factory used to decode CRLs
+   * @return the compiled CRL
+   * @throws IOException
+   *           if the index file cannot be read or written
+   * @throws GeneralSecurityException
+   *           if the CRL cannot be decoded or is not supported
+   */
+  CompiledCRL open(File crlFile, CertificateFactory factory)
+    throws IOException, GeneralSecurityException {
+
+    File indexFile = new File(directory, crlFile.getName() + SUFFIX);
+    FileStamp stamp = FileStamp.of(crlFile);
+
+    CompiledCRL crl = map(indexFile, crlFile, stamp, factory);
+
+    if (crl != null)
+      return crl;
+
+    compile(crlFile, indexFile, stamp, factory);
+    crl = map(indexFile, crlFile, stamp, factory);
+
+    if (crl == null)
+      throw new IOException("Cannot read CRL index " + indexFile);
+
+    return crl;
+  }
+
+  /**
+   * Removes the index file of a CRL file.
+   *
+   * @param crlFile
+   *          the CRL file
+   */
+  void remove(File crlFile) {
+
+    new File(directory, crlFile.getName() + SUFFIX).delete();
+  }
+
+  private CompiledCRL map(File indexFile, File crlFile, FileStamp stamp,
+    CertificateFactory factory) throws IOException, GeneralSecurityException {
+
+    if (!indexFile.isFile())
+      return null;
+
+    MappedByteBuffer buffer;
+    RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+
+    try {
+      FileChannel channel = raf.getChannel();
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      raf.close();
+    }
+
+    DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+
+    try {
+
+      if (in.readInt() != MAGIC || in.readInt() != VERSION
+        || !crlFile.getAbsolutePath().equals(in.readUTF())
+        || in.readLong() != stamp.lastModified || in.readLong() != stamp.length)
+        return null;
+
+      byte[] crlDigest = new byte[in.readInt()];
+      in.readFully(crlDigest);
+
+      if (stamp.digest.length == 0
+        || !MessageDigest.isEqual(crlDigest, stamp.digest))
+        return null;
+
+      int derLength = in.readInt();
+      int indexLength = in.readInt();
+
+      ByteBuffer der = slice(buffer, derLength);
+      ByteBuffer index = slice(buffer, indexLength);
+
+      byte[] digest = new byte[in.readInt()];
+      in.readFully(digest);
+
+      if (!MessageDigest.isEqual(digest, digest(der.duplicate(),
+        index.duplicate()))) {
+        log.warn("Ignoring CRL index {}: digest mismatch.", indexFile);
+        return null;
+      }
+
+      return new CompiledCRL(der, new RevokedSerialIndex(index), factory);
+
+    } catch (IOException e) {
+
+      log.debug("Ignoring CRL index {}: {}", indexFile, e.getMessage());
+      return null;
+
+    } catch (RuntimeException e) {
+
+      log.debug("Ignoring CRL index {}: {}", indexFile, e.getMessage());
+      return null;
+    }
+  }
+
+  private void compile(File crlFile, File indexFile, FileStamp stamp,
+    CertificateFactory factory) throws IOException, GeneralSecurityException {
+
+    long start = System.currentTimeMillis();
+    byte[] der;
+    InputStream is = new BufferedInputStream(new FileInputStream(crlFile));
+
+    try {
+      der = ((X509CRL) factory.generateCRL(is)).getEncoded();
+    } finally {
+      is.close();
+    }
+
+    List<RevokedSerialIndex.Entry> entries;
+
+    try {
+      ByteBuffer b = ByteBuffer.wrap(der);
+      entries = CompiledCRL.Layout.of(b).entries(b);
+    } catch (IllegalArgumentException e) {
+      throw new GeneralSecurityException("CRL " + crlFile
+        + " cannot be indexed: " + e.getMessage(), e);
+    }
+
+    ByteBuffer index = ByteBuffer.allocate(RevokedSerialIndex
+      .sizeFor(entries.size()));
+    RevokedSerialIndex.write(index, entries);
+
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Cannot create CRL index directory " + directory);
+
+    byte[] digest = digest(ByteBuffer.wrap(der), ByteBuffer.wrap(index
+      .array()));
+
+    File tmp = File.createTempFile(indexFile.getName(), ".tmp", directory);
+
+    try {
+
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(tmp)));
+
+      try {
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(crlFile.getAbsolutePath());
+        out.writeLong(stamp.lastModified);
+        out.writeLong(stamp.length);
+        out.writeInt(stamp.digest.length);
+        out.write(stamp.digest);
+        out.writeInt(der.length);
+        out.writeInt(index.capacity());
+        out.write(der);
+        out.write(index.array());
+        out.writeInt(digest.length);
+        out.write(digest);
+
+      } finally {
+        out.close();
+      }
+
+      if (!tmp.renameTo(indexFile))
+        throw new IOException("Cannot replace " + indexFile);
+
+    } finally {
+      tmp.delete();
+    }
+
+    log.debug("Compiled CRL {} ({} entries) in {} msec.", new Object[] {
+      crlFile, entries.size(), System.currentTimeMillis() - start });
+  }
+
+  private static byte[] digest(ByteBuffer der, ByteBuffer index) {
+
+    MessageDigest md = TrustStoreSnapshot.newDigest();
+    md.update(der);
+    md.update(index);
+    return md.digest();
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int length) {
+
+    ByteBuffer b = buffer.duplicate();
+    b.limit(b.position() + length);
+    buffer.position(buffer.position() + length);
+    return b.slice();
+  }
+}
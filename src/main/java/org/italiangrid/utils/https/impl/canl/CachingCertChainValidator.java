@@ -0,0 +1,313 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertPath;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.emi.security.authn.x509.ProxySupport;
+import eu.emi.security.authn.x509.RevocationParameters;
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.ValidationErrorListener;
+import eu.emi.security.authn.x509.ValidationResult;
+import eu.emi.security.authn.x509.X509CertChainValidatorExt;
+
+/**
+ * A validator that caches the positive results of another validator, indexed
+ * by a fingerprint of the validated chain, so that chains presented again are
+ * accepted without building and checking the certification path.
+ *
+ * A cached result expires at the earliest notAfter time in the chain, and all
+ * cached results are dropped whenever the wrapped validator reloads CA
+ * certificates, CRLs or namespaces. Failed validations are never cached.
+ */
+public class CachingCertChainValidator implements X509CertChainValidatorExt {
+
+  private static final String FINGERPRINT_ALGORITHM = "SHA-256";
+
+  /**
+   * A chain fingerprint
+   */
+  static final class ChainKey {
+
+    private final byte[] digest;
+    private final int hash;
+
+    ChainKey(byte[] digest) {
+
+      this.digest = digest;
+      this.hash = Arrays.hashCode(digest);
+    }
+
+    @Override
+    public int hashCode() {
+
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+      if (this == obj)
+        return true;
+      if (!(obj instanceof ChainKey))
+        return false;
+      return Arrays.equals(digest, ((ChainKey) obj).digest);
+    }
+  }
+
+  private static final class CachedResult {
+
+    final ValidationResult result;
+    final long expiresAt;
+
+    CachedResult(ValidationResult result, long expiresAt) {
+
+      this.result = result;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final X509CertChainValidatorExt delegate;
+
+  /**
+   * The cached results. Guarded by itself.
+   */
+  private final Map<ChainKey, CachedResult> results;
+
+  /**
+   * Incremented each time the cache is cleared, so that results computed
+   * before a reload are not cached after it.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final StoreUpdateListener reloadListener = new StoreUpdateListener() {
+
+    public void loadingNotification(String location, String type,
+      Severity level, Exception cause) {
+
+      if (!StoreUpdateListener.OCSP.equals(type))
+        clear();
+    }
+  };
+
+  /**
+   * Constructor.
+   *
+   * @param delegate
+   *          the validator whose results are cached
+   * @param maxEntries
+   *          the maximum number of cached results
+   */
+  public CachingCertChainValidator(X509CertChainValidatorExt delegate,
+    final int maxEntries) {
+
+    if (maxEntries <= 0)
+      throw new IllegalArgumentException(
+        "Cache size must be a positive number");
+
+    this.delegate = delegate;
+
+    results = new LinkedHashMap<ChainKey, CachedResult>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+        Map.Entry<ChainKey, CachedResult> eldest) {
+
+        return size() > maxEntries;
+      }
+    };
+
+    delegate.addUpdateListener(reloadListener);
+  }
+
+  public ValidationResult validate(CertPath certPath) {
+
+    List<? extends Certificate> certs = certPath.getCertificates();
+    return validate(certs.toArray(new X509Certificate[certs.size()]));
+  }
+
+  public ValidationResult validate(X509Certificate[] certChain) {
+
+    ChainKey key = fingerprint(certChain);
+    long now = System.currentTimeMillis();
+
+    if (key != null) {
+
+      synchronized (results) {
+
+        CachedResult cached = results.get(key);
+
+        if (cached != null) {
+
+          if (now < cached.expiresAt) {
+            hits.incrementAndGet();
+            return cached.result;
+          }
+
+          results.remove(key);
+        }
+      }
+    }
+
+    misses.incrementAndGet();
+
+    long currentGeneration = generation.get();
+    ValidationResult result = delegate.validate(certChain);
+
+    if (key != null && result.isValid()) {
+
+      synchronized (results) {
+
+        if (generation.get() == currentGeneration)
+          results.put(key, new CachedResult(result, earliestNotAfter(certChain)));
+      }
+    }
+
+    return result;
+  }
+
+  /**
+   * @return the fingerprint of a chain, or <code>null</code> if it cannot be
+   *         computed
+   */
+  static ChainKey fingerprint(X509Certificate[] certChain) {
+
+    try {
+
+      MessageDigest md = MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+
+      for (X509Certificate c : certChain) {
+        byte[] encoded = c.getEncoded();
+        md.update((byte) (encoded.length >>> 24));
+        md.update((byte) (encoded.length >>> 16));
+        md.update((byte) (encoded.length >>> 8));
+        md.update((byte) encoded.length);
+        md.update(encoded);
+      }
+
+      return new ChainKey(md.digest());
+
+    } catch (CertificateEncodingException e) {
+      return null;
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    }
+  }
+
+  private static long earliestNotAfter(X509Certificate[] certChain) {
+
+    long notAfter = Long.MAX_VALUE;
+
+    for (X509Certificate c : certChain)
+      notAfter = Math.min(notAfter, c.getNotAfter().getTime());
+
+    return notAfter;
+  }
+
+  /**
+   * Drops all the cached results.
+   */
+  public void clear() {
+
+    synchronized (results) {
+      generation.incrementAndGet();
+      results.clear();
+    }
+  }
+
+  /**
+   * @return the number of cached results
+   */
+  public int size() {
+
+    synchronized (results) {
+      return results.size();
+    }
+  }
+
+  /**
+   * @return the number of validations answered from the cache
+   */
+  public long getHitCount() {
+
+    return hits.get();
+  }
+
+  /**
+   * @return the number of validations passed to the wrapped validator
+   */
+  public long getMissCount() {
+
+    return misses.get();
+  }
+
+  public X509Certificate[] getTrustedIssuers() {
+
+    return delegate.getTrustedIssuers();
+  }
+
+  public void addValidationListener(ValidationErrorListener listener) {
+
+    delegate.addValidationListener(listener);
+  }
+
+  public void removeValidationListener(ValidationErrorListener listener) {
+
+    delegate.removeValidationListener(listener);
+  }
+
+  public void addUpdateListener(StoreUpdateListener listener) {
+
+    delegate.addUpdateListener(listener);
+  }
+
+  public void removeUpdateListener(StoreUpdateListener listener) {
+
+    delegate.removeUpdateListener(listener);
+  }
+
+  public ProxySupport getProxySupport() {
+
+    return delegate.getProxySupport();
+  }
+
+  public RevocationParameters getRevocationCheckingMode() {
+
+    return delegate.getRevocationCheckingMode();
+  }
+
+  public void dispose() {
+
+    delegate.removeUpdateListener(reloadListener);
+    delegate.dispose();
+  }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.security.cert.CertPath;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import eu.emi.security.authn.x509.OCSPCheckingMode;
+import eu.emi.security.authn.x509.OCSPParametes;
+import eu.emi.security.authn.x509.ProxySupport;
+import eu.emi.security.authn.x509.RevocationParameters;
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.ValidationError;
+import eu.emi.security.authn.x509.ValidationErrorCode;
+import eu.emi.security.authn.x509.ValidationErrorListener;
+import eu.emi.security.authn.x509.ValidationResult;
+import eu.emi.security.authn.x509.X509CertChainValidatorExt;
+import eu.emi.security.authn.x509.helpers.ObserversHandler;
+import eu.emi.security.authn.x509.helpers.ocsp.OCSPResult;
+import eu.emi.security.authn.x509.helpers.ocsp.OCSPResult.Status;
+import eu.emi.security.authn.x509.helpers.pkipath.SimpleValidationErrorException;
+import eu.emi.security.authn.x509.proxy.ProxyUtils;
+
+/**
+ * A validator that adds OCSP checks, backed by an {@link OCSPResponseCache},
+ * to the chains accepted by another validator. The wrapped validator should
+ * be configured to ignore OCSP.
+ *
+ * Responses are cached and refreshed in background, so that handshakes only
+ * wait for a responder the first time a certificate is seen. In
+ * {@link OCSPCheckingMode#REQUIRE} mode a certificate without a cached response
+ * waits for the responder to be queried, while in
+ * {@link OCSPCheckingMode#IF_AVAILABLE} mode it is accepted and the responder
+ * is queried in background.
+ */
+public class CachingOCSPValidator implements X509CertChainValidatorExt {
+
+  private final X509CertChainValidatorExt delegate;
+
+  private final OCSPCheckingMode checkingMode;
+
+  private final RevocationParameters revocationParameters;
+
+  private final ObserversHandler observers;
+
+  private final List<ValidationErrorListener> validationListeners = new CopyOnWriteArrayList<ValidationErrorListener>();
+
+  private final OCSPResponseCache cache;
+
+  /**
+   * Constructor.
+   *
+   * @param delegate
+   *          the validator that validates chains before OCSP is checked
+   * @param params
+   *          the OCSP parameters. The checking mode must not be
+   *          {@link OCSPCheckingMode#IGNORE}
+   * @param cacheSize
+   *          the maximum number of cached responses
+   */
+  public CachingOCSPValidator(X509CertChainValidatorExt delegate,
+    OCSPParametes params, int cacheSize) {
+
+    this(delegate, params, cacheSize, Collections
+      .<StoreUpdateListener> emptyList());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param delegate
+   *          the validator that validates chains before OCSP is checked
+   * @param params
+   *          the OCSP parameters. The checking mode must not be
+   *          {@link OCSPCheckingMode#IGNORE}
+   * @param cacheSize
+   *          the maximum number of cached responses
+   * @param updateListeners
+   *          listeners notified of OCSP responder errors, which are not
+   *          registered with the wrapped validator
+   */
+  public CachingOCSPValidator(X509CertChainValidatorExt delegate,
+    OCSPParametes params, int cacheSize,
+    Collection<? extends StoreUpdateListener> updateListeners) {
+
+    if (params.getCheckingMode() == OCSPCheckingMode.IGNORE)
+      throw new IllegalArgumentException("OCSP checking mode must not be "
+        + OCSPCheckingMode.IGNORE);
+
+    this.delegate = delegate;
+    this.checkingMode = params.getCheckingMode();
+    this.observers = new ObserversHandler(updateListeners);
+
+    revocationParameters = delegate.getRevocationCheckingMode().clone();
+    revocationParameters.setOcspParameters(params);
+
+    cache = new OCSPResponseCache(params, cacheSize, observers);
+  }
+
+  public ValidationResult validate(CertPath certPath) {
+
+    List<? extends Certificate> certs = certPath.getCertificates();
+    return validate(certs.toArray(new X509Certificate[certs.size()]));
+  }
+
+  public ValidationResult validate(X509Certificate[] certChain) {
+
+    ValidationResult result = delegate.validate(certChain);
+
+    if (!result.isValid())
+      return result;
+
+    List<ValidationError> errors = new ArrayList<ValidationError>();
+
+    for (int i = 0; i < certChain.length; i++) {
+
+      X509Certificate cert = certChain[i];
+
+      if (ProxyUtils.isProxy(cert)
+        || cert.getIssuerX500Principal().equals(cert.getSubjectX500Principal()))
+        continue;
+
+      X509Certificate issuer = findIssuer(cert, certChain);
+
+      if (issuer != null)
+        checkStatus(certChain, i, issuer, errors);
+    }
+
+    if (errors.isEmpty())
+      return result;
+
+    return new ValidationResult(false, errors);
+  }
+
+  private void checkStatus(X509Certificate[] certChain, int position,
+    X509Certificate issuer, List<ValidationError> errors) {
+
+    ValidationError error = null;
+
+    try {
+
+      OCSPResult status = cache.lookup(certChain[position], issuer,
+        checkingMode == OCSPCheckingMode.REQUIRE);
+
+      if (status != null && status.getStatus() == Status.revoked)
+        error = new ValidationError(certChain, position,
+          ValidationErrorCode.ocspCertRevoked, status.getRevocationTime(),
+          status.getRevocationReason());
+
+      else if ((status == null || status.getStatus() == Status.unknown)
+        && checkingMode == OCSPCheckingMode.REQUIRE)
+        error = new ValidationError(certChain, position,
+          ValidationErrorCode.ocspNoResponder);
+
+    } catch (SimpleValidationErrorException e) {
+
+      if (checkingMode == OCSPCheckingMode.REQUIRE)
+        error = new ValidationError(certChain, position, e.getCode(),
+          e.getArguments());
+    }
+
+    if (error != null && !isIgnored(error))
+      errors.add(error);
+  }
+
+  private boolean isIgnored(ValidationError error) {
+
+    boolean ignored = false;
+
+    for (ValidationErrorListener l : validationListeners)
+      ignored |= l.onValidationError(error);
+
+    return ignored;
+  }
+
+  private X509Certificate findIssuer(X509Certificate cert,
+    X509Certificate[] certChain) {
+
+    for (X509Certificate c : certChain)
+      if (c != cert
+        && c.getSubjectX500Principal().equals(cert.getIssuerX500Principal()))
+        return c;
+
+    for (X509Certificate c : delegate.getTrustedIssuers())
+      if (c.getSubjectX500Principal().equals(cert.getIssuerX500Principal()))
+        return c;
+
+    return null;
+  }
+
+  public X509Certificate[] getTrustedIssuers() {
+
+    return delegate.getTrustedIssuers();
+  }
+
+  public void addValidationListener(ValidationErrorListener listener) {
+
+    validationListeners.add(listener);
+    delegate.addValidationListener(listener);
+  }
+
+  public void removeValidationListener(ValidationErrorListener listener) {
+
+    validationListeners.remove(listener);
+    delegate.removeValidationListener(listener);
+  }
+
+  public void addUpdateListener(StoreUpdateListener listener) {
+
+    observers.addObserver(listener);
+    delegate.addUpdateListener(listener);
+  }
+
+  public void removeUpdateListener(StoreUpdateListener listener) {
+
+    observers.removeObserver(listener);
+    delegate.removeUpdateListener(listener);
+  }
+
+  public ProxySupport getProxySupport() {
+
+    return delegate.getProxySupport();
+  }
+
+  public RevocationParameters getRevocationCheckingMode() {
+
+    return revocationParameters;
+  }
+
+  public void dispose() {
+
+    cache.dispose();
+    delegate.dispose();
+  }
+}
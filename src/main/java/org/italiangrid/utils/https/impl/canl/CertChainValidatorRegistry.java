@@ -0,0 +1,583 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.cert.CertPath;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.italiangrid.utils.https.SSLOptions;
+import org.italiangrid.voms.util.CertificateValidatorBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.emi.security.authn.x509.CrlCheckingMode;
+import eu.emi.security.authn.x509.NamespaceCheckingMode;
+import eu.emi.security.authn.x509.OCSPCheckingMode;
+import eu.emi.security.authn.x509.OCSPParametes;
+import eu.emi.security.authn.x509.ProxySupport;
+import eu.emi.security.authn.x509.RevocationParameters;
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.ValidationErrorListener;
+import eu.emi.security.authn.x509.ValidationResult;
+import eu.emi.security.authn.x509.X509CertChainValidatorExt;
+import eu.emi.security.authn.x509.impl.CRLParameters;
+import eu.emi.security.authn.x509.impl.RevocationParametersExt;
+import eu.emi.security.authn.x509.impl.ValidatorParamsExt;
+
+/**
+ * A process-wide registry of certificate chain validators.
+ *
+ * Connectors configured against the same trust anchors directory, with the
+ * same refresh interval and the same CRL, OCSP and namespace checking modes
+ * share a single validator, so that trust anchors and CRLs are loaded (and
+ * periodically refreshed) only once per JVM.
+ *
+ * Each call to {@link #acquire(SSLOptions)} returns a distinct handle on the
+ * shared validator. Calling {@link X509CertChainValidatorExt#dispose()} on the
+ * handle releases it; the underlying validator is disposed when the last
+ * handle is released.
+ */
+public class CertChainValidatorRegistry {
+
+  public static final Logger log = LoggerFactory
+    .getLogger(CertChainValidatorRegistry.class);
+
+  /**
+   * The process-wide registry instance
+   */
+  private static final CertChainValidatorRegistry INSTANCE = new CertChainValidatorRegistry();
+
+  /**
+   * The shared validators, indexed by configuration
+   */
+  private final Map<ValidatorKey, SharedEntry> entries = new HashMap<ValidatorKey, SharedEntry>();
+
+  /**
+   * Returns the process-wide registry.
+   *
+   * @return the process-wide {@link CertChainValidatorRegistry}
+   */
+  public static CertChainValidatorRegistry instance() {
+
+    return INSTANCE;
+  }
+
+  CertChainValidatorRegistry() {
+
+  }
+
+  /**
+   * Returns a handle on the validator shared by all the connectors configured
+   * with the same trust settings found in the options passed as argument,
+   * building the validator if none is registered yet.
+   *
+   * @param options
+   *          the SSL configuration options
+   * @return a handle on the shared validator, which must be disposed when no
+   *         longer needed
+   */
+  public X509CertChainValidatorExt acquire(SSLOptions options) {
+
+    ValidatorHandle handle = new ValidatorHandle(new ValidatorKey(options));
+    handle.acquire();
+    return handle;
+  }
+
+  /**
+   * Acquires again a handle that has been disposed, building the shared
+   * validator again if no other handle kept it alive. Listeners added to the
+   * handle are registered on the validator it now refers to. This is a no-op
+   * if the handle has not been disposed.
+   *
+   * @param handle
+   *          a handle returned by {@link #acquire(SSLOptions)}
+   * @throws IllegalArgumentException
+   *           if the validator is not a handle returned by this registry
+   */
+  public void reacquire(X509CertChainValidatorExt handle) {
+
+    if (!(handle instanceof ValidatorHandle)
+      || ((ValidatorHandle) handle).registry() != this)
+      throw new IllegalArgumentException(
+        "The validator was not acquired from this registry");
+
+    ((ValidatorHandle) handle).acquire();
+  }
+
+  /**
+   * Takes a reference on the entry for the given key, registering it if
+   * needed. The validator of a newly registered entry is built without holding
+   * the registry lock, so that connectors with other settings are not blocked
+   * meanwhile.
+   */
+  private SharedEntry retain(final ValidatorKey key) {
+
+    SharedEntry entry;
+    boolean build = false;
+
+    synchronized (entries) {
+
+      entry = entries.get(key);
+
+      if (entry == null) {
+        entry = new SharedEntry(key, new Callable<X509CertChainValidatorExt>() {
+
+          public X509CertChainValidatorExt call() {
+
+            return buildValidator(key);
+          }
+        });
+        entries.put(key, entry);
+        build = true;
+      }
+
+      entry.refCount++;
+    }
+
+    if (build) {
+      entry.validator.run();
+      log.debug("Registered shared validator for {}", key);
+    }
+
+    return entry;
+  }
+
+  /**
+   * Waits for the validator of an entry retained by the caller, dropping the
+   * entry if the validator could not be built.
+   */
+  private X509CertChainValidatorExt await(SharedEntry entry) {
+
+    try {
+
+      return entry.validator.get();
+
+    } catch (InterruptedException e) {
+
+      discard(entry);
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(
+        "Interrupted while waiting for the validator to be built", e);
+
+    } catch (ExecutionException e) {
+
+      discard(entry);
+
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+
+      if (e.getCause() instanceof Error)
+        throw (Error) e.getCause();
+
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Drops an entry whose validator could not be obtained, so that the next
+   * acquire builds it again, and releases the reference taken on it.
+   */
+  private void discard(SharedEntry entry) {
+
+    synchronized (entries) {
+      if (entries.get(entry.key) == entry)
+        entries.remove(entry.key);
+    }
+
+    release(entry);
+  }
+
+  /**
+   * Returns the number of distinct validators currently registered.
+   *
+   * @return the number of registered validators
+   */
+  public int size() {
+
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * Builds the validator for the given key. This method is called without the
+   * registry lock held; concurrent acquires for the same key wait for the
+   * validator to be built.
+   *
+   * @param key
+   *          the validator configuration
+   * @return a new validator
+   */
+  protected X509CertChainValidatorExt buildValidator(ValidatorKey key) {
+
+    CANLListener l = key.errorSummaryIntervalInMsec > 0 ? new AggregatingCANLListener(
+      key.errorSummaryIntervalInMsec) : new CANLListener();
+
+    boolean cachedOcsp = key.ocspCacheSize > 0
+      && key.ocspCheckingMode != OCSPCheckingMode.IGNORE;
+
+    OCSPCheckingMode ocspCheckingMode = cachedOcsp ? OCSPCheckingMode.IGNORE
+      : key.ocspCheckingMode;
+
+    X509CertChainValidatorExt validator;
+
+    if (key.incrementalReload || key.snapshotFile != null
+      || key.crlIndexDirectory != null) {
+
+      RevocationParametersExt revocationParams = new RevocationParametersExt(
+        key.crlCheckingMode, new CRLParameters(), new OCSPParametes(
+          ocspCheckingMode));
+
+      ValidatorParamsExt params = new ValidatorParamsExt(revocationParams,
+        ProxySupport.ALLOW, Arrays.<StoreUpdateListener> asList(l));
+
+      validator = new IncrementalOpensslCertChainValidator(
+        key.trustStoreDirectory, key.namespaceCheckingMode,
+        key.refreshIntervalInMsec, params, key.snapshotFile,
+        key.crlIndexDirectory);
+
+      if (!cachedOcsp)
+        validator.addValidationListener(l);
+
+    } else {
+
+      CertificateValidatorBuilder builder = new CertificateValidatorBuilder()
+        .crlChecks(key.crlCheckingMode).ocspChecks(ocspCheckingMode)
+        .namespaceChecks(key.namespaceCheckingMode).lazyAnchorsLoading(false)
+        .trustAnchorsDir(key.trustStoreDirectory)
+        .trustAnchorsUpdateInterval(key.refreshIntervalInMsec)
+        .storeUpdateListener(l);
+
+      if (!cachedOcsp)
+        builder.validationErrorListener(l);
+
+      validator = builder.build();
+    }
+
+    if (cachedOcsp) {
+
+      validator = new CachingOCSPValidator(validator, new OCSPParametes(
+        key.ocspCheckingMode), key.ocspCacheSize,
+        Arrays.<StoreUpdateListener> asList(l));
+
+      validator.addValidationListener(l);
+    }
+
+    return validator;
+  }
+
+  private void release(SharedEntry entry) {
+
+    synchronized (entries) {
+
+      entry.refCount--;
+
+      if (entry.refCount > 0)
+        return;
+
+      if (entries.get(entry.key) == entry)
+        entries.remove(entry.key);
+    }
+
+    X509CertChainValidatorExt validator = entry.getBuiltValidator();
+
+    if (validator != null) {
+      log.debug("Disposing shared validator for {}", entry.key);
+      validator.dispose();
+    }
+  }
+
+  /**
+   * The configuration that identifies a shared validator.
+   */
+  static final class ValidatorKey {
+
+    final String trustStoreDirectory;
+    final long refreshIntervalInMsec;
+    final CrlCheckingMode crlCheckingMode;
+    final OCSPCheckingMode ocspCheckingMode;
+    final NamespaceCheckingMode namespaceCheckingMode;
+    final boolean incrementalReload;
+    final String snapshotFile;
+    final String crlIndexDirectory;
+    final int ocspCacheSize;
+    final long errorSummaryIntervalInMsec;
+
+    ValidatorKey(SSLOptions options) {
+
+      trustStoreDirectory = canonicalPath(options.getTrustStoreDirectory());
+      refreshIntervalInMsec = options.getTrustStoreRefreshIntervalInMsec();
+      crlCheckingMode = options.getCrlCheckingMode();
+      ocspCheckingMode = options.getOcspCheckingMode();
+      namespaceCheckingMode = options.getNamespaceCheckingMode();
+      incrementalReload = options.isIncrementalTrustStoreReload();
+      snapshotFile = options.getTrustStoreSnapshotFile() == null ? null
+        : canonicalPath(options.getTrustStoreSnapshotFile());
+      crlIndexDirectory = options.getCrlIndexDirectory() == null ? null
+        : canonicalPath(options.getCrlIndexDirectory());
+      ocspCacheSize = options.getOcspCacheSize();
+      errorSummaryIntervalInMsec = options
+        .getValidationErrorSummaryIntervalInMsec();
+    }
+
+    private static String canonicalPath(String path) {
+
+      try {
+        return new File(path).getCanonicalPath();
+      } catch (IOException e) {
+        return path;
+      }
+    }
+
+    @Override
+    public int hashCode() {
+
+      final int prime = 31;
+      int result = 1;
+      result = prime * result + trustStoreDirectory.hashCode();
+      result = prime * result
+        + (int) (refreshIntervalInMsec ^ (refreshIntervalInMsec >>> 32));
+      result = prime * result
+        + ((crlCheckingMode == null) ? 0 : crlCheckingMode.hashCode());
+      result = prime * result
+        + ((ocspCheckingMode == null) ? 0 : ocspCheckingMode.hashCode());
+      result = prime
+        * result
+        + ((namespaceCheckingMode == null) ? 0 : namespaceCheckingMode
+          .hashCode());
+      result = prime * result + (incrementalReload ? 1231 : 1237);
+      result = prime * result
+        + ((snapshotFile == null) ? 0 : snapshotFile.hashCode());
+      result = prime * result
+        + ((crlIndexDirectory == null) ? 0 : crlIndexDirectory.hashCode());
+      result = prime * result + ocspCacheSize;
+      result = prime
+        * result
+        + (int) (errorSummaryIntervalInMsec ^ (errorSummaryIntervalInMsec >>> 32));
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+      if (this == obj)
+        return true;
+      if (!(obj instanceof ValidatorKey))
+        return false;
+      ValidatorKey other = (ValidatorKey) obj;
+      return trustStoreDirectory.equals(other.trustStoreDirectory)
+        && refreshIntervalInMsec == other.refreshIntervalInMsec
+        && crlCheckingMode == other.crlCheckingMode
+        && ocspCheckingMode == other.ocspCheckingMode
+        && namespaceCheckingMode == other.namespaceCheckingMode
+        && incrementalReload == other.incrementalReload
+        && (snapshotFile == null ? other.snapshotFile == null : snapshotFile
+          .equals(other.snapshotFile))
+        && (crlIndexDirectory == null ? other.crlIndexDirectory == null
+          : crlIndexDirectory.equals(other.crlIndexDirectory))
+        && ocspCacheSize == other.ocspCacheSize
+        && errorSummaryIntervalInMsec == other.errorSummaryIntervalInMsec;
+    }
+
+    @Override
+    public String toString() {
+
+      return String.format(
+        "[dir: %s, refresh: %d msec, crl: %s, ocsp: %s, namespace: %s, "
+          + "incremental: %s, snapshot: %s, crl index: %s, ocsp cache: %d, "
+          + "error summary: %d msec]", trustStoreDirectory,
+        refreshIntervalInMsec, crlCheckingMode, ocspCheckingMode,
+        namespaceCheckingMode, incrementalReload, snapshotFile,
+        crlIndexDirectory, ocspCacheSize, errorSummaryIntervalInMsec);
+    }
+  }
+
+  private static final class SharedEntry {
+
+    final ValidatorKey key;
+    final FutureTask<X509CertChainValidatorExt> validator;
+
+    /**
+     * Guarded by the registry entries.
+     */
+    int refCount;
+
+    SharedEntry(ValidatorKey key, Callable<X509CertChainValidatorExt> builder) {
+
+      this.key = key;
+      this.validator = new FutureTask<X509CertChainValidatorExt>(builder);
+    }
+
+    /**
+     * @return the validator, or <code>null</code> if it has not been built
+     */
+    X509CertChainValidatorExt getBuiltValidator() {
+
+      if (!validator.isDone())
+        return null;
+
+      try {
+        return validator.get();
+      } catch (Exception e) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * A handle on a shared validator. Disposing the handle releases the
+   * reference it holds; it does not dispose the shared validator unless this
+   * was the last reference. The listeners added through the handle are
+   * removed from the shared validator when the handle is disposed, and added
+   * again when it is reacquired.
+   */
+  private final class ValidatorHandle implements X509CertChainValidatorExt {
+
+    private final ValidatorKey key;
+
+    /**
+     * Guarded by this handle.
+     */
+    private final List<ValidationErrorListener> validationListeners = new ArrayList<ValidationErrorListener>();
+
+    /**
+     * Guarded by this handle.
+     */
+    private final List<StoreUpdateListener> updateListeners = new ArrayList<StoreUpdateListener>();
+
+    private SharedEntry entry;
+    private volatile X509CertChainValidatorExt validator;
+
+    /**
+     * Guarded by this handle.
+     */
+    private boolean released = true;
+
+    ValidatorHandle(ValidatorKey key) {
+
+      this.key = key;
+    }
+
+    CertChainValidatorRegistry registry() {
+
+      return CertChainValidatorRegistry.this;
+    }
+
+    synchronized void acquire() {
+
+      if (!released)
+        return;
+
+      SharedEntry e = retain(key);
+      X509CertChainValidatorExt v = await(e);
+
+      for (ValidationErrorListener l : validationListeners)
+        v.addValidationListener(l);
+
+      for (StoreUpdateListener l : updateListeners)
+        v.addUpdateListener(l);
+
+      entry = e;
+      validator = v;
+      released = false;
+    }
+
+    public ValidationResult validate(CertPath certPath) {
+
+      return validator.validate(certPath);
+    }
+
+    public ValidationResult validate(X509Certificate[] certChain) {
+
+      return validator.validate(certChain);
+    }
+
+    public X509Certificate[] getTrustedIssuers() {
+
+      return validator.getTrustedIssuers();
+    }
+
+    public synchronized void addValidationListener(
+      ValidationErrorListener listener) {
+
+      validationListeners.add(listener);
+
+      if (!released)
+        validator.addValidationListener(listener);
+    }
+
+    public synchronized void removeValidationListener(
+      ValidationErrorListener listener) {
+
+      validationListeners.remove(listener);
+
+      if (!released)
+        validator.removeValidationListener(listener);
+    }
+
+    public synchronized void addUpdateListener(StoreUpdateListener listener) {
+
+      updateListeners.add(listener);
+
+      if (!released)
+        validator.addUpdateListener(listener);
+    }
+
+    public synchronized void removeUpdateListener(StoreUpdateListener listener) {
+
+      updateListeners.remove(listener);
+
+      if (!released)
+        validator.removeUpdateListener(listener);
+    }
+
+    public ProxySupport getProxySupport() {
+
+      return validator.getProxySupport();
+    }
+
+    public RevocationParameters getRevocationCheckingMode() {
+
+      return validator.getRevocationCheckingMode();
+    }
+
+    public synchronized void dispose() {
+
+      if (released)
+        return;
+
+      released = true;
+
+      for (ValidationErrorListener l : validationListeners)
+        validator.removeValidationListener(l);
+
+      for (StoreUpdateListener l : updateListeners)
+        validator.removeUpdateListener(l);
+
+      release(entry);
+    }
+  }
+}
@@ -0,0 +1,451 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.italiangrid.utils.concurrent.PollingFileWatcher;
+import org.italiangrid.utils.https.SSLOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.emi.security.authn.x509.impl.X500NameUtils;
+
+/**
+ * A list of banned certificates, identified by their SHA-256 fingerprint or
+ * by their subject, loaded from the file configured in {@link SSLOptions}.
+ *
+ * Each fingerprint is reduced to its first 64 bits and kept in a
+ * {@link LongHashSet}, so that a certificate which is not banned is cleared
+ * with a couple of array probes; only when the prefix matches is the full
+ * fingerprint compared. Subjects, in canonical form, are looked up directly.
+ *
+ * The list is replaced atomically when the file changes. If the file cannot
+ * be read at construction an {@link IllegalArgumentException} is raised; on
+ * later reloads the error is logged and the current list is kept.
+ */
+public class CertificateBlocklist implements PollingFileWatcher.Listener {
+
+  public static final Logger log = LoggerFactory
+    .getLogger(CertificateBlocklist.class);
+
+  private static final String FINGERPRINT_ALGORITHM = "SHA-256";
+
+  private static final int FINGERPRINT_HEX_LENGTH = 64;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  /**
+   * An immutable snapshot of the list.
+   */
+  private static final class Entries {
+
+    final LongHashSet prefixes;
+    final Set<String> fingerprints;
+    final Set<String> subjects;
+
+    Entries(LongHashSet prefixes, Set<String> fingerprints,
+      Set<String> subjects) {
+
+      this.prefixes = prefixes;
+      this.fingerprints = fingerprints;
+      this.subjects = subjects;
+    }
+  }
+
+  private static final Entries EMPTY = new Entries(new LongHashSet(
+    new long[0], 0), Collections.<String> emptySet(),
+    Collections.<String> emptySet());
+
+  private final File file;
+
+  private final PollingFileWatcher watcher;
+
+  private volatile Entries entries = EMPTY;
+
+  /**
+   * Constructor. The list is loaded before this returns.
+   *
+   * @param options
+   *          the SSL options holding the blocklist location and refresh
+   *          interval
+   */
+  public CertificateBlocklist(SSLOptions options) {
+
+    this(options.getBlocklistFile(), options
+      .getBlocklistRefreshIntervalInMsec());
+  }
+
+  /**
+   * Constructor. The list is loaded before this returns.
+   *
+   * @param blocklistFile
+   *          the blocklist file
+   * @param refreshIntervalInMsec
+   *          how often the file is checked for changes once started, zero
+   *          disables reloading
+   * @throws IllegalArgumentException
+   *           if the blocklist file cannot be read
+   */
+  public CertificateBlocklist(String blocklistFile, long refreshIntervalInMsec) {
+
+    if (blocklistFile == null)
+      throw new IllegalArgumentException("Please provide a blocklist file");
+
+    this.file = new File(blocklistFile);
+
+    try {
+
+      entries = load(file);
+
+    } catch (IOException e) {
+
+      throw new IllegalArgumentException("Error loading certificate blocklist "
+        + file + ": " + e.getMessage(), e);
+    }
+
+    logLoaded();
+
+    if (refreshIntervalInMsec > 0)
+      watcher = new PollingFileWatcher(Arrays.asList(file), null,
+        refreshIntervalInMsec, this);
+    else
+      watcher = null;
+  }
+
+  /**
+   * Starts watching the blocklist file.
+   */
+  public void start() {
+
+    if (watcher != null)
+      watcher.start();
+  }
+
+  /**
+   * Stops watching the blocklist file.
+   */
+  public void stop() {
+
+    if (watcher != null)
+      watcher.stop();
+  }
+
+  public void filesChanged(Set<File> changedFiles) {
+
+    log.info("Certificate blocklist {} changed, reloading it.", file);
+    reload();
+  }
+
+  /**
+   * Loads the list from the file, and swaps it in.
+   *
+   * @return <code>true</code> if the new list was swapped in,
+   *         <code>false</code> otherwise
+   */
+  public boolean reload() {
+
+    try {
+
+      entries = load(file);
+
+      logLoaded();
+      return true;
+
+    } catch (IOException e) {
+
+      log.error("Error loading certificate blocklist {}, keeping the current "
+        + "one: {}", file, e.getMessage());
+      log.debug(e.getMessage(), e);
+      return false;
+    }
+  }
+
+  private void logLoaded() {
+
+    Entries e = entries;
+    log.info("Certificate blocklist loaded: {} fingerprints, {} subjects",
+      e.fingerprints.size(), e.subjects.size());
+  }
+
+  /**
+   * @return the number of fingerprints and subjects in the list
+   */
+  public int size() {
+
+    Entries e = entries;
+    return e.fingerprints.size() + e.subjects.size();
+  }
+
+  private static Entries load(File f) throws IOException {
+
+    Set<String> fingerprints = new HashSet<String>();
+    Set<String> subjects = new HashSet<String>();
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+      new FileInputStream(f), UTF8));
+
+    try {
+
+      String line;
+      int lineNumber = 0;
+
+      while ((line = reader.readLine()) != null) {
+
+        lineNumber++;
+        line = line.trim();
+
+        if (line.isEmpty() || line.startsWith("#"))
+          continue;
+
+        String fingerprint = parseFingerprint(line);
+
+        if (fingerprint != null) {
+          fingerprints.add(fingerprint);
+          continue;
+        }
+
+        String subject = parseSubject(line);
+
+        if (subject != null) {
+          subjects.add(subject);
+          continue;
+        }
+
+        log.warn("Skipping invalid blocklist entry at {}:{}: {}",
+          new Object[] { f.getAbsolutePath(), lineNumber, line });
+      }
+
+    } finally {
+
+      reader.close();
+    }
+
+    long[] prefixes = new long[fingerprints.size()];
+    int i = 0;
+
+    for (String fp : fingerprints)
+      prefixes[i++] = Long.parseLong(fp.substring(0, 8), 16) << 32
+        | Long.parseLong(fp.substring(8, 16), 16);
+
+    return new Entries(new LongHashSet(prefixes, i),
+      Collections.unmodifiableSet(fingerprints),
+      Collections.unmodifiableSet(subjects));
+  }
+
+  /**
+   * Parses a hex fingerprint, whose bytes may be separated by colons.
+   *
+   * @return the fingerprint, in lowercase hex without separators, or
+   *         <code>null</code> if the line is not a fingerprint
+   */
+  private static String parseFingerprint(String line) {
+
+    String hex = line.replace(":", "").toLowerCase(Locale.ENGLISH);
+
+    if (hex.length() != FINGERPRINT_HEX_LENGTH)
+      return null;
+
+    for (int i = 0; i < hex.length(); i++)
+      if (Character.digit(hex.charAt(i), 16) < 0)
+        return null;
+
+    return hex;
+  }
+
+  /**
+   * Parses a subject DN, in OpenSSL or RFC2253 form.
+   *
+   * @return the subject in canonical form, or <code>null</code> if the line is
+   *         not a valid DN
+   */
+  private static String parseSubject(String line) {
+
+    if (line.indexOf('=') < 0)
+      return null;
+
+    try {
+
+      String rfc2253 = line.startsWith("/") ? opensslToRfc2253(line) : line;
+
+      return X500NameUtils.getX500Principal(rfc2253).getName(
+        X500Principal.CANONICAL);
+
+    } catch (Exception e) {
+
+      return null;
+    }
+  }
+
+  /**
+   * Converts a DN in the OpenSSL slash-separated form to RFC2253. A component
+   * without an <code>=</code> is taken as part of the previous value.
+   */
+  private static String opensslToRfc2253(String dn) {
+
+    List<String> rdns = new ArrayList<String>();
+
+    for (String part : dn.substring(1).split("/")) {
+
+      if (part.indexOf('=') < 0 && !rdns.isEmpty())
+        rdns.set(rdns.size() - 1, rdns.get(rdns.size() - 1) + "/" + part);
+      else
+        rdns.add(part);
+    }
+
+    StringBuilder sb = new StringBuilder();
+
+    for (int i = rdns.size() - 1; i >= 0; i--) {
+
+      String rdn = rdns.get(i);
+      int eq = rdn.indexOf('=');
+
+      if (sb.length() > 0)
+        sb.append(',');
+
+      sb.append(rdn, 0, eq + 1);
+
+      for (int j = eq + 1; j < rdn.length(); j++) {
+
+        char c = rdn.charAt(j);
+
+        if (",+\\\"<>;".indexOf(c) >= 0)
+          sb.append('\\');
+
+        sb.append(c);
+      }
+    }
+
+    return sb.toString();
+  }
+
+  private static byte[] digest(byte[] data) {
+
+    try {
+
+      return MessageDigest.getInstance(FINGERPRINT_ALGORITHM).digest(data);
+
+    } catch (NoSuchAlgorithmException e) {
+
+      throw new IllegalStateException(FINGERPRINT_ALGORITHM
+        + " digest not available", e);
+    }
+  }
+
+  private static long prefix(byte[] digest) {
+
+    long p = 0;
+
+    for (int i = 0; i < 8; i++)
+      p = (p << 8) | (digest[i] & 0xff);
+
+    return p;
+  }
+
+  private static String hex(byte[] bytes) {
+
+    char[] chars = new char[bytes.length * 2];
+
+    for (int i = 0; i < bytes.length; i++) {
+      chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+      chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+    }
+
+    return new String(chars);
+  }
+
+  /**
+   * Tells whether a certificate is in the list, by fingerprint or subject.
+   *
+   * @param certificate
+   *          the certificate
+   * @return <code>true</code> if the certificate is banned
+   */
+  public boolean isBlocked(X509Certificate certificate) {
+
+    Entries e = entries;
+
+    if (e.fingerprints.isEmpty() && e.subjects.isEmpty())
+      return false;
+
+    if (!e.fingerprints.isEmpty()) {
+
+      try {
+
+        byte[] fingerprint = digest(certificate.getEncoded());
+
+        if (e.prefixes.contains(prefix(fingerprint))
+          && e.fingerprints.contains(hex(fingerprint)))
+          return true;
+
+      } catch (CertificateEncodingException ex) {
+        // Left to chain validation
+      }
+    }
+
+    if (!e.subjects.isEmpty()) {
+
+      String subject = certificate.getSubjectX500Principal().getName(
+        X500Principal.CANONICAL);
+
+      if (e.subjects.contains(subject))
+        return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Tells whether any certificate in a chain is in the list.
+   *
+   * @param chain
+   *          the certificate chain
+   * @return the first banned certificate, or <code>null</code>
+   */
+  public X509Certificate findBlocked(X509Certificate[] chain) {
+
+    Entries e = entries;
+
+    if (chain == null || (e.fingerprints.isEmpty() && e.subjects.isEmpty()))
+      return null;
+
+    for (X509Certificate c : chain)
+      if (isBlocked(c))
+        return c;
+
+    return null;
+  }
+}
@@ -0,0 +1,396 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * A CRL whose revoked serial numbers have been compiled into a
+ * {@link RevokedSerialIndex}.
+ *
+ * The encoded CRL and its index are kept in (typically memory-mapped)
+ * buffers; only the CRL header, i.e. the CRL without its list of revoked
+ * certificates, is parsed and kept on the heap.
+ *
+ * When a certificate is checked against the CRL, {@link #view(X509Certificate)}
+ * returns an {@link X509CRL} whose encoding contains only the entry for that
+ * certificate, if any. The PKIX code that later decodes the CRL to look up
+ * the certificate thus never decodes the full list of revoked certificates.
+ * The view is still verified against the signature of the full CRL.
+ *
+ * Indirect and delta CRLs, whose entries cannot be looked up in isolation,
+ * are not supported.
+ */
+final class CompiledCRL {
+
+  private static final String ISSUING_DISTRIBUTION_POINT = "2.5.29.28";
+
+  private static final String DELTA_CRL_INDICATOR = "2.5.29.27";
+
+  /**
+   * The positions of the CRL fields in its encoding.
+   */
+  static final class Layout {
+
+    int tbsStart;
+    int tbsEnd;
+    int prefixStart;
+    int prefixEnd;
+    int revokedStart;
+    int revokedEnd;
+    int suffixStart;
+    int suffixEnd;
+    int signatureStart;
+    int signatureEnd;
+
+    /**
+     * Parses the layout of an encoded CRL, without decoding the revoked
+     * certificates.
+     *
+     * @param der
+     *          the encoded CRL
+     * @return the CRL layout
+     */
+    static Layout of(ByteBuffer der) {
+
+      Layout l = new Layout();
+
+      if (DER.tag(der, 0) != DER.SEQUENCE)
+        throw new IllegalArgumentException("Not a CRL");
+
+      l.tbsStart = DER.contentStart(der, 0);
+      l.tbsEnd = DER.end(der, l.tbsStart);
+      l.signatureStart = l.tbsEnd;
+      l.signatureEnd = DER.end(der, DER.end(der, l.signatureStart));
+
+      int p = DER.contentStart(der, l.tbsStart);
+      l.prefixStart = p;
+
+      if (DER.tag(der, p) == DER.INTEGER)
+        p = DER.end(der, p);
+
+      // signature algorithm, issuer, thisUpdate
+      p = DER.end(der, DER.end(der, DER.end(der, p)));
+
+      if (p < l.tbsEnd
+        && (DER.tag(der, p) == DER.UTC_TIME || DER.tag(der, p) == DER.GENERALIZED_TIME))
+        p = DER.end(der, p);
+
+      l.prefixEnd = p;
+      l.revokedStart = p;
+      l.revokedEnd = p;
+
+      if (p < l.tbsEnd && DER.tag(der, p) == DER.SEQUENCE)
+        l.revokedEnd = DER.end(der, p);
+
+      l.suffixStart = l.revokedEnd;
+      l.suffixEnd = l.tbsEnd;
+      return l;
+    }
+
+    /**
+     * Lists the revoked certificate entries of an encoded CRL.
+     *
+     * @param der
+     *          the encoded CRL
+     * @return the entries
+     * @throws IllegalArgumentException
+     *           if a serial number cannot be indexed
+     */
+    List<RevokedSerialIndex.Entry> entries(ByteBuffer der) {
+
+      List<RevokedSerialIndex.Entry> entries = new ArrayList<RevokedSerialIndex.Entry>();
+
+      if (revokedStart == revokedEnd)
+        return entries;
+
+      for (int p = DER.contentStart(der, revokedStart); p < revokedEnd; p = DER
+        .end(der, p)) {
+
+        int serial = DER.contentStart(der, p);
+
+        if (DER.tag(der, serial) != DER.INTEGER)
+          throw new IllegalArgumentException("Invalid CRL entry at " + p);
+
+        byte[] magnitude = RevokedSerialIndex.magnitude(DER.bytes(der,
+          DER.contentStart(der, serial), DER.end(der, serial)));
+
+        if (magnitude == null)
+          throw new IllegalArgumentException("Unsupported serial number at "
+            + p);
+
+        entries.add(new RevokedSerialIndex.Entry(magnitude, p, DER.end(der, p)
+          - p));
+      }
+
+      return entries;
+    }
+  }
+
+  private final ByteBuffer der;
+  private final RevokedSerialIndex index;
+  private final Layout layout;
+  private final CertificateFactory factory;
+
+  private final X509CRL header;
+  private final byte[] headerEncoding;
+  private final byte[] signature;
+
+  private volatile PublicKey verifiedKey;
+
+  /**
+   * Constructor.
+   *
+   * @param der
+   *          the encoded CRL
+   * @param index
+   *          the index of its revoked serial numbers
+   * @param factory
+   *          the factory used to decode CRLs
+   * @throws CRLException
+   *           if the CRL cannot be decoded or is not supported
+   */
+  CompiledCRL(ByteBuffer der, RevokedSerialIndex index,
+    CertificateFactory factory) throws CRLException {
+
+    this.der = der;
+    this.index = index;
+    this.factory = factory;
+
+    try {
+      layout = Layout.of(der);
+    } catch (RuntimeException e) {
+      throw new CRLException("Invalid CRL encoding: " + e.getMessage(), e);
+    }
+
+    headerEncoding = encode(null);
+    header = decode(headerEncoding);
+
+    if (header.getExtensionValue(ISSUING_DISTRIBUTION_POINT) != null
+      || header.getExtensionValue(DELTA_CRL_INDICATOR) != null)
+      throw new CRLException("Indirect and delta CRLs are not supported");
+
+    byte[] bitString = DER.bytes(der, DER.contentStart(der, DER.end(der,
+      layout.signatureStart)), layout.signatureEnd);
+
+    signature = new byte[bitString.length - 1];
+    System.arraycopy(bitString, 1, signature, 0, signature.length);
+  }
+
+  X509CRL getHeader() {
+
+    return header;
+  }
+
+  X500Principal getIssuer() {
+
+    return header.getIssuerX500Principal();
+  }
+
+  int size() {
+
+    return index.size();
+  }
+
+  /**
+   * Returns a view of this CRL suitable to check the given certificate.
+   *
+   * @param checked
+   *          the certificate being checked, or <code>null</code>
+   * @return a view of this CRL
+   */
+  X509CRL view(X509Certificate checked) {
+
+    if (checked == null || !getIssuer().equals(checked.getIssuerX500Principal()))
+      return new IndexedX509CRL(this, IndexedX509CRL.FULL);
+
+    byte[] serial = RevokedSerialIndex.magnitude(checked.getSerialNumber());
+
+    if (serial == null)
+      return new IndexedX509CRL(this, IndexedX509CRL.FULL);
+
+    return new IndexedX509CRL(this, index.find(serial));
+  }
+
+  /**
+   * @return the slot of the serial number in the index, or -1
+   */
+  int find(BigInteger serialNumber) {
+
+    byte[] serial = RevokedSerialIndex.magnitude(serialNumber);
+
+    if (serial == null)
+      return -1;
+
+    return index.find(serial);
+  }
+
+  /**
+   * Returns an encoding of this CRL.
+   *
+   * @param slot
+   *          {@link IndexedX509CRL#FULL} for the full CRL,
+   *          {@link IndexedX509CRL#NOT_REVOKED} for the CRL without revoked
+   *          certificates, or the slot of the only revoked certificate entry
+   *          to include
+   * @return the encoded CRL
+   */
+  byte[] getEncoded(int slot) {
+
+    if (slot == IndexedX509CRL.FULL)
+      return DER.bytes(der, 0, layout.signatureEnd);
+
+    if (slot == IndexedX509CRL.NOT_REVOKED)
+      return headerEncoding.clone();
+
+    return encode(DER.bytes(der, index.entryOffset(slot),
+      index.entryOffset(slot) + index.entryLength(slot)));
+  }
+
+  byte[] getTBSCertList() {
+
+    return DER.bytes(der, layout.tbsStart, layout.tbsEnd);
+  }
+
+  byte[] getSignature() {
+
+    return signature.clone();
+  }
+
+  /**
+   * Decodes an encoding of this CRL.
+   */
+  X509CRL decode(byte[] encoding) throws CRLException {
+
+    return (X509CRL) factory.generateCRL(new ByteArrayInputStream(encoding));
+  }
+
+  X509CRLEntry getRevokedCertificate(BigInteger serialNumber) {
+
+    int slot = find(serialNumber);
+
+    if (slot < 0)
+      return null;
+
+    try {
+      return decode(getEncoded(slot)).getRevokedCertificate(serialNumber);
+    } catch (CRLException e) {
+      throw new IllegalStateException("Cannot decode CRL entry: "
+        + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Verifies the signature of the full CRL. The outcome is remembered for the
+   * last key that verified it, since the same CRL is verified with the same
+   * key for each validated certificate.
+   *
+   * @param key
+   *          the CRL issuer public key
+   * @param sigProvider
+   *          the signature provider, or <code>null</code> for the default
+   *          provider
+   * @throws GeneralSecurityException
+   *           if the signature cannot be verified
+   */
+  void verify(PublicKey key, String sigProvider)
+    throws GeneralSecurityException {
+
+    if (key.equals(verifiedKey))
+      return;
+
+    Signature s;
+
+    try {
+      s = newSignature(header.getSigAlgName(), sigProvider);
+    } catch (NoSuchAlgorithmException e) {
+      s = newSignature(header.getSigAlgOID(), sigProvider);
+    }
+
+    ByteBuffer tbs = der.duplicate();
+    tbs.limit(layout.tbsEnd);
+    tbs.position(layout.tbsStart);
+
+    s.initVerify(key);
+    s.update(tbs);
+
+    if (!s.verify(signature))
+      throw new SignatureException("CRL signature does not verify.");
+
+    verifiedKey = key;
+  }
+
+  private static Signature newSignature(String algorithm, String provider)
+    throws GeneralSecurityException {
+
+    if (provider == null)
+      return Signature.getInstance(algorithm);
+
+    return Signature.getInstance(algorithm, provider);
+  }
+
+  /**
+   * Encodes this CRL with at most one revoked certificate entry.
+   */
+  private byte[] encode(byte[] entry) {
+
+    ByteArrayOutputStream tbsContent = new ByteArrayOutputStream();
+    write(tbsContent, layout.prefixStart, layout.prefixEnd);
+
+    if (entry != null) {
+      DER.writeHeader(tbsContent, DER.SEQUENCE, entry.length);
+      tbsContent.write(entry, 0, entry.length);
+    }
+
+    write(tbsContent, layout.suffixStart, layout.suffixEnd);
+
+    ByteArrayOutputStream crlContent = new ByteArrayOutputStream();
+    DER.writeHeader(crlContent, DER.SEQUENCE, tbsContent.size());
+    byte[] tbs = tbsContent.toByteArray();
+    crlContent.write(tbs, 0, tbs.length);
+    write(crlContent, layout.tbsEnd, layout.signatureEnd);
+
+    ByteArrayOutputStream crl = new ByteArrayOutputStream();
+    DER.writeHeader(crl, DER.SEQUENCE, crlContent.size());
+    byte[] content = crlContent.toByteArray();
+    crl.write(content, 0, content.length);
+
+    return crl.toByteArray();
+  }
+
+  private void write(ByteArrayOutputStream out, int from, int to) {
+
+    byte[] bytes = DER.bytes(der, from, to);
+    out.write(bytes, 0, bytes.length);
+  }
+}
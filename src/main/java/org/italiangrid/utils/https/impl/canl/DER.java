@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal helpers to walk and build DER encoded structures. Only single byte
+ * tags and definite lengths are supported, which is all X.509 structures
+ * need.
+ */
+final class DER {
+
+  static final int INTEGER = 0x02;
+  static final int SEQUENCE = 0x30;
+  static final int UTC_TIME = 0x17;
+  static final int GENERALIZED_TIME = 0x18;
+
+  private DER() {
+
+  }
+
+  /**
+   * @return the tag of the element at the given position
+   */
+  static int tag(ByteBuffer b, int pos) {
+
+    return b.get(pos) & 0xFF;
+  }
+
+  /**
+   * @return the position of the content of the element at the given position
+   */
+  static int contentStart(ByteBuffer b, int pos) {
+
+    int first = b.get(pos + 1) & 0xFF;
+
+    if (first < 0x80)
+      return pos + 2;
+
+    int n = first & 0x7F;
+
+    if (n == 0 || n > 4)
+      throw new IllegalArgumentException("Unsupported DER length encoding at "
+        + pos);
+
+    return pos + 2 + n;
+  }
+
+  /**
+   * @return the position following the element at the given position
+   */
+  static int end(ByteBuffer b, int pos) {
+
+    int first = b.get(pos + 1) & 0xFF;
+    int start = contentStart(b, pos);
+    int length = first;
+
+    if (first >= 0x80) {
+      length = 0;
+      for (int i = pos + 2; i < start; i++)
+        length = (length << 8) | (b.get(i) & 0xFF);
+    }
+
+    int end = start + length;
+
+    if (length < 0 || end > b.limit())
+      throw new IllegalArgumentException("Truncated DER element at " + pos);
+
+    return end;
+  }
+
+  /**
+   * @return a copy of the bytes between the given positions
+   */
+  static byte[] bytes(ByteBuffer b, int from, int to) {
+
+    ByteBuffer d = b.duplicate();
+    d.limit(to);
+    d.position(from);
+
+    byte[] bytes = new byte[to - from];
+    d.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Writes the tag and length of an element.
+   */
+  static void writeHeader(ByteArrayOutputStream out, int tag, int length) {
+
+    out.write(tag);
+
+    if (length < 0x80) {
+      out.write(length);
+      return;
+    }
+
+    int n = 1;
+    while (n < 4 && (length >>> (8 * n)) != 0)
+      n++;
+
+    out.write(0x80 | n);
+
+    for (int i = n - 1; i >= 0; i--)
+      out.write(length >>> (8 * i));
+  }
+}
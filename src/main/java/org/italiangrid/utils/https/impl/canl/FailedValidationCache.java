@@ -0,0 +1,312 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.component.Destroyable;
+import org.italiangrid.utils.https.SSLOptions;
+import org.italiangrid.utils.https.impl.canl.CachingCertChainValidator.ChainKey;
+
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.X509CertChainValidatorExt;
+
+/**
+ * A short-lived cache of the client chains which failed validation, indexed
+ * by chain fingerprint, so that clients reconnecting in a loop with the same
+ * bad chain (e.g. scanners, or expired proxies) are refused without
+ * validating and logging the chain again.
+ *
+ * Failures are counted by client address; the counts of the addresses seen
+ * least recently are dropped when the cache is full. All cached failures are
+ * dropped whenever the validator reloads CA certificates, CRLs or namespaces,
+ * as a chain may become valid.
+ *
+ * The cache is configured in {@link SSLOptions}, and can be looked up as a
+ * bean of the HTTPS connector.
+ */
+public class FailedValidationCache implements Destroyable {
+
+  /**
+   * The address under which failures are counted when the client address is
+   * unknown.
+   */
+  public static final String UNKNOWN_ADDRESS = "unknown";
+
+  private static final class Failure {
+
+    final String message;
+    final long expiresAt;
+
+    Failure(String message, long expiresAt) {
+
+      this.message = message;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final X509CertChainValidatorExt validator;
+
+  private final long ttlInMsec;
+
+  /**
+   * The cached failures. Guarded by itself.
+   */
+  private final Map<ChainKey, Failure> failures;
+
+  /**
+   * The failed handshakes, by client address. Guarded by itself.
+   */
+  private final Map<String, long[]> failuresByAddress;
+
+  /**
+   * Incremented each time the cache is cleared, so that failures seen before
+   * a reload are not cached after it.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  private final AtomicLong rejected = new AtomicLong();
+
+  private final AtomicLong validated = new AtomicLong();
+
+  private final StoreUpdateListener reloadListener = new StoreUpdateListener() {
+
+    public void loadingNotification(String location, String type,
+      Severity level, Exception cause) {
+
+      if (!StoreUpdateListener.OCSP.equals(type))
+        clear();
+    }
+  };
+
+  /**
+   * Constructor.
+   *
+   * @param validator
+   *          the validator whose reloads clear the cache
+   * @param maxEntries
+   *          the maximum number of cached failures, and of client addresses
+   *          whose failures are counted
+   * @param ttlInMsec
+   *          how long a failure is cached, in milliseconds
+   */
+  public FailedValidationCache(X509CertChainValidatorExt validator,
+    final int maxEntries, long ttlInMsec) {
+
+    if (maxEntries <= 0)
+      throw new IllegalArgumentException(
+        "Cache size must be a positive number");
+
+    if (ttlInMsec <= 0)
+      throw new IllegalArgumentException(
+        "Cache TTL must be a positive number");
+
+    this.validator = validator;
+    this.ttlInMsec = ttlInMsec;
+
+    failures = new LinkedHashMap<ChainKey, Failure>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ChainKey, Failure> eldest) {
+
+        return size() > maxEntries;
+      }
+    };
+
+    failuresByAddress = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+
+        return size() > maxEntries;
+      }
+    };
+
+    validator.addUpdateListener(reloadListener);
+  }
+
+  /**
+   * Looks up a cached failure.
+   *
+   * @param key
+   *          the chain fingerprint
+   * @return the failure message, or <code>null</code> if the chain has not
+   *         failed validation recently
+   */
+  String lookup(ChainKey key) {
+
+    long now = System.currentTimeMillis();
+
+    synchronized (failures) {
+
+      Failure f = failures.get(key);
+
+      if (f == null)
+        return null;
+
+      if (now < f.expiresAt) {
+        rejected.incrementAndGet();
+        return f.message;
+      }
+
+      failures.remove(key);
+      return null;
+    }
+  }
+
+  /**
+   * @return the current generation, to be passed to
+   *         {@link #put(ChainKey, String, long)} after validating a chain
+   */
+  long getGeneration() {
+
+    return generation.get();
+  }
+
+  /**
+   * Caches a validation failure, unless the cache was cleared since the
+   * validation started.
+   *
+   * @param key
+   *          the chain fingerprint
+   * @param message
+   *          the failure message
+   * @param validationGeneration
+   *          the generation when the validation started
+   */
+  void put(ChainKey key, String message, long validationGeneration) {
+
+    validated.incrementAndGet();
+
+    synchronized (failures) {
+
+      if (generation.get() == validationGeneration)
+        failures.put(key, new Failure(message, System.currentTimeMillis()
+          + ttlInMsec));
+    }
+  }
+
+  /**
+   * Counts a failed handshake.
+   *
+   * @param address
+   *          the client address, or <code>null</code> if unknown
+   */
+  void countFailure(String address) {
+
+    String a = (address == null) ? UNKNOWN_ADDRESS : address;
+
+    synchronized (failuresByAddress) {
+
+      long[] count = failuresByAddress.get(a);
+
+      if (count == null) {
+        count = new long[1];
+        failuresByAddress.put(a, count);
+      }
+
+      count[0]++;
+    }
+  }
+
+  /**
+   * Drops all the cached failures.
+   */
+  public void clear() {
+
+    synchronized (failures) {
+      generation.incrementAndGet();
+      failures.clear();
+    }
+  }
+
+  /**
+   * @return the number of cached failures
+   */
+  public int size() {
+
+    synchronized (failures) {
+      return failures.size();
+    }
+  }
+
+  /**
+   * @return the number of chains refused from the cache
+   */
+  public long getRejectedCount() {
+
+    return rejected.get();
+  }
+
+  /**
+   * @return the number of chains which failed validation
+   */
+  public long getFailedValidationCount() {
+
+    return validated.get();
+  }
+
+  /**
+   * @param address
+   *          a client address
+   * @return the number of handshakes from the address refused because their
+   *         chain failed validation, or was refused from the cache
+   */
+  public long getFailureCount(String address) {
+
+    synchronized (failuresByAddress) {
+      long[] count = failuresByAddress.get(address);
+      return (count == null) ? 0 : count[0];
+    }
+  }
+
+  /**
+   * @return the number of refused handshakes, by client address
+   */
+  public Map<String, Long> getFailureCounts() {
+
+    Map<String, Long> counts = new HashMap<String, Long>();
+
+    synchronized (failuresByAddress) {
+      for (Map.Entry<String, long[]> e : failuresByAddress.entrySet())
+        counts.put(e.getKey(), e.getValue()[0]);
+    }
+
+    return counts;
+  }
+
+  public void destroy() {
+
+    validator.removeUpdateListener(reloadListener);
+  }
+
+  /**
+   * Tracks the validator reloads again after {@link #destroy()}, dropping the
+   * failures cached before, as the trust store may have changed meanwhile.
+   */
+  void restart() {
+
+    clear();
+    validator.addUpdateListener(reloadListener);
+  }
+}
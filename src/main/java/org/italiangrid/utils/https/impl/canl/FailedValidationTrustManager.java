@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.X509TrustManager;
+
+import org.italiangrid.utils.https.impl.HandshakePeer;
+import org.italiangrid.utils.https.impl.canl.CachingCertChainValidator.ChainKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A trust manager which refuses client chains that failed validation
+ * recently, as recorded in a {@link FailedValidationCache}, without handing
+ * them to the wrapped trust manager, and records the chains it refuses.
+ */
+class FailedValidationTrustManager implements X509TrustManager {
+
+  public static final Logger log = LoggerFactory
+    .getLogger(FailedValidationTrustManager.class);
+
+  private final X509TrustManager delegate;
+
+  private final FailedValidationCache cache;
+
+  FailedValidationTrustManager(X509TrustManager delegate,
+    FailedValidationCache cache) {
+
+    this.delegate = delegate;
+    this.cache = cache;
+  }
+
+  public void checkClientTrusted(X509Certificate[] chain, String authType)
+    throws CertificateException {
+
+    ChainKey key = (chain == null || chain.length == 0) ? null
+      : CachingCertChainValidator.fingerprint(chain);
+
+    if (key == null) {
+      delegate.checkClientTrusted(chain, authType);
+      return;
+    }
+
+    String address = HandshakePeer.getAddress();
+    String failure = cache.lookup(key);
+
+    if (failure != null) {
+
+      cache.countFailure(address);
+
+      if (log.isDebugEnabled())
+        log.debug("Refusing chain of {} from {}, which failed validation "
+          + "recently: {}", new Object[] {
+          chain[0].getSubjectX500Principal(), address, failure });
+
+      throw new CertificateException(failure);
+    }
+
+    long generation = cache.getGeneration();
+
+    try {
+
+      delegate.checkClientTrusted(chain, authType);
+
+    } catch (CertificateException e) {
+
+      cache.put(key, e.getMessage(), generation);
+      cache.countFailure(address);
+      throw e;
+    }
+  }
+
+  public void checkServerTrusted(X509Certificate[] chain, String authType)
+    throws CertificateException {
+
+    delegate.checkServerTrusted(chain, authType);
+  }
+
+  public X509Certificate[] getAcceptedIssuers() {
+
+    return delegate.getAcceptedIssuers();
+  }
+}
@@ -0,0 +1,427 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.cert.CRL;
+import java.security.cert.CRLException;
+import java.security.cert.CRLSelector;
+import java.security.cert.CertStoreException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.StoreUpdateListener.Severity;
+import eu.emi.security.authn.x509.helpers.ObserversHandler;
+import eu.emi.security.authn.x509.helpers.crl.AbstractCRLStoreSPI;
+import eu.emi.security.authn.x509.impl.CRLParameters;
+
+/**
+ * A CRL store holding the CRLs found in an OpenSSL-style trust store
+ * directory, which can be updated one file at a time.
+ *
+ * Lookups read an immutable index that is replaced atomically after each
+ * update, so they never block on a reload. CRLs restored from a trust store
+ * snapshot are kept in their encoded form and parsed the first time a
+ * certificate from their issuer is validated.
+ *
+ * When a {@link CRLIndexDirectory} is configured, CRLs are compiled into
+ * memory-mapped revoked serial indexes, and each certificate is checked
+ * against a {@link CompiledCRL#view(X509Certificate) view} of the CRL that only
+ * contains its own entry.
+ */
+class IncrementalCRLStore extends AbstractCRLStoreSPI {
+
+  public static final Logger log = LoggerFactory
+    .getLogger(IncrementalCRLStore.class);
+
+  /**
+   * A CRL, which may not have been parsed yet.
+   */
+  static final class CRLEntry {
+
+    private final X500Principal issuer;
+    private final ByteBuffer encoded;
+    private final File file;
+    private volatile X509CRL crl;
+    private volatile CompiledCRL compiled;
+
+    CRLEntry(X509CRL crl) {
+
+      this.issuer = crl.getIssuerX500Principal();
+      this.encoded = null;
+      this.file = null;
+      this.crl = crl;
+    }
+
+    CRLEntry(CompiledCRL compiled) {
+
+      this.issuer = compiled.getIssuer();
+      this.encoded = null;
+      this.file = null;
+      this.compiled = compiled;
+    }
+
+    CRLEntry(X500Principal issuer, ByteBuffer encoded, File file) {
+
+      this.issuer = issuer;
+      this.encoded = encoded;
+      this.file = file;
+    }
+
+    X500Principal getIssuer() {
+
+      return issuer;
+    }
+
+    /**
+     * @return a copy of this entry, bound to the file the CRL was loaded from
+     */
+    CRLEntry withFile(File f) {
+
+      if (encoded == null)
+        return this;
+
+      return new CRLEntry(issuer, encoded, f);
+    }
+
+    byte[] getEncoded() throws CRLException {
+
+      if (compiled != null)
+        return compiled.getEncoded(IndexedX509CRL.FULL);
+
+      if (encoded == null)
+        return crl.getEncoded();
+
+      ByteBuffer b = encoded.duplicate();
+      byte[] bytes = new byte[b.remaining()];
+      b.get(bytes);
+      return bytes;
+    }
+  }
+
+  /**
+   * The CRLs, indexed by the file they were loaded from. Guarded by this.
+   */
+  private final Map<File, CRLEntry> crlsByFile = new HashMap<File, CRLEntry>();
+
+  /**
+   * The CRLs, indexed by issuer
+   */
+  private volatile Map<X500Principal, List<CRLEntry>> crlsByIssuer = Collections
+    .emptyMap();
+
+  /**
+   * The compiled CRLs directory, or <code>null</code>
+   */
+  private final CRLIndexDirectory crlIndex;
+
+  IncrementalCRLStore(ObserversHandler observers, CRLIndexDirectory crlIndex)
+    throws InvalidAlgorithmParameterException {
+
+    super(new CRLParameters(), observers);
+    this.crlIndex = crlIndex;
+  }
+
+  /**
+   * Loads or removes the CRLs for the given files.
+   *
+   * @param loaded
+   *          the CRL files to (re)load
+   * @param removed
+   *          the CRL files that no longer exist
+   * @return the number of CRLs successfully loaded
+   */
+  synchronized int update(Collection<File> loaded, Collection<File> removed) {
+
+    int count = 0;
+
+    for (File f : removed) {
+
+      crlsByFile.remove(f);
+
+      if (crlIndex != null)
+        crlIndex.remove(f);
+    }
+
+    for (File f : loaded) {
+
+      CRLEntry entry = null;
+
+      if (crlIndex != null)
+        entry = compileCRL(f);
+
+      if (entry == null) {
+        X509CRL crl = loadCRL(f);
+        if (crl != null)
+          entry = new CRLEntry(crl);
+      }
+
+      if (entry == null) {
+        crlsByFile.remove(f);
+      } else {
+        crlsByFile.put(f, entry);
+        count++;
+      }
+    }
+
+    updateIndex();
+    return count;
+  }
+
+  /**
+   * Adds CRLs that have already been loaded, e.g. from a trust store snapshot.
+   *
+   * @param entries
+   *          the CRLs, indexed by the file they were loaded from
+   */
+  synchronized void putAll(Map<File, CRLEntry> entries) {
+
+    crlsByFile.putAll(entries);
+    updateIndex();
+  }
+
+  /**
+   * @return the CRLs currently loaded, indexed by the file they were loaded
+   *         from
+   */
+  synchronized Map<File, CRLEntry> getEntriesByFile() {
+
+    return new HashMap<File, CRLEntry>(crlsByFile);
+  }
+
+  private void updateIndex() {
+
+    Map<X500Principal, List<CRLEntry>> index = new HashMap<X500Principal, List<CRLEntry>>();
+
+    for (CRLEntry e : crlsByFile.values()) {
+
+      List<CRLEntry> crls = index.get(e.getIssuer());
+
+      if (crls == null) {
+        crls = new ArrayList<CRLEntry>(1);
+        index.put(e.getIssuer(), crls);
+      }
+
+      crls.add(e);
+    }
+
+    crlsByIssuer = index;
+  }
+
+  /**
+   * Returns the number of CRLs in the store.
+   *
+   * @return the number of CRLs
+   */
+  synchronized int size() {
+
+    return crlsByFile.size();
+  }
+
+  private X509CRL loadCRL(File f) {
+
+    InputStream is = null;
+
+    try {
+
+      is = new BufferedInputStream(new FileInputStream(f));
+      X509CRL crl = (X509CRL) factory.generateCRL(is);
+
+      notifyObservers(f.getAbsolutePath(), Severity.NOTIFICATION, null);
+      return crl;
+
+    } catch (Exception e) {
+
+      notifyObservers(f.getAbsolutePath(), Severity.ERROR, e);
+      return null;
+
+    } finally {
+
+      if (is != null) {
+        try {
+          is.close();
+        } catch (Exception e) {
+          // Ignore
+        }
+      }
+    }
+  }
+
+  private CRLEntry compileCRL(File f) {
+
+    try {
+
+      CRLEntry entry = new CRLEntry(crlIndex.open(f, factory));
+      notifyObservers(f.getAbsolutePath(), Severity.NOTIFICATION, null);
+      return entry;
+
+    } catch (Exception e) {
+
+      log.debug("CRL {} not indexed, loading it in memory: {}", f,
+        e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Returns the CRL to use to check a certificate.
+   *
+   * @param entry
+   *          the CRL entry
+   * @param checked
+   *          the certificate being checked, or <code>null</code>
+   * @return the CRL, or <code>null</code> if it cannot be decoded
+   */
+  private X509CRL getCRL(CRLEntry entry, X509Certificate checked) {
+
+    if (entry.compiled == null && entry.crl == null && crlIndex != null
+      && entry.file != null) {
+
+      synchronized (entry) {
+
+        if (entry.compiled == null && entry.crl == null) {
+          CRLEntry compiled = compileCRL(entry.file);
+          if (compiled != null)
+            entry.compiled = compiled.compiled;
+        }
+      }
+    }
+
+    CompiledCRL compiled = entry.compiled;
+
+    if (compiled != null)
+      return compiled.view(checked);
+
+    return getCRL(entry);
+  }
+
+  private X509CRL getCRL(CRLEntry entry) {
+
+    X509CRL crl = entry.crl;
+
+    if (crl != null)
+      return crl;
+
+    synchronized (entry) {
+
+      if (entry.crl == null) {
+        try {
+          entry.crl = (X509CRL) factory
+            .generateCRL(new ByteBufferInputStream(entry.encoded.duplicate()));
+        } catch (Exception e) {
+          notifyObservers(entry.getIssuer().getName(), Severity.ERROR, e);
+          return null;
+        }
+      }
+
+      return entry.crl;
+    }
+  }
+
+  @Override
+  protected void notifyObservers(String url, Severity level, Exception e) {
+
+    observers.notifyObservers(url, StoreUpdateListener.CRL, level, e);
+  }
+
+  /**
+   * Looks up the CRLs matching the selector. This differs from the inherited
+   * implementation in that the certificate being checked, when set in the
+   * selector, is used to select a view of compiled CRLs.
+   */
+  @Override
+  public Collection<? extends CRL> engineGetCRLs(CRLSelector selector)
+    throws CertStoreException {
+
+    if (!(selector instanceof X509CRLSelector))
+      throw new IllegalArgumentException(getClass().getName()
+        + " class supports only X509CRLSelector, got: "
+        + selector.getClass().getName());
+
+    X509CRLSelector crlSelector = (X509CRLSelector) selector;
+    Collection<X500Principal> issuers = crlSelector.getIssuers();
+    List<X509CRL> result = new ArrayList<X509CRL>();
+
+    if (issuers == null)
+      return result;
+
+    for (X500Principal issuer : issuers) {
+
+      for (X509CRL crl : getCRLForIssuer(issuer,
+        crlSelector.getCertificateChecking())) {
+
+        if (crlSelector.match(crl))
+          result.add(crl);
+      }
+    }
+
+    return result;
+  }
+
+  @Override
+  protected Collection<X509CRL> getCRLForIssuer(X500Principal issuer) {
+
+    return getCRLForIssuer(issuer, null);
+  }
+
+  private Collection<X509CRL> getCRLForIssuer(X500Principal issuer,
+    X509Certificate checked) {
+
+    List<CRLEntry> entries = crlsByIssuer.get(issuer);
+
+    if (entries == null)
+      return Collections.emptyList();
+
+    List<X509CRL> crls = new ArrayList<X509CRL>(entries.size());
+
+    for (CRLEntry e : entries) {
+      X509CRL crl = getCRL(e, checked);
+      if (crl != null)
+        crls.add(crl);
+    }
+
+    return crls;
+  }
+
+  @Override
+  public void setUpdateInterval(long newInterval) {
+
+    updateInterval = newInterval;
+  }
+
+  @Override
+  public void dispose() {
+
+  }
+}
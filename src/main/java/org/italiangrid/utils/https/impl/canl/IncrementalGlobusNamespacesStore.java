@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import eu.emi.security.authn.x509.helpers.ObserversHandler;
+import eu.emi.security.authn.x509.helpers.ns.GlobusNamespacesStore;
+import eu.emi.security.authn.x509.helpers.ns.NamespacePolicy;
+
+/**
+ * A Globus EACL (.signing_policy) namespaces store which can be updated one file at
+ * a time.
+ */
+class IncrementalGlobusNamespacesStore extends GlobusNamespacesStore
+  implements NamespacePoliciesByFile.Loader {
+
+  private final NamespacePoliciesByFile policies = new NamespacePoliciesByFile();
+
+  IncrementalGlobusNamespacesStore(ObserversHandler observers,
+    boolean openssl1Mode) {
+
+    super(observers, openssl1Mode);
+  }
+
+  /**
+   * Loads or removes the policies for the given files.
+   *
+   * @param loaded
+   *          the namespace files to (re)load
+   * @param removed
+   *          the namespace files that no longer exist
+   * @return the number of files successfully loaded
+   */
+  int update(Collection<File> loaded, Collection<File> removed) {
+
+    synchronized (policies) {
+      int count = policies.update(loaded, removed, this);
+      setPolicies(policies.getPolicies());
+      return count;
+    }
+  }
+
+  /**
+   * Adds policies that have already been loaded, e.g. from a trust store
+   * snapshot.
+   *
+   * @param policiesByFile
+   *          the policies, indexed by the file they were loaded from
+   */
+  void putAll(Map<File, List<NamespacePolicy>> policiesByFile) {
+
+    synchronized (policies) {
+      policies.putAll(policiesByFile);
+      setPolicies(policies.getPolicies());
+    }
+  }
+
+  /**
+   * @return the policies currently loaded, indexed by the file they were
+   *         loaded from
+   */
+  Map<File, List<NamespacePolicy>> getPoliciesByFile() {
+
+    synchronized (policies) {
+      return policies.getPoliciesByFile();
+    }
+  }
+
+  public List<NamespacePolicy> load(String path) {
+
+    return tryLoadNsPath(path);
+  }
+}
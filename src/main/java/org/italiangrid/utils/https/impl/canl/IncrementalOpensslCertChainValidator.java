@@ -0,0 +1,558 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+import org.italiangrid.utils.concurrent.PollingFileWatcher;
+import org.italiangrid.utils.https.impl.canl.IncrementalCRLStore.CRLEntry;
+import org.italiangrid.utils.https.impl.canl.TrustStoreSnapshot.Entry;
+import org.italiangrid.utils.https.impl.canl.TrustStoreSnapshot.FileStamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.emi.security.authn.x509.NamespaceCheckingMode;
+import eu.emi.security.authn.x509.ValidationError;
+import eu.emi.security.authn.x509.ValidationResult;
+import eu.emi.security.authn.x509.helpers.ns.NamespaceChecker;
+import eu.emi.security.authn.x509.helpers.ns.NamespacePolicy;
+import eu.emi.security.authn.x509.helpers.pkipath.AbstractValidator;
+import eu.emi.security.authn.x509.impl.ValidatorParams;
+
+/**
+ * A certificate chain validator for OpenSSL-style trust store directories that
+ * reloads only the files that changed.
+ *
+ * The CANL {@link eu.emi.security.authn.x509.impl.OpensslCertChainValidator}
+ * rescans and reparses the whole directory at each refresh. This validator
+ * instead watches the directory and, when CA certificates, CRLs or namespace
+ * files are created, modified or removed, reloads just those files. Bursts of
+ * changes, such as those produced by a fetch-crl run, are coalesced into a
+ * single reload.
+ *
+ * When a snapshot file is configured, the parsed trust store content is
+ * saved to the snapshot after each reload, and at startup only the files that
+ * changed since the snapshot was written are parsed.
+ *
+ * Validation semantics are the same as those of the CANL validator.
+ */
+public class IncrementalOpensslCertChainValidator extends AbstractValidator
+  implements PollingFileWatcher.Listener {
+
+  public static final Logger log = LoggerFactory
+    .getLogger(IncrementalOpensslCertChainValidator.class);
+
+  private static final Pattern CA_FILE = Pattern
+    .compile("^[0-9a-fA-F]{8}\\.[0-9]+$");
+
+  private static final Pattern CRL_FILE = Pattern
+    .compile("^[0-9a-fA-F]{8}\\.r[0-9]+$");
+
+  private static final Pattern EUGRIDPMA_NS_FILE = Pattern
+    .compile("^[0-9a-fA-F]{8}\\.namespaces$");
+
+  private static final Pattern GLOBUS_NS_FILE = Pattern
+    .compile("^[0-9a-fA-F]{8}\\.signing_policy$");
+
+  /**
+   * Accepts the files relevant to the trust store
+   */
+  static final FileFilter TRUST_STORE_FILES = new FileFilter() {
+
+    public boolean accept(File f) {
+
+      String name = f.getName();
+      return CA_FILE.matcher(name).matches()
+        || CRL_FILE.matcher(name).matches()
+        || EUGRIDPMA_NS_FILE.matcher(name).matches()
+        || GLOBUS_NS_FILE.matcher(name).matches();
+    }
+  };
+
+  private final File trustStoreDirectory;
+
+  private final NamespaceCheckingMode namespaceCheckingMode;
+
+  private final IncrementalTrustAnchorStore trustStore;
+
+  private final IncrementalCRLStore crlStore;
+
+  private final PollingFileWatcher watcher;
+
+  private final TrustStoreSnapshot snapshot;
+
+  /**
+   * The modification time and size of the loaded files, recorded before
+   * parsing them. Guarded by this.
+   */
+  private final Map<File, FileStamp> stamps = new HashMap<File, FileStamp>();
+
+  private final List<TrustStoreReloadListener> reloadListeners = new CopyOnWriteArrayList<TrustStoreReloadListener>();
+
+  private volatile TrustStoreReloadStats lastReloadStats;
+
+  /**
+   * Constructor.
+   *
+   * @param trustStoreDirectory
+   *          the trust store directory
+   * @param namespaceCheckingMode
+   *          the namespace checking mode
+   * @param pollIntervalInMsec
+   *          how often the directory is checked for changed files. A value of
+   *          zero or less disables change detection
+   * @param params
+   *          the validator parameters
+   */
+  public IncrementalOpensslCertChainValidator(String trustStoreDirectory,
+    NamespaceCheckingMode namespaceCheckingMode, long pollIntervalInMsec,
+    ValidatorParams params) {
+
+    this(trustStoreDirectory, namespaceCheckingMode, pollIntervalInMsec,
+      params, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param trustStoreDirectory
+   *          the trust store directory
+   * @param namespaceCheckingMode
+   *          the namespace checking mode
+   * @param pollIntervalInMsec
+   *          how often the directory is checked for changed files. A value of
+   *          zero or less disables change detection
+   * @param params
+   *          the validator parameters
+   * @param snapshotFile
+   *          the trust store snapshot file, or <code>null</code> to disable
+   *          snapshots
+   */
+  public IncrementalOpensslCertChainValidator(String trustStoreDirectory,
+    NamespaceCheckingMode namespaceCheckingMode, long pollIntervalInMsec,
+    ValidatorParams params, String snapshotFile) {
+
+    this(trustStoreDirectory, namespaceCheckingMode, pollIntervalInMsec,
+      params, snapshotFile, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param trustStoreDirectory
+   *          the trust store directory
+   * @param namespaceCheckingMode
+   *          the namespace checking mode
+   * @param pollIntervalInMsec
+   *          how often the directory is checked for changed files. A value of
+   *          zero or less disables change detection
+   * @param params
+   *          the validator parameters
+   * @param snapshotFile
+   *          the trust store snapshot file, or <code>null</code> to disable
+   *          snapshots
+   * @param crlIndexDirectory
+   *          the directory where CRLs are compiled into revoked serial
+   *          indexes, or <code>null</code> to keep CRLs in memory
+   */
+  public IncrementalOpensslCertChainValidator(String trustStoreDirectory,
+    NamespaceCheckingMode namespaceCheckingMode, long pollIntervalInMsec,
+    ValidatorParams params, String snapshotFile, String crlIndexDirectory) {
+
+    super(params.getInitialListeners());
+
+    this.trustStoreDirectory = new File(trustStoreDirectory);
+    this.namespaceCheckingMode = namespaceCheckingMode;
+
+    if (snapshotFile == null)
+      snapshot = null;
+    else
+      snapshot = new TrustStoreSnapshot(new File(snapshotFile));
+
+    trustStore = new IncrementalTrustAnchorStore(observers, false,
+      pollIntervalInMsec);
+
+    try {
+      crlStore = new IncrementalCRLStore(observers,
+        crlIndexDirectory == null ? null : new CRLIndexDirectory(new File(
+          crlIndexDirectory)));
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new RuntimeException("Error creating CRL store: "
+        + e.getMessage(), e);
+    }
+
+    reloadAll();
+
+    init(trustStore, crlStore, params.isAllowProxy(),
+      params.getRevocationSettings());
+
+    if (pollIntervalInMsec > 0) {
+      watcher = new PollingFileWatcher(Arrays.asList(this.trustStoreDirectory),
+        TRUST_STORE_FILES, pollIntervalInMsec, this);
+      watcher.start();
+    } else {
+      watcher = null;
+    }
+  }
+
+  /**
+   * Returns the trust store directory.
+   *
+   * @return the trust store directory
+   */
+  public String getTruststorePath() {
+
+    return trustStoreDirectory.getPath();
+  }
+
+  /**
+   * Returns the namespace checking mode.
+   *
+   * @return the namespace checking mode
+   */
+  public NamespaceCheckingMode getNamespaceCheckingMode() {
+
+    return namespaceCheckingMode;
+  }
+
+  /**
+   * Returns the outcome of the last reload.
+   *
+   * @return the stats of the last reload
+   */
+  public TrustStoreReloadStats getLastReloadStats() {
+
+    return lastReloadStats;
+  }
+
+  /**
+   * Adds a listener notified after each reload.
+   *
+   * @param listener
+   *          the listener
+   */
+  public void addReloadListener(TrustStoreReloadListener listener) {
+
+    reloadListeners.add(listener);
+  }
+
+  /**
+   * Removes a reload listener.
+   *
+   * @param listener
+   *          the listener
+   */
+  public void removeReloadListener(TrustStoreReloadListener listener) {
+
+    reloadListeners.remove(listener);
+  }
+
+  private List<File> listTrustStoreFiles() {
+
+    File[] files = trustStoreDirectory.listFiles(TRUST_STORE_FILES);
+
+    if (files == null) {
+      throw new IllegalArgumentException("Trust store directory "
+        + trustStoreDirectory + " does not exist or is not readable.");
+    }
+
+    return Arrays.asList(files);
+  }
+
+  /**
+   * Loads the whole trust store directory. When a snapshot is configured,
+   * only the files changed since the snapshot was written are parsed.
+   *
+   * @return the reload stats
+   */
+  public TrustStoreReloadStats reloadAll() {
+
+    return reload(listTrustStoreFiles(), true);
+  }
+
+  public void filesChanged(Set<File> changedFiles) {
+
+    reload(changedFiles, false);
+  }
+
+  /**
+   * Reloads the given trust store files. Files that do not exist anymore are
+   * removed from the trust store.
+   *
+   * @param files
+   *          the files to reload
+   * @return the reload stats
+   */
+  public TrustStoreReloadStats reload(Collection<File> files) {
+
+    return reload(files, false);
+  }
+
+  private synchronized TrustStoreReloadStats reload(Collection<File> files,
+    boolean full) {
+
+    long start = System.currentTimeMillis();
+
+    int restored = 0;
+    boolean snapshotStale = !full;
+
+    List<File> changed = new ArrayList<File>();
+
+    if (full) {
+
+      Set<File> current = new HashSet<File>(files);
+
+      for (File f : stamps.keySet())
+        if (!current.contains(f))
+          changed.add(f);
+
+      if (snapshot != null && stamps.isEmpty()) {
+
+        Map<String, Entry> entries = snapshot.load(trustStoreDirectory
+          .getPath());
+        restored = restoreSnapshot(entries, files, changed);
+        snapshotStale = !entries.isEmpty() || !changed.isEmpty();
+
+      } else {
+        changed.addAll(files);
+        snapshotStale = true;
+      }
+
+    } else {
+      changed.addAll(files);
+    }
+
+    List<File> cas = new ArrayList<File>();
+    List<File> removedCas = new ArrayList<File>();
+    List<File> crls = new ArrayList<File>();
+    List<File> removedCrls = new ArrayList<File>();
+    List<File> pmaNs = new ArrayList<File>();
+    List<File> removedPmaNs = new ArrayList<File>();
+    List<File> globusNs = new ArrayList<File>();
+    List<File> removedGlobusNs = new ArrayList<File>();
+
+    for (File f : changed) {
+
+      String name = f.getName();
+      boolean exists = f.isFile();
+
+      if (exists)
+        stamps.put(f, FileStamp.of(f));
+      else
+        stamps.remove(f);
+
+      if (CA_FILE.matcher(name).matches())
+        (exists ? cas : removedCas).add(f);
+      else if (CRL_FILE.matcher(name).matches())
+        (exists ? crls : removedCrls).add(f);
+      else if (EUGRIDPMA_NS_FILE.matcher(name).matches())
+        (exists ? pmaNs : removedPmaNs).add(f);
+      else if (GLOBUS_NS_FILE.matcher(name).matches())
+        (exists ? globusNs : removedGlobusNs).add(f);
+    }
+
+    int anchorsLoaded = trustStore.updateAnchors(cas, removedCas);
+    int crlsLoaded = crlStore.update(crls, removedCrls);
+    int nsLoaded = trustStore.updateEuGridPmaNamespaces(pmaNs, removedPmaNs)
+      + trustStore.updateGlobusNamespaces(globusNs, removedGlobusNs);
+
+    if (snapshot != null && snapshotStale)
+      writeSnapshot();
+
+    TrustStoreReloadStats stats = new TrustStoreReloadStats(full,
+      anchorsLoaded, removedCas.size(), crlsLoaded, removedCrls.size(),
+      nsLoaded, removedPmaNs.size() + removedGlobusNs.size(), restored,
+      System.currentTimeMillis() - start);
+
+    lastReloadStats = stats;
+
+    log.info("Trust store {}: {}", trustStoreDirectory, stats);
+
+    for (TrustStoreReloadListener l : reloadListeners) {
+      try {
+        l.trustStoreReloaded(stats);
+      } catch (Throwable t) {
+        log.error("Error notifying trust store reload listener: {}",
+          t.getMessage(), t);
+      }
+    }
+
+    return stats;
+  }
+
+  /**
+   * Restores the snapshot entries that are still current. The files that are
+   * not in the snapshot or have changed since it was written are added to the
+   * list of files to parse.
+   *
+   * @param entries
+   *          the snapshot entries, indexed by file name. Restored entries are
+   *          removed from the map
+   * @param files
+   *          the files found in the trust store directory
+   * @param toParse
+   *          the list of files which must be parsed
+   * @return the number of files restored from the snapshot
+   */
+  private int restoreSnapshot(Map<String, Entry> entries,
+    Collection<File> files, List<File> toParse) {
+
+    Map<File, X509Certificate> certs = new HashMap<File, X509Certificate>();
+    Map<File, CRLEntry> crls = new HashMap<File, CRLEntry>();
+    Map<File, List<NamespacePolicy>> pmaNs = new HashMap<File, List<NamespacePolicy>>();
+    Map<File, List<NamespacePolicy>> globusNs = new HashMap<File, List<NamespacePolicy>>();
+
+    for (File f : files) {
+
+      Entry e = entries.remove(f.getName());
+
+      if (e == null || !e.stamp.matches(f)) {
+        toParse.add(f);
+        continue;
+      }
+
+      if (e.type == TrustStoreSnapshot.CA_CERT)
+        certs.put(f, e.certificate);
+      else if (e.type == TrustStoreSnapshot.CRL)
+        crls.put(f, e.crl.withFile(f));
+      else if (e.type == TrustStoreSnapshot.EUGRIDPMA_NAMESPACES)
+        pmaNs.put(f, e.policies);
+      else
+        globusNs.put(f, e.policies);
+
+      stamps.put(f, e.stamp);
+    }
+
+    trustStore.putAll(certs);
+    crlStore.putAll(crls);
+    trustStore.getEuGridPmaNamespaces().putAll(pmaNs);
+    trustStore.getGlobusNamespaces().putAll(globusNs);
+
+    return certs.size() + crls.size() + pmaNs.size() + globusNs.size();
+  }
+
+  private void writeSnapshot() {
+
+    List<Entry> entries = new ArrayList<Entry>();
+
+    for (Map.Entry<File, X509Certificate> e : trustStore
+      .getCertificatesByFile().entrySet()) {
+
+      Entry entry = newSnapshotEntry(TrustStoreSnapshot.CA_CERT, e.getKey());
+
+      if (entry != null) {
+        entry.certificate = e.getValue();
+        entries.add(entry);
+      }
+    }
+
+    for (Map.Entry<File, CRLEntry> e : crlStore.getEntriesByFile().entrySet()) {
+
+      Entry entry = newSnapshotEntry(TrustStoreSnapshot.CRL, e.getKey());
+
+      if (entry != null) {
+        entry.crl = e.getValue();
+        entries.add(entry);
+      }
+    }
+
+    addPolicyEntries(entries, TrustStoreSnapshot.EUGRIDPMA_NAMESPACES,
+      trustStore.getEuGridPmaNamespaces().getPoliciesByFile());
+
+    addPolicyEntries(entries, TrustStoreSnapshot.GLOBUS_NAMESPACES, trustStore
+      .getGlobusNamespaces().getPoliciesByFile());
+
+    try {
+
+      snapshot.write(trustStoreDirectory.getPath(), entries);
+      log.debug("Trust store snapshot {} written ({} entries).",
+        snapshot.getFile(), entries.size());
+
+    } catch (Exception e) {
+
+      log.warn("Error writing trust store snapshot {}: {}",
+        snapshot.getFile(), e.getMessage());
+    }
+  }
+
+  private void addPolicyEntries(List<Entry> entries, byte type,
+    Map<File, List<NamespacePolicy>> policiesByFile) {
+
+    for (Map.Entry<File, List<NamespacePolicy>> e : policiesByFile.entrySet()) {
+
+      if (!TrustStoreSnapshot.canStore(e.getValue()))
+        continue;
+
+      Entry entry = newSnapshotEntry(type, e.getKey());
+
+      if (entry != null) {
+        entry.policies = e.getValue();
+        entries.add(entry);
+      }
+    }
+  }
+
+  private Entry newSnapshotEntry(byte type, File f) {
+
+    FileStamp stamp = stamps.get(f);
+
+    if (stamp == null)
+      return null;
+
+    return new Entry(type, f.getName(), stamp);
+  }
+
+  @Override
+  public ValidationResult validate(X509Certificate[] certChain) {
+
+    ValidationResult result = validate(certChain,
+      trustStore.getTrustAnchors());
+
+    if (namespaceCheckingMode != NamespaceCheckingMode.IGNORE) {
+
+      NamespaceChecker checker = new NamespaceChecker(namespaceCheckingMode,
+        trustStore.getPmaNsStore(), trustStore.getGlobusNsStore());
+
+      List<ValidationError> errors = checker.check(certChain);
+      processErrorList(errors);
+      result.addErrors(errors);
+    }
+
+    return result;
+  }
+
+  @Override
+  public void dispose() {
+
+    if (watcher != null)
+      watcher.stop();
+
+    super.dispose();
+  }
+}
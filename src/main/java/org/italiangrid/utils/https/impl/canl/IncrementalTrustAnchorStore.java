@@ -0,0 +1,302 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.StoreUpdateListener.Severity;
+import eu.emi.security.authn.x509.helpers.ObserversHandler;
+import eu.emi.security.authn.x509.helpers.ns.NamespacesStore;
+import eu.emi.security.authn.x509.helpers.trust.OpensslTrustAnchorStore;
+import eu.emi.security.authn.x509.helpers.trust.OpensslTruststoreHelper;
+import eu.emi.security.authn.x509.helpers.trust.TrustAnchorExt;
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.CertificateUtils.Encoding;
+
+/**
+ * A trust anchor store holding the CA certificates and namespace definitions
+ * found in an OpenSSL-style trust store directory, which can be updated one
+ * file at a time.
+ *
+ * Lookups read an immutable set of anchors that is replaced atomically after
+ * each update, so they never block on a reload.
+ *
+ * As in the CANL store, a CA certificate is only trusted when the name of its
+ * file matches the hash of its subject computed in the configured OpenSSL
+ * mode.
+ */
+class IncrementalTrustAnchorStore implements OpensslTrustAnchorStore {
+
+  private final ObserversHandler observers;
+
+  private final boolean openssl1Mode;
+
+  private final IncrementalEuGridPmaNamespacesStore pmaNsStore;
+
+  private final IncrementalGlobusNamespacesStore globusNsStore;
+
+  /**
+   * The anchors, indexed by the file they were loaded from. Guarded by this.
+   */
+  private final Map<File, TrustAnchorExt> anchorsByFile = new HashMap<File, TrustAnchorExt>();
+
+  private volatile Set<TrustAnchor> anchors = Collections.emptySet();
+
+  private volatile X509Certificate[] trustedCertificates = new X509Certificate[0];
+
+  private volatile long updateInterval;
+
+  IncrementalTrustAnchorStore(ObserversHandler observers,
+    boolean openssl1Mode, long updateInterval) {
+
+    this.observers = observers;
+    this.openssl1Mode = openssl1Mode;
+    this.updateInterval = updateInterval;
+    pmaNsStore = new IncrementalEuGridPmaNamespacesStore(observers,
+      openssl1Mode);
+    globusNsStore = new IncrementalGlobusNamespacesStore(observers,
+      openssl1Mode);
+  }
+
+  /**
+   * Loads or removes the trust anchors for the given files.
+   *
+   * @param loaded
+   *          the CA certificate files to (re)load
+   * @param removed
+   *          the CA certificate files that no longer exist
+   * @return the number of anchors successfully loaded
+   */
+  synchronized int updateAnchors(Collection<File> loaded,
+    Collection<File> removed) {
+
+    int count = 0;
+
+    for (File f : removed)
+      anchorsByFile.remove(f);
+
+    for (File f : loaded) {
+
+      X509Certificate cert = loadCertificate(f);
+
+      if (cert == null) {
+        anchorsByFile.remove(f);
+      } else {
+        anchorsByFile.put(f, new TrustAnchorExt(cert, null));
+        count++;
+      }
+    }
+
+    setAnchors(anchorsByFile.values());
+    return count;
+  }
+
+  /**
+   * Adds trust anchors that have already been loaded, e.g. from a trust store
+   * snapshot.
+   *
+   * @param certificates
+   *          the CA certificates, indexed by the file they were loaded from
+   */
+  synchronized void putAll(Map<File, X509Certificate> certificates) {
+
+    for (Map.Entry<File, X509Certificate> e : certificates.entrySet()) {
+
+      if (checkHash(e.getKey(), e.getValue()))
+        anchorsByFile.put(e.getKey(), new TrustAnchorExt(e.getValue(), null));
+      else
+        anchorsByFile.remove(e.getKey());
+    }
+
+    setAnchors(anchorsByFile.values());
+  }
+
+  /**
+   * @return the CA certificates currently loaded, indexed by the file they
+   *         were loaded from
+   */
+  synchronized Map<File, X509Certificate> getCertificatesByFile() {
+
+    Map<File, X509Certificate> certs = new HashMap<File, X509Certificate>();
+
+    for (Map.Entry<File, TrustAnchorExt> e : anchorsByFile.entrySet())
+      certs.put(e.getKey(), e.getValue().getTrustedCert());
+
+    return certs;
+  }
+
+  private void setAnchors(Collection<TrustAnchorExt> values) {
+
+    Set<TrustAnchor> newAnchors = new HashSet<TrustAnchor>(values);
+    X509Certificate[] newCerts = new X509Certificate[newAnchors.size()];
+
+    int i = 0;
+    for (TrustAnchor a : newAnchors)
+      newCerts[i++] = a.getTrustedCert();
+
+    anchors = Collections.unmodifiableSet(newAnchors);
+    trustedCertificates = newCerts;
+  }
+
+  int updateEuGridPmaNamespaces(Collection<File> loaded,
+    Collection<File> removed) {
+
+    return pmaNsStore.update(loaded, removed);
+  }
+
+  int updateGlobusNamespaces(Collection<File> loaded, Collection<File> removed) {
+
+    return globusNsStore.update(loaded, removed);
+  }
+
+  IncrementalEuGridPmaNamespacesStore getEuGridPmaNamespaces() {
+
+    return pmaNsStore;
+  }
+
+  IncrementalGlobusNamespacesStore getGlobusNamespaces() {
+
+    return globusNsStore;
+  }
+
+  private X509Certificate loadCertificate(File f) {
+
+    InputStream is = null;
+    String location = f.getAbsolutePath();
+
+    try {
+
+      is = new BufferedInputStream(new FileInputStream(f));
+      X509Certificate cert = CertificateUtils.loadCertificate(is,
+        Encoding.PEM);
+
+      if (!checkHash(f, cert))
+        return null;
+
+      observers.notifyObservers(location, StoreUpdateListener.CA_CERT,
+        Severity.NOTIFICATION, null);
+
+      checkValidity(location, cert);
+      return cert;
+
+    } catch (Exception e) {
+
+      observers.notifyObservers(location, StoreUpdateListener.CA_CERT,
+        Severity.ERROR, e);
+      return null;
+
+    } finally {
+
+      if (is != null) {
+        try {
+          is.close();
+        } catch (Exception e) {
+          // Ignore
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks that a CA certificate is stored under the hash of its subject.
+   *
+   * @return <code>true</code> if the file name matches the subject hash,
+   *         <code>false</code> otherwise
+   */
+  private boolean checkHash(File f, X509Certificate cert) {
+
+    String hash = OpensslTruststoreHelper.getOpenSSLCAHash(
+      cert.getSubjectX500Principal(), openssl1Mode);
+
+    String name = f.getName();
+
+    if (name.length() > hash.length()
+      && name.regionMatches(true, 0, hash, 0, hash.length())
+      && name.charAt(hash.length()) == '.')
+      return true;
+
+    observers.notifyObservers(f.getAbsolutePath(), StoreUpdateListener.CA_CERT,
+      Severity.ERROR, new Exception("The file name does not match the "
+        + "subject hash " + hash + " of the certificate it contains"));
+    return false;
+  }
+
+  private void checkValidity(String location, X509Certificate cert) {
+
+    try {
+
+      cert.checkValidity();
+
+    } catch (CertificateExpiredException e) {
+
+      observers.notifyObservers(location, StoreUpdateListener.CA_CERT,
+        Severity.WARNING, e);
+
+    } catch (CertificateNotYetValidException e) {
+
+      observers.notifyObservers(location, StoreUpdateListener.CA_CERT,
+        Severity.WARNING, e);
+    }
+  }
+
+  public Set<TrustAnchor> getTrustAnchors() {
+
+    return anchors;
+  }
+
+  public X509Certificate[] getTrustedCertificates() {
+
+    return trustedCertificates.clone();
+  }
+
+  public void dispose() {
+
+  }
+
+  public long getUpdateInterval() {
+
+    return updateInterval;
+  }
+
+  public void setUpdateInterval(long newInterval) {
+
+    updateInterval = newInterval;
+  }
+
+  public NamespacesStore getPmaNsStore() {
+
+    return pmaNsStore;
+  }
+
+  public NamespacesStore getGlobusNsStore() {
+
+    return globusNsStore;
+  }
+}
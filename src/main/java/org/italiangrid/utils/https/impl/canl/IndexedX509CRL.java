@@ -0,0 +1,239 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Principal;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.CRLException;
+import java.security.cert.Certificate;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * A view of a {@link CompiledCRL}.
+ *
+ * Apart from its encoding, the view behaves as the full CRL. Its encoding
+ * depends on the certificate it was created for: it contains only the entry
+ * of that certificate, if revoked, or no entry at all.
+ */
+class IndexedX509CRL extends X509CRL {
+
+  /**
+   * The view encodes the full CRL
+   */
+  static final int FULL = -2;
+
+  /**
+   * The view encodes no revoked certificate
+   */
+  static final int NOT_REVOKED = -1;
+
+  private final CompiledCRL crl;
+  private final int slot;
+
+  IndexedX509CRL(CompiledCRL crl, int slot) {
+
+    this.crl = crl;
+    this.slot = slot < 0 && slot != FULL ? NOT_REVOKED : slot;
+  }
+
+  @Override
+  public byte[] getEncoded() throws CRLException {
+
+    return crl.getEncoded(slot);
+  }
+
+  @Override
+  public void verify(PublicKey key) throws CRLException,
+    NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException,
+    SignatureException {
+
+    verify(key, (String) null);
+  }
+
+  @Override
+  public void verify(PublicKey key, String sigProvider) throws CRLException,
+    NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException,
+    SignatureException {
+
+    try {
+
+      crl.verify(key, sigProvider);
+
+    } catch (NoSuchAlgorithmException e) {
+      throw e;
+    } catch (InvalidKeyException e) {
+      throw e;
+    } catch (NoSuchProviderException e) {
+      throw e;
+    } catch (SignatureException e) {
+      throw e;
+    } catch (GeneralSecurityException e) {
+      throw new SignatureException(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public int getVersion() {
+
+    return crl.getHeader().getVersion();
+  }
+
+  @Override
+  public Principal getIssuerDN() {
+
+    return crl.getHeader().getIssuerX500Principal();
+  }
+
+  @Override
+  public X500Principal getIssuerX500Principal() {
+
+    return crl.getIssuer();
+  }
+
+  @Override
+  public Date getThisUpdate() {
+
+    return crl.getHeader().getThisUpdate();
+  }
+
+  @Override
+  public Date getNextUpdate() {
+
+    return crl.getHeader().getNextUpdate();
+  }
+
+  @Override
+  public X509CRLEntry getRevokedCertificate(BigInteger serialNumber) {
+
+    return crl.getRevokedCertificate(serialNumber);
+  }
+
+  /**
+   * Returns the revoked certificates. This decodes the full CRL, and should
+   * be avoided for large CRLs.
+   */
+  @Override
+  public Set<? extends X509CRLEntry> getRevokedCertificates() {
+
+    try {
+      return crl.decode(crl.getEncoded(FULL)).getRevokedCertificates();
+    } catch (CRLException e) {
+      throw new IllegalStateException("Cannot decode CRL: " + e.getMessage(),
+        e);
+    }
+  }
+
+  @Override
+  public byte[] getTBSCertList() throws CRLException {
+
+    return crl.getTBSCertList();
+  }
+
+  @Override
+  public byte[] getSignature() {
+
+    return crl.getSignature();
+  }
+
+  @Override
+  public String getSigAlgName() {
+
+    return crl.getHeader().getSigAlgName();
+  }
+
+  @Override
+  public String getSigAlgOID() {
+
+    return crl.getHeader().getSigAlgOID();
+  }
+
+  @Override
+  public byte[] getSigAlgParams() {
+
+    return crl.getHeader().getSigAlgParams();
+  }
+
+  @Override
+  public boolean isRevoked(Certificate cert) {
+
+    if (!(cert instanceof X509Certificate))
+      return false;
+
+    X509Certificate c = (X509Certificate) cert;
+
+    return crl.getIssuer().equals(c.getIssuerX500Principal())
+      && crl.find(c.getSerialNumber()) >= 0;
+  }
+
+  public boolean hasUnsupportedCriticalExtension() {
+
+    return crl.getHeader().hasUnsupportedCriticalExtension();
+  }
+
+  public Set<String> getCriticalExtensionOIDs() {
+
+    return crl.getHeader().getCriticalExtensionOIDs();
+  }
+
+  public Set<String> getNonCriticalExtensionOIDs() {
+
+    return crl.getHeader().getNonCriticalExtensionOIDs();
+  }
+
+  public byte[] getExtensionValue(String oid) {
+
+    return crl.getHeader().getExtensionValue(oid);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+
+    if (this == other)
+      return true;
+
+    if (!(other instanceof IndexedX509CRL))
+      return false;
+
+    IndexedX509CRL that = (IndexedX509CRL) other;
+    return crl == that.crl && slot == that.slot;
+  }
+
+  @Override
+  public int hashCode() {
+
+    return 31 * System.identityHashCode(crl) + slot;
+  }
+
+  @Override
+  public String toString() {
+
+    return String.format(
+      "Indexed CRL [issuer: %s, thisUpdate: %s, nextUpdate: %s, entries: %d]",
+      getIssuerX500Principal(), getThisUpdate(), getNextUpdate(), crl.size());
+  }
+}
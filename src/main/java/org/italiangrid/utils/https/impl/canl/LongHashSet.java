@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+/**
+ * An immutable set of <code>long</code> values, stored in a single array with
+ * open addressing and linear probing, so that a lookup allocates nothing and
+ * usually touches a single cache line.
+ */
+final class LongHashSet {
+
+  /**
+   * Marks empty slots. Zero is tracked apart.
+   */
+  private static final long EMPTY = 0L;
+
+  private final long[] slots;
+
+  private final int mask;
+
+  private final boolean containsZero;
+
+  private final int size;
+
+  /**
+   * Constructor.
+   *
+   * @param values
+   *          the values, which may contain duplicates
+   * @param count
+   *          the number of values to take from the array
+   */
+  LongHashSet(long[] values, int count) {
+
+    int capacity = 2;
+
+    // Keep the load factor at or below one half
+    while (capacity < 2 * count)
+      capacity <<= 1;
+
+    slots = new long[capacity];
+    mask = capacity - 1;
+
+    boolean zero = false;
+    int n = 0;
+
+    for (int i = 0; i < count; i++) {
+
+      long v = values[i];
+
+      if (v == EMPTY) {
+
+        if (!zero)
+          n++;
+
+        zero = true;
+        continue;
+      }
+
+      int slot = slot(v);
+
+      while (slots[slot] != EMPTY && slots[slot] != v)
+        slot = (slot + 1) & mask;
+
+      if (slots[slot] == EMPTY) {
+        slots[slot] = v;
+        n++;
+      }
+    }
+
+    containsZero = zero;
+    size = n;
+  }
+
+  private int slot(long v) {
+
+    // Mix the bits, as values may not be uniformly distributed
+    long h = v * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  /**
+   * @param v
+   *          a value
+   * @return <code>true</code> if the set contains the value
+   */
+  boolean contains(long v) {
+
+    if (v == EMPTY)
+      return containsZero;
+
+    int slot = slot(v);
+
+    while (true) {
+
+      long s = slots[slot];
+
+      if (s == v)
+        return true;
+
+      if (s == EMPTY)
+        return false;
+
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * @return the number of values in the set
+   */
+  int size() {
+
+    return size;
+  }
+}
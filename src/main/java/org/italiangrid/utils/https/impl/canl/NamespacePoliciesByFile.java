@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.emi.security.authn.x509.helpers.ns.NamespacePolicy;
+
+/**
+ * Keeps track of the namespace policies loaded from each namespace file, so
+ * that a namespaces store can be updated one file at a time.
+ */
+final class NamespacePoliciesByFile {
+
+  /**
+   * Loads the policies defined in a namespace file.
+   */
+  interface Loader {
+
+    /**
+     * @param path
+     *          the namespace file path
+     * @return the policies defined in the file, or an empty list if the file
+     *         could not be parsed
+     */
+    List<NamespacePolicy> load(String path);
+  }
+
+  private final Map<File, List<NamespacePolicy>> policiesByFile = new HashMap<File, List<NamespacePolicy>>();
+
+  /**
+   * Loads or removes the policies for the given files.
+   *
+   * @param loaded
+   *          the namespace files to (re)load
+   * @param removed
+   *          the namespace files that no longer exist
+   * @param loader
+   *          the loader used to parse the files
+   * @return the number of files successfully loaded
+   */
+  int update(Collection<File> loaded, Collection<File> removed, Loader loader) {
+
+    int count = 0;
+
+    for (File f : removed)
+      policiesByFile.remove(f);
+
+    for (File f : loaded) {
+
+      List<NamespacePolicy> policies = loader.load(f.getPath());
+
+      if (policies.isEmpty()) {
+        policiesByFile.remove(f);
+      } else {
+        policiesByFile.put(f, policies);
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Adds policies that have already been loaded.
+   *
+   * @param loaded
+   *          the policies, indexed by the file they were loaded from
+   */
+  void putAll(Map<File, List<NamespacePolicy>> loaded) {
+
+    policiesByFile.putAll(loaded);
+  }
+
+  /**
+   * @return the policies currently loaded, indexed by the file they were
+   *         loaded from
+   */
+  Map<File, List<NamespacePolicy>> getPoliciesByFile() {
+
+    return new HashMap<File, List<NamespacePolicy>>(policiesByFile);
+  }
+
+  /**
+   * @return all the policies currently loaded
+   */
+  List<NamespacePolicy> getPolicies() {
+
+    List<NamespacePolicy> all = new ArrayList<NamespacePolicy>();
+
+    for (List<NamespacePolicy> policies : policiesByFile.values())
+      all.addAll(policies);
+
+    return all;
+  }
+}
@@ -0,0 +1,455 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.ocsp.OCSPException;
+import org.bouncycastle.ocsp.OCSPReq;
+import org.bouncycastle.ocsp.SingleResp;
+import org.italiangrid.utils.concurrent.NamedThreadFactory;
+
+import eu.emi.security.authn.x509.OCSPParametes;
+import eu.emi.security.authn.x509.OCSPResponder;
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.StoreUpdateListener.Severity;
+import eu.emi.security.authn.x509.ValidationErrorCode;
+import eu.emi.security.authn.x509.helpers.ObserversHandler;
+import eu.emi.security.authn.x509.helpers.ocsp.OCSPClientImpl;
+import eu.emi.security.authn.x509.helpers.ocsp.OCSPResponseStructure;
+import eu.emi.security.authn.x509.helpers.ocsp.OCSPResult;
+import eu.emi.security.authn.x509.helpers.ocsp.OCSPResult.Status;
+import eu.emi.security.authn.x509.helpers.ocsp.OCSPVerifier;
+import eu.emi.security.authn.x509.helpers.pkipath.SimpleValidationErrorException;
+
+/**
+ * A bounded cache of OCSP responses, indexed by certificate issuer and serial
+ * number.
+ *
+ * Responders are queried in background threads. A response is cached until
+ * its nextUpdate time, or for at most the cache TTL set in the OCSP
+ * parameters, and is refreshed ahead of its expiration if the certificate has
+ * been looked up since the last query. An expired response which is still
+ * within its nextUpdate time is returned while a refresh is in flight.
+ *
+ * Responders are selected and responses are verified as the CANL OCSP
+ * verifier does.
+ */
+class OCSPResponseCache {
+
+  /**
+   * The fraction of a response cache lifetime after which the response is
+   * refreshed, if it has been used.
+   */
+  static final double REFRESH_AHEAD_FRACTION = 0.75;
+
+  private static final int FETCHER_THREADS = 2;
+
+  static final class Key {
+
+    final X500Principal issuer;
+    final BigInteger serial;
+
+    Key(X509Certificate certificate) {
+
+      this.issuer = certificate.getIssuerX500Principal();
+      this.serial = certificate.getSerialNumber();
+    }
+
+    @Override
+    public int hashCode() {
+
+      return 31 * issuer.hashCode() + serial.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+      if (this == obj)
+        return true;
+      if (!(obj instanceof Key))
+        return false;
+      Key other = (Key) obj;
+      return issuer.equals(other.issuer) && serial.equals(other.serial);
+    }
+  }
+
+  /**
+   * A cached response. All fields are guarded by the cache.
+   */
+  static final class Entry {
+
+    final Key key;
+    final X509Certificate certificate;
+    final X509Certificate issuer;
+
+    OCSPResult result;
+    long fetchedAt;
+    long expiresAt;
+    long validUntil;
+    long lastUsed;
+    FutureTask<OCSPResult> fetch;
+
+    Entry(Key key, X509Certificate certificate, X509Certificate issuer) {
+
+      this.key = key;
+      this.certificate = certificate;
+      this.issuer = issuer;
+    }
+  }
+
+  /**
+   * Makes the CANL responder selection available.
+   */
+  private static final class ResponderLocator extends OCSPVerifier {
+
+    ResponderLocator(OCSPParametes params, ObserversHandler observers) {
+
+      super(params, observers);
+    }
+
+    List<OCSPResponder> locate(X509Certificate certificate,
+      X509Certificate issuer) throws SimpleValidationErrorException {
+
+      return getOCSPUrls(certificate, issuer);
+    }
+  }
+
+  private final OCSPParametes params;
+
+  private final ObserversHandler observers;
+
+  private final ResponderLocator locator;
+
+  private final OCSPClientImpl client = new OCSPClientImpl();
+
+  private final long maxTtl;
+
+  private final Map<Key, Entry> entries;
+
+  private final ScheduledExecutorService executor;
+
+  /**
+   * Constructor.
+   *
+   * @param params
+   *          the OCSP parameters
+   * @param maxEntries
+   *          the maximum number of cached responses
+   * @param observers
+   *          notified of responder errors
+   */
+  OCSPResponseCache(OCSPParametes params, final int maxEntries,
+    ObserversHandler observers) {
+
+    if (maxEntries <= 0)
+      throw new IllegalArgumentException(
+        "Cache size must be a positive number");
+
+    this.params = params;
+    this.observers = observers;
+    this.locator = new ResponderLocator(params, observers);
+    this.maxTtl = TimeUnit.SECONDS.toMillis(params.getCacheTtl());
+
+    entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+
+        return size() > maxEntries;
+      }
+    };
+
+    executor = Executors.newScheduledThreadPool(FETCHER_THREADS,
+      new NamedThreadFactory("ocsp-fetcher"));
+  }
+
+  /**
+   * Looks up the OCSP status of a certificate.
+   *
+   * @param certificate
+   *          the certificate to check
+   * @param issuer
+   *          the certificate issuer
+   * @param wait
+   *          whether to wait for the responder to be queried when no response
+   *          is cached
+   * @return the status, or <code>null</code> if no response is cached and
+   *         <code>wait</code> is <code>false</code>
+   * @throws SimpleValidationErrorException
+   *           if the responders could not be queried
+   */
+  OCSPResult lookup(X509Certificate certificate, X509Certificate issuer,
+    boolean wait) throws SimpleValidationErrorException {
+
+    Key key = new Key(certificate);
+    long now = System.currentTimeMillis();
+    FutureTask<OCSPResult> pending;
+
+    synchronized (entries) {
+
+      Entry e = entries.get(key);
+
+      if (e == null) {
+        e = new Entry(key, certificate, issuer);
+        entries.put(key, e);
+      }
+
+      e.lastUsed = now;
+
+      if (e.result != null && now < e.validUntil) {
+
+        if (now >= e.expiresAt)
+          refresh(e);
+
+        return e.result;
+      }
+
+      pending = refresh(e);
+    }
+
+    if (!wait)
+      return null;
+
+    try {
+
+      return pending.get();
+
+    } catch (InterruptedException e) {
+
+      Thread.currentThread().interrupt();
+      throw new SimpleValidationErrorException(
+        ValidationErrorCode.ocspOtherError, "", e.toString());
+
+    } catch (ExecutionException e) {
+
+      if (e.getCause() instanceof SimpleValidationErrorException)
+        throw (SimpleValidationErrorException) e.getCause();
+
+      throw new SimpleValidationErrorException(
+        ValidationErrorCode.ocspOtherError, "", e.getCause().toString());
+    }
+  }
+
+  /**
+   * Returns the number of cached responses.
+   *
+   * @return the number of entries in the cache
+   */
+  int size() {
+
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * Stops the background queries.
+   */
+  void dispose() {
+
+    executor.shutdownNow();
+  }
+
+  /**
+   * Starts querying the responders for an entry, unless a query is already in
+   * flight. Must be called holding the cache lock.
+   */
+  private FutureTask<OCSPResult> refresh(final Entry e) {
+
+    if (e.fetch != null)
+      return e.fetch;
+
+    e.fetch = new FutureTask<OCSPResult>(new Callable<OCSPResult>() {
+
+      public OCSPResult call() throws Exception {
+
+        return fetch(e);
+      }
+    });
+
+    executor.execute(e.fetch);
+    return e.fetch;
+  }
+
+  private OCSPResult fetch(final Entry e) throws SimpleValidationErrorException {
+
+    long now = System.currentTimeMillis();
+    Response response;
+
+    try {
+
+      response = query(e.certificate, e.issuer, now);
+
+    } catch (SimpleValidationErrorException ex) {
+
+      synchronized (entries) {
+        e.fetch = null;
+        e.result = null;
+        if (entries.get(e.key) == e)
+          entries.remove(e.key);
+      }
+
+      throw ex;
+    }
+
+    long refreshDelay;
+
+    synchronized (entries) {
+
+      e.fetch = null;
+      e.result = response.result;
+      e.fetchedAt = now;
+      e.validUntil = response.nextUpdate;
+      e.expiresAt = Math.min(response.nextUpdate, now + maxTtl);
+      refreshDelay = (long) ((e.expiresAt - now) * REFRESH_AHEAD_FRACTION);
+    }
+
+    try {
+
+      executor.schedule(new Runnable() {
+
+        public void run() {
+
+          prefetch(e);
+        }
+      }, refreshDelay, TimeUnit.MILLISECONDS);
+
+    } catch (RejectedExecutionException ex) {
+      // Disposed
+    }
+
+    return response.result;
+  }
+
+  /**
+   * Refreshes an entry ahead of its expiration if it is still cached and has
+   * been looked up since it was last fetched.
+   */
+  private void prefetch(Entry e) {
+
+    synchronized (entries) {
+
+      // The lookup that started the fetch may share its millisecond
+      if (entries.get(e.key) != e || e.lastUsed <= e.fetchedAt)
+        return;
+
+      refresh(e);
+    }
+  }
+
+  private static final class Response {
+
+    final OCSPResult result;
+    final long nextUpdate;
+
+    Response(OCSPResult result, long nextUpdate) {
+
+      this.result = result;
+      this.nextUpdate = nextUpdate;
+    }
+  }
+
+  /**
+   * Queries the responders in turn, until one returns a known status. This
+   * follows CANL's {@link OCSPVerifier#verify(X509Certificate, X509Certificate)}
+   * but also returns the time until which the response can be cached.
+   */
+  private Response query(X509Certificate certificate, X509Certificate issuer,
+    long now) throws SimpleValidationErrorException {
+
+    List<OCSPResponder> responders = locator.locate(certificate, issuer);
+
+    for (int i = 0; i < responders.size(); i++) {
+
+      OCSPResponder responder = responders.get(i);
+      boolean last = (i == responders.size() - 1);
+
+      try {
+
+        Response response = query(responder, certificate, now);
+
+        if (response.result.getStatus() != Status.unknown)
+          return response;
+
+      } catch (Exception e) {
+
+        observers.notifyObservers(responder.getAddress().toExternalForm(),
+          StoreUpdateListener.OCSP, Severity.WARNING, e);
+
+        if (!last)
+          continue;
+
+        if (e instanceof OCSPException)
+          throw new SimpleValidationErrorException(
+            ValidationErrorCode.ocspResponseInvalid, responder.getAddress(),
+            e.getMessage());
+
+        if (e instanceof IOException)
+          throw new SimpleValidationErrorException(
+            ValidationErrorCode.ocspResponderQueryError,
+            responder.getAddress(), e.getMessage());
+
+        throw new SimpleValidationErrorException(
+          ValidationErrorCode.ocspOtherError, responder.getAddress(),
+          e.toString());
+      }
+    }
+
+    return new Response(new OCSPResult(Status.unknown), now + maxTtl);
+  }
+
+  private Response query(OCSPResponder responder, X509Certificate certificate,
+    long now) throws Exception {
+
+    OCSPReq request = client.createRequest(certificate,
+      responder.getCertificate(), null, params.isUseNonce());
+
+    OCSPResponseStructure response = client.send(responder.getAddress(),
+      request, params.getConntectTimeout());
+
+    byte[] nonce = params.isUseNonce() ? OCSPClientImpl.extractNonce(request)
+      : null;
+
+    SingleResp singleResponse = client.verifyResponse(response.getResponse(),
+      certificate, responder.getCertificate(), nonce);
+
+    long nextUpdate = singleResponse.getNextUpdate().getTime();
+    Date maxCache = response.getMaxCache();
+
+    if (maxCache != null)
+      nextUpdate = Math.min(nextUpdate, maxCache.getTime());
+
+    return new Response(new OCSPResult(singleResponse), nextUpdate);
+  }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.italiangrid.utils.concurrent.PollingFileWatcher;
+import org.italiangrid.utils.https.SSLOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.emi.security.authn.x509.impl.PEMCredential;
+
+/**
+ * Reloads the service credential when the PEM certificate or key files
+ * configured in {@link SSLOptions} change, and installs it in a
+ * {@link ReloadableKeyManager}.
+ *
+ * A new credential is installed only if it can be loaded and its private key
+ * matches the certificate; otherwise the error is logged and the current
+ * credential is kept.
+ */
+public class PEMCredentialReloader implements PollingFileWatcher.Listener {
+
+  public static final Logger log = LoggerFactory
+    .getLogger(PEMCredentialReloader.class);
+
+  private static final byte[] PROBE = "https-utils key check".getBytes();
+
+  private final String certificateFile;
+  private final String keyFile;
+  private final char[] keyPassword;
+
+  private final ReloadableKeyManager keyManager;
+
+  private final PollingFileWatcher watcher;
+
+  /**
+   * Constructor.
+   *
+   * @param options
+   *          the SSL options holding the credential locations and the refresh
+   *          interval
+   * @param keyManager
+   *          the key manager where reloaded credentials are installed
+   */
+  public PEMCredentialReloader(SSLOptions options,
+    ReloadableKeyManager keyManager) {
+
+    this.certificateFile = options.getCertificateFile();
+    this.keyFile = options.getKeyFile();
+    this.keyPassword = options.getKeyPassword();
+    this.keyManager = keyManager;
+
+    watcher = new PollingFileWatcher(Arrays.asList(new File(certificateFile),
+      new File(keyFile)), null, options.getCredentialRefreshIntervalInMsec(),
+      this);
+  }
+
+  /**
+   * Starts watching the credential files.
+   */
+  public void start() {
+
+    watcher.start();
+  }
+
+  /**
+   * Stops watching the credential files.
+   */
+  public void stop() {
+
+    watcher.stop();
+  }
+
+  public void filesChanged(Set<File> changedFiles) {
+
+    log.info("Credential files changed: {}. Reloading service credential.",
+      changedFiles);
+
+    reload();
+  }
+
+  /**
+   * Loads the credential from the configured files and installs it in the key
+   * manager.
+   *
+   * @return <code>true</code> if the new credential was installed,
+   *         <code>false</code> otherwise
+   */
+  public boolean reload() {
+
+    try {
+
+      PEMCredential credential = new PEMCredential(keyFile, certificateFile,
+        keyPassword);
+
+      checkKeyMatchesCertificate(credential.getKey(),
+        credential.getCertificate());
+
+      keyManager.setCredential(credential);
+
+      log.info("Service credential reloaded. Subject: {}, expires: {}",
+        credential.getSubjectName(), credential.getCertificate()
+          .getNotAfter());
+
+      return true;
+
+    } catch (Throwable t) {
+
+      log.error("Error reloading service credential, keeping the current "
+        + "one: {}", t.getMessage());
+      log.debug(t.getMessage(), t);
+      return false;
+    }
+  }
+
+  private static String signatureAlgorithm(PrivateKey key) {
+
+    String alg = key.getAlgorithm();
+
+    if ("RSA".equals(alg))
+      return "SHA256withRSA";
+
+    if ("EC".equals(alg))
+      return "SHA256withECDSA";
+
+    if ("DSA".equals(alg))
+      return "SHA1withDSA";
+
+    return null;
+  }
+
+  static void checkKeyMatchesCertificate(PrivateKey key,
+    X509Certificate certificate) throws GeneralSecurityException {
+
+    String alg = signatureAlgorithm(key);
+
+    if (alg == null)
+      return;
+
+    Signature signer = Signature.getInstance(alg);
+    signer.initSign(key);
+    signer.update(PROBE);
+    byte[] signature = signer.sign();
+
+    Signature verifier = Signature.getInstance(alg);
+    verifier.initVerify(certificate.getPublicKey());
+    verifier.update(PROBE);
+
+    if (!verifier.verify(signature))
+      throw new GeneralSecurityException(
+        "The private key does not match the certificate public key");
+  }
+}
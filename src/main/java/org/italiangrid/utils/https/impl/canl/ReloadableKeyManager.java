@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+import eu.emi.security.authn.x509.X509Credential;
+
+/**
+ * An {@link X509ExtendedKeyManager} whose credential can be replaced at
+ * runtime.
+ *
+ * Handshakes started after {@link #setCredential(X509Credential)} returns use
+ * the new credential, while connections already established are not affected.
+ * Each credential is exposed under a distinct alias, so that a handshake that
+ * selected an alias just before a swap still gets a consistent certificate
+ * chain and private key.
+ */
+public class ReloadableKeyManager extends X509ExtendedKeyManager {
+
+  private static final class Generation {
+
+    final String alias;
+    final X509Credential credential;
+    final X509ExtendedKeyManager delegate;
+
+    Generation(long number, X509Credential credential) {
+
+      this.alias = "credential-" + number;
+      this.credential = credential;
+      this.delegate = credential.getKeyManager();
+    }
+  }
+
+  private long generationCount = 0;
+
+  private volatile Generation current;
+
+  private volatile Generation previous;
+
+  /**
+   * Constructor.
+   *
+   * @param credential
+   *          the initial credential
+   */
+  public ReloadableKeyManager(X509Credential credential) {
+
+    setCredential(credential);
+  }
+
+  /**
+   * Replaces the credential used for new handshakes.
+   *
+   * @param credential
+   *          the new credential
+   */
+  public synchronized void setCredential(X509Credential credential) {
+
+    Generation g = new Generation(++generationCount, credential);
+    previous = current;
+    current = g;
+  }
+
+  /**
+   * Returns the credential currently used for new handshakes.
+   *
+   * @return the current credential
+   */
+  public X509Credential getCredential() {
+
+    return current.credential;
+  }
+
+  private Generation lookup(String alias) {
+
+    Generation g = current;
+    if (g.alias.equals(alias))
+      return g;
+
+    g = previous;
+    if (g != null && g.alias.equals(alias))
+      return g;
+
+    return null;
+  }
+
+  private static String[] aliases(Generation g, String[] delegateAliases) {
+
+    if (delegateAliases == null || delegateAliases.length == 0)
+      return null;
+
+    return new String[] { g.alias };
+  }
+
+  @Override
+  public String chooseServerAlias(String keyType, Principal[] issuers,
+    Socket socket) {
+
+    Generation g = current;
+    if (g.delegate.chooseServerAlias(keyType, issuers, socket) == null)
+      return null;
+
+    return g.alias;
+  }
+
+  @Override
+  public String chooseEngineServerAlias(String keyType, Principal[] issuers,
+    SSLEngine engine) {
+
+    Generation g = current;
+    if (g.delegate.chooseEngineServerAlias(keyType, issuers, engine) == null)
+      return null;
+
+    return g.alias;
+  }
+
+  @Override
+  public String chooseClientAlias(String[] keyTypes, Principal[] issuers,
+    Socket socket) {
+
+    Generation g = current;
+    if (g.delegate.chooseClientAlias(keyTypes, issuers, socket) == null)
+      return null;
+
+    return g.alias;
+  }
+
+  @Override
+  public String chooseEngineClientAlias(String[] keyTypes,
+    Principal[] issuers, SSLEngine engine) {
+
+    Generation g = current;
+    if (g.delegate.chooseEngineClientAlias(keyTypes, issuers, engine) == null)
+      return null;
+
+    return g.alias;
+  }
+
+  @Override
+  public String[] getServerAliases(String keyType, Principal[] issuers) {
+
+    Generation g = current;
+    return aliases(g, g.delegate.getServerAliases(keyType, issuers));
+  }
+
+  @Override
+  public String[] getClientAliases(String keyType, Principal[] issuers) {
+
+    Generation g = current;
+    return aliases(g, g.delegate.getClientAliases(keyType, issuers));
+  }
+
+  @Override
+  public X509Certificate[] getCertificateChain(String alias) {
+
+    Generation g = lookup(alias);
+    if (g == null)
+      return null;
+
+    return g.credential.getCertificateChain();
+  }
+
+  @Override
+  public PrivateKey getPrivateKey(String alias) {
+
+    Generation g = lookup(alias);
+    if (g == null)
+      return null;
+
+    return g.credential.getKey();
+  }
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A sorted table of revoked certificate serial numbers, fronted by a Bloom
+ * filter, stored in a {@link ByteBuffer}.
+ *
+ * The table is meant to live off-heap in a memory-mapped file: checking that
+ * a serial number is not revoked reads a few words of the Bloom filter and,
+ * for the few false positives, binary searches the table, without creating
+ * objects.
+ *
+ * Each slot holds the serial number magnitude (up to 20 bytes, as mandated by
+ * RFC 5280) and the position and length of the corresponding entry in the
+ * encoded CRL.
+ */
+final class RevokedSerialIndex {
+
+  /**
+   * The maximum serial number length, in bytes
+   */
+  static final int MAX_SERIAL_LENGTH = 20;
+
+  private static final int SLOT_SIZE = 1 + MAX_SERIAL_LENGTH + 4 + 4;
+
+  private static final int BITS_PER_ENTRY = 10;
+
+  private static final int HASH_FUNCTIONS = 7;
+
+  private static final int HEADER_SIZE = 8;
+
+  /**
+   * A revoked certificate entry.
+   */
+  static final class Entry {
+
+    final byte[] serial;
+    final int offset;
+    final int length;
+
+    Entry(byte[] serial, int offset, int length) {
+
+      this.serial = serial;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private static final Comparator<Entry> SERIAL_ORDER = new Comparator<Entry>() {
+
+    public int compare(Entry e1, Entry e2) {
+
+      return compareSerials(e1.serial, e2.serial);
+    }
+  };
+
+  private final ByteBuffer buffer;
+  private final int count;
+  private final int bloomWords;
+  private final int tableStart;
+
+  RevokedSerialIndex(ByteBuffer buffer) {
+
+    this.buffer = buffer;
+    count = buffer.getInt(0);
+    bloomWords = buffer.getInt(4);
+    tableStart = HEADER_SIZE + bloomWords * 8;
+  }
+
+  /**
+   * @return the number of revoked serial numbers
+   */
+  int size() {
+
+    return count;
+  }
+
+  /**
+   * Looks up a serial number.
+   *
+   * @param serial
+   *          the serial number magnitude, as returned by
+   *          {@link #magnitude(BigInteger)}
+   * @return the slot of the serial number, or -1 if it is not revoked
+   */
+  int find(byte[] serial) {
+
+    if (count == 0 || !mightContain(serial))
+      return -1;
+
+    int low = 0;
+    int high = count - 1;
+
+    while (low <= high) {
+
+      int mid = (low + high) >>> 1;
+      int cmp = compareSlot(mid, serial);
+
+      if (cmp < 0)
+        low = mid + 1;
+      else if (cmp > 0)
+        high = mid - 1;
+      else
+        return mid;
+    }
+
+    return -1;
+  }
+
+  /**
+   * @return the position of the entry in the encoded CRL
+   */
+  int entryOffset(int slot) {
+
+    return buffer.getInt(tableStart + slot * SLOT_SIZE + 1 + MAX_SERIAL_LENGTH);
+  }
+
+  /**
+   * @return the length of the encoded entry
+   */
+  int entryLength(int slot) {
+
+    return buffer.getInt(tableStart + slot * SLOT_SIZE + 1 + MAX_SERIAL_LENGTH
+      + 4);
+  }
+
+  private boolean mightContain(byte[] serial) {
+
+    int h1 = hash(serial);
+    int h2 = mix(h1 ^ 0x9747b28c) | 1;
+    long bits = bloomWords * 64L;
+
+    for (int i = 0; i < HASH_FUNCTIONS; i++) {
+
+      long bit = ((h1 + i * h2) & 0xFFFFFFFFL) % bits;
+
+      if ((buffer.getLong(HEADER_SIZE + (int) (bit >>> 6) * 8) & (1L << (bit & 63))) == 0)
+        return false;
+    }
+
+    return true;
+  }
+
+  private int compareSlot(int slot, byte[] serial) {
+
+    int pos = tableStart + slot * SLOT_SIZE;
+    int length = buffer.get(pos) & 0xFF;
+
+    if (length != serial.length)
+      return length < serial.length ? -1 : 1;
+
+    for (int i = 0; i < length; i++) {
+
+      int a = buffer.get(pos + 1 + i) & 0xFF;
+      int b = serial[i] & 0xFF;
+
+      if (a != b)
+        return a < b ? -1 : 1;
+    }
+
+    return 0;
+  }
+
+  /**
+   * Returns the number of bytes needed to store an index.
+   *
+   * @param count
+   *          the number of entries
+   * @return the index size in bytes
+   */
+  static int sizeFor(int count) {
+
+    return HEADER_SIZE + bloomWordsFor(count) * 8 + count * SLOT_SIZE;
+  }
+
+  /**
+   * Writes an index, starting at the current position of the buffer.
+   *
+   * @param out
+   *          the buffer, which must have {@link #sizeFor(int)} bytes
+   *          remaining
+   * @param entries
+   *          the revoked entries. The list is sorted in place
+   */
+  static void write(ByteBuffer out, List<Entry> entries) {
+
+    Collections.sort(entries, SERIAL_ORDER);
+
+    int base = out.position();
+    int words = bloomWordsFor(entries.size());
+    long bits = words * 64L;
+    long[] bloom = new long[words];
+
+    for (Entry e : entries) {
+
+      int h1 = hash(e.serial);
+      int h2 = mix(h1 ^ 0x9747b28c) | 1;
+
+      for (int i = 0; i < HASH_FUNCTIONS; i++) {
+        long bit = ((h1 + i * h2) & 0xFFFFFFFFL) % bits;
+        bloom[(int) (bit >>> 6)] |= 1L << (bit & 63);
+      }
+    }
+
+    out.putInt(entries.size());
+    out.putInt(words);
+
+    for (long w : bloom)
+      out.putLong(w);
+
+    for (Entry e : entries) {
+
+      int pos = out.position();
+
+      out.put((byte) e.serial.length);
+      out.put(e.serial);
+      out.position(pos + 1 + MAX_SERIAL_LENGTH);
+      out.putInt(e.offset);
+      out.putInt(e.length);
+    }
+
+    out.position(base + sizeFor(entries.size()));
+  }
+
+  /**
+   * Returns the magnitude of a serial number, i.e. its big-endian encoding
+   * without leading zero bytes.
+   *
+   * @param serial
+   *          the serial number
+   * @return the magnitude, or <code>null</code> if the serial number is
+   *         negative or longer than {@link #MAX_SERIAL_LENGTH} bytes
+   */
+  static byte[] magnitude(BigInteger serial) {
+
+    if (serial.signum() < 0)
+      return null;
+
+    return magnitude(serial.toByteArray());
+  }
+
+  /**
+   * Returns the magnitude of a DER encoded INTEGER.
+   *
+   * @param content
+   *          the INTEGER content octets
+   * @return the magnitude, or <code>null</code> if the integer is negative or
+   *         longer than {@link #MAX_SERIAL_LENGTH} bytes
+   */
+  static byte[] magnitude(byte[] content) {
+
+    if (content.length == 0 || (content[0] & 0x80) != 0)
+      return null;
+
+    int start = 0;
+    while (start < content.length - 1 && content[start] == 0)
+      start++;
+
+    int length = content.length - start;
+
+    if (length > MAX_SERIAL_LENGTH)
+      return null;
+
+    byte[] m = new byte[length];
+    System.arraycopy(content, start, m, 0, length);
+    return m;
+  }
+
+  private static int compareSerials(byte[] a, byte[] b) {
+
+    if (a.length != b.length)
+      return a.length < b.length ? -1 : 1;
+
+    for (int i = 0; i < a.length; i++) {
+
+      int x = a[i] & 0xFF;
+      int y = b[i] & 0xFF;
+
+      if (x != y)
+        return x < y ? -1 : 1;
+    }
+
+    return 0;
+  }
+
+  private static int bloomWordsFor(int count) {
+
+    return Math.max(1, (count * BITS_PER_ENTRY + 63) / 64);
+  }
+
+  private static int hash(byte[] serial) {
+
+    int h = 0x811c9dc5;
+
+    for (byte b : serial) {
+      h ^= b & 0xFF;
+      h *= 0x01000193;
+    }
+
+    return mix(h);
+  }
+
+  private static int mix(int h) {
+
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
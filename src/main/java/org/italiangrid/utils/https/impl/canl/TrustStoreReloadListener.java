@@ -0,0 +1,31 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+/**
+ * A listener notified after trust anchors, CRLs or namespaces have been
+ * reloaded.
+ */
+public interface TrustStoreReloadListener {
+
+  /**
+   * Called after a trust store reload has completed.
+   *
+   * @param stats
+   *          describes what was reloaded
+   */
+  public void trustStoreReloaded(TrustStoreReloadStats stats);
+}
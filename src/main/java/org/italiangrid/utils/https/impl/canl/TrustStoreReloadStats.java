@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+/**
+ * Describes the outcome of a trust store reload.
+ */
+public class TrustStoreReloadStats {
+
+  private final boolean fullReload;
+  private final int anchorsLoaded;
+  private final int anchorsRemoved;
+  private final int crlsLoaded;
+  private final int crlsRemoved;
+  private final int namespacesLoaded;
+  private final int namespacesRemoved;
+  private final int restoredFromSnapshot;
+  private final long durationInMsec;
+  private final long timestamp;
+
+  public TrustStoreReloadStats(boolean fullReload, int anchorsLoaded,
+    int anchorsRemoved, int crlsLoaded, int crlsRemoved, int namespacesLoaded,
+    int namespacesRemoved, long durationInMsec) {
+
+    this(fullReload, anchorsLoaded, anchorsRemoved, crlsLoaded, crlsRemoved,
+      namespacesLoaded, namespacesRemoved, 0, durationInMsec);
+  }
+
+  public TrustStoreReloadStats(boolean fullReload, int anchorsLoaded,
+    int anchorsRemoved, int crlsLoaded, int crlsRemoved, int namespacesLoaded,
+    int namespacesRemoved, int restoredFromSnapshot, long durationInMsec) {
+
+    this.fullReload = fullReload;
+    this.anchorsLoaded = anchorsLoaded;
+    this.anchorsRemoved = anchorsRemoved;
+    this.crlsLoaded = crlsLoaded;
+    this.crlsRemoved = crlsRemoved;
+    this.namespacesLoaded = namespacesLoaded;
+    this.namespacesRemoved = namespacesRemoved;
+    this.restoredFromSnapshot = restoredFromSnapshot;
+    this.durationInMsec = durationInMsec;
+    this.timestamp = System.currentTimeMillis();
+  }
+
+  /**
+   * @return <code>true</code> if the whole trust store directory was loaded,
+   *         <code>false</code> if only changed files were reloaded
+   */
+  public boolean isFullReload() {
+
+    return fullReload;
+  }
+
+  /**
+   * @return the number of trust anchors loaded or reloaded
+   */
+  public int getAnchorsLoaded() {
+
+    return anchorsLoaded;
+  }
+
+  /**
+   * @return the number of trust anchors removed
+   */
+  public int getAnchorsRemoved() {
+
+    return anchorsRemoved;
+  }
+
+  /**
+   * @return the number of CRLs loaded or reloaded
+   */
+  public int getCrlsLoaded() {
+
+    return crlsLoaded;
+  }
+
+  /**
+   * @return the number of CRLs removed
+   */
+  public int getCrlsRemoved() {
+
+    return crlsRemoved;
+  }
+
+  /**
+   * @return the number of namespace files loaded or reloaded
+   */
+  public int getNamespacesLoaded() {
+
+    return namespacesLoaded;
+  }
+
+  /**
+   * @return the number of namespace files removed
+   */
+  public int getNamespacesRemoved() {
+
+    return namespacesRemoved;
+  }
+
+  /**
+   * @return the number of files restored from the trust store snapshot
+   *         instead of being parsed
+   */
+  public int getRestoredFromSnapshot() {
+
+    return restoredFromSnapshot;
+  }
+
+  /**
+   * @return how long the reload took, in milliseconds
+   */
+  public long getDurationInMsec() {
+
+    return durationInMsec;
+  }
+
+  /**
+   * @return when the reload completed, in milliseconds since the epoch
+   */
+  public long getTimestamp() {
+
+    return timestamp;
+  }
+
+  @Override
+  public String toString() {
+
+    return String.format("%s reload: anchors %d loaded, %d removed; "
+      + "CRLs %d loaded, %d removed; namespaces %d loaded, %d removed; "
+      + "%d restored from snapshot; took %d msec", fullReload ? "Full"
+      : "Incremental", anchorsLoaded, anchorsRemoved, crlsLoaded, crlsRemoved,
+      namespacesLoaded, namespacesRemoved, restoredFromSnapshot,
+      durationInMsec);
+  }
+}
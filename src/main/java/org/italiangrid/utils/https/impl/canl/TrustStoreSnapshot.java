@@ -0,0 +1,477 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.https.impl.canl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.emi.security.authn.x509.helpers.ns.NamespacePolicy;
+import eu.emi.security.authn.x509.helpers.ns.OpensslNamespacePolicyImpl;
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.CertificateUtils.Encoding;
+
+/**
+ * A binary snapshot of the parsed content of a trust store directory.
+ *
+ * The snapshot records, for each CA certificate, CRL and namespace file, the
+ * file modification time, size and SHA-256 digest together with the DER
+ * encoded certificate or CRL, or the namespace policies defined in the file.
+ * It is memory-mapped when loaded, and the entries whose modification time,
+ * size and digest still match the file on disk can be used without parsing the
+ * file again. CRLs are kept in their encoded form, backed by the mapped file.
+ *
+ * The snapshot ends with a SHA-256 digest of its content, and is ignored as a
+ * whole when the digest does not match, so a truncated or corrupted snapshot
+ * is never used. As the entries become trust anchors, the snapshot file must
+ * be protected like the trust store directory itself.
+ */
+final class TrustStoreSnapshot {
+
+  public static final Logger log = LoggerFactory
+    .getLogger(TrustStoreSnapshot.class);
+
+  private static final int MAGIC = 0x54535331;
+
+  private static final int VERSION = 2;
+
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+
+  private static final int DIGEST_LENGTH = 32;
+
+  static final byte CA_CERT = 0;
+  static final byte CRL = 1;
+  static final byte EUGRIDPMA_NAMESPACES = 2;
+  static final byte GLOBUS_NAMESPACES = 3;
+
+  /**
+   * The modification time, size and digest of a file when it was loaded.
+   */
+  static final class FileStamp {
+
+    final long lastModified;
+    final long length;
+    final byte[] digest;
+
+    FileStamp(long lastModified, long length, byte[] digest) {
+
+      this.lastModified = lastModified;
+      this.length = length;
+      this.digest = digest;
+    }
+
+    static FileStamp of(File f) {
+
+      byte[] digest;
+
+      try {
+        digest = digest(f);
+      } catch (IOException e) {
+        // The file will not match the stamp and will be parsed again
+        digest = new byte[0];
+      }
+
+      return new FileStamp(f.lastModified(), f.length(), digest);
+    }
+
+    boolean matches(File f) {
+
+      if (f.lastModified() != lastModified || f.length() != length)
+        return false;
+
+      try {
+        return MessageDigest.isEqual(digest, digest(f));
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    private static byte[] digest(File f) throws IOException {
+
+      MessageDigest md = newDigest();
+      InputStream is = new FileInputStream(f);
+
+      try {
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = is.read(buf)) > 0)
+          md.update(buf, 0, n);
+      } finally {
+        is.close();
+      }
+
+      return md.digest();
+    }
+  }
+
+  /**
+   * A snapshot entry, describing the content of a single file.
+   */
+  static final class Entry {
+
+    final byte type;
+    final String name;
+    final FileStamp stamp;
+
+    X509Certificate certificate;
+    IncrementalCRLStore.CRLEntry crl;
+    List<NamespacePolicy> policies;
+
+    Entry(byte type, String name, FileStamp stamp) {
+
+      this.type = type;
+      this.name = name;
+      this.stamp = stamp;
+    }
+  }
+
+  private final File file;
+
+  TrustStoreSnapshot(File file) {
+
+    this.file = file;
+  }
+
+  File getFile() {
+
+    return file;
+  }
+
+  /**
+   * Loads the snapshot.
+   *
+   * @param trustStoreDirectory
+   *          the trust store directory the snapshot must refer to
+   * @return the snapshot entries, indexed by file name. An empty map is
+   *         returned if the snapshot does not exist, refers to another
+   *         directory or cannot be read
+   */
+  Map<String, Entry> load(String trustStoreDirectory) {
+
+    if (!file.isFile())
+      return Collections.emptyMap();
+
+    try {
+
+      DataInputStream in;
+      MappedByteBuffer buffer;
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+      try {
+        FileChannel channel = raf.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+        raf.close();
+      }
+
+      in = new DataInputStream(new ByteBufferInputStream(buffer));
+
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        log.warn("Ignoring trust store snapshot {}: unknown format.", file);
+        return Collections.emptyMap();
+      }
+
+      if (!checkDigest(buffer)) {
+        log.warn("Ignoring trust store snapshot {}: digest mismatch.", file);
+        return Collections.emptyMap();
+      }
+
+      if (!trustStoreDirectory.equals(in.readUTF())) {
+        log.info("Ignoring trust store snapshot {}: it refers to another "
+          + "trust store directory.", file);
+        return Collections.emptyMap();
+      }
+
+      int count = in.readInt();
+      Map<String, Entry> entries = new HashMap<String, Entry>(count * 2);
+
+      for (int i = 0; i < count; i++) {
+
+        byte type = in.readByte();
+        String name = in.readUTF();
+        FileStamp stamp = new FileStamp(in.readLong(), in.readLong(),
+          readBytes(in));
+        Entry e = new Entry(type, name, stamp);
+
+        switch (type) {
+
+        case CA_CERT:
+          e.certificate = CertificateUtils.loadCertificate(
+            new ByteBufferInputStream(slice(buffer, in.readInt())),
+            Encoding.DER);
+          break;
+
+        case CRL:
+          byte[] issuer = readBytes(in);
+          e.crl = new IncrementalCRLStore.CRLEntry(new X500Principal(issuer),
+            slice(buffer, in.readInt()), null);
+          break;
+
+        case EUGRIDPMA_NAMESPACES:
+        case GLOBUS_NAMESPACES:
+          e.policies = readPolicies(in);
+          break;
+
+        default:
+          throw new IOException("Unknown entry type: " + type);
+        }
+
+        entries.put(name, e);
+      }
+
+      return entries;
+
+    } catch (Exception e) {
+
+      log.warn("Ignoring trust store snapshot {}: {}", file, e.getMessage());
+      return Collections.emptyMap();
+    }
+  }
+
+  /**
+   * Writes the snapshot. The snapshot is written to a new temporary file in
+   * the same directory which then replaces the existing snapshot, so that a
+   * snapshot currently mapped is left untouched and concurrent writers do not
+   * overwrite each other's temporary files.
+   *
+   * @param trustStoreDirectory
+   *          the trust store directory the snapshot refers to
+   * @param entries
+   *          the snapshot entries
+   * @throws IOException
+   *           if the snapshot cannot be written
+   * @throws GeneralSecurityException
+   *           if a certificate or CRL cannot be encoded
+   */
+  void write(String trustStoreDirectory, List<Entry> entries)
+    throws IOException, GeneralSecurityException {
+
+    File tmp = File.createTempFile(file.getName(), ".tmp", file
+      .getAbsoluteFile().getParentFile());
+
+    try {
+
+      writeTo(tmp, trustStoreDirectory, entries);
+
+      if (!tmp.renameTo(file))
+        throw new IOException("Cannot replace " + file);
+
+    } finally {
+      tmp.delete();
+    }
+  }
+
+  private static void writeTo(File f, String trustStoreDirectory,
+    List<Entry> entries) throws IOException, GeneralSecurityException {
+
+    FileOutputStream fos = new FileOutputStream(f);
+    DigestOutputStream dos = new DigestOutputStream(new BufferedOutputStream(
+      fos), newDigest());
+    DataOutputStream out = new DataOutputStream(dos);
+
+    try {
+
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(trustStoreDirectory);
+      out.writeInt(entries.size());
+
+      for (Entry e : entries) {
+
+        out.writeByte(e.type);
+        out.writeUTF(e.name);
+        out.writeLong(e.stamp.lastModified);
+        out.writeLong(e.stamp.length);
+        writeBytes(out, e.stamp.digest);
+
+        switch (e.type) {
+
+        case CA_CERT:
+          writeBytes(out, e.certificate.getEncoded());
+          break;
+
+        case CRL:
+          writeBytes(out, e.crl.getIssuer().getEncoded());
+          writeBytes(out, e.crl.getEncoded());
+          break;
+
+        default:
+          writePolicies(out, e.policies);
+        }
+      }
+
+      out.flush();
+      dos.on(false);
+      out.write(dos.getMessageDigest().digest());
+
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Checks the digest at the end of a snapshot against its content.
+   *
+   * @param buffer
+   *          the snapshot content
+   * @return <code>true</code> if the digest matches
+   */
+  private static boolean checkDigest(ByteBuffer buffer) {
+
+    int length = buffer.limit() - DIGEST_LENGTH;
+
+    if (length < 0)
+      return false;
+
+    ByteBuffer content = buffer.duplicate();
+    content.position(0);
+    content.limit(length);
+
+    ByteBuffer expected = buffer.duplicate();
+    expected.position(length);
+
+    MessageDigest md = newDigest();
+    md.update(content);
+
+    return ByteBuffer.wrap(md.digest()).equals(expected);
+  }
+
+  static MessageDigest newDigest() {
+
+    try {
+      return MessageDigest.getInstance(DIGEST_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Checks whether the policies can be stored in a snapshot.
+   *
+   * @param policies
+   *          the namespace policies
+   * @return <code>true</code> if the policies can be stored
+   */
+  static boolean canStore(List<NamespacePolicy> policies) {
+
+    for (NamespacePolicy p : policies)
+      if (!(p instanceof OpensslNamespacePolicyImpl))
+        return false;
+
+    return true;
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int length) {
+
+    ByteBuffer b = buffer.duplicate();
+    b.limit(b.position() + length);
+    buffer.position(buffer.position() + length);
+    return b.slice();
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes)
+    throws IOException {
+
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static void writePolicies(DataOutputStream out,
+    List<NamespacePolicy> policies) throws IOException {
+
+    out.writeInt(policies.size());
+
+    for (NamespacePolicy p : policies) {
+
+      OpensslNamespacePolicyImpl policy = (OpensslNamespacePolicyImpl) p;
+
+      writeString(out, policy.getIssuer());
+      writeString(out, policy.getSuject());
+      writeString(out, policy.getDefinedFor());
+      out.writeBoolean(policy.isPermit());
+      writeString(out, policy.getIdentification());
+    }
+  }
+
+  private static List<NamespacePolicy> readPolicies(DataInputStream in)
+    throws IOException {
+
+    int count = in.readInt();
+    List<NamespacePolicy> policies = new ArrayList<NamespacePolicy>(count);
+
+    for (int i = 0; i < count; i++) {
+
+      String issuer = readString(in);
+      String subject = readString(in);
+      String definedFor = readString(in);
+      boolean permit = in.readBoolean();
+      String identification = readString(in);
+
+      policies.add(new OpensslNamespacePolicyImpl(issuer, subject, definedFor,
+        permit, identification));
+    }
+
+    return policies;
+  }
+
+  private static void writeString(DataOutputStream out, String s)
+    throws IOException {
+
+    out.writeBoolean(s != null);
+
+    if (s != null)
+      out.writeUTF(s);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+
+    if (in.readBoolean())
+      return in.readUTF();
+
+    return null;
+  }
+}
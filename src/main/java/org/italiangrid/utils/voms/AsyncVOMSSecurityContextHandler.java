@@ -0,0 +1,404 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.utils.concurrent.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Jetty Handler that initializes the security context as a
+ * {@link VOMSSecurityContextHandler} does, but builds new contexts, and
+ * validates the VOMS attributes, in a dedicated bounded thread pool instead of
+ * the Jetty request threads.
+ * 
+ * Requests for which no security context is kept are suspended until their
+ * context is ready, and are then passed on to the wrapped handler. Requests
+ * presenting the same certificate chain while a context for it is being built
+ * wait for that context instead of starting another validation. When the
+ * validation pool queue is full, requests needing a new context are refused
+ * with a 503 error, so that request threads are never tied up in validation.
+ * Requests still waiting when the handler is stopped are refused as well.
+ * 
+ * Contexts are kept between requests as configured on the
+ * {@link VOMSSecurityContextHandler} passed at construction time.
+ */
+public class AsyncVOMSSecurityContextHandler extends HandlerWrapper {
+
+  public static final Logger log = LoggerFactory
+    .getLogger(AsyncVOMSSecurityContextHandler.class);
+
+  /**
+   * Default number of validation threads.
+   */
+  public static final int DEFAULT_VALIDATION_THREADS = 4;
+
+  /**
+   * Default maximum number of validations waiting for a thread.
+   */
+  public static final int DEFAULT_MAX_QUEUED_VALIDATIONS = 500;
+
+  /**
+   * Default time a request waits for its security context.
+   */
+  public static final long DEFAULT_TIMEOUT_IN_MSECS = TimeUnit.SECONDS
+    .toMillis(30);
+
+  private static final String VALIDATION_KEY = AsyncVOMSSecurityContextHandler.class
+    .getName() + ".validation";
+
+  /**
+   * A security context being built, and the requests waiting for it.
+   */
+  private final class Validation implements Runnable {
+
+    final List<X509Certificate> key;
+
+    /**
+     * The suspended requests. Guarded by this.
+     */
+    final List<Continuation> waiters = new ArrayList<Continuation>();
+
+    volatile VOMSSecurityContext context;
+
+    /**
+     * Why the context could not be built, if it was refused before being
+     * built. Guarded by this.
+     */
+    String failure;
+
+    /**
+     * Guarded by this.
+     */
+    boolean done = false;
+
+    Validation(List<X509Certificate> key) {
+
+      this.key = key;
+    }
+
+    public void run() {
+
+      try {
+
+        VOMSSecurityContext sc = contexts.newSecurityContext(key
+          .toArray(new X509Certificate[key.size()]));
+
+        // Attributes are validated lazily, do it here
+        if (sc != null)
+          sc.getVOMSAttributes();
+
+        context = sc;
+
+      } catch (RuntimeException e) {
+
+        log.error(e.getMessage(), e);
+
+      } finally {
+
+        complete(null);
+      }
+    }
+
+    /**
+     * Completes the validation without a context, resuming the waiting
+     * requests so that they are refused.
+     * 
+     * @param reason
+     *          why the context could not be built
+     */
+    void fail(String reason) {
+
+      complete(reason);
+    }
+
+    private void complete(String reason) {
+
+      inFlight.remove(key, this);
+
+      List<Continuation> resumed;
+
+      synchronized (this) {
+
+        if (done)
+          return;
+
+        failure = reason;
+        done = true;
+        resumed = new ArrayList<Continuation>(waiters);
+        waiters.clear();
+      }
+
+      for (Continuation c : resumed)
+        resume(c);
+    }
+
+    synchronized String getFailure() {
+
+      return failure;
+    }
+
+    private void resume(Continuation c) {
+
+      try {
+
+        c.setAttribute(VALIDATION_KEY, this);
+        c.resume();
+
+      } catch (IllegalStateException e) {
+        // The request has expired in the meantime
+      }
+    }
+
+    /**
+     * Suspends a request until the context is ready.
+     * 
+     * @return <code>false</code> if the context was already available, and
+     *         the request was not suspended
+     */
+    boolean await(Continuation c) {
+
+      synchronized (this) {
+
+        if (done)
+          return false;
+
+        c.suspend();
+        waiters.add(c);
+        return true;
+      }
+    }
+  }
+
+  private final VOMSSecurityContextHandler contexts;
+
+  private final int validationThreads;
+
+  private final int maxQueuedValidations;
+
+  private volatile long timeoutInMsec = DEFAULT_TIMEOUT_IN_MSECS;
+
+  private final ConcurrentMap<List<X509Certificate>, Validation> inFlight = new ConcurrentHashMap<List<X509Certificate>, Validation>();
+
+  private volatile ThreadPoolExecutor executor;
+
+  /**
+   * Constructor.
+   * 
+   * @param contexts
+   *          the handler which builds and keeps the security contexts
+   */
+  public AsyncVOMSSecurityContextHandler(VOMSSecurityContextHandler contexts) {
+
+    this(contexts, DEFAULT_VALIDATION_THREADS, DEFAULT_MAX_QUEUED_VALIDATIONS);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param contexts
+   *          the handler which builds and keeps the security contexts
+   * @param validationThreads
+   *          the number of validation threads
+   * @param maxQueuedValidations
+   *          the maximum number of validations waiting for a thread
+   */
+  public AsyncVOMSSecurityContextHandler(VOMSSecurityContextHandler contexts,
+    int validationThreads, int maxQueuedValidations) {
+
+    if (validationThreads <= 0)
+      throw new IllegalArgumentException(
+        "The number of validation threads must be a positive number");
+
+    if (maxQueuedValidations <= 0)
+      throw new IllegalArgumentException(
+        "The validation queue size must be a positive number");
+
+    this.contexts = contexts;
+    this.validationThreads = validationThreads;
+    this.maxQueuedValidations = maxQueuedValidations;
+  }
+
+  public long getTimeoutInMsec() {
+
+    return timeoutInMsec;
+  }
+
+  /**
+   * Sets how long a request waits for its security context before being
+   * rejected with a 503 error.
+   * 
+   * @param timeoutInMsec
+   *          the timeout, in milliseconds
+   */
+  public void setTimeoutInMsec(long timeoutInMsec) {
+
+    this.timeoutInMsec = timeoutInMsec;
+  }
+
+  /**
+   * @return the number of security contexts being built
+   */
+  public int getPendingValidations() {
+
+    return inFlight.size();
+  }
+
+  @Override
+  protected void doStart() throws Exception {
+
+    executor = new ThreadPoolExecutor(validationThreads, validationThreads,
+      60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(
+        maxQueuedValidations), new NamedThreadFactory("voms-validation"));
+
+    super.doStart();
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+
+    super.doStop();
+
+    // Validations still queued never run: refuse the requests waiting for
+    // them, and for those interrupted, rather than letting them time out
+    for (Runnable r : executor.shutdownNow())
+      ((Validation) r).fail("The server is shutting down");
+
+    for (Validation v : inFlight.values())
+      v.fail("The server is shutting down");
+  }
+
+  @Override
+  public void handle(String target, Request baseRequest,
+    HttpServletRequest request, HttpServletResponse response)
+    throws IOException, ServletException {
+
+    VOMSSecurityContext sc;
+    Validation validation = (Validation) request.getAttribute(VALIDATION_KEY);
+
+    if (validation != null) {
+
+      request.removeAttribute(VALIDATION_KEY);
+      sc = validation.context;
+      contexts.storeSecurityContext(baseRequest, request, sc);
+
+    } else {
+
+      Continuation continuation = ContinuationSupport.getContinuation(request);
+
+      if (continuation.isExpired()) {
+        log.warn("Timed out waiting for the security context of '{}'.",
+          request.getRemoteAddr());
+        baseRequest.setHandled(true);
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return;
+      }
+
+      sc = contexts.lookupSecurityContext(baseRequest, request);
+
+      if (sc == null) {
+
+        X509Certificate[] certChain = VOMSSecurityContextHandler
+          .getClientCertChain(request);
+
+        if (certChain == null) {
+
+          sc = contexts.newSecurityContext(certChain);
+
+        } else {
+
+          validation = validate(certChain);
+
+          continuation.setTimeout(timeoutInMsec);
+
+          if (validation.await(continuation))
+            return;
+
+          sc = validation.context;
+        }
+
+        contexts.storeSecurityContext(baseRequest, request, sc);
+      }
+    }
+
+    if (sc == null) {
+
+      String failure = (validation == null) ? null : validation.getFailure();
+
+      baseRequest.setHandled(true);
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+        failure == null ? "The security context could not be initialized"
+          : failure);
+      return;
+    }
+
+    request.setAttribute(VOMSSecurityContextHandler.CONTEXT_KEY, sc);
+    contexts.logConnection(request, sc);
+
+    super.handle(target, baseRequest, request, response);
+  }
+
+  /**
+   * Returns the validation in flight for a chain, starting it if needed.
+   */
+  private Validation validate(X509Certificate[] certChain) {
+
+    List<X509Certificate> key = Arrays.asList(certChain.clone());
+    Validation validation = inFlight.get(key);
+
+    if (validation != null)
+      return validation;
+
+    Validation newValidation = new Validation(key);
+    validation = inFlight.putIfAbsent(key, newValidation);
+
+    if (validation != null)
+      return validation;
+
+    try {
+
+      executor.execute(newValidation);
+
+    } catch (RejectedExecutionException e) {
+
+      log.warn("Too many pending validations, refusing the request of '{}'.",
+        certChain[0].getSubjectX500Principal().getName());
+      newValidation.fail("Too many pending validations");
+    }
+
+    return newValidation;
+  }
+}
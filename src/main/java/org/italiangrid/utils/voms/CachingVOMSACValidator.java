@@ -0,0 +1,387 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.x509.AttributeCertificate;
+import org.italiangrid.voms.VOMSAttribute;
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.ac.VOMSValidationResult;
+import org.italiangrid.voms.ac.ValidationResultListener;
+import org.italiangrid.voms.store.LSCInfo;
+import org.italiangrid.voms.store.VOMSTrustStoreStatusListener;
+
+import eu.emi.security.authn.x509.proxy.ProxyUtils;
+
+/**
+ * A VOMS validator that caches the results of another validator, so that
+ * attribute certificates presented again, e.g. by clients that open a new HTTP
+ * session for each request, are not validated again.
+ *
+ * Results are indexed by a fingerprint of the end-entity certificate and of
+ * the attribute certificates found in the chain, so they are shared by all the
+ * proxies which carry the same attribute certificates. A cached result expires
+ * at the earliest notAfter time of the attribute certificates. Only results
+ * where every attribute certificate is valid are cached, and the validation
+ * result listener is not notified for results served from the cache.
+ *
+ * This validator is a {@link VOMSTrustStoreStatusListener}: when set as the
+ * status listener of the VOMS trust store, all cached results are dropped
+ * whenever the store loads an AA certificate or LSC file. When registered as
+ * an update listener of a {@link WatchedVOMSTrustStore}, only the results for
+ * the VOs whose trust information changed are dropped.
+ */
+public class CachingVOMSACValidator implements VOMSACValidator,
+  VOMSTrustStoreStatusListener, WatchedVOMSTrustStore.UpdateListener {
+
+  private static final String FINGERPRINT_ALGORITHM = "SHA-256";
+
+  /**
+   * A fingerprint of an end-entity certificate and its attribute certificates
+   */
+  private static final class ACKey {
+
+    private final byte[] digest;
+    private final int hash;
+
+    ACKey(byte[] digest) {
+
+      this.digest = digest;
+      this.hash = Arrays.hashCode(digest);
+    }
+
+    @Override
+    public int hashCode() {
+
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+      if (this == obj)
+        return true;
+      if (!(obj instanceof ACKey))
+        return false;
+      return Arrays.equals(digest, ((ACKey) obj).digest);
+    }
+  }
+
+  private static final class CachedResults {
+
+    final List<VOMSValidationResult> results;
+    final long expiresAt;
+
+    CachedResults(List<VOMSValidationResult> results, long expiresAt) {
+
+      this.results = results;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final VOMSACValidator delegate;
+
+  /**
+   * The cached results. Guarded by itself.
+   */
+  private final Map<ACKey, CachedResults> results;
+
+  /**
+   * Incremented each time the cache is cleared, so that results computed
+   * before a reload are not cached after it.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param delegate
+   *          the validator whose results are cached
+   * @param maxEntries
+   *          the maximum number of cached results
+   */
+  public CachingVOMSACValidator(VOMSACValidator delegate, final int maxEntries) {
+
+    if (maxEntries <= 0)
+      throw new IllegalArgumentException(
+        "Cache size must be a positive number");
+
+    this.delegate = delegate;
+
+    results = new LinkedHashMap<ACKey, CachedResults>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+        Map.Entry<ACKey, CachedResults> eldest) {
+
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  public List<VOMSValidationResult> validateWithResult(
+    X509Certificate[] certChain) {
+
+    if (certChain == null || certChain.length == 0)
+      return delegate.validateWithResult(certChain);
+
+    List<VOMSAttribute> attributes = delegate.parse(certChain);
+
+    if (attributes.isEmpty())
+      return delegate.validateWithResult(certChain);
+
+    ACKey key = fingerprint(ProxyUtils.getEndUserCertificate(certChain),
+      attributes);
+    long now = System.currentTimeMillis();
+
+    if (key != null) {
+
+      synchronized (results) {
+
+        CachedResults cached = results.get(key);
+
+        if (cached != null) {
+
+          if (now < cached.expiresAt) {
+            hits.incrementAndGet();
+            return cached.results;
+          }
+
+          results.remove(key);
+        }
+      }
+    }
+
+    misses.incrementAndGet();
+
+    long currentGeneration = generation.get();
+    List<VOMSValidationResult> validationResults = delegate
+      .validateWithResult(certChain);
+
+    if (key != null && allValid(validationResults)) {
+
+      synchronized (results) {
+
+        if (generation.get() == currentGeneration)
+          results.put(key, new CachedResults(validationResults,
+            earliestNotAfter(attributes)));
+      }
+    }
+
+    return validationResults;
+  }
+
+  public List<VOMSAttribute> validate(X509Certificate[] certChain) {
+
+    List<VOMSAttribute> attributes = new ArrayList<VOMSAttribute>();
+
+    for (VOMSValidationResult r : validateWithResult(certChain)) {
+      if (r.isValid())
+        attributes.add(r.getAttributes());
+    }
+
+    return attributes;
+  }
+
+  private static boolean allValid(List<VOMSValidationResult> validationResults) {
+
+    if (validationResults.isEmpty())
+      return false;
+
+    for (VOMSValidationResult r : validationResults) {
+      if (!r.isValid())
+        return false;
+    }
+
+    return true;
+  }
+
+  private static ACKey fingerprint(X509Certificate endEntityCertificate,
+    List<VOMSAttribute> attributes) {
+
+    if (endEntityCertificate == null)
+      return null;
+
+    try {
+
+      MessageDigest md = MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+
+      update(md, endEntityCertificate.getEncoded());
+
+      for (VOMSAttribute a : attributes)
+        update(md, a.getVOMSAC().getEncoded());
+
+      return new ACKey(md.digest());
+
+    } catch (CertificateEncodingException e) {
+      return null;
+    } catch (IOException e) {
+      return null;
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    }
+  }
+
+  private static void update(MessageDigest md, byte[] encoded) {
+
+    md.update((byte) (encoded.length >>> 24));
+    md.update((byte) (encoded.length >>> 16));
+    md.update((byte) (encoded.length >>> 8));
+    md.update((byte) encoded.length);
+    md.update(encoded);
+  }
+
+  private static long earliestNotAfter(List<VOMSAttribute> attributes) {
+
+    long notAfter = Long.MAX_VALUE;
+
+    for (VOMSAttribute a : attributes)
+      notAfter = Math.min(notAfter, a.getNotAfter().getTime());
+
+    return notAfter;
+  }
+
+  /**
+   * Drops all the cached results.
+   */
+  public void clear() {
+
+    synchronized (results) {
+      generation.incrementAndGet();
+      results.clear();
+    }
+  }
+
+  /**
+   * Drops the cached results which include attributes for the given VO.
+   *
+   * @param voName
+   *          the VO name
+   */
+  public void clear(String voName) {
+
+    synchronized (results) {
+
+      generation.incrementAndGet();
+
+      Iterator<CachedResults> i = results.values().iterator();
+
+      while (i.hasNext()) {
+        for (VOMSValidationResult r : i.next().results) {
+          if (voName.equals(r.getAttributes().getVO())) {
+            i.remove();
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of cached results
+   */
+  public int size() {
+
+    synchronized (results) {
+      return results.size();
+    }
+  }
+
+  /**
+   * @return the number of validations answered from the cache
+   */
+  public long getHitCount() {
+
+    return hits.get();
+  }
+
+  /**
+   * @return the number of validations passed to the wrapped validator
+   */
+  public long getMissCount() {
+
+    return misses.get();
+  }
+
+  public List<VOMSAttribute> parse(X509Certificate[] certChain) {
+
+    return delegate.parse(certChain);
+  }
+
+  public List<AttributeCertificate> validateACs(List<AttributeCertificate> acs) {
+
+    return delegate.validateACs(acs);
+  }
+
+  public void setValidationResultListener(ValidationResultListener listener) {
+
+    delegate.setValidationResultListener(listener);
+  }
+
+  public void shutdown() {
+
+    delegate.shutdown();
+  }
+
+  public void notifyCertficateLookupEvent(String dir) {
+
+  }
+
+  public void notifyLSCLookupEvent(String dir) {
+
+  }
+
+  public void notifyCertificateLoadEvent(X509Certificate cert, File f) {
+
+    clear();
+  }
+
+  public void notifyLSCLoadEvent(LSCInfo lsc, File f) {
+
+    clear();
+  }
+
+  public void trustInformationUpdated(Set<String> voNames) {
+
+    if (voNames == null) {
+      clear();
+      return;
+    }
+
+    for (String voName : voNames)
+      clear(voName);
+  }
+}
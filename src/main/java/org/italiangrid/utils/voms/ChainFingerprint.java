@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+/**
+ * A SHA-256 fingerprint of a certificate chain, used as a map key for state
+ * kept per client across security contexts.
+ */
+final class ChainFingerprint {
+
+  private static final String FINGERPRINT_ALGORITHM = "SHA-256";
+
+  private final byte[] digest;
+  private final int hash;
+
+  private ChainFingerprint(byte[] digest) {
+
+    this.digest = digest;
+    this.hash = Arrays.hashCode(digest);
+  }
+
+  /**
+   * Computes the fingerprint of a chain.
+   * 
+   * @param chain
+   *          the certificate chain
+   * @return the fingerprint, or <code>null</code> if the chain cannot be
+   *         encoded
+   */
+  static ChainFingerprint of(X509Certificate[] chain) {
+
+    try {
+
+      MessageDigest md = MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+
+      for (X509Certificate c : chain) {
+        byte[] encoded = c.getEncoded();
+        md.update((byte) (encoded.length >>> 24));
+        md.update((byte) (encoded.length >>> 16));
+        md.update((byte) (encoded.length >>> 8));
+        md.update((byte) encoded.length);
+        md.update(encoded);
+      }
+
+      return new ChainFingerprint(md.digest());
+
+    } catch (CertificateEncodingException e) {
+      return null;
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public int hashCode() {
+
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+
+    if (this == obj)
+      return true;
+    if (!(obj instanceof ChainFingerprint))
+      return false;
+    return Arrays.equals(digest, ((ChainFingerprint) obj).digest);
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.italiangrid.voms.VOMSAttribute;
+
+/**
+ * An index of the FQANs found in a set of VOMS attributes, answering
+ * membership queries in constant time.
+ * 
+ * FQANs are normalized by dropping the <code>/Role=NULL</code> and
+ * <code>/Capability=NULL</code> components, so that
+ * <code>/atlas/Role=NULL/Capability=NULL</code> and <code>/atlas</code> are
+ * the same FQAN.
+ */
+class FQANIndex {
+
+  static final String ROLE_PREFIX = "/Role=";
+
+  private static final String NULL_ROLE = "/Role=NULL";
+
+  private static final String CAPABILITY_PREFIX = "/Capability=";
+
+  static final FQANIndex EMPTY = new FQANIndex(
+    Collections.<VOMSAttribute> emptyList());
+
+  private final Set<String> fqans = new HashSet<String>();
+
+  private final Set<String> groups = new HashSet<String>();
+
+  private final ConcurrentMap<FQANPattern, Boolean> patternMatches = new ConcurrentHashMap<FQANPattern, Boolean>();
+
+  FQANIndex(List<VOMSAttribute> attributes) {
+
+    for (VOMSAttribute a : attributes) {
+
+      for (String fqan : a.getFQANs()) {
+
+        String normalized = normalize(fqan);
+        fqans.add(normalized);
+        groups.add(getGroup(normalized));
+      }
+    }
+  }
+
+  /**
+   * Normalizes a FQAN, dropping its capability and null role.
+   */
+  static String normalize(String fqan) {
+
+    int capability = fqan.indexOf(CAPABILITY_PREFIX);
+
+    if (capability >= 0)
+      fqan = fqan.substring(0, capability);
+
+    if (fqan.endsWith(NULL_ROLE))
+      fqan = fqan.substring(0, fqan.length() - NULL_ROLE.length());
+
+    return fqan;
+  }
+
+  private static String getGroup(String normalizedFqan) {
+
+    int role = normalizedFqan.indexOf(ROLE_PREFIX);
+    return (role < 0) ? normalizedFqan : normalizedFqan.substring(0, role);
+  }
+
+  boolean hasFqan(String fqan) {
+
+    return fqans.contains(normalize(fqan));
+  }
+
+  boolean hasGroup(String group) {
+
+    return groups.contains(group);
+  }
+
+  boolean hasRole(String group, String role) {
+
+    return fqans.contains(group + ROLE_PREFIX + role);
+  }
+
+  boolean hasFqan(FQANPattern pattern) {
+
+    if (groups.isEmpty())
+      return false;
+
+    Boolean matches = patternMatches.get(pattern);
+
+    if (matches == null) {
+      matches = match(pattern);
+      patternMatches.putIfAbsent(pattern, matches);
+    }
+
+    return matches;
+  }
+
+  private boolean match(FQANPattern pattern) {
+
+    if (pattern.matchesRoles()) {
+
+      for (String fqan : fqans) {
+        if (fqan.contains(ROLE_PREFIX) && pattern.matches(fqan))
+          return true;
+      }
+
+      return false;
+    }
+
+    for (String group : groups) {
+      if (pattern.matches(group))
+        return true;
+    }
+
+    return false;
+  }
+}
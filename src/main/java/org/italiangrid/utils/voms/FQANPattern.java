@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.util.regex.Pattern;
+
+/**
+ * A compiled FQAN pattern, to be matched against the VOMS attributes of a
+ * security context with {@link VOMSMembership#hasFqan(FQANPattern)}.
+ * 
+ * A pattern is a FQAN where <code>*</code> matches any sequence of characters.
+ * A pattern without a role, e.g. <code>/atlas/*</code>, matches group
+ * membership whatever the role, while a pattern with a role, e.g.
+ * <code>/atlas/Role=*</code>, only matches FQANs with a role. Patterns are
+ * meant to be compiled once, e.g. when the authorization policy is loaded, and
+ * contexts remember the outcome of matching each pattern.
+ */
+public final class FQANPattern {
+
+  private final String pattern;
+
+  private final Pattern regex;
+
+  private final boolean matchesRoles;
+
+  private FQANPattern(String pattern) {
+
+    this.pattern = FQANIndex.normalize(pattern);
+    this.matchesRoles = this.pattern.contains(FQANIndex.ROLE_PREFIX);
+
+    StringBuilder sb = new StringBuilder();
+    int start = 0;
+    int wildcard;
+
+    while ((wildcard = this.pattern.indexOf('*', start)) >= 0) {
+      sb.append(Pattern.quote(this.pattern.substring(start, wildcard)));
+      sb.append(".*");
+      start = wildcard + 1;
+    }
+
+    sb.append(Pattern.quote(this.pattern.substring(start)));
+    this.regex = Pattern.compile(sb.toString());
+  }
+
+  /**
+   * Compiles a FQAN pattern.
+   * 
+   * @param pattern
+   *          the pattern
+   * @return the compiled pattern
+   */
+  public static FQANPattern compile(String pattern) {
+
+    if (pattern == null || !pattern.startsWith("/"))
+      throw new IllegalArgumentException("Invalid FQAN pattern: " + pattern);
+
+    return new FQANPattern(pattern);
+  }
+
+  /**
+   * @return <code>true</code> if this pattern matches FQANs with a role,
+   *         <code>false</code> if it matches groups
+   */
+  boolean matchesRoles() {
+
+    return matchesRoles;
+  }
+
+  /**
+   * @param fqan
+   *          a normalized FQAN or group name
+   * @return whether this pattern matches it
+   */
+  boolean matches(String fqan) {
+
+    return regex.matcher(fqan).matches();
+  }
+
+  @Override
+  public int hashCode() {
+
+    return pattern.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+
+    if (this == obj)
+      return true;
+    if (!(obj instanceof FQANPattern))
+      return false;
+    return pattern.equals(((FQANPattern) obj).pattern);
+  }
+
+  @Override
+  public String toString() {
+
+    return pattern;
+  }
+}
@@ -0,0 +1,526 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandlerContainer;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.voms.VOMSAttribute;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Jetty Handler that limits the number of requests handled at the same time
+ * by the wrapped handler, and shares the available slots fairly among classes
+ * of clients.
+ * 
+ * Requests are classified by the first validated VOMS FQAN of their security
+ * context, or by the client name when no valid VOMS attributes were presented.
+ * As classifying must not validate attribute certificates on the request
+ * thread, this handler must be wrapped by an
+ * {@link AsyncVOMSSecurityContextHandler}, which validates the attributes of
+ * new contexts before passing requests on; starting fails otherwise. Subclasses
+ * overriding {@link #classify(HttpServletRequest)} may be placed anywhere.
+ * 
+ * When all slots are taken, requests are suspended in a queue per class, and
+ * the queues are served by weighted fair queuing (stride scheduling): a class
+ * with weight 2 gets twice the slots of a class with weight 1 while both have
+ * requests waiting. Requests finding their class queue full, or waiting longer
+ * than the timeout, are rejected with a 503 error.
+ */
+public class FairQueuingHandler extends HandlerWrapper {
+
+  public static final Logger log = LoggerFactory
+    .getLogger(FairQueuingHandler.class);
+
+  /**
+   * The class of requests without a client certificate.
+   */
+  public static final String ANONYMOUS_CLASS = "anonymous";
+
+  /**
+   * Default time a request waits for a slot.
+   */
+  public static final long DEFAULT_TIMEOUT_IN_MSECS = TimeUnit.SECONDS
+    .toMillis(30);
+
+  /**
+   * The maximum number of idle classes whose statistics are kept.
+   */
+  static final int MAX_IDLE_CLASSES = 1000;
+
+  private static final String WAITER_KEY = FairQueuingHandler.class.getName()
+    + ".waiter";
+
+  /**
+   * A suspended request
+   */
+  private static final class Waiter {
+
+    final Continuation continuation;
+    final RequestClass requestClass;
+    final long enqueueTime = System.nanoTime();
+
+    /**
+     * Whether the request has been given a slot. Guarded by the handler.
+     */
+    boolean granted = false;
+
+    Waiter(Continuation continuation, RequestClass requestClass) {
+
+      this.continuation = continuation;
+      this.requestClass = requestClass;
+    }
+  }
+
+  /**
+   * A class of requests. All fields are guarded by the handler.
+   */
+  private static final class RequestClass {
+
+    final String name;
+    int weight = 1;
+    int maxQueued;
+    boolean configured = false;
+    double pass = 0;
+    final LinkedList<Waiter> queue = new LinkedList<Waiter>();
+
+    long served = 0;
+    long totalWaitNanos = 0;
+    long rejected = 0;
+
+    RequestClass(String name, int maxQueued) {
+
+      this.name = name;
+      this.maxQueued = maxQueued;
+    }
+  }
+
+  private final int maxActiveRequests;
+
+  private final int maxQueuedPerClass;
+
+  private volatile long timeoutInMsec = DEFAULT_TIMEOUT_IN_MSECS;
+
+  /**
+   * The request classes. Guarded by this.
+   */
+  private final Map<String, RequestClass> classes = new HashMap<String, RequestClass>();
+
+  /**
+   * Guarded by this.
+   */
+  private int activeRequests = 0;
+
+  /**
+   * Guarded by this.
+   */
+  private int queuedRequests = 0;
+
+  /**
+   * The pass of the last class served. Guarded by this.
+   */
+  private double virtualTime = 0;
+
+  /**
+   * Constructor.
+   * 
+   * @param maxActiveRequests
+   *          the maximum number of requests handled at the same time
+   * @param maxQueuedPerClass
+   *          the maximum number of requests waiting in each class, unless set
+   *          for the class with {@link #setMaxQueued(String, int)}
+   */
+  public FairQueuingHandler(int maxActiveRequests, int maxQueuedPerClass) {
+
+    if (maxActiveRequests <= 0)
+      throw new IllegalArgumentException(
+        "The number of active requests must be a positive number");
+
+    if (maxQueuedPerClass <= 0)
+      throw new IllegalArgumentException(
+        "The queue size must be a positive number");
+
+    this.maxActiveRequests = maxActiveRequests;
+    this.maxQueuedPerClass = maxQueuedPerClass;
+  }
+
+  /**
+   * Sets the weight of a class of requests. Classes default to weight 1.
+   * 
+   * @param requestClass
+   *          a VOMS FQAN, a client name, or {@link #ANONYMOUS_CLASS}
+   * @param weight
+   *          the class weight
+   */
+  public synchronized void setWeight(String requestClass, int weight) {
+
+    if (weight <= 0)
+      throw new IllegalArgumentException("Weight must be a positive number");
+
+    RequestClass c = getRequestClass(requestClass);
+    c.weight = weight;
+    c.configured = true;
+  }
+
+  /**
+   * Sets the maximum number of requests of a class waiting for a slot.
+   * Classes default to the limit passed at construction time.
+   * 
+   * @param requestClass
+   *          a VOMS FQAN, a client name, or {@link #ANONYMOUS_CLASS}
+   * @param maxQueued
+   *          the maximum number of requests waiting in the class
+   */
+  public synchronized void setMaxQueued(String requestClass, int maxQueued) {
+
+    if (maxQueued <= 0)
+      throw new IllegalArgumentException(
+        "The queue size must be a positive number");
+
+    RequestClass c = getRequestClass(requestClass);
+    c.maxQueued = maxQueued;
+    c.configured = true;
+  }
+
+  public long getTimeoutInMsec() {
+
+    return timeoutInMsec;
+  }
+
+  /**
+   * Sets how long a request waits for a slot before being rejected with a 503
+   * error.
+   * 
+   * @param timeoutInMsec
+   *          the timeout, in milliseconds
+   */
+  public void setTimeoutInMsec(long timeoutInMsec) {
+
+    this.timeoutInMsec = timeoutInMsec;
+  }
+
+  /**
+   * @return the number of requests being handled
+   */
+  public synchronized int getActiveRequests() {
+
+    return activeRequests;
+  }
+
+  /**
+   * @return the classes of requests seen recently
+   */
+  public synchronized List<String> getRequestClasses() {
+
+    return new ArrayList<String>(classes.keySet());
+  }
+
+  /**
+   * @param requestClass
+   *          the class of requests
+   * @return the number of requests of the class waiting for a slot
+   */
+  public synchronized int getQueueDepth(String requestClass) {
+
+    RequestClass c = classes.get(requestClass);
+    return (c == null) ? 0 : c.queue.size();
+  }
+
+  /**
+   * @param requestClass
+   *          the class of requests
+   * @return the average time the requests of the class have waited for a
+   *         slot, in milliseconds
+   */
+  public synchronized long getAverageWaitTimeInMsec(String requestClass) {
+
+    RequestClass c = classes.get(requestClass);
+
+    if (c == null || c.served == 0)
+      return 0;
+
+    return TimeUnit.NANOSECONDS.toMillis(c.totalWaitNanos / c.served);
+  }
+
+  /**
+   * @param requestClass
+   *          the class of requests
+   * @return the number of requests of the class rejected because the queue
+   *         was full or they timed out
+   */
+  public synchronized long getRejectedCount(String requestClass) {
+
+    RequestClass c = classes.get(requestClass);
+    return (c == null) ? 0 : c.rejected;
+  }
+
+  /**
+   * Returns the class of a request: the first validated VOMS FQAN of its
+   * security context, the client name if its attributes have not been
+   * validated yet or it has no valid VOMS attributes, or
+   * {@link #ANONYMOUS_CLASS}. This does not trigger attribute processing.
+   * 
+   * @param request
+   *          the request
+   * @return the request class
+   */
+  protected String classify(HttpServletRequest request) {
+
+    VOMSSecurityContext sc = (VOMSSecurityContext) request
+      .getAttribute(VOMSSecurityContextHandler.CONTEXT_KEY);
+
+    if (sc == null || sc.getClientCertChain() == null)
+      return ANONYMOUS_CLASS;
+
+    List<VOMSAttribute> attributes = null;
+
+    if (sc instanceof VOMSSecurityContextImpl)
+      attributes = ((VOMSSecurityContextImpl) sc).getValidatedVOMSAttributes();
+
+    if (attributes != null && !attributes.isEmpty()
+      && !attributes.get(0).getFQANs().isEmpty())
+      return attributes.get(0).getFQANs().get(0);
+
+    return sc.getClientName();
+  }
+
+  /**
+   * Tells whether this handler classifies requests with the default
+   * {@link #classify(HttpServletRequest)}.
+   */
+  private boolean classifiesByFQAN() {
+
+    for (Class<?> c = getClass(); c != FairQueuingHandler.class; c = c
+      .getSuperclass()) {
+
+      try {
+
+        c.getDeclaredMethod("classify", HttpServletRequest.class);
+        return false;
+
+      } catch (NoSuchMethodException e) {
+        // Not overridden here
+      }
+    }
+
+    return true;
+  }
+
+  @Override
+  protected void doStart() throws Exception {
+
+    if (classifiesByFQAN()
+      && (getServer() == null || AbstractHandlerContainer.findContainerOf(
+        getServer(), AsyncVOMSSecurityContextHandler.class, this) == null))
+      throw new IllegalStateException("A FairQueuingHandler classifying "
+        + "requests by FQAN must be wrapped by an "
+        + "AsyncVOMSSecurityContextHandler");
+
+    super.doStart();
+  }
+
+  private RequestClass getRequestClass(String name) {
+
+    RequestClass c = classes.get(name);
+
+    if (c == null) {
+
+      if (classes.size() >= MAX_IDLE_CLASSES)
+        dropIdleClasses();
+
+      c = new RequestClass(name, maxQueuedPerClass);
+      c.pass = virtualTime;
+      classes.put(name, c);
+    }
+
+    return c;
+  }
+
+  private void dropIdleClasses() {
+
+    Iterator<RequestClass> i = classes.values().iterator();
+
+    while (i.hasNext()) {
+      RequestClass c = i.next();
+      if (c.queue.isEmpty() && !c.configured)
+        i.remove();
+    }
+  }
+
+  @Override
+  public void handle(String target, Request baseRequest,
+    HttpServletRequest request, HttpServletResponse response)
+    throws IOException, ServletException {
+
+    Waiter waiter = (Waiter) request.getAttribute(WAITER_KEY);
+
+    if (waiter != null) {
+
+      request.removeAttribute(WAITER_KEY);
+      boolean timedOut;
+
+      synchronized (this) {
+
+        timedOut = !waiter.granted;
+
+        if (timedOut) {
+          waiter.requestClass.queue.remove(waiter);
+          waiter.requestClass.rejected++;
+          queuedRequests--;
+        }
+      }
+
+      if (timedOut) {
+        log.debug("Request of class '{}' timed out waiting for a slot.",
+          waiter.requestClass.name);
+        reject(baseRequest, response);
+        return;
+      }
+
+    } else {
+
+      String name = classify(request);
+      boolean queueFull = false;
+
+      synchronized (this) {
+
+        if (activeRequests < maxActiveRequests && queuedRequests == 0) {
+
+          activeRequests++;
+
+        } else {
+
+          RequestClass c = getRequestClass(name);
+
+          if (c.queue.size() >= c.maxQueued) {
+
+            c.rejected++;
+            queueFull = true;
+
+          } else {
+
+            if (c.queue.isEmpty())
+              c.pass = Math.max(c.pass, virtualTime);
+
+            Continuation continuation = ContinuationSupport
+              .getContinuation(request);
+
+            continuation.setTimeout(timeoutInMsec);
+            continuation.suspend();
+
+            waiter = new Waiter(continuation, c);
+            request.setAttribute(WAITER_KEY, waiter);
+
+            c.queue.add(waiter);
+            queuedRequests++;
+            return;
+          }
+        }
+      }
+
+      if (queueFull) {
+        log.debug("Queue of class '{}' is full.", name);
+        reject(baseRequest, response);
+        return;
+      }
+    }
+
+    try {
+
+      super.handle(target, baseRequest, request, response);
+
+    } finally {
+      release();
+    }
+  }
+
+  private static void reject(Request baseRequest, HttpServletResponse response)
+    throws IOException {
+
+    baseRequest.setHandled(true);
+    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+  }
+
+  /**
+   * Passes a slot to the next waiting request, or frees it.
+   */
+  private void release() {
+
+    Waiter next;
+
+    synchronized (this) {
+
+      next = dequeue();
+
+      if (next == null) {
+        activeRequests--;
+        return;
+      }
+
+      RequestClass c = next.requestClass;
+      c.served++;
+      c.totalWaitNanos += System.nanoTime() - next.enqueueTime;
+      next.granted = true;
+    }
+
+    try {
+
+      next.continuation.resume();
+
+    } catch (IllegalStateException e) {
+      // The request is being resumed by its timeout, and will find the slot
+    }
+  }
+
+  /**
+   * Removes the next request to serve from the class with the lowest pass.
+   * Must be called holding the handler lock.
+   */
+  private Waiter dequeue() {
+
+    if (queuedRequests == 0)
+      return null;
+
+    RequestClass selected = null;
+
+    for (RequestClass c : classes.values()) {
+      if (!c.queue.isEmpty() && (selected == null || c.pass < selected.pass))
+        selected = c;
+    }
+
+    virtualTime = selected.pass;
+    selected.pass += 1.0 / selected.weight;
+    queuedRequests--;
+
+    return selected.queue.removeFirst();
+  }
+}
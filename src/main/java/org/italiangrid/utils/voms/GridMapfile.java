@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable mapping of client names, or VOMS FQANs, to local accounts, as
+ * found in a grid-mapfile.
+ * 
+ * Each line holds a quoted name followed by a comma-separated list of
+ * accounts, of which only the first is used:
+ * 
+ * <pre>
+ * "/C=IT/O=IGI/CN=test" test001,test002
+ * "/atlas/Role=production" .atlasprd
+ * </pre>
+ * 
+ * Distinguished names are written in OpenSSL form, FQANs as usual. A name
+ * ending in <code>/*</code> maps all the names below it, e.g. all the
+ * certificates issued to an organization or all the subgroups and roles of a
+ * VO. Names are split into components and indexed in a {@link NameTrie}.
+ * Lines starting with <code>#</code> are comments; malformed lines are logged
+ * and skipped.
+ */
+class GridMapfile {
+
+  public static final Logger log = LoggerFactory.getLogger(GridMapfile.class);
+
+  static final GridMapfile EMPTY = new GridMapfile(new NameTrie<String>(),
+    new NameTrie<String>());
+
+  private static final String WILDCARD = "*";
+
+  private static final String NULL_ROLE = "/Role=NULL";
+
+  private static final String NULL_CAPABILITY = "/Capability=NULL";
+
+  private final NameTrie<String> dnMappings;
+
+  private final NameTrie<String> fqanMappings;
+
+  private GridMapfile(NameTrie<String> dnMappings,
+    NameTrie<String> fqanMappings) {
+
+    this.dnMappings = dnMappings;
+    this.fqanMappings = fqanMappings;
+  }
+
+  /**
+   * Loads the mappings.
+   * 
+   * @param dnFile
+   *          the file mapping distinguished names, may be <code>null</code>
+   * @param fqanFile
+   *          the file mapping FQANs, may be <code>null</code>
+   * @return the mappings
+   * @throws IOException
+   *           if a file cannot be read
+   */
+  static GridMapfile load(File dnFile, File fqanFile) throws IOException {
+
+    NameTrie<String> dnMappings = new NameTrie<String>();
+    NameTrie<String> fqanMappings = new NameTrie<String>();
+
+    if (dnFile != null)
+      load(dnFile, dnMappings, false);
+
+    if (fqanFile != null)
+      load(fqanFile, fqanMappings, true);
+
+    return new GridMapfile(dnMappings, fqanMappings);
+  }
+
+  private static void load(File f, NameTrie<String> mappings, boolean fqans)
+    throws IOException {
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+      new FileInputStream(f), "UTF-8"));
+
+    try {
+
+      String line;
+      int lineNumber = 0;
+
+      while ((line = reader.readLine()) != null) {
+
+        lineNumber++;
+        line = line.trim();
+
+        if (line.isEmpty() || line.startsWith("#"))
+          continue;
+
+        if (!parseLine(line, mappings, fqans))
+          log.warn("Skipping invalid mapping at {}:{}: {}", new Object[] {
+            f.getAbsolutePath(), lineNumber, line });
+      }
+
+    } finally {
+
+      reader.close();
+    }
+  }
+
+  private static boolean parseLine(String line, NameTrie<String> mappings,
+    boolean fqans) {
+
+    String name;
+    String accounts;
+
+    if (line.startsWith("\"")) {
+
+      int end = line.indexOf('"', 1);
+
+      if (end < 0)
+        return false;
+
+      name = line.substring(1, end);
+      accounts = line.substring(end + 1).trim();
+
+    } else {
+
+      int end = line.lastIndexOf(' ');
+
+      if (end < 0)
+        end = line.lastIndexOf('\t');
+
+      if (end < 0)
+        return false;
+
+      name = line.substring(0, end).trim();
+      accounts = line.substring(end + 1).trim();
+    }
+
+    int comma = accounts.indexOf(',');
+    String account = (comma < 0) ? accounts : accounts.substring(0, comma)
+      .trim();
+
+    if (account.isEmpty())
+      return false;
+
+    boolean prefix = name.endsWith("/" + WILDCARD);
+
+    if (prefix)
+      name = name.substring(0, name.length() - 2);
+
+    List<String> components = fqans ? fqanComponents(name)
+      : dnComponents(name);
+
+    if (components == null || (components.isEmpty() && !prefix))
+      return false;
+
+    if (!mappings.put(components, prefix, account))
+      log.debug("Ignoring duplicate mapping for {}", name);
+
+    return true;
+  }
+
+  /**
+   * Splits a distinguished name in OpenSSL form into its RDNs. Attribute types
+   * are normalized, so that e.g. <code>Email</code> and
+   * <code>emailAddress</code> compare equal; values are compared as written.
+   * 
+   * @param dn
+   *          the name
+   * @return the RDNs, or <code>null</code> if the name is not in OpenSSL form
+   */
+  static List<String> dnComponents(String dn) {
+
+    if (dn.isEmpty())
+      return Collections.emptyList();
+
+    if (dn.charAt(0) != '/')
+      return null;
+
+    List<String> components = new ArrayList<String>();
+    int start = 1;
+
+    for (int i = 1; i <= dn.length(); i++) {
+
+      if (i < dn.length() && !isRDNStart(dn, i))
+        continue;
+
+      String rdn = dn.substring(start, i);
+      int eq = rdn.indexOf('=');
+
+      if (eq <= 0)
+        return null;
+
+      components.add(attributeType(rdn.substring(0, eq)) + rdn.substring(eq));
+      start = i + 1;
+    }
+
+    return components;
+  }
+
+  /**
+   * Tells whether the slash at a given index starts an RDN, i.e. it is
+   * followed by an attribute type and an equal sign. Other slashes belong to
+   * attribute values, e.g. <code>CN=host/example.org</code>.
+   */
+  private static boolean isRDNStart(String dn, int index) {
+
+    if (dn.charAt(index) != '/')
+      return false;
+
+    for (int i = index + 1; i < dn.length(); i++) {
+
+      char c = dn.charAt(i);
+
+      if (c == '=')
+        return i > index + 1;
+
+      if (!Character.isLetterOrDigit(c) && c != '.' && c != '-')
+        return false;
+    }
+
+    return false;
+  }
+
+  private static String attributeType(String type) {
+
+    String t = type.toLowerCase(Locale.ENGLISH);
+
+    if (t.equals("email") || t.equals("e"))
+      return "emailaddress";
+
+    if (t.equals("userid"))
+      return "uid";
+
+    return t;
+  }
+
+  /**
+   * Splits an FQAN into its groups, role and capability, leaving out null
+   * roles and capabilities.
+   * 
+   * @param fqan
+   *          the FQAN
+   * @return the components, or <code>null</code> if the FQAN is malformed
+   */
+  static List<String> fqanComponents(String fqan) {
+
+    if (fqan.isEmpty())
+      return Collections.emptyList();
+
+    if (fqan.charAt(0) != '/')
+      return null;
+
+    String f = fqan;
+
+    if (f.endsWith(NULL_CAPABILITY))
+      f = f.substring(0, f.length() - NULL_CAPABILITY.length());
+
+    if (f.endsWith(NULL_ROLE))
+      f = f.substring(0, f.length() - NULL_ROLE.length());
+
+    List<String> components = new ArrayList<String>();
+    int start = 1;
+
+    for (int i = 1; i <= f.length(); i++) {
+
+      if (i < f.length() && f.charAt(i) != '/')
+        continue;
+
+      if (i == start)
+        return null;
+
+      components.add(f.substring(start, i));
+      start = i + 1;
+    }
+
+    return components;
+  }
+
+  /**
+   * @param dn
+   *          a distinguished name, in OpenSSL form
+   * @return the account the name maps to, or <code>null</code>
+   */
+  String mapDN(String dn) {
+
+    if (dn == null)
+      return null;
+
+    List<String> components = dnComponents(dn);
+    return (components == null) ? null : dnMappings.get(components);
+  }
+
+  /**
+   * @param fqan
+   *          a VOMS FQAN
+   * @return the account the FQAN maps to, or <code>null</code>
+   */
+  String mapFQAN(String fqan) {
+
+    if (fqan == null)
+      return null;
+
+    List<String> components = fqanComponents(fqan);
+    return (components == null) ? null : fqanMappings.get(components);
+  }
+
+  /**
+   * @return the number of distinguished name mappings
+   */
+  int getDNMappingCount() {
+
+    return dnMappings.size();
+  }
+
+  /**
+   * @return the number of FQAN mappings
+   */
+  int getFQANMappingCount() {
+
+    return fqanMappings.size();
+  }
+}
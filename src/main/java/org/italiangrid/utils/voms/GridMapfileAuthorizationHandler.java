@@ -0,0 +1,330 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.italiangrid.utils.concurrent.PollingFileWatcher;
+import org.italiangrid.voms.ac.VOMSValidationResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Jetty Handler that authorizes clients by mapping them to a local account,
+ * as listed in a grid-mapfile and, optionally, in a VOMS group mapfile (see
+ * {@link GridMapfile} for the format).
+ * 
+ * The FQANs of a client are tried first, in the order the VOMS attributes
+ * list them, then its certificate subject. Only the attributes found valid
+ * are considered, even when the security context was built in insecure mode
+ * and its attributes were only parsed. Requests from clients that map to
+ * an account are passed to the wrapped handler, with the account set in the
+ * {@link #ACCOUNT_KEY} request attribute; others are rejected with a 403
+ * error. This handler must come after a {@link VOMSSecurityContextHandler}.
+ * 
+ * The mapfiles are indexed in tries, so a lookup takes time proportional to
+ * the length of the name rather than to the number of mappings. The account
+ * is remembered for each client certificate chain, whatever the security
+ * context it comes with, until the mapfiles are next reloaded or the earliest
+ * valid attribute certificate of the chain expires. Only the most recently
+ * used chains are remembered.
+ * 
+ * Looking up the account of a chain not seen before validates its attribute
+ * certificates, unless this was already done. Behind a
+ * {@link VOMSSecurityContextHandler} alone this happens on the request thread,
+ * once per chain; wrapping this handler in an
+ * {@link AsyncVOMSSecurityContextHandler} moves it to the validation pool.
+ * 
+ * The mapfiles are watched for changes while the handler runs, and
+ * reloaded in background; lookups keep using the current mappings until the
+ * new ones are swapped in. If a mapfile cannot be read, the current mappings
+ * are kept.
+ */
+public class GridMapfileAuthorizationHandler extends HandlerWrapper implements
+  PollingFileWatcher.Listener {
+
+  public static final Logger log = LoggerFactory
+    .getLogger(GridMapfileAuthorizationHandler.class);
+
+  /**
+   * The request attribute holding the account the client maps to.
+   */
+  public static final String ACCOUNT_KEY = "org.italiangrid.Account";
+
+  /**
+   * The maximum number of certificate chains whose account is remembered.
+   */
+  static final int MAX_DECISIONS = 10000;
+
+  /**
+   * An account looked up with a given set of mappings.
+   */
+  private static final class Decision {
+
+    final GridMapfile mappings;
+    final String account;
+
+    /**
+     * When the earliest valid attribute certificate considered expires, in
+     * milliseconds
+     */
+    final long notAfter;
+
+    Decision(GridMapfile mappings, String account, long notAfter) {
+
+      this.mappings = mappings;
+      this.account = account;
+      this.notAfter = notAfter;
+    }
+  }
+
+  private final File gridMapfile;
+
+  private final File groupMapfile;
+
+  private final PollingFileWatcher watcher;
+
+  private volatile GridMapfile mappings = GridMapfile.EMPTY;
+
+  /**
+   * The accounts looked up for each certificate chain, least recently used
+   * first. Guarded by itself.
+   */
+  private final Map<ChainFingerprint, Decision> decisions = new LinkedHashMap<ChainFingerprint, Decision>(
+    16, 0.75f, true) {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(
+      Map.Entry<ChainFingerprint, Decision> eldest) {
+
+      return size() > MAX_DECISIONS;
+    }
+  };
+
+  /**
+   * Constructor. The mapfiles are loaded before this returns.
+   * 
+   * @param gridMapfile
+   *          the file mapping certificate subjects
+   * @param groupMapfile
+   *          the file mapping VOMS FQANs, may be <code>null</code>
+   * @param updateIntervalInMsec
+   *          how often the mapfiles are checked for changes, zero disables
+   *          watching
+   * @throws IOException
+   *           if a mapfile cannot be read
+   */
+  public GridMapfileAuthorizationHandler(String gridMapfile,
+    String groupMapfile, long updateIntervalInMsec) throws IOException {
+
+    if (gridMapfile == null)
+      throw new IllegalArgumentException("Please provide a grid-mapfile");
+
+    this.gridMapfile = new File(gridMapfile);
+    this.groupMapfile = (groupMapfile == null) ? null : new File(groupMapfile);
+
+    mappings = GridMapfile.load(this.gridMapfile, this.groupMapfile);
+    logMappings();
+
+    if (updateIntervalInMsec > 0) {
+
+      List<File> files = new ArrayList<File>();
+      files.add(this.gridMapfile);
+
+      if (this.groupMapfile != null)
+        files.add(this.groupMapfile);
+
+      watcher = new PollingFileWatcher(files, null, updateIntervalInMsec, this);
+
+    } else {
+      watcher = null;
+    }
+  }
+
+  private void logMappings() {
+
+    GridMapfile m = mappings;
+
+    log.info("Loaded {} subject and {} FQAN account mappings",
+      m.getDNMappingCount(), m.getFQANMappingCount());
+  }
+
+  /**
+   * Reloads the mapfiles.
+   */
+  public void filesChanged(Set<File> changedFiles) {
+
+    reload();
+  }
+
+  /**
+   * Reloads the mapfiles, and swaps in the new mappings if they could be read.
+   * 
+   * @return <code>true</code> if the new mappings were swapped in,
+   *         <code>false</code> otherwise
+   */
+  public boolean reload() {
+
+    try {
+
+      mappings = GridMapfile.load(gridMapfile, groupMapfile);
+      logMappings();
+
+      synchronized (decisions) {
+        decisions.clear();
+      }
+
+      return true;
+
+    } catch (IOException e) {
+
+      log.error("Error reloading account mapfiles, keeping the current "
+        + "mappings: {}", e.getMessage());
+      log.debug(e.getMessage(), e);
+      return false;
+    }
+  }
+
+  /**
+   * Returns the account a client maps to.
+   * 
+   * @param sc
+   *          the client security context
+   * @return the account, or <code>null</code> if the client does not map to
+   *         any account
+   */
+  public String getAccount(SecurityContext sc) {
+
+    X509Certificate[] chain = sc.getClientCertChain();
+
+    if (chain == null)
+      return null;
+
+    GridMapfile m = mappings;
+    ChainFingerprint key = ChainFingerprint.of(chain);
+
+    if (key == null)
+      return lookupAccount(m, sc).account;
+
+    Decision d;
+
+    synchronized (decisions) {
+      d = decisions.get(key);
+    }
+
+    if (d != null && d.mappings == m
+      && System.currentTimeMillis() < d.notAfter)
+      return d.account;
+
+    d = lookupAccount(m, sc);
+
+    synchronized (decisions) {
+      decisions.put(key, d);
+    }
+
+    return d.account;
+  }
+
+  private static Decision lookupAccount(GridMapfile m, SecurityContext sc) {
+
+    long notAfter = Long.MAX_VALUE;
+
+    if (sc instanceof VOMSSecurityContext) {
+
+      List<VOMSValidationResult> results = ((VOMSSecurityContext) sc)
+        .getValidationResults();
+
+      if (results != null) {
+
+        for (VOMSValidationResult r : results) {
+
+          if (!r.isValid())
+            continue;
+
+          notAfter = Math.min(notAfter, r.getAttributes().getNotAfter()
+            .getTime());
+
+          for (String fqan : r.getAttributes().getFQANs()) {
+
+            String account = m.mapFQAN(fqan);
+
+            if (account != null)
+              return new Decision(m, account, notAfter);
+          }
+        }
+      }
+    }
+
+    return new Decision(m, m.mapDN(sc.getClientName()), notAfter);
+  }
+
+  @Override
+  public void handle(String target, Request baseRequest,
+    HttpServletRequest request, HttpServletResponse response)
+    throws IOException, ServletException {
+
+    SecurityContext sc = (SecurityContext) request
+      .getAttribute(VOMSSecurityContextHandler.CONTEXT_KEY);
+
+    String account = (sc == null) ? null : getAccount(sc);
+
+    if (account == null) {
+
+      if (sc != null && log.isDebugEnabled())
+        log.debug("No account mapping for '{}'", sc.getClientName());
+
+      baseRequest.setHandled(true);
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    request.setAttribute(ACCOUNT_KEY, account);
+    super.handle(target, baseRequest, request, response);
+  }
+
+  @Override
+  protected void doStart() throws Exception {
+
+    super.doStart();
+
+    if (watcher != null)
+      watcher.start();
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+
+    if (watcher != null)
+      watcher.stop();
+
+    super.doStop();
+  }
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.io.ByteArrayInputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * A {@link SecurityContext} which cannot be modified once built from a client
+ * certificate chain.
+ * 
+ * Only the ordered chain and the user certificate are kept at construction
+ * time. The principals and the string forms of the names are computed the
+ * first time they are requested; since they are immutable and always computed
+ * to the same values, contexts can be shared across threads without
+ * synchronization. Setters throw {@link UnsupportedOperationException}.
+ * 
+ * Contexts are serialized as the DER encoding of their chain, e.g. when kept
+ * in a persistent HTTP session.
+ */
+public final class ImmutableSecurityContext implements SecurityContext,
+  Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final X509Certificate[] clientCertChain;
+
+  private final X509Certificate clientCert;
+
+  private final String remoteAddr;
+
+  private final String sessionId;
+
+  private volatile X500Principal clientX500Principal;
+
+  private volatile X500Principal issuerX500Principal;
+
+  private volatile X500NameCache.Names clientNames;
+
+  private volatile X500NameCache.Names issuerNames;
+
+  /**
+   * Constructor.
+   * 
+   * @param clientCertChain
+   *          the client certificate chain, which is not modified
+   * @param remoteAddr
+   *          the IP address of the client, may be <code>null</code>
+   * @param sessionId
+   *          the SSL session ID, may be <code>null</code>
+   */
+  public ImmutableSecurityContext(X509Certificate[] clientCertChain,
+    String remoteAddr, String sessionId) {
+
+    OrderedChain ordered = OrderedChain.of(clientCertChain);
+
+    this.clientCertChain = ordered.chain;
+    this.clientCert = ordered.endEntityCert;
+    this.remoteAddr = remoteAddr;
+    this.sessionId = sessionId;
+  }
+
+  public X509Certificate getClientCert() {
+
+    return clientCert;
+  }
+
+  /**
+   * @return a copy of the client certificate chain
+   */
+  public X509Certificate[] getClientCertChain() {
+
+    return clientCertChain.clone();
+  }
+
+  public X500Principal getClientX500Principal() {
+
+    X500Principal p = clientX500Principal;
+
+    if (p == null) {
+      p = clientCert.getSubjectX500Principal();
+      clientX500Principal = p;
+    }
+
+    return p;
+  }
+
+  public X500Principal getIssuerX500Principal() {
+
+    X500Principal p = issuerX500Principal;
+
+    if (p == null) {
+      p = clientCert.getIssuerX500Principal();
+      issuerX500Principal = p;
+    }
+
+    return p;
+  }
+
+  private X500NameCache.Names getClientNames() {
+
+    X500NameCache.Names n = clientNames;
+
+    if (n == null) {
+      n = X500NameCache.get(getClientX500Principal());
+      clientNames = n;
+    }
+
+    return n;
+  }
+
+  private X500NameCache.Names getIssuerNames() {
+
+    X500NameCache.Names n = issuerNames;
+
+    if (n == null) {
+      n = X500NameCache.get(getIssuerX500Principal());
+      issuerNames = n;
+    }
+
+    return n;
+  }
+
+  public String getClientX500Name() {
+
+    return getClientNames().readable;
+  }
+
+  public String getClientName() {
+
+    return getClientNames().openssl;
+  }
+
+  public String getIssuerX500Name() {
+
+    return getIssuerNames().readable;
+  }
+
+  public String getIssuerName() {
+
+    return getIssuerNames().openssl;
+  }
+
+  public String getRemoteAddr() {
+
+    return remoteAddr;
+  }
+
+  public String getSessionId() {
+
+    return sessionId;
+  }
+
+  private static UnsupportedOperationException immutable() {
+
+    return new UnsupportedOperationException(
+      "This security context cannot be modified.");
+  }
+
+  public void setClientCert(X509Certificate cert) {
+
+    throw immutable();
+  }
+
+  public void setClientCertChain(X509Certificate[] chain) {
+
+    throw immutable();
+  }
+
+  public void setClientX500Name(String clientName) {
+
+    throw immutable();
+  }
+
+  public void setClientX500Principal(X500Principal principal) {
+
+    throw immutable();
+  }
+
+  public void setClientName(String clientName) {
+
+    throw immutable();
+  }
+
+  public void setIssuerName(String issuerName) {
+
+    throw immutable();
+  }
+
+  public void setIssuerX500Name(String issuerX500Name) {
+
+    throw immutable();
+  }
+
+  public void setIssuerX500Principal(X500Principal principal) {
+
+    throw immutable();
+  }
+
+  public void setRemoteAddr(String remoteIpAddress) {
+
+    throw immutable();
+  }
+
+  public void setSessionId(String sessionId) {
+
+    throw immutable();
+  }
+
+  /**
+   * The serialized form of a context
+   */
+  private static final class SerializedForm implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final byte[][] encodedChain;
+
+    private final String remoteAddr;
+
+    private final String sessionId;
+
+    SerializedForm(ImmutableSecurityContext context)
+      throws CertificateEncodingException {
+
+      encodedChain = new byte[context.clientCertChain.length][];
+
+      for (int i = 0; i < encodedChain.length; i++)
+        encodedChain[i] = context.clientCertChain[i].getEncoded();
+
+      remoteAddr = context.remoteAddr;
+      sessionId = context.sessionId;
+    }
+
+    private Object readResolve() throws ObjectStreamException {
+
+      try {
+
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        X509Certificate[] chain = new X509Certificate[encodedChain.length];
+
+        for (int i = 0; i < chain.length; i++)
+          chain[i] = (X509Certificate) factory
+            .generateCertificate(new ByteArrayInputStream(encodedChain[i]));
+
+        return new ImmutableSecurityContext(chain, remoteAddr, sessionId);
+
+      } catch (CertificateException e) {
+
+        throw new InvalidObjectException(e.getMessage());
+      }
+    }
+  }
+
+  private Object writeReplace() throws ObjectStreamException {
+
+    try {
+
+      return new SerializedForm(this);
+
+    } catch (CertificateEncodingException e) {
+
+      throw new InvalidObjectException(e.getMessage());
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws InvalidObjectException {
+
+    throw new InvalidObjectException("Serialized form required");
+  }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.italiangrid.voms.VOMSAttribute;
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.ac.VOMSValidationResult;
+
+/**
+ * The VOMS attributes of a client, which are parsed or validated the first
+ * time they are requested and then kept. Instances can be shared by the
+ * security contexts built for the same certificate chain.
+ */
+class LazyVOMSAttributes {
+
+  private volatile List<VOMSAttribute> attributes;
+
+  private volatile List<VOMSValidationResult> validationResults;
+
+  private volatile FQANIndex index;
+
+  /**
+   * Validates the attribute certificates, keeping both the results and the
+   * valid attributes. Must be called holding the lock.
+   */
+  private void validate(VOMSACValidator validator, X509Certificate[] chain) {
+
+    List<VOMSValidationResult> results = validator.validateWithResult(chain);
+    List<VOMSAttribute> validAttributes = new ArrayList<VOMSAttribute>();
+
+    for (VOMSValidationResult r : results) {
+      if (r.isValid())
+        validAttributes.add(r.getAttributes());
+    }
+
+    attributes = validAttributes;
+    validationResults = results;
+  }
+
+  List<VOMSAttribute> getAttributes(VOMSACValidator validator, boolean secure,
+    X509Certificate[] chain) {
+
+    List<VOMSAttribute> result = attributes;
+
+    if (result != null || chain == null)
+      return result;
+
+    synchronized (this) {
+
+      if (attributes == null) {
+        if (secure)
+          validate(validator, chain);
+        else
+          attributes = validator.parse(chain);
+      }
+
+      return attributes;
+    }
+  }
+
+  List<VOMSValidationResult> getValidationResults(VOMSACValidator validator,
+    boolean secure, X509Certificate[] chain) {
+
+    List<VOMSValidationResult> results = validationResults;
+
+    if (results != null || chain == null)
+      return results;
+
+    synchronized (this) {
+
+      if (validationResults == null) {
+        if (secure)
+          validate(validator, chain);
+        else
+          validationResults = validator.validateWithResult(chain);
+      }
+
+      return validationResults;
+    }
+  }
+
+  /**
+   * Returns the valid attributes, if the attribute certificates have already
+   * been validated. This does not trigger attribute processing, and never
+   * returns attributes which were only parsed.
+   * 
+   * @return the valid attributes, or <code>null</code> if the attribute
+   *         certificates have not been validated yet
+   */
+  List<VOMSAttribute> getValidatedAttributes() {
+
+    List<VOMSValidationResult> results = validationResults;
+
+    if (results == null)
+      return null;
+
+    List<VOMSAttribute> validAttributes = new ArrayList<VOMSAttribute>();
+
+    for (VOMSValidationResult r : results) {
+      if (r.isValid())
+        validAttributes.add(r.getAttributes());
+    }
+
+    return validAttributes;
+  }
+
+  /**
+   * Returns the index of the FQANs of the attributes, built the first time it
+   * is requested.
+   */
+  FQANIndex getIndex(VOMSACValidator validator, boolean secure,
+    X509Certificate[] chain) {
+
+    FQANIndex result = index;
+
+    if (result != null)
+      return result;
+
+    List<VOMSAttribute> current = getAttributes(validator, secure, chain);
+
+    if (current == null)
+      return FQANIndex.EMPTY;
+
+    synchronized (this) {
+
+      if (index == null)
+        index = new FQANIndex(current);
+
+      return index;
+    }
+  }
+
+  /**
+   * @return the earliest notAfter time of the attributes processed so far, or
+   *         {@link Long#MAX_VALUE}
+   */
+  long getNotAfter() {
+
+    List<VOMSAttribute> current = attributes;
+    long notAfter = Long.MAX_VALUE;
+
+    if (current != null) {
+      for (VOMSAttribute a : current)
+        notAfter = Math.min(notAfter, a.getNotAfter().getTime());
+    }
+
+    return notAfter;
+  }
+
+  /**
+   * @return the encoded size of the attribute certificates processed so far
+   */
+  int getEncodedSize() {
+
+    List<VOMSAttribute> current = attributes;
+    int size = 0;
+
+    if (current != null) {
+      for (VOMSAttribute a : current) {
+        try {
+          size += a.getVOMSAC().getEncoded().length;
+        } catch (IOException e) {
+          // Not accounted for
+        }
+      }
+    }
+
+    return size;
+  }
+}
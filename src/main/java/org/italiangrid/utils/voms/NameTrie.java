@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A trie mapping names split in components, such as the RDNs of a
+ * distinguished name or the groups of an FQAN, to values.
+ * 
+ * A value can be bound to a name, or to all the names below a prefix. Lookups
+ * take time proportional to the number of components of the name, and return
+ * the value bound to the name itself or, failing that, to its longest prefix.
+ * 
+ * A trie is not thread safe while it is being built, but can be shared once
+ * safely published.
+ */
+class NameTrie<V> {
+
+  private static final class Node<V> {
+
+    Map<String, Node<V>> children;
+    V value;
+    V prefixValue;
+
+    Node<V> child(String component) {
+
+      return (children == null) ? null : children.get(component);
+    }
+
+    Node<V> addChild(String component) {
+
+      if (children == null)
+        children = new HashMap<String, Node<V>>(4);
+
+      Node<V> n = children.get(component);
+
+      if (n == null) {
+        n = new Node<V>();
+        children.put(component, n);
+      }
+
+      return n;
+    }
+  }
+
+  private final Node<V> root = new Node<V>();
+
+  private int size = 0;
+
+  /**
+   * Binds a value to a name, unless one is already bound.
+   * 
+   * @param components
+   *          the name components
+   * @param prefix
+   *          whether the value applies to all the names below the given one,
+   *          rather than to the name itself
+   * @param value
+   *          the value
+   * @return <code>true</code> if the value was bound, <code>false</code> if
+   *         another value was already bound to the name
+   */
+  boolean put(List<String> components, boolean prefix, V value) {
+
+    Node<V> n = root;
+
+    for (String c : components)
+      n = n.addChild(c);
+
+    if (prefix) {
+
+      if (n.prefixValue != null)
+        return false;
+
+      n.prefixValue = value;
+
+    } else {
+
+      if (n.value != null)
+        return false;
+
+      n.value = value;
+    }
+
+    size++;
+    return true;
+  }
+
+  /**
+   * Looks up the value bound to a name.
+   * 
+   * @param components
+   *          the name components
+   * @return the value bound to the name or to its longest prefix, or
+   *         <code>null</code>
+   */
+  V get(List<String> components) {
+
+    Node<V> n = root;
+    V match = null;
+
+    for (String c : components) {
+
+      if (n.prefixValue != null)
+        match = n.prefixValue;
+
+      n = n.child(c);
+
+      if (n == null)
+        return match;
+    }
+
+    return (n.value != null) ? n.value : match;
+  }
+
+  /**
+   * @return the number of values bound
+   */
+  int size() {
+
+    return size;
+  }
+}
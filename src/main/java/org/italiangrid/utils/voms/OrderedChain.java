@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import eu.emi.security.authn.x509.helpers.CertificateHelpers;
+import eu.emi.security.authn.x509.proxy.ProxyUtils;
+
+/**
+ * A client certificate chain, ordered from the end entity to the root, and
+ * the user certificate found in it.
+ * 
+ * Chains are checked for order and searched for the user certificate in a
+ * single walk, and are only sorted when they are found out of order.
+ */
+final class OrderedChain {
+
+  final X509Certificate[] chain;
+
+  final X509Certificate endEntityCert;
+
+  private OrderedChain(X509Certificate[] chain, X509Certificate endEntityCert) {
+
+    this.chain = chain;
+    this.endEntityCert = endEntityCert;
+  }
+
+  /**
+   * Orders a chain.
+   * 
+   * @param clientCertChain
+   *          the client certificate chain, which is not modified
+   * @return the ordered chain
+   */
+  static OrderedChain of(X509Certificate[] clientCertChain) {
+
+    X509Certificate endEntityCert = null;
+    boolean ordered = true;
+
+    for (int i = 0; i < clientCertChain.length; i++) {
+
+      if (endEntityCert == null && !ProxyUtils.isProxy(clientCertChain[i]))
+        endEntityCert = clientCertChain[i];
+
+      if (i + 1 < clientCertChain.length
+        && !clientCertChain[i].getIssuerX500Principal().equals(
+          clientCertChain[i + 1].getSubjectX500Principal())) {
+        ordered = false;
+        break;
+      }
+    }
+
+    X509Certificate[] orderedClientCertChain;
+
+    if (ordered) {
+
+      orderedClientCertChain = clientCertChain.clone();
+
+    } else {
+
+      try {
+
+        orderedClientCertChain = CertificateHelpers.sortChain(Arrays
+          .asList(clientCertChain));
+
+      } catch (IOException e) {
+
+        throw new RuntimeException(e.getMessage(), e);
+      }
+
+      endEntityCert = ProxyUtils.getEndUserCertificate(orderedClientCertChain);
+    }
+
+    if (endEntityCert == null)
+      endEntityCert = orderedClientCertChain[0];
+
+    return new OrderedChain(orderedClientCertChain, endEntityCert);
+  }
+}
@@ -15,6 +15,8 @@
  */
 package org.italiangrid.utils.voms;
 
+import java.security.cert.X509Certificate;
+
 import org.italiangrid.voms.ac.VOMSACValidator;
 
 public class SecurityContextFactory {
@@ -28,6 +30,21 @@ public class SecurityContextFactory {
     return new SecurityContextImpl();
   }
 
+  /**
+   * Builds an immutable security context for a client.
+   * 
+   * @param clientCertChain
+   *          the client certificate chain
+   * @param remoteAddr
+   *          the IP address of the client, may be <code>null</code>
+   * @return the security context
+   */
+  public static SecurityContext newSecurityContext(
+    X509Certificate[] clientCertChain, String remoteAddr) {
+
+    return new ImmutableSecurityContext(clientCertChain, remoteAddr, null);
+  }
+
   public static VOMSSecurityContext newVOMSSecurityContext(
     VOMSACValidator validator) {
 
@@ -15,17 +15,10 @@
  */
 package org.italiangrid.utils.voms;
 
-import java.io.IOException;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
 
 import javax.security.auth.x500.X500Principal;
 
-import eu.emi.security.authn.x509.helpers.CertificateHelpers;
-import eu.emi.security.authn.x509.impl.OpensslNameUtils;
-import eu.emi.security.authn.x509.impl.X500NameUtils;
-import eu.emi.security.authn.x509.proxy.ProxyUtils;
-
 /**
  * 
  * 
@@ -87,7 +80,8 @@ public class SecurityContextImpl implements SecurityContext {
 
   /**
    * Set the client certificate. This method also automatically sets the client
-   * and issuer name.
+   * and issuer name. The string forms of the names are cached, and shared by
+   * the contexts of clients with the same names.
    * 
    * @param clientCert
    *          The identity certificate of the authenticated client
@@ -98,18 +92,18 @@ public class SecurityContextImpl implements SecurityContext {
     this.clientCert = clientCert;
 
     X500Principal subject = clientCert.getSubjectX500Principal();
-    setClientX500Principal(subject);
-    setClientX500Name(X500NameUtils.getReadableForm(subject));
+    X500NameCache.Names subjectNames = X500NameCache.get(subject);
 
-    setClientName(OpensslNameUtils.convertFromRfc2253(getClientX500Name(),
-      false));
+    setClientX500Principal(subject);
+    setClientX500Name(subjectNames.readable);
+    setClientName(subjectNames.openssl);
 
     X500Principal issuer = clientCert.getIssuerX500Principal();
+    X500NameCache.Names issuerNames = X500NameCache.get(issuer);
 
     setIssuerX500Principal(issuer);
-    setIssuerX500Name(X500NameUtils.getReadableForm(issuer));
-    setIssuerName(OpensslNameUtils.convertFromRfc2253(getIssuerX500Name(),
-      false));
+    setIssuerX500Name(issuerNames.readable);
+    setIssuerName(issuerNames.openssl);
   }
 
   /**
@@ -212,31 +206,18 @@ public class SecurityContextImpl implements SecurityContext {
    * If the chain passed as argument is a proxy certificate chain, the client
    * certificate is set from the user certificate present in the chain.
    * 
+   * Chains are checked for order and searched for the user certificate in a
+   * single walk, and are only sorted when they are found out of order.
+   * 
    * @param clientCertChain
    *          The client's certificate chain
    */
   public void setClientCertChain(X509Certificate[] clientCertChain) {
 
-    X509Certificate[] orderedClientCertChain = null;
-
-    try {
-
-      orderedClientCertChain = CertificateHelpers.sortChain(Arrays
-        .asList(clientCertChain));
-
-    } catch (IOException e) {
-
-      throw new RuntimeException(e.getMessage(), e);
-    }
-
-    this.clientCertChain = orderedClientCertChain;
-
-    if (ProxyUtils.isProxy(clientCertChain)) {
-      setClientCert(ProxyUtils.getEndUserCertificate(clientCertChain));
-    } else {
-      setClientCert(clientCertChain[0]);
-    }
+    OrderedChain ordered = OrderedChain.of(clientCertChain);
 
+    this.clientCertChain = ordered.chain;
+    setClientCert(ordered.endEntityCert);
   }
 
   /**
@@ -0,0 +1,305 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A store of security contexts, indexed by a fingerprint of the client
+ * certificate chain, with a bounded memory budget.
+ * 
+ * An entry holds the security context built for a chain, so that a lookup
+ * returns it as is, without ordering the chain or rendering the client and
+ * issuer names again. The memory used by an entry is estimated as a fixed
+ * overhead plus the encoded size of the client certificate chain and of the
+ * attribute certificates.
+ * 
+ * When the budget is exceeded, the least recently used entries are evicted.
+ * Entries also expire a fixed time after they are created, if a time to live
+ * is set.
+ */
+public class SecurityContextStore {
+
+  /**
+   * Default memory budget, in bytes.
+   */
+  public static final long DEFAULT_MAX_MEMORY = 16 * 1024 * 1024;
+
+  /**
+   * The estimated memory used by an entry besides its certificates and
+   * attribute certificates.
+   */
+  static final int ENTRY_OVERHEAD = 512;
+
+  /**
+   * A stored security context.
+   */
+  static final class Entry {
+
+    final ChainFingerprint key;
+    final VOMSSecurityContextImpl context;
+    final LazyVOMSAttributes attributes;
+    final int chainSize;
+    final long creationTime;
+
+    /**
+     * The memory accounted for this entry. Guarded by the store.
+     */
+    int weight;
+
+    Entry(ChainFingerprint key, VOMSSecurityContextImpl context, int chainSize,
+      long creationTime) {
+
+      this.key = key;
+      this.context = context;
+      this.attributes = context.getLazyVOMSAttributes();
+      this.chainSize = chainSize;
+      this.creationTime = creationTime;
+    }
+
+    int currentWeight() {
+
+      return ENTRY_OVERHEAD + chainSize + attributes.getEncodedSize();
+    }
+  }
+
+  private final long maxMemory;
+
+  private final long timeToLiveInMsec;
+
+  /**
+   * The entries, least recently used first. Guarded by itself.
+   */
+  private final Map<ChainFingerprint, Entry> entries = new LinkedHashMap<ChainFingerprint, Entry>(
+    16, 0.75f, true);
+
+  private long memoryUsage = 0;
+
+  private long evictions = 0;
+
+  private long expirations = 0;
+
+  /**
+   * Builds a store with the default memory budget and no time to live.
+   */
+  public SecurityContextStore() {
+
+    this(DEFAULT_MAX_MEMORY, 0);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param maxMemory
+   *          the memory budget, in bytes
+   * @param timeToLiveInMsec
+   *          how long an entry is kept after it is created, zero means no
+   *          limit
+   */
+  public SecurityContextStore(long maxMemory, long timeToLiveInMsec) {
+
+    if (maxMemory <= 0)
+      throw new IllegalArgumentException(
+        "Memory budget must be a positive number");
+
+    this.maxMemory = maxMemory;
+    this.timeToLiveInMsec = timeToLiveInMsec;
+  }
+
+  /**
+   * Looks up the entry for a chain.
+   * 
+   * @param chain
+   *          the client certificate chain
+   * @return the entry, or <code>null</code> if none is stored or it has
+   *         expired
+   */
+  Entry get(X509Certificate[] chain) {
+
+    ChainFingerprint key = ChainFingerprint.of(chain);
+
+    if (key == null)
+      return null;
+
+    synchronized (entries) {
+
+      Entry e = entries.get(key);
+
+      if (e == null)
+        return null;
+
+      if (timeToLiveInMsec > 0
+        && System.currentTimeMillis() - e.creationTime > timeToLiveInMsec) {
+        removeEntry(e);
+        expirations++;
+        return null;
+      }
+
+      // Attributes may have been processed since the entry was stored
+      int weight = e.currentWeight();
+      memoryUsage += weight - e.weight;
+      e.weight = weight;
+      evict();
+
+      return e;
+    }
+  }
+
+  /**
+   * Stores a security context.
+   * 
+   * @param chain
+   *          the client certificate chain
+   * @param context
+   *          the security context built for the chain
+   * @param creationTime
+   *          the time the context was created
+   */
+  void put(X509Certificate[] chain, VOMSSecurityContextImpl context,
+    long creationTime) {
+
+    ChainFingerprint key = ChainFingerprint.of(chain);
+
+    if (key == null)
+      return;
+
+    Entry e = new Entry(key, context, encodedSize(chain), creationTime);
+    e.weight = e.currentWeight();
+
+    synchronized (entries) {
+
+      Entry old = entries.put(key, e);
+
+      if (old != null)
+        memoryUsage -= old.weight;
+
+      memoryUsage += e.weight;
+      evict();
+    }
+  }
+
+  /**
+   * Removes an entry, if it is still stored.
+   */
+  void remove(Entry e) {
+
+    synchronized (entries) {
+      if (entries.get(e.key) == e)
+        removeEntry(e);
+    }
+  }
+
+  private void removeEntry(Entry e) {
+
+    entries.remove(e.key);
+    memoryUsage -= e.weight;
+  }
+
+  /**
+   * Evicts the least recently used entries until the store fits its budget.
+   * Must be called holding the store lock.
+   */
+  private void evict() {
+
+    Iterator<Entry> i = entries.values().iterator();
+
+    while (memoryUsage > maxMemory && i.hasNext()) {
+      Entry e = i.next();
+      i.remove();
+      memoryUsage -= e.weight;
+      evictions++;
+    }
+  }
+
+  private static int encodedSize(X509Certificate[] chain) {
+
+    int size = 0;
+
+    try {
+
+      for (X509Certificate c : chain)
+        size += c.getEncoded().length;
+
+    } catch (CertificateEncodingException e) {
+      // Not reached, the chain has been fingerprinted
+    }
+
+    return size;
+  }
+
+  /**
+   * Drops all the stored entries.
+   */
+  public void clear() {
+
+    synchronized (entries) {
+      entries.clear();
+      memoryUsage = 0;
+    }
+  }
+
+  /**
+   * @return the number of stored entries
+   */
+  public int size() {
+
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return the estimated memory used by the stored entries, in bytes
+   */
+  public long getMemoryUsage() {
+
+    synchronized (entries) {
+      return memoryUsage;
+    }
+  }
+
+  /**
+   * @return the memory budget, in bytes
+   */
+  public long getMaxMemory() {
+
+    return maxMemory;
+  }
+
+  /**
+   * @return the number of entries evicted to fit the memory budget
+   */
+  public long getEvictionCount() {
+
+    synchronized (entries) {
+      return evictions;
+    }
+  }
+
+  /**
+   * @return the number of entries dropped because their time to live elapsed
+   */
+  public long getExpirationCount() {
+
+    synchronized (entries) {
+      return expirations;
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+/**
+ * Group and role membership queries on the VOMS attributes of a
+ * {@link VOMSSecurityContext}, answered without scanning the attributes on
+ * each call. Implemented by {@link VOMSSecurityContextImpl}.
+ */
+public interface VOMSMembership {
+
+  /**
+   * Tells whether the client holds a FQAN. The <code>Role=NULL</code> and
+   * <code>Capability=NULL</code> components are ignored, so
+   * <code>/atlas</code> and <code>/atlas/Role=NULL/Capability=NULL</code>
+   * are the same FQAN.
+   * 
+   * @param fqan
+   *          the FQAN
+   * @return <code>true</code> if one of the VOMS attributes includes the FQAN
+   */
+  public boolean hasFqan(String fqan);
+
+  /**
+   * Tells whether the client holds a FQAN matching a pattern.
+   * 
+   * @param pattern
+   *          the compiled FQAN pattern
+   * @return <code>true</code> if one of the VOMS attributes includes a
+   *         matching FQAN
+   */
+  public boolean hasFqan(FQANPattern pattern);
+
+  /**
+   * Tells whether the client is a member of a group, whatever the role.
+   * 
+   * @param group
+   *          the group name, e.g. <code>/atlas/production</code>
+   * @return <code>true</code> if one of the VOMS attributes includes a FQAN
+   *         in the group
+   */
+  public boolean hasGroup(String group);
+
+  /**
+   * Tells whether the client holds a role in a group.
+   * 
+   * @param group
+   *          the group name
+   * @param role
+   *          the role name
+   * @return <code>true</code> if one of the VOMS attributes includes the
+   *         <code>group/Role=role</code> FQAN
+   */
+  public boolean hasRole(String group, String role);
+
+}
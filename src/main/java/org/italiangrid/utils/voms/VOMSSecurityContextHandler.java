@@ -15,15 +15,26 @@
  */
 package org.italiangrid.utils.voms;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.cert.X509Certificate;
-import java.util.concurrent.TimeUnit;
-
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLSession;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.nio.SslConnection;
+import org.eclipse.jetty.server.AbstractHttpConnection;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
@@ -31,6 +42,9 @@ import org.italiangrid.voms.ac.VOMSACValidator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.X509CertChainValidatorExt;
+
 /**
  * A Jetty Handler that initializes a {@link VOMSSecurityContextImpl} and logs a
  * message about the authenticated connection.
@@ -38,6 +52,15 @@ import org.slf4j.LoggerFactory;
  * It should be included in front of other handlers to initialize the security
  * context so that handlers down the line can process the X.509 and VOMS
  * attributes and leverage the information to take authorization decisions.
+ * The context is available to those handlers as the {@link #CONTEXT_KEY}
+ * request attribute.
+ * 
+ * By default the context is kept in the HTTP session. Services whose clients
+ * do not keep cookies can keep it in the TLS session instead (see
+ * {@link ContextScope}), so that no HTTP session is created and all requests
+ * on a connection, or on connections resuming the same TLS session, share the
+ * context. Servers with many clients can instead keep contexts in a
+ * {@link SecurityContextStore}, whose memory use is bounded.
  * 
  * @author andreaceccanti
  * 
@@ -50,75 +73,541 @@ public class VOMSSecurityContextHandler extends AbstractHandler implements
 
   public static final String CONTEXT_KEY = "org.italiangrind.SecurityContext";
 
-  private static final long SESSION_LIFETIME_IN_MSECS = TimeUnit.MINUTES
-    .toMillis(5);
+  /**
+   * The HTTP session attribute holding the time the security context was
+   * created.
+   */
+  private static final String CONTEXT_CREATION_TIME_KEY = CONTEXT_KEY
+    + ".creationTime";
+
+  /**
+   * Where security contexts are kept between requests
+   */
+  public enum ContextScope {
+
+    /**
+     * The context is kept in the HTTP session.
+     */
+    HTTP_SESSION,
+
+    /**
+     * The context is kept in the TLS session. Requests on connections without
+     * a TLS session get a new context each time.
+     */
+    TLS_SESSION,
+
+    /**
+     * The context is kept in a {@link SecurityContextStore}, indexed by the
+     * client certificate chain.
+     */
+    CONTEXT_STORE
+  }
+
+  /**
+   * A security context kept in a TLS session
+   */
+  private static final class BoundContext {
+
+    final VOMSSecurityContext context;
+    final long creationTime;
+
+    BoundContext(VOMSSecurityContext context, long creationTime) {
+
+      this.context = context;
+      this.creationTime = creationTime;
+    }
+  }
 
-  private final VOMSACValidator validator;
+  private volatile VOMSACValidator validator;
+
+  /**
+   * The validator being built, if it was not available at construction time
+   */
+  private final Future<VOMSACValidator> pendingValidator;
+
+  /**
+   * Whether the failure to build the pending validator has been logged
+   */
+  private final AtomicBoolean loadFailureLogged = new AtomicBoolean();
 
   private final boolean secure;
 
+  private volatile ContextScope contextScope = ContextScope.HTTP_SESSION;
+
+  private volatile SecurityContextStore contextStore;
+
+  /**
+   * The maximum time a security context is kept, zero or less means no limit
+   */
+  private volatile long maxContextLifetimeInMsec = 0;
+
+  /**
+   * The validator used to authenticate clients, whose reloads expire the
+   * security contexts. May be <code>null</code>.
+   */
+  private final X509CertChainValidatorExt certChainValidator;
+
+  /**
+   * The modification time and size of a trust store file
+   */
+  private static final class FileStamp {
+
+    final long lastModified;
+    final long length;
+
+    FileStamp(File f) {
+
+      lastModified = f.lastModified();
+      length = f.length();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+      if (!(obj instanceof FileStamp))
+        return false;
+
+      FileStamp other = (FileStamp) obj;
+      return lastModified == other.lastModified && length == other.length;
+    }
+
+    @Override
+    public int hashCode() {
+
+      return (int) (lastModified ^ (lastModified >>> 32) ^ length);
+    }
+  }
+
+  /**
+   * The time the reload listener was registered. Files not modified since
+   * were loaded before any context was built.
+   */
+  private final long listenerRegistrationTime;
+
+  /**
+   * The trust anchor and CRL files the validator reported as loaded, with
+   * their stamp at that time
+   */
+  private final ConcurrentMap<String, FileStamp> loadedFiles = new ConcurrentHashMap<String, FileStamp>();
+
+  /**
+   * The last time the content of the trust anchors or CRLs changed
+   */
+  private volatile long lastReloadTime = 0;
+
+  /**
+   * Expires the security contexts when a trust anchor or CRL is successfully
+   * loaded from a file that changed since it was last loaded. Errors and
+   * warnings, and files loaded again unchanged by a full rescan of the trust
+   * store, leave the contexts alone. Locations which are not local files are
+   * taken as changed.
+   */
+  private final StoreUpdateListener reloadListener = new StoreUpdateListener() {
+
+    public void loadingNotification(String location, String type,
+      Severity level, Exception cause) {
+
+      if (level != Severity.NOTIFICATION || location == null
+        || !(StoreUpdateListener.CA_CERT.equals(type) || StoreUpdateListener.CRL
+          .equals(type)))
+        return;
+
+      File f = new File(location.startsWith("file:") ? location.substring(5)
+        : location);
+
+      if (!f.isFile()) {
+        lastReloadTime = System.currentTimeMillis();
+        return;
+      }
+
+      FileStamp stamp = new FileStamp(f);
+      FileStamp previous = loadedFiles.put(location, stamp);
+
+      if (previous == null ? stamp.lastModified >= listenerRegistrationTime
+        : !previous.equals(stamp))
+        lastReloadTime = System.currentTimeMillis();
+    }
+  };
+
+  /**
+   * Builds a handler whose security contexts expire when the client
+   * credentials expire, or earlier if a maximum context lifetime is set (see
+   * {@link #setMaxContextLifetimeInMsec}).
+   * 
+   * @param validator
+   *          the VOMS attribute certificate validator
+   * @param secure
+   */
   public VOMSSecurityContextHandler(VOMSACValidator validator, boolean secure) {
 
     this.validator = validator;
+    this.pendingValidator = null;
+    this.certChainValidator = null;
     this.secure = secure;
+    this.listenerRegistrationTime = 0;
   }
 
-  private HttpSession getSession(HttpServletRequest request) {
+  /**
+   * Builds a handler whose security contexts also expire when the given
+   * validator loads changed trust anchors or CRLs, so that clients whose
+   * certificates have been revoked in the meantime are validated again.
+   * 
+   * @param validator
+   *          the VOMS attribute certificate validator
+   * @param certChainValidator
+   *          the validator used to authenticate clients
+   * @param secure
+   */
+  public VOMSSecurityContextHandler(VOMSACValidator validator,
+    X509CertChainValidatorExt certChainValidator, boolean secure) {
 
-    HttpSession session = request.getSession();
+    this.validator = validator;
+    this.pendingValidator = null;
+    this.certChainValidator = certChainValidator;
+    this.secure = secure;
+    this.listenerRegistrationTime = System.currentTimeMillis();
+
+    certChainValidator.addUpdateListener(reloadListener);
+  }
+
+  /**
+   * Builds a handler whose validator is still being built, e.g. by
+   * {@link VOMSValidatorLoader}. Requests wait for the validator to be ready
+   * only when they need it, so the server can start accepting connections in
+   * the meantime. If the validator cannot be built, the failure is logged once
+   * and requests are refused.
+   * 
+   * Security contexts also expire when the given certificate chain validator
+   * loads changed trust anchors or CRLs.
+   * 
+   * @param validator
+   *          the validator being built
+   * @param certChainValidator
+   *          the validator used to authenticate clients
+   * @param secure
+   */
+  public VOMSSecurityContextHandler(Future<VOMSACValidator> validator,
+    X509CertChainValidatorExt certChainValidator, boolean secure) {
+
+    this.pendingValidator = validator;
+    this.certChainValidator = certChainValidator;
+    this.secure = secure;
+    this.listenerRegistrationTime = System.currentTimeMillis();
+
+    certChainValidator.addUpdateListener(reloadListener);
+  }
+
+  @Override
+  public void destroy() {
+
+    if (certChainValidator != null)
+      certChainValidator.removeUpdateListener(reloadListener);
+
+    super.destroy();
+  }
+
+  /**
+   * @return the validator, or <code>null</code> if it could not be built
+   */
+  private VOMSACValidator getValidator() {
+
+    if (validator != null)
+      return validator;
+
+    try {
+
+      validator = pendingValidator.get();
+      return validator;
+
+    } catch (InterruptedException e) {
+
+      Thread.currentThread().interrupt();
+      return null;
+
+    } catch (ExecutionException e) {
+
+      if (loadFailureLogged.compareAndSet(false, true))
+        log.error("Error building the VOMS validator: {}", e.getCause()
+          .getMessage(), e.getCause());
+
+      return null;
+    }
+  }
+
+  public ContextScope getContextScope() {
+
+    return contextScope;
+  }
+
+  /**
+   * Sets where security contexts are kept between requests. The default is
+   * {@link ContextScope#HTTP_SESSION}.
+   * 
+   * @param contextScope
+   *          the context scope
+   */
+  public void setContextScope(ContextScope contextScope) {
+
+    this.contextScope = contextScope;
+  }
+
+  public SecurityContextStore getContextStore() {
+
+    return contextStore;
+  }
+
+  /**
+   * Keeps security contexts in the given store, and sets the context scope to
+   * {@link ContextScope#CONTEXT_STORE}. A store can be shared by several
+   * handlers using the same validator.
+   * 
+   * @param contextStore
+   *          the context store
+   */
+  public void setContextStore(SecurityContextStore contextStore) {
+
+    this.contextStore = contextStore;
+    this.contextScope = ContextScope.CONTEXT_STORE;
+  }
+
+  public long getMaxContextLifetimeInMsec() {
+
+    return maxContextLifetimeInMsec;
+  }
+
+  /**
+   * Sets the maximum time a security context is kept. Whatever this setting,
+   * a context expires when the earliest certificate in the client chain, or
+   * the earliest VOMS attribute certificate, expires, and when the certificate
+   * chain validator passed at construction time loads changed trust anchors
+   * or CRLs. By default there is no limit.
+   * 
+   * @param maxContextLifetimeInMsec
+   *          the maximum context lifetime, in milliseconds, zero or less means
+   *          no limit
+   */
+  public void setMaxContextLifetimeInMsec(long maxContextLifetimeInMsec) {
+
+    this.maxContextLifetimeInMsec = maxContextLifetimeInMsec;
+  }
+
+  /**
+   * Tells whether a security context has expired.
+   * 
+   * @param sc
+   *          the security context
+   * @param creationTime
+   *          the time the context was created
+   * @return <code>true</code> if the context must be built again
+   */
+  boolean isExpired(VOMSSecurityContext sc, long creationTime) {
+
+    long now = System.currentTimeMillis();
 
-    if (!session.isNew()) {
-      long creationTime = session.getCreationTime();
-      if (System.currentTimeMillis() - creationTime > SESSION_LIFETIME_IN_MSECS) {
-        session.invalidate();
-        session = request.getSession(true);
+    if (creationTime <= lastReloadTime)
+      return true;
+
+    long maxLifetime = maxContextLifetimeInMsec;
+
+    if (maxLifetime > 0 && now - creationTime > maxLifetime)
+      return true;
+
+    X509Certificate[] chain = sc.getClientCertChain();
+
+    if (chain != null) {
+      for (X509Certificate c : chain) {
+        if (now >= c.getNotAfter().getTime())
+          return true;
       }
     }
-    return session;
+
+    if (sc instanceof VOMSSecurityContextImpl
+      && now >= ((VOMSSecurityContextImpl) sc).getAttributesNotAfter())
+      return true;
+
+    return false;
   }
 
-  private void initSecurityContext(HttpServletRequest request) {
+  /**
+   * Builds the security context for a client.
+   * 
+   * @param certChain
+   *          the client certificate chain
+   * @return the security context, or <code>null</code> if it could not be
+   *         built
+   */
+  VOMSSecurityContext newSecurityContext(X509Certificate[] certChain) {
 
-    try {
+    VOMSACValidator v = getValidator();
 
-      VOMSSecurityContext sc = new VOMSSecurityContextImpl(validator, secure);
+    if (v == null)
+      return null;
 
-      X509Certificate[] certChain = (X509Certificate[]) request
-        .getAttribute("javax.servlet.request.X509Certificate");
+    try {
 
-      sc.setClientCertChain(certChain);
+      VOMSSecurityContext sc = new VOMSSecurityContextImpl(v, secure);
 
-      request.getSession().setAttribute(CONTEXT_KEY, sc);
+      sc.setClientCertChain(certChain);
+      return sc;
 
     } catch (Throwable t) {
 
       log.error(t.getMessage(), t);
+      return null;
     }
   }
 
-  private VOMSSecurityContext getSecurityContext(HttpServletRequest request) {
+  static X509Certificate[] getClientCertChain(HttpServletRequest request) {
+
+    return (X509Certificate[]) request
+      .getAttribute("javax.servlet.request.X509Certificate");
+  }
+
+  /**
+   * Tells whether two certificate chains hold the same certificates, in any
+   * order. Contexts keep their chain ordered from the end entity up, while
+   * clients may send it in any order.
+   */
+  static boolean sameCertificates(X509Certificate[] a, X509Certificate[] b) {
+
+    if (a == null || b == null)
+      return a == b;
+
+    if (a.length != b.length)
+      return false;
+
+    return new HashSet<X509Certificate>(Arrays.asList(a))
+      .equals(new HashSet<X509Certificate>(Arrays.asList(b)));
+  }
+
+  private static SSLSession getSSLSession(Request baseRequest) {
+
+    AbstractHttpConnection connection = baseRequest.getConnection();
+
+    if (connection == null)
+      return null;
+
+    EndPoint endPoint = connection.getEndPoint();
+
+    if (!(endPoint instanceof SslConnection.SslEndPoint))
+      return null;
+
+    return ((SslConnection.SslEndPoint) endPoint).getSslEngine().getSession();
+  }
+
+  /**
+   * Returns the security context kept for the client in the configured scope.
+   * 
+   * @return the security context, or <code>null</code> if none is kept or it
+   *         has expired
+   */
+  VOMSSecurityContext lookupSecurityContext(Request baseRequest,
+    HttpServletRequest request) {
+
+    if (contextScope == ContextScope.TLS_SESSION) {
+
+      SSLSession sslSession = getSSLSession(baseRequest);
+
+      if (sslSession == null)
+        return null;
+
+      BoundContext bound = (BoundContext) sslSession.getValue(CONTEXT_KEY);
 
-    HttpSession session = getSession(request);
+      if (bound != null && !isExpired(bound.context, bound.creationTime))
+        return bound.context;
+
+      return null;
+    }
+
+    if (contextScope == ContextScope.CONTEXT_STORE)
+      return lookupStoredContext(getClientCertChain(request));
+
+    HttpSession session = request.getSession();
     VOMSSecurityContext sc = (VOMSSecurityContext) session
       .getAttribute(CONTEXT_KEY);
 
-    if (sc == null) {
-      initSecurityContext(request);
+    if (sc == null)
+      return null;
+
+    Long creationTime = (Long) session.getAttribute(CONTEXT_CREATION_TIME_KEY);
+
+    // The session cookie may come with a connection authenticated by another
+    // certificate chain, which must not get the context of the first one
+    if (creationTime == null || isExpired(sc, creationTime)
+      || !sameCertificates(sc.getClientCertChain(), getClientCertChain(request))) {
+      session.invalidate();
+      request.getSession(true);
+      return null;
     }
 
-    return (VOMSSecurityContext) session.getAttribute(CONTEXT_KEY);
+    return sc;
   }
 
-  public void handle(String target, Request baseRequest,
-    HttpServletRequest request, HttpServletResponse response)
-    throws IOException, ServletException {
+  private VOMSSecurityContext lookupStoredContext(X509Certificate[] chain) {
+
+    SecurityContextStore store = contextStore;
+
+    if (store == null || chain == null)
+      return null;
+
+    SecurityContextStore.Entry e = store.get(chain);
+
+    if (e == null)
+      return null;
+
+    if (isExpired(e.context, e.creationTime)) {
+      store.remove(e);
+      return null;
+    }
+
+    return e.context;
+  }
+
+  /**
+   * Keeps the security context for the client in the configured scope.
+   */
+  void storeSecurityContext(Request baseRequest, HttpServletRequest request,
+    VOMSSecurityContext sc) {
+
+    if (sc == null)
+      return;
+
+    if (contextScope == ContextScope.TLS_SESSION) {
+
+      SSLSession sslSession = getSSLSession(baseRequest);
+
+      if (sslSession != null)
+        sslSession.putValue(CONTEXT_KEY, new BoundContext(sc,
+          System.currentTimeMillis()));
+
+      return;
+    }
+
+    if (contextScope == ContextScope.CONTEXT_STORE) {
+
+      // Keyed by the chain as the client sends it, as lookups are
+      SecurityContextStore store = contextStore;
+      X509Certificate[] chain = getClientCertChain(request);
 
-    VOMSSecurityContext sc = getSecurityContext(request);
+      if (store != null && chain != null
+        && sc instanceof VOMSSecurityContextImpl)
+        store.put(chain, (VOMSSecurityContextImpl) sc,
+          System.currentTimeMillis());
+
+      return;
+    }
+
+    HttpSession session = request.getSession();
+    session.setAttribute(CONTEXT_KEY, sc);
+    session.setAttribute(CONTEXT_CREATION_TIME_KEY, System.currentTimeMillis());
+  }
+
+  void logConnection(HttpServletRequest request, VOMSSecurityContext sc) {
 
     if (sc.getClientCertChain() == null) {
       log
         .info("Unauthenticated connection from '{}'.", request.getRemoteAddr());
-    } else {
+    } else if (log.isDebugEnabled()) {
 
       String connectionMessage = String.format(
         "Connection from '%s' by '%s' (issued by '%s') serial: %s. %s",
@@ -130,4 +619,26 @@ public class VOMSSecurityContextHandler extends AbstractHandler implements
     }
   }
 
+  public void handle(String target, Request baseRequest,
+    HttpServletRequest request, HttpServletResponse response)
+    throws IOException, ServletException {
+
+    VOMSSecurityContext sc = lookupSecurityContext(baseRequest, request);
+
+    if (sc == null) {
+      sc = newSecurityContext(getClientCertChain(request));
+      storeSecurityContext(baseRequest, request, sc);
+    }
+
+    if (sc == null) {
+      baseRequest.setHandled(true);
+      response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+        "The security context could not be initialized");
+      return;
+    }
+
+    request.setAttribute(CONTEXT_KEY, sc);
+    logConnection(request, sc);
+  }
+
 }
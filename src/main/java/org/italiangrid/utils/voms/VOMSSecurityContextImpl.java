@@ -29,15 +29,25 @@ import org.italiangrid.voms.ac.VOMSValidationResult;
  * Attributes can then be accessed via the {@link #getVOMSAttributes()} method.
  * When VOMS validation fails, no attributes are returned.
  * 
+ * Attribute certificates are parsed, or validated, only when the attributes
+ * or the validation results are first requested, and the outcome is kept for
+ * the following calls. In secure mode a single validation provides both.
+ * Membership queries are answered from an index of the FQANs, built once.
+ * 
  * @author andreaceccanti
  *
  */
 public class VOMSSecurityContextImpl extends SecurityContextImpl implements
-  VOMSSecurityContext {
+  VOMSSecurityContext, VOMSMembership {
 
   private final VOMSACValidator validator;
   private final boolean secure;
-  private List<VOMSAttribute> vomsAttributes;
+
+  /**
+   * The chain whose attributes are processed
+   */
+  private volatile X509Certificate[] vomsCertChain;
+  private volatile LazyVOMSAttributes vomsAttributes = new LazyVOMSAttributes();
 
   public VOMSSecurityContextImpl(VOMSACValidator validator) {
 
@@ -55,10 +65,41 @@ public class VOMSSecurityContextImpl extends SecurityContextImpl implements
   public void setClientCertChain(X509Certificate[] clientCertChain) {
 
     super.setClientCertChain(clientCertChain);
-    if (!secure)
-      vomsAttributes = validator.parse(clientCertChain);
-    else
-      vomsAttributes = validator.validate(clientCertChain);
+    vomsCertChain = clientCertChain;
+    vomsAttributes = new LazyVOMSAttributes();
+  }
+
+  /**
+   * @return the attributes of this context, which may not have been processed
+   *         yet
+   */
+  LazyVOMSAttributes getLazyVOMSAttributes() {
+
+    return vomsAttributes;
+  }
+
+  /**
+   * Returns the earliest expiration time of the VOMS attributes processed so
+   * far. This does not trigger attribute processing.
+   * 
+   * @return the earliest notAfter time of the attributes, in milliseconds, or
+   *         {@link Long#MAX_VALUE} if no attributes have been processed
+   */
+  public long getAttributesNotAfter() {
+
+    return vomsAttributes.getNotAfter();
+  }
+
+  /**
+   * Returns the valid VOMS attributes, if the attribute certificates have
+   * already been validated. This does not trigger attribute processing.
+   * 
+   * @return the valid attributes, or <code>null</code> if the attribute
+   *         certificates have not been validated yet
+   */
+  List<VOMSAttribute> getValidatedVOMSAttributes() {
+
+    return vomsAttributes.getValidatedAttributes();
   }
 
   @Override
@@ -78,13 +119,43 @@ public class VOMSSecurityContextImpl extends SecurityContextImpl implements
   @Override
   public List<VOMSAttribute> getVOMSAttributes() {
 
-    return vomsAttributes;
+    return vomsAttributes.getAttributes(validator, secure, vomsCertChain);
   }
 
   @Override
   public List<VOMSValidationResult> getValidationResults() {
 
-    return validator.validateWithResult(getClientCertChain());
+    return vomsAttributes.getValidationResults(validator, secure,
+      vomsCertChain);
+  }
+
+  private FQANIndex getFQANIndex() {
+
+    return vomsAttributes.getIndex(validator, secure, vomsCertChain);
+  }
+
+  @Override
+  public boolean hasFqan(String fqan) {
+
+    return getFQANIndex().hasFqan(fqan);
+  }
+
+  @Override
+  public boolean hasFqan(FQANPattern pattern) {
+
+    return getFQANIndex().hasFqan(pattern);
+  }
+
+  @Override
+  public boolean hasGroup(String group) {
+
+    return getFQANIndex().hasGroup(group);
+  }
+
+  @Override
+  public boolean hasRole(String group, String role) {
+
+    return getFQANIndex().hasRole(group, role);
   }
 
 }
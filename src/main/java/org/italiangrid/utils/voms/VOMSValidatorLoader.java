@@ -0,0 +1,189 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.italiangrid.utils.concurrent.NamedThreadFactory;
+import org.italiangrid.utils.https.StartupTimings;
+import org.italiangrid.voms.VOMSValidators;
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.store.VOMSTrustStore;
+import org.italiangrid.voms.store.impl.DefaultVOMSTrustStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.emi.security.authn.x509.X509CertChainValidatorExt;
+
+/**
+ * Builds the VOMS trust store and attribute certificate validator in a
+ * background thread, so that this can be done while the HTTPS connector is
+ * being configured.
+ *
+ * The returned future can be passed to a {@link VOMSSecurityContextHandler},
+ * which waits for the validator only when the first request is handled.
+ */
+public class VOMSValidatorLoader {
+
+  public static final Logger log = LoggerFactory
+    .getLogger(VOMSValidatorLoader.class);
+
+  private VOMSValidatorLoader() {
+
+  }
+
+  /**
+   * Starts building a VOMS validator which reads the default VOMS trust
+   * directories.
+   *
+   * @param validator
+   *          the validator used to check the AA certificate chains
+   * @param timings
+   *          where phase timings are recorded, may be <code>null</code>
+   * @return the VOMS validator being built
+   */
+  public static Future<VOMSACValidator> load(
+    X509CertChainValidatorExt validator, StartupTimings timings) {
+
+    return load(null, validator, timings);
+  }
+
+  /**
+   * Starts building a VOMS validator.
+   *
+   * @param trustedDirs
+   *          the VOMS trust directories, or <code>null</code> to use the
+   *          default ones
+   * @param validator
+   *          the validator used to check the AA certificate chains
+   * @param timings
+   *          where phase timings are recorded, may be <code>null</code>
+   * @return the VOMS validator being built
+   */
+  public static Future<VOMSACValidator> load(List<String> trustedDirs,
+    X509CertChainValidatorExt validator, StartupTimings timings) {
+
+    return load(trustedDirs, validator, 0, timings);
+  }
+
+  /**
+   * Starts building a VOMS validator, whose results are cached by a
+   * {@link CachingVOMSACValidator} which is cleared whenever the VOMS trust
+   * store is reloaded.
+   *
+   * @param trustedDirs
+   *          the VOMS trust directories, or <code>null</code> to use the
+   *          default ones
+   * @param validator
+   *          the validator used to check the AA certificate chains
+   * @param attributeCacheSize
+   *          the maximum number of cached validation results, zero disables
+   *          caching
+   * @param timings
+   *          where phase timings are recorded, may be <code>null</code>
+   * @return the VOMS validator being built
+   */
+  public static Future<VOMSACValidator> load(List<String> trustedDirs,
+    X509CertChainValidatorExt validator, int attributeCacheSize,
+    StartupTimings timings) {
+
+    return load(trustedDirs, validator, attributeCacheSize, 0, timings);
+  }
+
+  /**
+   * Starts building a VOMS validator, whose results are optionally cached.
+   * When an update interval is given, the trust directories are watched by a
+   * {@link WatchedVOMSTrustStore}, and a change only drops the cached results
+   * for the VOs it affects.
+   *
+   * @param trustedDirs
+   *          the VOMS trust directories, or <code>null</code> to use the
+   *          default ones
+   * @param validator
+   *          the validator used to check the AA certificate chains
+   * @param attributeCacheSize
+   *          the maximum number of cached validation results, zero disables
+   *          caching
+   * @param updateIntervalInMsec
+   *          how often the trust directories are checked for changes, zero
+   *          disables watching
+   * @param timings
+   *          where phase timings are recorded, may be <code>null</code>
+   * @return the VOMS validator being built
+   */
+  public static Future<VOMSACValidator> load(final List<String> trustedDirs,
+    final X509CertChainValidatorExt validator, final int attributeCacheSize,
+    final long updateIntervalInMsec, StartupTimings timings) {
+
+    final StartupTimings t = (timings == null) ? new StartupTimings()
+      : timings;
+
+    ExecutorService executor = Executors
+      .newSingleThreadExecutor(new NamedThreadFactory("voms-startup"));
+
+    try {
+
+      return executor.submit(new Callable<VOMSACValidator>() {
+
+        public VOMSACValidator call() throws Exception {
+
+          long start = System.nanoTime();
+
+          VOMSTrustStore trustStore;
+
+          if (updateIntervalInMsec > 0)
+            trustStore = (trustedDirs == null) ? new WatchedVOMSTrustStore(
+              updateIntervalInMsec) : new WatchedVOMSTrustStore(trustedDirs,
+              updateIntervalInMsec);
+          else
+            trustStore = (trustedDirs == null) ? new DefaultVOMSTrustStore()
+              : new DefaultVOMSTrustStore(trustedDirs);
+
+          t.record(StartupTimings.VOMS_TRUST_STORE, start);
+
+          start = System.nanoTime();
+          VOMSACValidator vomsValidator = VOMSValidators.newValidator(
+            trustStore, validator);
+
+          if (attributeCacheSize > 0) {
+            CachingVOMSACValidator cachingValidator = new CachingVOMSACValidator(
+              vomsValidator, attributeCacheSize);
+
+            if (trustStore instanceof WatchedVOMSTrustStore)
+              ((WatchedVOMSTrustStore) trustStore)
+                .addUpdateListener(cachingValidator);
+            else
+              trustStore.setStatusListener(cachingValidator);
+
+            vomsValidator = cachingValidator;
+          }
+
+          t.record(StartupTimings.VOMS_VALIDATOR, start);
+
+          log.debug("VOMS validator built: {}", t);
+          return vomsValidator;
+        }
+      });
+
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
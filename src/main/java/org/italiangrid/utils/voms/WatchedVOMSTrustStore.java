@@ -0,0 +1,504 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.italiangrid.utils.concurrent.PollingFileWatcher;
+import org.italiangrid.voms.VOMSError;
+import org.italiangrid.voms.store.LSCInfo;
+import org.italiangrid.voms.store.UpdatingVOMSTrustStore;
+import org.italiangrid.voms.store.VOMSTrustStoreStatusListener;
+import org.italiangrid.voms.store.impl.DefaultLSCFileParser;
+import org.italiangrid.voms.store.impl.DefaultVOMSTrustStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.CertificateUtils.Encoding;
+
+/**
+ * A VOMS trust store which watches its trust directories and reloads only the
+ * AA certificate and LSC files which changed.
+ *
+ * Trust directories are laid out as the {@link DefaultVOMSTrustStore} expects:
+ * AA certificates (<code>.pem</code>) are found at the top level or in a VO
+ * subdirectory, LSC files (<code>&lt;hostname&gt;.lsc</code>) in the VO
+ * subdirectories. Lookups read an immutable index that is replaced atomically
+ * after each update, so validations never block on a reload.
+ *
+ * After each update, the {@link UpdateListener}s are told which VOs were
+ * affected, e.g. so that a {@link CachingVOMSACValidator} can drop the results
+ * cached for those VOs only.
+ */
+public class WatchedVOMSTrustStore implements UpdatingVOMSTrustStore,
+  PollingFileWatcher.Listener {
+
+  public static final Logger log = LoggerFactory
+    .getLogger(WatchedVOMSTrustStore.class);
+
+  /**
+   * A listener notified after the trust information has been updated.
+   */
+  public interface UpdateListener {
+
+    /**
+     * Called after AA certificate or LSC files have been reloaded.
+     * 
+     * @param voNames
+     *          the VOs whose files changed, or <code>null</code> if AA
+     *          certificates shared by all VOs changed
+     */
+    public void trustInformationUpdated(Set<String> voNames);
+  }
+
+  private static final FileFilter TRUST_FILES = new FileFilter() {
+
+    public boolean accept(File f) {
+
+      return isCertificateFile(f) || isLSCFile(f);
+    }
+  };
+
+  /**
+   * An immutable index of the trust information.
+   */
+  private static final class Index {
+
+    final List<X509Certificate> certificates;
+    final Map<X500Principal, X509Certificate> certificatesBySubject;
+    final Map<String, Set<LSCInfo>> lscByVO;
+
+    Index(Collection<X509Certificate> certificates,
+      Collection<LSCInfo> lscInfos) {
+
+      this.certificates = Collections
+        .unmodifiableList(new ArrayList<X509Certificate>(certificates));
+
+      Map<X500Principal, X509Certificate> bySubject = new HashMap<X500Principal, X509Certificate>();
+
+      for (X509Certificate c : certificates)
+        bySubject.put(c.getSubjectX500Principal(), c);
+
+      Map<String, Set<LSCInfo>> byVO = new HashMap<String, Set<LSCInfo>>();
+
+      for (LSCInfo lsc : lscInfos) {
+
+        Set<LSCInfo> s = byVO.get(lsc.getVOName());
+
+        if (s == null) {
+          s = new HashSet<LSCInfo>();
+          byVO.put(lsc.getVOName(), s);
+        }
+
+        s.add(lsc);
+      }
+
+      for (Map.Entry<String, Set<LSCInfo>> e : byVO.entrySet())
+        e.setValue(Collections.unmodifiableSet(e.getValue()));
+
+      this.certificatesBySubject = bySubject;
+      this.lscByVO = Collections.unmodifiableMap(byVO);
+    }
+  }
+
+  private final List<String> trustedDirs;
+
+  private final List<File> roots = new ArrayList<File>();
+
+  private final long updateIntervalInMsec;
+
+  private final PollingFileWatcher watcher;
+
+  /**
+   * The AA certificates, indexed by the file they were loaded from. Guarded by
+   * this.
+   */
+  private final Map<File, X509Certificate> certificatesByFile = new HashMap<File, X509Certificate>();
+
+  /**
+   * The LSC files, indexed by the file they were loaded from. Guarded by this.
+   */
+  private final Map<File, LSCInfo> lscByFile = new HashMap<File, LSCInfo>();
+
+  private volatile Index index = new Index(
+    Collections.<X509Certificate> emptyList(),
+    Collections.<LSCInfo> emptyList());
+
+  private volatile VOMSTrustStoreStatusListener statusListener;
+
+  private final List<UpdateListener> updateListeners = new CopyOnWriteArrayList<UpdateListener>();
+
+  /**
+   * Builds a store which watches the default VOMS trust directory.
+   *
+   * @param updateIntervalInMsec
+   *          how often the trust directories are checked for changes, zero
+   *          disables watching
+   */
+  public WatchedVOMSTrustStore(long updateIntervalInMsec) {
+
+    this(Collections.singletonList(DefaultVOMSTrustStore.DEFAULT_VOMS_DIR),
+      updateIntervalInMsec);
+  }
+
+  /**
+   * Constructor. The trust information is loaded before this returns.
+   *
+   * @param trustedDirs
+   *          the trust directories
+   * @param updateIntervalInMsec
+   *          how often the trust directories are checked for changes, zero
+   *          disables watching
+   */
+  public WatchedVOMSTrustStore(List<String> trustedDirs,
+    long updateIntervalInMsec) {
+
+    if (trustedDirs == null || trustedDirs.isEmpty())
+      throw new VOMSError(
+        "Please provide at least one path where LSC and VOMS service certificates will be searched for.");
+
+    this.trustedDirs = Collections.unmodifiableList(new ArrayList<String>(
+      trustedDirs));
+    this.updateIntervalInMsec = updateIntervalInMsec;
+
+    for (String d : trustedDirs) {
+
+      File dir = new File(d);
+
+      if (!dir.isDirectory())
+        throw new VOMSError("Local trust directory is not a directory: "
+          + dir.getAbsolutePath());
+
+      roots.add(dir);
+    }
+
+    loadTrustInformation();
+
+    if (updateIntervalInMsec > 0) {
+      watcher = new PollingFileWatcher(roots, TRUST_FILES,
+        updateIntervalInMsec, this);
+      watcher.start();
+    } else {
+      watcher = null;
+    }
+  }
+
+  private static boolean isCertificateFile(File f) {
+
+    return f.getName().endsWith(DefaultVOMSTrustStore.CERTIFICATE_FILENAME_SUFFIX);
+  }
+
+  private static boolean isLSCFile(File f) {
+
+    return f.getName().endsWith(DefaultVOMSTrustStore.LSC_FILENAME_SUFFIX);
+  }
+
+  /**
+   * Registers a listener notified after each update.
+   *
+   * @param listener
+   *          the listener
+   */
+  public void addUpdateListener(UpdateListener listener) {
+
+    updateListeners.add(listener);
+  }
+
+  public void removeUpdateListener(UpdateListener listener) {
+
+    updateListeners.remove(listener);
+  }
+
+  /**
+   * Reloads the given files.
+   */
+  public void filesChanged(Set<File> changedFiles) {
+
+    update(changedFiles);
+  }
+
+  /**
+   * Rescans all the trust directories.
+   */
+  public void loadTrustInformation() {
+
+    Set<File> files = new HashSet<File>();
+
+    synchronized (this) {
+      files.addAll(certificatesByFile.keySet());
+      files.addAll(lscByFile.keySet());
+    }
+
+    for (File root : roots) {
+
+      notifyCertificateLookup(root);
+
+      File[] children = root.listFiles();
+
+      if (children == null)
+        continue;
+
+      for (File c : children) {
+
+        if (c.isDirectory()) {
+
+          notifyLSCLookup(c);
+          notifyCertificateLookup(c);
+
+          File[] voFiles = c.listFiles(TRUST_FILES);
+
+          if (voFiles != null)
+            files.addAll(Arrays.asList(voFiles));
+
+        } else if (isCertificateFile(c)) {
+          files.add(c);
+        }
+      }
+    }
+
+    update(files);
+  }
+
+  /**
+   * Loads the given files, or drops them if they no longer exist, and swaps in
+   * the new index.
+   */
+  private void update(Collection<File> files) {
+
+    Set<String> voNames = new HashSet<String>();
+    boolean sharedCertificatesChanged = false;
+    int count = 0;
+
+    synchronized (this) {
+
+      for (File f : files) {
+
+        File dir = f.getParentFile();
+        String voName = null;
+
+        if (dir == null)
+          continue;
+
+        if (!roots.contains(dir)) {
+
+          if (!roots.contains(dir.getParentFile()))
+            continue;
+
+          voName = dir.getName();
+        }
+
+        if (isCertificateFile(f)) {
+
+          X509Certificate cert = f.isFile() ? loadCertificate(f) : null;
+
+          if (cert == null)
+            certificatesByFile.remove(f);
+          else
+            certificatesByFile.put(f, cert);
+
+        } else if (isLSCFile(f) && voName != null) {
+
+          LSCInfo lsc = f.isFile() ? loadLSC(voName, f) : null;
+
+          if (lsc == null)
+            lscByFile.remove(f);
+          else
+            lscByFile.put(f, lsc);
+
+        } else {
+          continue;
+        }
+
+        count++;
+
+        if (voName == null)
+          sharedCertificatesChanged = true;
+        else
+          voNames.add(voName);
+      }
+
+      index = new Index(certificatesByFile.values(), lscByFile.values());
+    }
+
+    if (count == 0)
+      return;
+
+    log.debug("VOMS trust information updated: {} files reloaded", count);
+
+    Set<String> affected = sharedCertificatesChanged ? null : Collections
+      .unmodifiableSet(voNames);
+
+    for (UpdateListener l : updateListeners) {
+      try {
+        l.trustInformationUpdated(affected);
+      } catch (Throwable t) {
+        log.error("Error notifying VOMS trust store update: {}",
+          t.getMessage(), t);
+      }
+    }
+  }
+
+  private X509Certificate loadCertificate(File f) {
+
+    InputStream is = null;
+
+    try {
+
+      is = new BufferedInputStream(new FileInputStream(f));
+      X509Certificate cert = CertificateUtils.loadCertificate(is,
+        Encoding.PEM);
+
+      VOMSTrustStoreStatusListener l = statusListener;
+      if (l != null)
+        l.notifyCertificateLoadEvent(cert, f);
+
+      return cert;
+
+    } catch (Exception e) {
+
+      log.warn("Error parsing VOMS trusted certificate from {}: {}",
+        f.getAbsolutePath(), e.getMessage());
+      return null;
+
+    } finally {
+
+      if (is != null) {
+        try {
+          is.close();
+        } catch (Exception e) {
+          // Ignore
+        }
+      }
+    }
+  }
+
+  private LSCInfo loadLSC(String voName, File f) {
+
+    String name = f.getName();
+    String hostname = name.substring(0,
+      name.length() - DefaultVOMSTrustStore.LSC_FILENAME_SUFFIX.length());
+
+    try {
+
+      LSCInfo lsc = new DefaultLSCFileParser().parse(voName, hostname, f);
+
+      VOMSTrustStoreStatusListener l = statusListener;
+      if (l != null)
+        l.notifyLSCLoadEvent(lsc, f);
+
+      return lsc;
+
+    } catch (VOMSError e) {
+
+      log.warn("Error parsing LSC file {}: {}", f.getAbsolutePath(),
+        e.getMessage());
+      return null;
+    }
+  }
+
+  private void notifyCertificateLookup(File dir) {
+
+    VOMSTrustStoreStatusListener l = statusListener;
+
+    if (l != null)
+      l.notifyCertficateLookupEvent(dir.getAbsolutePath());
+  }
+
+  private void notifyLSCLookup(File dir) {
+
+    VOMSTrustStoreStatusListener l = statusListener;
+
+    if (l != null)
+      l.notifyLSCLookupEvent(dir.getAbsolutePath());
+  }
+
+  public List<String> getLocalTrustedDirectories() {
+
+    return trustedDirs;
+  }
+
+  public List<X509Certificate> getLocalAACertificates() {
+
+    return index.certificates;
+  }
+
+  public X509Certificate getAACertificateBySubject(X500Principal aaCertSubject) {
+
+    return index.certificatesBySubject.get(aaCertSubject);
+  }
+
+  public LSCInfo getLSC(String voName, String hostname) {
+
+    Set<LSCInfo> candidates = index.lscByVO.get(voName);
+
+    if (candidates == null)
+      return null;
+
+    for (LSCInfo lsc : candidates) {
+      if (lsc.getHostname().equals(hostname))
+        return lsc;
+    }
+
+    return null;
+  }
+
+  public Map<String, Set<LSCInfo>> getAllLSCInfo() {
+
+    return index.lscByVO;
+  }
+
+  public void setStatusListener(VOMSTrustStoreStatusListener statusListener) {
+
+    this.statusListener = statusListener;
+  }
+
+  public long getUpdateFrequency() {
+
+    return updateIntervalInMsec;
+  }
+
+  public void update() {
+
+    loadTrustInformation();
+  }
+
+  /**
+   * Stops watching the trust directories.
+   */
+  public void cancel() {
+
+    if (watcher != null)
+      watcher.stop();
+  }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.voms;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.x500.X500Principal;
+
+import eu.emi.security.authn.x509.impl.OpensslNameUtils;
+import eu.emi.security.authn.x509.impl.X500NameUtils;
+
+/**
+ * A bounded cache of the string forms of distinguished names, indexed by their
+ * encoding.
+ * 
+ * Building a security context renders the subject and issuer names of the
+ * client certificate, and the same names, especially issuer ones, recur
+ * endlessly. Cached names are shared by all the contexts, so rendering a name
+ * already seen allocates nothing but the lookup key.
+ * 
+ * Lookups neither lock nor modify the cache. When the cache is full, arbitrary
+ * names are evicted to make room, so a recurring name is at worst rendered
+ * again.
+ */
+class X500NameCache {
+
+  /**
+   * The maximum number of cached names.
+   */
+  static final int MAX_ENTRIES = 10000;
+
+  /**
+   * The number of names evicted when the cache is full.
+   */
+  static final int EVICTION_BATCH = MAX_ENTRIES / 10;
+
+  /**
+   * The string forms of a name.
+   */
+  static final class Names {
+
+    /**
+     * The name in RFC2253 readable form
+     */
+    final String readable;
+
+    /**
+     * The name in OpenSSL /-separated form
+     */
+    final String openssl;
+
+    Names(String readable, String openssl) {
+
+      this.readable = readable;
+      this.openssl = openssl;
+    }
+  }
+
+  private static final class Key {
+
+    private final byte[] encoded;
+    private final int hash;
+
+    Key(byte[] encoded) {
+
+      this.encoded = encoded;
+      this.hash = Arrays.hashCode(encoded);
+    }
+
+    @Override
+    public int hashCode() {
+
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+      if (this == obj)
+        return true;
+      if (!(obj instanceof Key))
+        return false;
+      return Arrays.equals(encoded, ((Key) obj).encoded);
+    }
+  }
+
+  private static final ConcurrentMap<Key, Names> names = new ConcurrentHashMap<Key, Names>(
+    1024, 0.75f, 64);
+
+  /**
+   * The number of cached names, maintained apart as the size of a
+   * ConcurrentHashMap is expensive to compute.
+   */
+  private static final AtomicInteger count = new AtomicInteger();
+
+  private X500NameCache() {
+
+  }
+
+  /**
+   * Returns the string forms of a name, rendering them if they are not cached.
+   * 
+   * @param principal
+   *          the name
+   * @return the string forms of the name
+   */
+  static Names get(X500Principal principal) {
+
+    Key key = new Key(principal.getEncoded());
+    Names n = names.get(key);
+
+    if (n != null)
+      return n;
+
+    // A concurrent miss renders the name twice, but only one is kept
+    String readable = X500NameUtils.getReadableForm(principal);
+    n = new Names(readable, OpensslNameUtils.convertFromRfc2253(readable,
+      false));
+
+    Names cached = names.putIfAbsent(key, n);
+
+    if (cached != null)
+      return cached;
+
+    if (count.incrementAndGet() > MAX_ENTRIES)
+      evict();
+
+    return n;
+  }
+
+  /**
+   * Evicts a batch of names.
+   */
+  private static void evict() {
+
+    Iterator<Key> i = names.keySet().iterator();
+
+    for (int evicted = 0; evicted < EVICTION_BATCH && i.hasNext(); evicted++) {
+      if (names.remove(i.next()) != null)
+        count.decrementAndGet();
+    }
+  }
+
+  /**
+   * @return the number of cached names
+   */
+  static int size() {
+
+    return count.get();
+  }
+}
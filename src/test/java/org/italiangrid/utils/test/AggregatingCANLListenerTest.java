@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.italiangrid.utils.https.impl.canl.AggregatingCANLListener;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.ValidationError;
+import eu.emi.security.authn.x509.ValidationErrorCode;
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+
+public class AggregatingCANLListenerTest {
+
+	private static X509Certificate[] chain;
+
+	/**
+	 * A listener that counts the chains it formats.
+	 */
+	private static class CountingListener extends AggregatingCANLListener {
+
+		final AtomicInteger formatted = new AtomicInteger();
+
+		CountingListener(long summaryIntervalInMsec, int samplesPerError) {
+
+			super(summaryIntervalInMsec, samplesPerError);
+		}
+
+		@Override
+		protected String formatChain(ValidationError error) {
+
+			formatted.incrementAndGet();
+			return super.formatChain(error);
+		}
+	}
+
+	@BeforeClass
+	public static void setUpChain() throws Exception {
+
+		CertificateUtils.configureSecProvider();
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(1024);
+		KeyPair keys = kpg.generateKeyPair();
+
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(BigInteger.ONE);
+		generator.setIssuerDN(new X500Principal("CN=Test CA,O=IGI,C=IT"));
+		generator.setSubjectDN(new X500Principal("CN=test,O=IGI,C=IT"));
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 3600000L));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + 3600000L));
+		generator.setPublicKey(keys.getPublic());
+		generator.setSignatureAlgorithm("SHA1withRSA");
+
+		chain = new X509Certificate[] { generator.generate(keys.getPrivate(),
+				"BC") };
+	}
+
+	private static ValidationError newError(ValidationErrorCode code) {
+
+		return new ValidationError(chain, 0, code);
+	}
+
+	@Test
+	public void errorsAreCountedByCode() {
+
+		AggregatingCANLListener listener = new AggregatingCANLListener(3600000L);
+
+		for (int i = 0; i < 5; i++)
+			Assert.assertFalse(listener.onValidationError(newError(
+					ValidationErrorCode.noTrustAnchorFound)));
+
+		listener.onValidationError(newError(ValidationErrorCode.certificateExpired));
+
+		Assert.assertEquals(6, listener.getErrorCount());
+		Assert.assertEquals(5,
+				listener.getErrorCount(ValidationErrorCode.noTrustAnchorFound));
+		Assert.assertEquals(1,
+				listener.getErrorCount(ValidationErrorCode.certificateExpired));
+		Assert.assertEquals(0,
+				listener.getErrorCount(ValidationErrorCode.ocspCertRevoked));
+	}
+
+	@Test
+	public void onlySampledChainsAreFormatted() {
+
+		CountingListener listener = new CountingListener(3600000L, 2);
+
+		for (int i = 0; i < 100; i++) {
+			listener.onValidationError(newError(
+					ValidationErrorCode.noTrustAnchorFound));
+			listener.onValidationError(newError(
+					ValidationErrorCode.certificateExpired));
+		}
+
+		Assert.assertEquals(4, listener.formatted.get());
+
+		listener.logSummary();
+
+		listener.onValidationError(newError(ValidationErrorCode.noTrustAnchorFound));
+
+		Assert.assertEquals(5, listener.formatted.get());
+		Assert.assertEquals(201, listener.getErrorCount());
+	}
+
+	/**
+	 * Errors reported while summaries are being logged are accounted for in
+	 * exactly one summary.
+	 */
+	@Test
+	public void concurrentErrorsAreSummarizedOnce() throws Exception {
+
+		final AggregatingCANLListener listener = new AggregatingCANLListener(
+				3600000L, 0);
+
+		final int threads = 4;
+		final int errorsPerThread = 20000;
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int i = 0; i < threads; i++) {
+			new Thread() {
+
+				public void run() {
+
+					try {
+						for (int j = 0; j < errorsPerThread; j++)
+							listener.onValidationError(newError(
+									ValidationErrorCode.noTrustAnchorFound));
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		long summarized = 0;
+
+		while (done.getCount() > 0)
+			summarized += listener.logSummary();
+
+		summarized += listener.logSummary();
+
+		Assert.assertEquals(threads * errorsPerThread, listener.getErrorCount());
+		Assert.assertEquals(threads * errorsPerThread, summarized);
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertPath;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.italiangrid.utils.https.impl.canl.CachingCertChainValidator;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.ProxySupport;
+import eu.emi.security.authn.x509.RevocationParameters;
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.StoreUpdateListener.Severity;
+import eu.emi.security.authn.x509.ValidationErrorListener;
+import eu.emi.security.authn.x509.ValidationResult;
+import eu.emi.security.authn.x509.X509CertChainValidatorExt;
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+
+public class CachingCertChainValidatorTest {
+
+	private static KeyPair keys;
+
+	/**
+	 * A validator that accepts or rejects every chain, counting validations.
+	 */
+	private static class StubValidator implements X509CertChainValidatorExt {
+
+		volatile boolean valid = true;
+
+		int validations = 0;
+
+		final List<StoreUpdateListener> updateListeners = new CopyOnWriteArrayList<StoreUpdateListener>();
+
+		void reload() {
+
+			for (StoreUpdateListener l : updateListeners)
+				l.loadingNotification("ca.r0", StoreUpdateListener.CRL,
+						Severity.NOTIFICATION, null);
+		}
+
+		public ValidationResult validate(CertPath certPath) {
+
+			throw new UnsupportedOperationException();
+		}
+
+		public synchronized ValidationResult validate(X509Certificate[] certChain) {
+
+			validations++;
+			return new ValidationResult(valid);
+		}
+
+		public X509Certificate[] getTrustedIssuers() {
+
+			return new X509Certificate[0];
+		}
+
+		public void addValidationListener(ValidationErrorListener listener) {
+
+		}
+
+		public void removeValidationListener(ValidationErrorListener listener) {
+
+		}
+
+		public void addUpdateListener(StoreUpdateListener listener) {
+
+			updateListeners.add(listener);
+		}
+
+		public void removeUpdateListener(StoreUpdateListener listener) {
+
+			updateListeners.remove(listener);
+		}
+
+		public ProxySupport getProxySupport() {
+
+			return ProxySupport.ALLOW;
+		}
+
+		public RevocationParameters getRevocationCheckingMode() {
+
+			return RevocationParameters.IGNORE;
+		}
+
+		public void dispose() {
+
+		}
+	}
+
+	private StubValidator delegate;
+
+	private CachingCertChainValidator validator;
+
+	private static X509Certificate[] newChain(long lifetime) throws Exception {
+
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(BigInteger.valueOf(System.nanoTime()));
+		generator.setIssuerDN(new X500Principal("CN=Test CA,O=IGI,C=IT"));
+		generator.setSubjectDN(new X500Principal("CN=test,O=IGI,C=IT"));
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 3600000L));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + lifetime));
+		generator.setPublicKey(keys.getPublic());
+		generator.setSignatureAlgorithm("SHA1withRSA");
+
+		return new X509Certificate[] { generator.generate(keys.getPrivate(), "BC") };
+	}
+
+	@BeforeClass
+	public static void setUpKeys() throws Exception {
+
+		CertificateUtils.configureSecProvider();
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(1024);
+		keys = kpg.generateKeyPair();
+	}
+
+	@Before
+	public void setUp() {
+
+		delegate = new StubValidator();
+		validator = new CachingCertChainValidator(delegate, 100);
+	}
+
+	/**
+	 * A chain presented again is accepted from the cache, while failed
+	 * validations are not cached.
+	 */
+	@Test
+	public void positiveResultsAreCached() throws Exception {
+
+		X509Certificate[] chain = newChain(3600000L);
+
+		Assert.assertTrue(validator.validate(chain).isValid());
+		Assert.assertTrue(validator.validate(chain).isValid());
+		Assert.assertEquals(1, delegate.validations);
+		Assert.assertEquals(1, validator.getHitCount());
+		Assert.assertEquals(1, validator.getMissCount());
+
+		delegate.valid = false;
+		X509Certificate[] other = newChain(3600000L);
+
+		Assert.assertFalse(validator.validate(other).isValid());
+		Assert.assertFalse(validator.validate(other).isValid());
+		Assert.assertEquals(3, delegate.validations);
+		Assert.assertEquals(1, validator.size());
+	}
+
+	/**
+	 * A trust store or CRL reload drops the cached results.
+	 */
+	@Test
+	public void reloadDropsCachedResults() throws Exception {
+
+		X509Certificate[] chain = newChain(3600000L);
+
+		validator.validate(chain);
+		Assert.assertEquals(1, validator.size());
+
+		delegate.reload();
+		Assert.assertEquals(0, validator.size());
+
+		validator.validate(chain);
+		Assert.assertEquals(2, delegate.validations);
+	}
+
+	/**
+	 * Cached results expire with the chain.
+	 */
+	@Test
+	public void resultsExpireWithChain() throws Exception {
+
+		X509Certificate[] chain = newChain(1000L);
+
+		validator.validate(chain);
+		Thread.sleep(1100L);
+		validator.validate(chain);
+
+		Assert.assertEquals(2, delegate.validations);
+		Assert.assertEquals(0, validator.getHitCount());
+	}
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URLDecoder;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.x500.X500Principal;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.ocsp.BasicOCSPRespGenerator;
+import org.bouncycastle.ocsp.CertificateID;
+import org.bouncycastle.ocsp.CertificateStatus;
+import org.bouncycastle.ocsp.OCSPReq;
+import org.bouncycastle.ocsp.OCSPRespGenerator;
+import org.bouncycastle.ocsp.RevokedStatus;
+import org.bouncycastle.util.encoders.Base64;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.italiangrid.utils.https.impl.canl.CachingOCSPValidator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.CrlCheckingMode;
+import eu.emi.security.authn.x509.OCSPCheckingMode;
+import eu.emi.security.authn.x509.OCSPParametes;
+import eu.emi.security.authn.x509.ProxySupport;
+import eu.emi.security.authn.x509.ValidationErrorCode;
+import eu.emi.security.authn.x509.ValidationResult;
+import eu.emi.security.authn.x509.impl.CRLParameters;
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.InMemoryKeystoreCertChainValidator;
+import eu.emi.security.authn.x509.impl.RevocationParametersExt;
+import eu.emi.security.authn.x509.impl.ValidatorParamsExt;
+
+public class CachingOCSPValidatorTest {
+
+	private static final BigInteger GOOD_SERIAL = BigInteger.valueOf(2);
+
+	private static final BigInteger REVOKED_SERIAL = BigInteger.valueOf(3);
+
+	private KeyPair caKeys;
+
+	private X509Certificate caCert;
+
+	private X509Certificate goodCert;
+
+	private X509Certificate revokedCert;
+
+	private Server responder;
+
+	private final AtomicInteger queries = new AtomicInteger();
+
+	private volatile CountDownLatch responderGate = new CountDownLatch(0);
+
+	private CachingOCSPValidator validator;
+
+	/**
+	 * A stub OCSP responder, answering for the test CA.
+	 */
+	private class StubResponder extends AbstractHandler {
+
+		public void handle(String target, Request baseRequest,
+				HttpServletRequest request, HttpServletResponse response)
+				throws IOException, ServletException {
+
+			try {
+				responderGate.await();
+
+				byte[] encoded;
+
+				if ("POST".equals(request.getMethod()))
+					encoded = readAll(request.getInputStream());
+				else
+					encoded = Base64.decode(URLDecoder.decode(request
+							.getRequestURI().substring(1), "ASCII"));
+
+				CertificateID id = new OCSPReq(encoded).getRequestList()[0]
+						.getCertID();
+
+				CertificateStatus status = REVOKED_SERIAL
+						.equals(id.getSerialNumber()) ? new RevokedStatus(new Date(
+						System.currentTimeMillis() - 3600000L), CRLReason.keyCompromise)
+						: CertificateStatus.GOOD;
+
+				BasicOCSPRespGenerator generator = new BasicOCSPRespGenerator(
+						caCert.getPublicKey());
+				generator.addResponse(id, status, new Date(
+						System.currentTimeMillis() - 60000L), new Date(
+						System.currentTimeMillis() + 3600000L), null);
+
+				byte[] body = new OCSPRespGenerator().generate(
+						OCSPRespGenerator.SUCCESSFUL,
+						generator.generate("SHA1withRSA", caKeys.getPrivate(), null,
+								new Date(), "BC")).getEncoded();
+
+				queries.incrementAndGet();
+
+				response.setContentType("application/ocsp-response");
+				response.getOutputStream().write(body);
+				baseRequest.setHandled(true);
+
+			} catch (Exception e) {
+				throw new ServletException(e);
+			}
+		}
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = is.read(buf)) > 0)
+			os.write(buf, 0, n);
+		return os.toByteArray();
+	}
+
+	private X509Certificate newCertificate(BigInteger serial, String subject,
+			KeyPair keys, String ocspUrl) throws Exception {
+
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(serial);
+		generator.setIssuerDN(new X500Principal("CN=Test CA,O=IGI,C=IT"));
+		generator.setSubjectDN(new X500Principal(subject));
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 3600000L));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + 86400000L));
+		generator.setPublicKey(keys.getPublic());
+		generator.setSignatureAlgorithm("SHA1withRSA");
+
+		if (ocspUrl == null) {
+			generator.addExtension(X509Extensions.BasicConstraints, true,
+					new BasicConstraints(true));
+		} else {
+			generator.addExtension(X509Extensions.AuthorityInfoAccess, false,
+					new AuthorityInformationAccess(AccessDescription.id_ad_ocsp,
+							new GeneralName(GeneralName.uniformResourceIdentifier, ocspUrl)));
+		}
+
+		return generator.generate(caKeys.getPrivate(), "BC");
+	}
+
+	private CachingOCSPValidator newValidator(OCSPParametes params)
+			throws Exception {
+
+		KeyStore trustStore = KeyStore.getInstance("JKS");
+		trustStore.load(null, null);
+		trustStore.setCertificateEntry("ca", caCert);
+
+		InMemoryKeystoreCertChainValidator delegate = new InMemoryKeystoreCertChainValidator(
+				trustStore, new ValidatorParamsExt(new RevocationParametersExt(
+						CrlCheckingMode.IGNORE, new CRLParameters(), new OCSPParametes(
+								OCSPCheckingMode.IGNORE)), ProxySupport.ALLOW));
+
+		return new CachingOCSPValidator(delegate, params, 100);
+	}
+
+	private static boolean isRevoked(ValidationResult result) {
+
+		return !result.isValid()
+				&& result.getErrors().get(0).getErrorCode() == ValidationErrorCode.ocspCertRevoked;
+	}
+
+	@BeforeClass
+	public static void setUpProvider() {
+
+		CertificateUtils.configureSecProvider();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+
+		responder = new Server(0);
+		responder.setHandler(new StubResponder());
+		responder.start();
+
+		String ocspUrl = "http://localhost:"
+				+ responder.getConnectors()[0].getLocalPort() + "/";
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(1024);
+
+		caKeys = kpg.generateKeyPair();
+		caCert = newCertificate(BigInteger.ONE, "CN=Test CA,O=IGI,C=IT", caKeys,
+				null);
+
+		KeyPair userKeys = kpg.generateKeyPair();
+		goodCert = newCertificate(GOOD_SERIAL, "CN=good,O=IGI,C=IT", userKeys,
+				ocspUrl);
+		revokedCert = newCertificate(REVOKED_SERIAL, "CN=revoked,O=IGI,C=IT",
+				userKeys, ocspUrl);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+
+		responderGate.countDown();
+
+		if (validator != null)
+			validator.dispose();
+
+		responder.stop();
+	}
+
+	/**
+	 * In REQUIRE mode the first check waits for the responder, and later checks
+	 * are answered from the cache.
+	 */
+	@Test
+	public void responsesAreCached() throws Exception {
+
+		validator = newValidator(new OCSPParametes(OCSPCheckingMode.REQUIRE));
+
+		X509Certificate[] chain = new X509Certificate[] { goodCert };
+
+		Assert.assertTrue(validator.validate(chain).isValid());
+		Assert.assertTrue(validator.validate(chain).isValid());
+		Assert.assertEquals(1, queries.get());
+
+		Assert.assertTrue(isRevoked(validator
+				.validate(new X509Certificate[] { revokedCert })));
+		Assert.assertEquals(2, queries.get());
+	}
+
+	/**
+	 * In IF_AVAILABLE mode the first check does not wait for the responder.
+	 */
+	@Test
+	public void ifAvailableDoesNotWaitForResponder() throws Exception {
+
+		validator = newValidator(new OCSPParametes(OCSPCheckingMode.IF_AVAILABLE));
+		responderGate = new CountDownLatch(1);
+
+		X509Certificate[] chain = new X509Certificate[] { revokedCert };
+
+		Assert.assertTrue(validator.validate(chain).isValid());
+
+		responderGate.countDown();
+
+		boolean revoked = false;
+
+		for (int i = 0; i < 100 && !revoked; i++) {
+			Thread.sleep(50);
+			revoked = isRevoked(validator.validate(chain));
+		}
+
+		Assert.assertTrue(revoked);
+		Assert.assertEquals(1, queries.get());
+	}
+
+	/**
+	 * An expired response is used while it is being refreshed.
+	 */
+	@Test
+	public void staleResponseIsUsedWhileRefreshing() throws Exception {
+
+		OCSPParametes params = new OCSPParametes(OCSPCheckingMode.REQUIRE);
+		params.setCacheTtl(1);
+		validator = newValidator(params);
+
+		X509Certificate[] chain = new X509Certificate[] { revokedCert };
+
+		Assert.assertTrue(isRevoked(validator.validate(chain)));
+		Assert.assertEquals(1, queries.get());
+
+		Thread.sleep(1100);
+		responderGate = new CountDownLatch(1);
+
+		Assert.assertTrue(isRevoked(validator.validate(chain)));
+		Assert.assertEquals(1, queries.get());
+
+		responderGate.countDown();
+
+		for (int i = 0; i < 100 && queries.get() == 1; i++)
+			Thread.sleep(50);
+
+		Assert.assertEquals(2, queries.get());
+	}
+}
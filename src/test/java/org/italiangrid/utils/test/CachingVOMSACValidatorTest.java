@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.AttributeCertificate;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.italiangrid.utils.voms.CachingVOMSACValidator;
+import org.italiangrid.voms.VOMSAttribute;
+import org.italiangrid.voms.VOMSGenericAttribute;
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.ac.VOMSValidationResult;
+import org.italiangrid.voms.ac.ValidationResultListener;
+import org.italiangrid.voms.asn1.VOMSACGenerator;
+import org.italiangrid.voms.asn1.VOMSACUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.KeyAndCertCredential;
+
+public class CachingVOMSACValidatorTest {
+
+	private static KeyPair keys;
+
+	private static VOMSACGenerator acGenerator;
+
+	/**
+	 * A validator that returns the attributes it was given, counting
+	 * validations.
+	 */
+	private static class StubValidator implements VOMSACValidator {
+
+		volatile List<VOMSAttribute> attributes = Collections.emptyList();
+
+		volatile boolean valid = true;
+
+		int validations = 0;
+
+		public List<VOMSAttribute> parse(X509Certificate[] certChain) {
+
+			return attributes;
+		}
+
+		public List<VOMSAttribute> validate(X509Certificate[] certChain) {
+
+			throw new UnsupportedOperationException();
+		}
+
+		public synchronized List<VOMSValidationResult> validateWithResult(
+				X509Certificate[] certChain) {
+
+			validations++;
+
+			List<VOMSValidationResult> results = new ArrayList<VOMSValidationResult>();
+			for (VOMSAttribute a : attributes)
+				results.add(new VOMSValidationResult(a, valid));
+			return results;
+		}
+
+		public List<AttributeCertificate> validateACs(
+				List<AttributeCertificate> acs) {
+
+			return acs;
+		}
+
+		public void setValidationResultListener(ValidationResultListener listener) {
+
+		}
+
+		public void shutdown() {
+
+		}
+	}
+
+	private StubValidator delegate;
+
+	private CachingVOMSACValidator validator;
+
+	private X509Certificate[] chain;
+
+	private static X509Certificate newCertificate(String subject)
+			throws Exception {
+
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(BigInteger.valueOf(System.nanoTime()));
+		generator.setIssuerDN(new X500Principal("CN=Test CA,O=IGI,C=IT"));
+		generator.setSubjectDN(new X500Principal(subject));
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 3600000L));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + 3600000L));
+		generator.setPublicKey(keys.getPublic());
+		generator.setSignatureAlgorithm("SHA1withRSA");
+
+		return generator.generate(keys.getPrivate(), "BC");
+	}
+
+	private static VOMSAttribute newAttribute(X509Certificate holder,
+			long lifetime) throws Exception {
+
+		return newAttribute(holder, lifetime, "test.vo");
+	}
+
+	private static VOMSAttribute newAttribute(X509Certificate holder,
+			long lifetime, String vo) throws Exception {
+
+		long now = System.currentTimeMillis();
+
+		AttributeCertificate ac = acGenerator.generateVOMSAttributeCertificate(
+				Arrays.asList("/" + vo),
+				Collections.<VOMSGenericAttribute> emptyList(),
+				Collections.<String> emptyList(), holder,
+				BigInteger.valueOf(System.nanoTime()), new Date(now - 60000L),
+				new Date(now + lifetime), vo, "voms.example.org", 15000)
+				.toASN1Structure();
+
+		return VOMSACUtils.deserializeVOMSAttributes(ac);
+	}
+
+	@BeforeClass
+	public static void setUpKeys() throws Exception {
+
+		CertificateUtils.configureSecProvider();
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(1024);
+		keys = kpg.generateKeyPair();
+
+		X509Certificate aaCert = newCertificate("CN=voms.example.org,O=IGI,C=IT");
+		acGenerator = new VOMSACGenerator(new KeyAndCertCredential(
+				keys.getPrivate(), new X509Certificate[] { aaCert }));
+	}
+
+	@Before
+	public void setUp() throws Exception {
+
+		delegate = new StubValidator();
+		validator = new CachingVOMSACValidator(delegate, 10);
+		chain = new X509Certificate[] { newCertificate("CN=test,O=IGI,C=IT") };
+	}
+
+	@Test
+	public void validAttributesAreCached() throws Exception {
+
+		delegate.attributes = Arrays.asList(newAttribute(chain[0], 3600000L));
+
+		Assert.assertEquals(1, validator.validate(chain).size());
+		Assert.assertEquals(1, validator.validate(chain).size());
+		Assert.assertEquals(1, validator.validateWithResult(chain).size());
+
+		Assert.assertEquals(1, delegate.validations);
+		Assert.assertEquals(2, validator.getHitCount());
+		Assert.assertEquals(1, validator.size());
+	}
+
+	@Test
+	public void invalidAttributesAreNotCached() throws Exception {
+
+		delegate.attributes = Arrays.asList(newAttribute(chain[0], 3600000L));
+		delegate.valid = false;
+
+		Assert.assertTrue(validator.validate(chain).isEmpty());
+		Assert.assertTrue(validator.validate(chain).isEmpty());
+
+		Assert.assertEquals(2, delegate.validations);
+		Assert.assertEquals(0, validator.size());
+	}
+
+	@Test
+	public void newAttributesAreValidated() throws Exception {
+
+		delegate.attributes = Arrays.asList(newAttribute(chain[0], 3600000L));
+		validator.validate(chain);
+
+		delegate.attributes = Arrays.asList(newAttribute(chain[0], 3600000L));
+		validator.validate(chain);
+
+		Assert.assertEquals(2, delegate.validations);
+		Assert.assertEquals(2, validator.size());
+	}
+
+	@Test
+	public void trustStoreReloadDropsCachedResults() throws Exception {
+
+		delegate.attributes = Arrays.asList(newAttribute(chain[0], 3600000L));
+		validator.validate(chain);
+
+		validator.notifyLSCLoadEvent(null, null);
+
+		Assert.assertEquals(0, validator.size());
+		validator.validate(chain);
+		Assert.assertEquals(2, delegate.validations);
+	}
+
+	@Test
+	public void trustStoreUpdateDropsResultsForChangedVOs() throws Exception {
+
+		delegate.attributes = Arrays.asList(newAttribute(chain[0], 3600000L));
+		validator.validate(chain);
+
+		validator.trustInformationUpdated(Collections.singleton("other.vo"));
+		Assert.assertEquals(1, validator.size());
+
+		validator.trustInformationUpdated(Collections.singleton("test.vo"));
+		Assert.assertEquals(0, validator.size());
+	}
+
+	@Test
+	public void resultsExpireWithAttributes() throws Exception {
+
+		delegate.attributes = Arrays.asList(newAttribute(chain[0], 500L));
+		validator.validate(chain);
+
+		Thread.sleep(1000L);
+
+		validator.validate(chain);
+		Assert.assertEquals(2, delegate.validations);
+	}
+}
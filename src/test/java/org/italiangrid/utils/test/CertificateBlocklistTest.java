@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.italiangrid.utils.https.impl.canl.CertificateBlocklist;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+
+public class CertificateBlocklistTest {
+
+	private static KeyPair keys;
+
+	private File blocklistFile;
+
+	@BeforeClass
+	public static void setUpKeys() throws Exception {
+
+		CertificateUtils.configureSecProvider();
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(1024);
+		keys = kpg.generateKeyPair();
+	}
+
+	@Before
+	public void setUp() throws IOException {
+
+		blocklistFile = File.createTempFile("blocklist", "");
+	}
+
+	@After
+	public void tearDown() {
+
+		blocklistFile.delete();
+	}
+
+	private void write(String... lines) throws IOException {
+
+		FileWriter w = new FileWriter(blocklistFile);
+
+		try {
+			for (String l : lines)
+				w.write(l + "\n");
+		} finally {
+			w.close();
+		}
+	}
+
+	private static X509Certificate certificate(String subject, long serial)
+			throws Exception {
+
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(BigInteger.valueOf(serial));
+		generator.setIssuerDN(new X500Principal("CN=Test CA,O=IGI,C=IT"));
+		generator.setSubjectDN(new X500Principal(subject));
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 3600000L));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + 3600000L));
+		generator.setPublicKey(keys.getPublic());
+		generator.setSignatureAlgorithm("SHA1withRSA");
+
+		return generator.generate(keys.getPrivate(), "BC");
+	}
+
+	private static String fingerprint(X509Certificate c) throws Exception {
+
+		byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+				c.getEncoded());
+
+		StringBuilder sb = new StringBuilder();
+
+		for (byte b : digest) {
+			if (sb.length() > 0)
+				sb.append(':');
+			sb.append(String.format("%02X", b));
+		}
+
+		return sb.toString();
+	}
+
+	@Test
+	public void certificatesAreBlockedByFingerprintOrSubject()
+			throws Exception {
+
+		X509Certificate stolen = certificate("CN=test,O=IGI,C=IT", 1);
+		X509Certificate renewed = certificate("CN=test,O=IGI,C=IT", 2);
+		X509Certificate abuser = certificate("CN=abuser,O=IGI,C=IT", 3);
+		X509Certificate other = certificate("CN=other,O=IGI,C=IT", 4);
+		X509Certificate spammer = certificate("CN=spammer,O=IGI,C=IT", 5);
+		X509Certificate escaped = certificate("CN=escaped,O=IGI\\, Inc,C=IT", 6);
+
+		write("# Banned certificates", "", fingerprint(stolen),
+				"/C=IT/O=IGI/CN=abuser", "cn=Spammer, o=IGI, c=IT",
+				"/C=IT/O=IGI, Inc/CN=escaped", "garbage");
+
+		CertificateBlocklist blocklist = new CertificateBlocklist(
+				blocklistFile.getAbsolutePath(), 0);
+
+		Assert.assertEquals(4, blocklist.size());
+		Assert.assertTrue(blocklist.isBlocked(stolen));
+		Assert.assertFalse(blocklist.isBlocked(renewed));
+		Assert.assertTrue(blocklist.isBlocked(abuser));
+		Assert.assertTrue(blocklist.isBlocked(spammer));
+		Assert.assertTrue(blocklist.isBlocked(escaped));
+		Assert.assertFalse(blocklist.isBlocked(other));
+
+		Assert.assertSame(abuser, blocklist.findBlocked(new X509Certificate[] {
+				other, abuser }));
+		Assert.assertNull(blocklist.findBlocked(new X509Certificate[] { other,
+				renewed }));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void missingBlocklistIsRejectedAtStartup() {
+
+		blocklistFile.delete();
+
+		new CertificateBlocklist(blocklistFile.getAbsolutePath(), 0);
+	}
+
+	@Test
+	public void currentListIsKeptOnReloadErrors() throws Exception {
+
+		X509Certificate abuser = certificate("CN=abuser,O=IGI,C=IT", 1);
+
+		write("/C=IT/O=IGI/CN=abuser");
+
+		CertificateBlocklist blocklist = new CertificateBlocklist(
+				blocklistFile.getAbsolutePath(), 0);
+
+		Assert.assertTrue(blocklist.isBlocked(abuser));
+
+		blocklistFile.delete();
+		Assert.assertFalse(blocklist.reload());
+		Assert.assertTrue(blocklist.isBlocked(abuser));
+
+		write("# Nobody");
+		Assert.assertTrue(blocklist.reload());
+		Assert.assertFalse(blocklist.isBlocked(abuser));
+		Assert.assertEquals(0, blocklist.size());
+	}
+}
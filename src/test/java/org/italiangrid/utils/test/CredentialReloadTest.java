@@ -0,0 +1,281 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.openssl.PEMWriter;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Server;
+import org.italiangrid.utils.https.SSLOptions;
+import org.italiangrid.utils.https.impl.canl.CANLSSLConnectorConfigurator;
+import org.italiangrid.utils.https.impl.canl.PEMCredentialReloader;
+import org.italiangrid.utils.https.impl.canl.ReloadableKeyManager;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.PEMCredential;
+
+public class CredentialReloadTest {
+
+	private static KeyPair firstKeys;
+
+	private static KeyPair secondKeys;
+
+	private File certificateFile;
+
+	private File keyFile;
+
+	private Server server;
+
+	private static X509Certificate certificate(String subject, KeyPair keys)
+			throws Exception {
+
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(BigInteger.valueOf(System.nanoTime()));
+		generator.setIssuerDN(new X500Principal(subject));
+		generator.setSubjectDN(new X500Principal(subject));
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 3600000L));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + 3600000L));
+		generator.setPublicKey(keys.getPublic());
+		generator.setSignatureAlgorithm("SHA256withRSA");
+
+		return generator.generate(keys.getPrivate(), "BC");
+	}
+
+	private static void writePEM(File f, Object o) throws Exception {
+
+		PEMWriter writer = new PEMWriter(new FileWriter(f));
+
+		try {
+			writer.writeObject(o);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes a credential, moving the files modification time forward so that
+	 * the change is seen even on file systems with a coarse time granularity.
+	 */
+	private void writeCredential(X509Certificate cert, KeyPair keys)
+			throws Exception {
+
+		writePEM(certificateFile, cert);
+		writePEM(keyFile, keys.getPrivate());
+
+		long lastModified = certificateFile.lastModified() + 10000L;
+		certificateFile.setLastModified(lastModified);
+		keyFile.setLastModified(lastModified);
+	}
+
+	private SSLOptions newOptions() {
+
+		SSLOptions options = new SSLOptions();
+		options.setTrustStoreDirectory("certs/ca");
+		options.setCertificateFile(certificateFile.getAbsolutePath());
+		options.setKeyFile(keyFile.getAbsolutePath());
+		options.setCredentialRefreshIntervalInMsec(50L);
+		options.setWantClientAuth(false);
+		options.setNeedClientAuth(false);
+		return options;
+	}
+
+	/**
+	 * Connects with a new client context, so that no session is resumed, and
+	 * returns the certificate presented by the server.
+	 */
+	private static X509Certificate serverCertificate(Connector connector)
+			throws Exception {
+
+		TrustManager trustAll = new X509TrustManager() {
+
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+
+			}
+
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+
+			}
+
+			public X509Certificate[] getAcceptedIssuers() {
+
+				return new X509Certificate[0];
+			}
+		};
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { trustAll }, null);
+
+		SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(
+				"localhost", connector.getLocalPort());
+
+		try {
+			socket.startHandshake();
+			return (X509Certificate) socket.getSession().getPeerCertificates()[0];
+		} finally {
+			socket.close();
+		}
+	}
+
+	@BeforeClass
+	public static void setUpKeys() throws Exception {
+
+		CertificateUtils.configureSecProvider();
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(1024);
+		firstKeys = kpg.generateKeyPair();
+		secondKeys = kpg.generateKeyPair();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+
+		certificateFile = File.createTempFile("hostcert", ".pem");
+		keyFile = File.createTempFile("hostkey", ".pem");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+
+		if (server != null)
+			server.stop();
+
+		certificateFile.delete();
+		keyFile.delete();
+	}
+
+	/**
+	 * Handshakes started after the credential files are rotated present the new
+	 * certificate.
+	 */
+	@Test
+	public void rotatedCredentialIsUsedForNewHandshakes() throws Exception {
+
+		X509Certificate first = certificate("CN=first,O=IGI,C=IT", firstKeys);
+		X509Certificate rotated = certificate("CN=rotated,O=IGI,C=IT",
+				secondKeys);
+
+		writeCredential(first, firstKeys);
+
+		Connector connector = new CANLSSLConnectorConfigurator()
+				.configureConnector("localhost", 0, newOptions());
+
+		server = new Server();
+		server.addConnector(connector);
+		server.start();
+
+		Assert.assertEquals(first, serverCertificate(connector));
+
+		writeCredential(rotated, secondKeys);
+
+		X509Certificate presented = null;
+
+		for (int i = 0; i < 100 && !rotated.equals(presented); i++) {
+			Thread.sleep(50);
+			presented = serverCertificate(connector);
+		}
+
+		Assert.assertEquals(rotated, presented);
+	}
+
+	/**
+	 * A certificate that does not match the private key is refused, and the
+	 * current credential is kept.
+	 */
+	@Test
+	public void mismatchedCredentialIsRejected() throws Exception {
+
+		X509Certificate first = certificate("CN=first,O=IGI,C=IT", firstKeys);
+		X509Certificate other = certificate("CN=other,O=IGI,C=IT", secondKeys);
+
+		writeCredential(first, firstKeys);
+
+		SSLOptions options = newOptions();
+
+		ReloadableKeyManager keyManager = new ReloadableKeyManager(
+				new PEMCredential(options.getKeyFile(), options.getCertificateFile(),
+						null));
+
+		PEMCredentialReloader reloader = new PEMCredentialReloader(options,
+				keyManager);
+
+		writeCredential(other, firstKeys);
+
+		Assert.assertFalse(reloader.reload());
+		Assert.assertEquals(first, keyManager.getCredential().getCertificate());
+
+		writeCredential(other, secondKeys);
+
+		Assert.assertTrue(reloader.reload());
+		Assert.assertEquals(other, keyManager.getCredential().getCertificate());
+	}
+
+	/**
+	 * An alias chosen before the credential is swapped still resolves to the
+	 * credential it was chosen for.
+	 */
+	@Test
+	public void aliasChosenBeforeSwapStillResolves() throws Exception {
+
+		X509Certificate first = certificate("CN=first,O=IGI,C=IT", firstKeys);
+		X509Certificate rotated = certificate("CN=rotated,O=IGI,C=IT",
+				secondKeys);
+
+		writeCredential(first, firstKeys);
+
+		ReloadableKeyManager keyManager = new ReloadableKeyManager(
+				new PEMCredential(keyFile.getAbsolutePath(), certificateFile
+						.getAbsolutePath(), null));
+
+		String alias = keyManager.chooseEngineServerAlias("RSA", null, null);
+		Assert.assertNotNull(alias);
+
+		writeCredential(rotated, secondKeys);
+
+		keyManager.setCredential(new PEMCredential(keyFile.getAbsolutePath(),
+				certificateFile.getAbsolutePath(), null));
+
+		Assert.assertEquals(first, keyManager.getCertificateChain(alias)[0]);
+		Assert.assertEquals(firstKeys.getPrivate(),
+				keyManager.getPrivateKey(alias));
+
+		String newAlias = keyManager.chooseEngineServerAlias("RSA", null, null);
+
+		Assert.assertFalse(alias.equals(newAlias));
+		Assert.assertEquals(rotated, keyManager.getCertificateChain(newAlias)[0]);
+		Assert.assertEquals(secondKeys.getPrivate(),
+				keyManager.getPrivateKey(newAlias));
+	}
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.component.AggregateLifeCycle;
+import org.italiangrid.utils.https.SSLOptions;
+import org.italiangrid.utils.https.impl.canl.CANLSSLConnectorConfigurator;
+import org.italiangrid.utils.https.impl.canl.FailedValidationCache;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.impl.PEMCredential;
+
+public class FailedValidationCacheTest {
+
+	private Server server;
+
+	private Connector connector;
+
+	private static SSLContext newClientContext() throws Exception {
+
+		// The test client certificate has expired
+		PEMCredential credential = new PEMCredential(
+				"certs/voms_client.key.pem", "certs/voms_client.cert.pem",
+				"pass".toCharArray());
+
+		TrustManager trustAll = new X509TrustManager() {
+
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+
+			}
+
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+
+			}
+
+			public X509Certificate[] getAcceptedIssuers() {
+
+				return new X509Certificate[0];
+			}
+		};
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(new KeyManager[] { credential.getKeyManager() },
+				new TrustManager[] { trustAll }, null);
+		return context;
+	}
+
+	private boolean handshake(SSLContext clientContext) throws Exception {
+
+		SSLSocket socket = (SSLSocket) clientContext.getSocketFactory()
+				.createSocket("127.0.0.1", connector.getLocalPort());
+
+		try {
+			socket.setEnabledProtocols(new String[] { "TLSv1.2" });
+			socket.startHandshake();
+			socket.getOutputStream().write(
+					"GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+							.getBytes("ASCII"));
+			socket.getOutputStream().flush();
+			return socket.getInputStream().read() >= 0;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+
+		SSLOptions options = new SSLOptions();
+		options.setCertificateFile("certs/voms_service.cert.pem");
+		options.setKeyFile("certs/voms_service.key.pem");
+		options.setTrustStoreDirectory("certs/ca");
+		options.setNeedClientAuth(true);
+		options.setFailedValidationCacheSize(100);
+
+		connector = new CANLSSLConnectorConfigurator().configureConnector(
+				"127.0.0.1", 0, options);
+
+		server = new Server();
+		server.addConnector(connector);
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+
+		server.stop();
+		server.destroy();
+	}
+
+	@Test
+	public void failedChainsAreRefusedFromTheCache() throws Exception {
+
+		FailedValidationCache cache = ((AggregateLifeCycle) connector)
+				.getBean(FailedValidationCache.class);
+
+		Assert.assertNotNull(cache);
+
+		SSLContext client = newClientContext();
+
+		Assert.assertFalse(handshake(client));
+		Assert.assertFalse(handshake(client));
+		Assert.assertFalse(handshake(client));
+
+		Assert.assertEquals(1, cache.size());
+		Assert.assertEquals(1, cache.getFailedValidationCount());
+		Assert.assertEquals(2, cache.getRejectedCount());
+		Assert.assertEquals(3, cache.getFailureCount("127.0.0.1"));
+
+		cache.clear();
+
+		Assert.assertFalse(handshake(client));
+		Assert.assertEquals(2, cache.getFailedValidationCount());
+		Assert.assertEquals(4, cache.getFailureCounts().get("127.0.0.1")
+				.longValue());
+	}
+}
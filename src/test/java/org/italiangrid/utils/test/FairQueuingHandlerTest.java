@@ -0,0 +1,455 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.x500.X500Principal;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.bouncycastle.asn1.x509.AttributeCertificate;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.italiangrid.utils.voms.AsyncVOMSSecurityContextHandler;
+import org.italiangrid.utils.voms.FairQueuingHandler;
+import org.italiangrid.utils.voms.VOMSSecurityContextHandler;
+import org.italiangrid.utils.voms.VOMSSecurityContextImpl;
+import org.italiangrid.voms.VOMSAttribute;
+import org.italiangrid.voms.VOMSGenericAttribute;
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.ac.VOMSValidationResult;
+import org.italiangrid.voms.ac.ValidationResultListener;
+import org.italiangrid.voms.asn1.VOMSACGenerator;
+import org.italiangrid.voms.asn1.VOMSACUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.KeyAndCertCredential;
+
+public class FairQueuingHandlerTest {
+
+	private static final String CLASS_HEADER = "X-Class";
+
+	/**
+	 * Classifies requests by a header.
+	 */
+	private static class HeaderFairQueuingHandler extends FairQueuingHandler {
+
+		HeaderFairQueuingHandler(int maxActiveRequests, int maxQueuedPerClass) {
+
+			super(maxActiveRequests, maxQueuedPerClass);
+		}
+
+		@Override
+		protected String classify(HttpServletRequest request) {
+
+			return request.getHeader(CLASS_HEADER);
+		}
+	}
+
+	/**
+	 * Records the class of the requests it handles, holding "blocker" requests
+	 * until the gate is opened.
+	 */
+	private class RecordingHandler extends AbstractHandler {
+
+		public void handle(String target, Request baseRequest,
+				HttpServletRequest request, HttpServletResponse response)
+				throws IOException, ServletException {
+
+			String requestClass = request.getHeader(CLASS_HEADER);
+
+			if ("blocker".equals(requestClass)) {
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			served.add(requestClass);
+			baseRequest.setHandled(true);
+			response.setStatus(HttpServletResponse.SC_OK);
+		}
+	}
+
+	private Server server;
+
+	private FairQueuingHandler handler;
+
+	private final CountDownLatch gate = new CountDownLatch(1);
+
+	private final List<String> served = new CopyOnWriteArrayList<String>();
+
+	private final List<Integer> statuses = new CopyOnWriteArrayList<Integer>();
+
+	private final List<Thread> clients = new CopyOnWriteArrayList<Thread>();
+
+	@Before
+	public void setUp() throws Exception {
+
+		handler = new HeaderFairQueuingHandler(1, 3);
+		handler.setHandler(new RecordingHandler());
+
+		server = new Server(0);
+		server.setHandler(handler);
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+
+		gate.countDown();
+		server.stop();
+	}
+
+	private int request(String requestClass) throws IOException {
+
+		URL url = new URL("http://localhost:"
+				+ server.getConnectors()[0].getLocalPort() + "/");
+
+		HttpURLConnection c = (HttpURLConnection) url.openConnection();
+		c.setRequestProperty(CLASS_HEADER, requestClass);
+
+		try {
+			return c.getResponseCode();
+		} finally {
+			c.disconnect();
+		}
+	}
+
+	private void startRequest(final String requestClass) {
+
+		Thread t = new Thread() {
+
+			public void run() {
+
+				try {
+					statuses.add(request(requestClass));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+
+		clients.add(t);
+		t.start();
+	}
+
+	private void awaitQueueDepth(String requestClass, int depth)
+			throws InterruptedException {
+
+		for (int i = 0; i < 100 && handler.getQueueDepth(requestClass) < depth; i++)
+			Thread.sleep(20);
+
+		Assert.assertEquals(depth, handler.getQueueDepth(requestClass));
+	}
+
+	private void awaitClients() throws InterruptedException {
+
+		for (Thread t : clients)
+			t.join();
+	}
+
+	/**
+	 * Waiting requests are served in turn across classes, and requests finding
+	 * their class queue full are rejected.
+	 */
+	@Test
+	public void classesAreServedInTurn() throws Exception {
+
+		startRequest("blocker");
+
+		for (int i = 0; i < 100 && handler.getActiveRequests() == 0; i++)
+			Thread.sleep(20);
+
+		for (int i = 1; i <= 3; i++) {
+			startRequest("a");
+			awaitQueueDepth("a", i);
+		}
+
+		startRequest("b");
+		awaitQueueDepth("b", 1);
+
+		Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+				request("a"));
+		Assert.assertEquals(1, handler.getRejectedCount("a"));
+
+		gate.countDown();
+		awaitClients();
+
+		Assert.assertEquals(5, served.size());
+		Assert.assertEquals("blocker", served.get(0));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("a", "b")),
+				new HashSet<String>(served.subList(1, 3)));
+		Assert.assertEquals("a", served.get(3));
+		Assert.assertEquals("a", served.get(4));
+
+		for (int status : statuses)
+			Assert.assertEquals(HttpServletResponse.SC_OK, status);
+
+		Assert.assertEquals(0, handler.getQueueDepth("a"));
+		Assert.assertEquals(0, handler.getActiveRequests());
+		Assert.assertTrue(handler.getAverageWaitTimeInMsec("a") > 0);
+	}
+
+	/**
+	 * Requests waiting longer than the timeout are rejected.
+	 */
+	@Test
+	public void waitingRequestsTimeOut() throws Exception {
+
+		handler.setTimeoutInMsec(200);
+
+		startRequest("blocker");
+
+		for (int i = 0; i < 100 && handler.getActiveRequests() == 0; i++)
+			Thread.sleep(20);
+
+		Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+				request("a"));
+		Assert.assertEquals(0, handler.getQueueDepth("a"));
+		Assert.assertEquals(1, handler.getRejectedCount("a"));
+
+		gate.countDown();
+		awaitClients();
+
+		Assert.assertEquals(0, handler.getActiveRequests());
+	}
+
+	/**
+	 * A class queue limit overrides the default one for that class only.
+	 */
+	@Test
+	public void queueLimitsAreSetPerClass() throws Exception {
+
+		handler.setMaxQueued("b", 1);
+
+		startRequest("blocker");
+
+		for (int i = 0; i < 100 && handler.getActiveRequests() == 0; i++)
+			Thread.sleep(20);
+
+		startRequest("b");
+		awaitQueueDepth("b", 1);
+
+		Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+				request("b"));
+		Assert.assertEquals(1, handler.getRejectedCount("b"));
+
+		startRequest("a");
+		awaitQueueDepth("a", 1);
+		startRequest("a");
+		awaitQueueDepth("a", 2);
+
+		gate.countDown();
+		awaitClients();
+
+		Assert.assertEquals(0, handler.getRejectedCount("a"));
+
+		for (int status : statuses)
+			Assert.assertEquals(HttpServletResponse.SC_OK, status);
+	}
+
+	/**
+	 * The default classification needs the attributes to be validated by an
+	 * enclosing asynchronous security context handler.
+	 */
+	@Test
+	public void classificationByFQANRequiresAsyncHandler() throws Exception {
+
+		FairQueuingHandler fqanHandler = new FairQueuingHandler(1, 1);
+		Server other = new Server(0);
+		other.setHandler(fqanHandler);
+
+		try {
+			other.start();
+			Assert.fail("Started without an AsyncVOMSSecurityContextHandler");
+		} catch (IllegalStateException e) {
+			// Expected
+		} finally {
+			other.stop();
+		}
+
+		AsyncVOMSSecurityContextHandler async = new AsyncVOMSSecurityContextHandler(
+				new VOMSSecurityContextHandler(new StubValidator(), true));
+		async.setHandler(fqanHandler);
+		other.setHandler(async);
+
+		try {
+			other.start();
+			Assert.assertTrue(fqanHandler.isStarted());
+		} finally {
+			other.stop();
+		}
+	}
+
+	/**
+	 * Exposes the default classification.
+	 */
+	private static class ClassifyingHandler extends FairQueuingHandler {
+
+		ClassifyingHandler() {
+
+			super(1, 1);
+		}
+
+		String classOf(HttpServletRequest request) {
+
+			return classify(request);
+		}
+	}
+
+	/**
+	 * A validator whose attributes and validation results are set by the test,
+	 * counting validations.
+	 */
+	private static class StubValidator implements VOMSACValidator {
+
+		final AtomicInteger validated = new AtomicInteger();
+
+		volatile List<VOMSAttribute> attributes = Collections.emptyList();
+
+		volatile List<VOMSValidationResult> results = Collections.emptyList();
+
+		public List<VOMSAttribute> parse(X509Certificate[] certChain) {
+
+			return attributes;
+		}
+
+		public List<VOMSAttribute> validate(X509Certificate[] certChain) {
+
+			validated.incrementAndGet();
+			return attributes;
+		}
+
+		public List<VOMSValidationResult> validateWithResult(
+				X509Certificate[] certChain) {
+
+			validated.incrementAndGet();
+			return results;
+		}
+
+		public List<AttributeCertificate> validateACs(
+				List<AttributeCertificate> acs) {
+
+			return acs;
+		}
+
+		public void setValidationResultListener(ValidationResultListener listener) {
+
+		}
+
+		public void shutdown() {
+
+		}
+	}
+
+	/**
+	 * Requests are classified by client name until their attributes have been
+	 * validated, and only by valid FQANs.
+	 */
+	@Test
+	public void requestsAreClassifiedByValidatedFQANs() throws Exception {
+
+		CertificateUtils.configureSecProvider();
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(1024);
+		KeyPair keys = kpg.generateKeyPair();
+
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(BigInteger.ONE);
+		generator.setIssuerDN(new X500Principal("CN=Test CA,O=IGI,C=IT"));
+		generator.setSubjectDN(new X500Principal("CN=test,O=IGI,C=IT"));
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 3600000L));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + 3600000L));
+		generator.setPublicKey(keys.getPublic());
+		generator.setSignatureAlgorithm("SHA1withRSA");
+		X509Certificate[] chain = new X509Certificate[] { generator.generate(
+				keys.getPrivate(), "BC") };
+
+		AttributeCertificate ac = new VOMSACGenerator(new KeyAndCertCredential(
+				keys.getPrivate(), chain)).generateVOMSAttributeCertificate(
+				Arrays.asList("/test.vo/Role=admin/Capability=NULL"),
+				Collections.<VOMSGenericAttribute> emptyList(),
+				Collections.<String> emptyList(), chain[0], BigInteger.TEN,
+				new Date(System.currentTimeMillis() - 60000L),
+				new Date(System.currentTimeMillis() + 3600000L), "test.vo",
+				"voms.example.org", 15000).toASN1Structure();
+		VOMSAttribute attribute = VOMSACUtils.deserializeVOMSAttributes(ac);
+
+		StubValidator validator = new StubValidator();
+		validator.attributes = Arrays.asList(attribute);
+		validator.results = Arrays.asList(new VOMSValidationResult(attribute,
+				false));
+
+		ClassifyingHandler classifier = new ClassifyingHandler();
+
+		// Parsed but not validated attributes are ignored
+		VOMSSecurityContextImpl insecure = new VOMSSecurityContextImpl(validator,
+				false);
+		insecure.setClientCertChain(chain);
+		insecure.getVOMSAttributes();
+
+		Request request = new Request();
+		request.setAttribute(VOMSSecurityContextHandler.CONTEXT_KEY, insecure);
+
+		Assert.assertEquals(insecure.getClientName(), classifier.classOf(request));
+		Assert.assertEquals(0, validator.validated.get());
+
+		// Invalid attributes are ignored
+		insecure.getValidationResults();
+		Assert.assertEquals(insecure.getClientName(), classifier.classOf(request));
+
+		// Attributes are not validated by the classification
+		validator.results = Arrays.asList(new VOMSValidationResult(attribute,
+				true));
+		VOMSSecurityContextImpl secure = new VOMSSecurityContextImpl(validator,
+				true);
+		secure.setClientCertChain(chain);
+		request.setAttribute(VOMSSecurityContextHandler.CONTEXT_KEY, secure);
+
+		Assert.assertEquals(secure.getClientName(), classifier.classOf(request));
+		Assert.assertEquals(1, validator.validated.get());
+
+		secure.getVOMSAttributes();
+		Assert.assertEquals("/test.vo/Role=admin/Capability=NULL",
+				classifier.classOf(request));
+	}
+}
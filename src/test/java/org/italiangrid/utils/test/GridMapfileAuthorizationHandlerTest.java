@@ -0,0 +1,352 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.AttributeCertificate;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.italiangrid.utils.voms.GridMapfileAuthorizationHandler;
+import org.italiangrid.utils.voms.SecurityContext;
+import org.italiangrid.utils.voms.SecurityContextFactory;
+import org.italiangrid.utils.voms.VOMSSecurityContextImpl;
+import org.italiangrid.voms.VOMSAttribute;
+import org.italiangrid.voms.VOMSGenericAttribute;
+import org.italiangrid.voms.VOMSValidators;
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.ac.VOMSValidationResult;
+import org.italiangrid.voms.ac.ValidationResultListener;
+import org.italiangrid.voms.asn1.VOMSACGenerator;
+import org.italiangrid.voms.asn1.VOMSACUtils;
+import org.italiangrid.voms.store.impl.DefaultVOMSTrustStore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.KeyAndCertCredential;
+import eu.emi.security.authn.x509.impl.OpensslCertChainValidator;
+import eu.emi.security.authn.x509.proxy.ProxyCertificateOptions;
+import eu.emi.security.authn.x509.proxy.ProxyGenerator;
+
+public class GridMapfileAuthorizationHandlerTest {
+
+	private static KeyPair keys;
+
+	/**
+	 * A validator returning fixed attributes, found valid.
+	 */
+	private static class FixedValidator implements VOMSACValidator {
+
+		final List<VOMSAttribute> attributes;
+
+		final AtomicInteger validated = new AtomicInteger();
+
+		FixedValidator(List<VOMSAttribute> attributes) {
+
+			this.attributes = attributes;
+		}
+
+		public List<VOMSAttribute> parse(X509Certificate[] certChain) {
+
+			return attributes;
+		}
+
+		public List<VOMSAttribute> validate(X509Certificate[] certChain) {
+
+			return attributes;
+		}
+
+		public List<VOMSValidationResult> validateWithResult(
+				X509Certificate[] certChain) {
+
+			validated.incrementAndGet();
+			List<VOMSValidationResult> results = new ArrayList<VOMSValidationResult>();
+
+			for (VOMSAttribute a : attributes)
+				results.add(new VOMSValidationResult(a, true));
+
+			return results;
+		}
+
+		public List<AttributeCertificate> validateACs(
+				List<AttributeCertificate> acs) {
+
+			return acs;
+		}
+
+		public void setValidationResultListener(ValidationResultListener listener) {
+
+		}
+
+		public void shutdown() {
+
+		}
+	}
+
+	private File gridMapfile;
+
+	private File groupMapfile;
+
+	@BeforeClass
+	public static void setUpKeys() throws Exception {
+
+		CertificateUtils.configureSecProvider();
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(1024);
+		keys = kpg.generateKeyPair();
+	}
+
+	@Before
+	public void setUp() throws IOException {
+
+		gridMapfile = File.createTempFile("grid-mapfile", "");
+		groupMapfile = File.createTempFile("groupmapfile", "");
+	}
+
+	@After
+	public void tearDown() {
+
+		gridMapfile.delete();
+		groupMapfile.delete();
+	}
+
+	private static void write(File f, String... lines) throws IOException {
+
+		FileWriter w = new FileWriter(f);
+
+		try {
+			for (String l : lines)
+				w.write(l + "\n");
+		} finally {
+			w.close();
+		}
+	}
+
+	private static X509Certificate[] chain(String subject) throws Exception {
+
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(BigInteger.ONE);
+		generator.setIssuerDN(new X500Principal("CN=Test CA,O=IGI,C=IT"));
+		generator.setSubjectDN(new X500Principal(subject));
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 3600000L));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + 3600000L));
+		generator.setPublicKey(keys.getPublic());
+		generator.setSignatureAlgorithm("SHA1withRSA");
+
+		return new X509Certificate[] { generator.generate(keys.getPrivate(),
+				"BC") };
+	}
+
+	private static SecurityContext context(String subject) throws Exception {
+
+		return SecurityContextFactory.newSecurityContext(chain(subject),
+				"127.0.0.1");
+	}
+
+	@Test
+	public void subjectsMapToAccounts() throws Exception {
+
+		write(gridMapfile, "# Test mappings", "",
+				"\"/C=IT/O=IGI/CN=test\" test001,test002",
+				"\"/C=IT/O=IGI/CN=host/server.example.org\" server",
+				"\"/C=IT/O=IGI/*\" igi", "not a mapping");
+
+		GridMapfileAuthorizationHandler handler = new GridMapfileAuthorizationHandler(
+				gridMapfile.getAbsolutePath(), null, 0);
+
+		Assert.assertEquals("test001",
+				handler.getAccount(context("CN=test,O=IGI,C=IT")));
+		Assert.assertEquals("server", handler.getAccount(context(
+				"CN=host/server.example.org,O=IGI,C=IT")));
+		Assert.assertEquals("igi",
+				handler.getAccount(context("CN=other,O=IGI,C=IT")));
+		Assert.assertEquals("igi",
+				handler.getAccount(context("CN=test,OU=Unit,O=IGI,C=IT")));
+		Assert.assertNull(handler.getAccount(context("CN=test,O=Other,C=IT")));
+	}
+
+	@Test
+	public void fqansAreMappedBeforeSubjects() throws Exception {
+
+		X509Certificate[] chain = chain("CN=test,O=IGI,C=IT");
+
+		AttributeCertificate ac = new VOMSACGenerator(new KeyAndCertCredential(
+				keys.getPrivate(), chain)).generateVOMSAttributeCertificate(
+				Arrays.asList("/test.vo/prod/Role=admin/Capability=NULL",
+						"/test.vo/Role=NULL/Capability=NULL"),
+				Collections.<VOMSGenericAttribute> emptyList(),
+				Collections.<String> emptyList(), chain[0], BigInteger.TEN,
+				new Date(System.currentTimeMillis() - 60000L),
+				new Date(System.currentTimeMillis() + 3600000L), "test.vo",
+				"voms.example.org", 15000).toASN1Structure();
+
+		VOMSSecurityContextImpl sc = new VOMSSecurityContextImpl(
+				new FixedValidator(Arrays.asList(VOMSACUtils
+						.deserializeVOMSAttributes(ac))), false);
+		sc.setClientCertChain(chain);
+
+		write(gridMapfile, "\"/C=IT/O=IGI/CN=test\" test001");
+		write(groupMapfile, "\"/test.vo\" .testvo", "\"/other.vo/*\" .othervo");
+
+		GridMapfileAuthorizationHandler handler = new GridMapfileAuthorizationHandler(
+				gridMapfile.getAbsolutePath(), groupMapfile.getAbsolutePath(), 0);
+
+		Assert.assertEquals(".testvo", handler.getAccount(sc));
+
+		write(groupMapfile, "\"/test.vo/*\" .testvo",
+				"\"/test.vo/prod/Role=admin\" testadm");
+		Assert.assertTrue(handler.reload());
+
+		Assert.assertEquals("testadm", handler.getAccount(sc));
+
+		write(groupMapfile, "\"/other.vo/*\" .othervo");
+		Assert.assertTrue(handler.reload());
+
+		Assert.assertEquals("test001", handler.getAccount(sc));
+	}
+
+	/**
+	 * Security contexts built for the same chain share the account looked up
+	 * for the first one, without validating their attributes again.
+	 */
+	@Test
+	public void accountsAreRememberedPerChain() throws Exception {
+
+		X509Certificate[] chain = chain("CN=test,O=IGI,C=IT");
+
+		AttributeCertificate ac = new VOMSACGenerator(new KeyAndCertCredential(
+				keys.getPrivate(), chain)).generateVOMSAttributeCertificate(
+				Arrays.asList("/test.vo/Role=NULL/Capability=NULL"),
+				Collections.<VOMSGenericAttribute> emptyList(),
+				Collections.<String> emptyList(), chain[0], BigInteger.TEN,
+				new Date(System.currentTimeMillis() - 60000L),
+				new Date(System.currentTimeMillis() + 3600000L), "test.vo",
+				"voms.example.org", 15000).toASN1Structure();
+
+		FixedValidator validator = new FixedValidator(Arrays.asList(VOMSACUtils
+				.deserializeVOMSAttributes(ac)));
+
+		write(gridMapfile, "\"/C=IT/O=IGI/CN=test\" test001");
+		write(groupMapfile, "\"/test.vo\" .testvo");
+
+		GridMapfileAuthorizationHandler handler = new GridMapfileAuthorizationHandler(
+				gridMapfile.getAbsolutePath(), groupMapfile.getAbsolutePath(), 0);
+
+		for (int i = 0; i < 3; i++) {
+
+			VOMSSecurityContextImpl sc = new VOMSSecurityContextImpl(validator,
+					true);
+			sc.setClientCertChain(chain);
+
+			Assert.assertEquals(".testvo", handler.getAccount(sc));
+		}
+
+		Assert.assertEquals(1, validator.validated.get());
+	}
+
+	/**
+	 * The FQANs of an attribute certificate which is not valid are not mapped,
+	 * even if the security context only parses attributes.
+	 */
+	@Test
+	public void invalidAttributesAreNotMapped() throws Exception {
+
+		X509Certificate[] chain = chain("CN=test,O=IGI,C=IT");
+
+		// Issued by an AA which is not in the VOMS trust store
+		AttributeCertificate ac = new VOMSACGenerator(new KeyAndCertCredential(
+				keys.getPrivate(), chain)).generateVOMSAttributeCertificate(
+				Arrays.asList("/test.vo/Role=NULL/Capability=NULL"),
+				Collections.<VOMSGenericAttribute> emptyList(),
+				Collections.<String> emptyList(), chain[0], BigInteger.TEN,
+				new Date(System.currentTimeMillis() - 60000L),
+				new Date(System.currentTimeMillis() + 3600000L), "test.vo",
+				"voms.example.org", 15000).toASN1Structure();
+
+		ProxyCertificateOptions options = new ProxyCertificateOptions(chain);
+		options.setAttributeCertificates(new AttributeCertificate[] { ac });
+		X509Certificate[] proxyChain = ProxyGenerator.generate(options,
+				keys.getPrivate()).getCertificateChain();
+
+		File vomsDir = File.createTempFile("vomsdir", "");
+		vomsDir.delete();
+		vomsDir.mkdir();
+
+		OpensslCertChainValidator certChainValidator = new OpensslCertChainValidator(
+				"certs/ca");
+
+		try {
+			VOMSACValidator validator = VOMSValidators.newValidator(
+					new DefaultVOMSTrustStore(Arrays.asList(vomsDir.getPath())),
+					certChainValidator);
+
+			VOMSSecurityContextImpl sc = new VOMSSecurityContextImpl(validator,
+					false);
+			sc.setClientCertChain(proxyChain);
+
+			Assert.assertEquals("/test.vo/Role=NULL/Capability=NULL", sc
+					.getVOMSAttributes().get(0).getFQANs().get(0));
+
+			write(gridMapfile, "\"/C=IT/O=IGI/CN=test\" test001");
+			write(groupMapfile, "\"/test.vo\" .testvo");
+
+			GridMapfileAuthorizationHandler handler = new GridMapfileAuthorizationHandler(
+					gridMapfile.getAbsolutePath(), groupMapfile.getAbsolutePath(), 0);
+
+			Assert.assertEquals("test001", handler.getAccount(sc));
+		} finally {
+			certChainValidator.dispose();
+			vomsDir.delete();
+		}
+	}
+
+	@Test
+	public void currentMappingsAreKeptOnReloadErrors() throws Exception {
+
+		write(gridMapfile, "\"/C=IT/O=IGI/CN=test\" test001");
+
+		GridMapfileAuthorizationHandler handler = new GridMapfileAuthorizationHandler(
+				gridMapfile.getAbsolutePath(), null, 0);
+
+		SecurityContext sc = context("CN=test,O=IGI,C=IT");
+		Assert.assertEquals("test001", handler.getAccount(sc));
+
+		gridMapfile.delete();
+		Assert.assertFalse(handler.reload());
+
+		Assert.assertEquals("test001", handler.getAccount(sc));
+		Assert.assertEquals("test001",
+				handler.getAccount(context("CN=test,O=IGI,C=IT")));
+	}
+}
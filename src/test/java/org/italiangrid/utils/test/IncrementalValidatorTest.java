@@ -0,0 +1,493 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.X509Extensions;
+import org.bouncycastle.openssl.PEMWriter;
+import org.bouncycastle.x509.X509V2CRLGenerator;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.italiangrid.utils.https.impl.canl.IncrementalOpensslCertChainValidator;
+import org.italiangrid.utils.https.impl.canl.TrustStoreReloadStats;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.CrlCheckingMode;
+import eu.emi.security.authn.x509.NamespaceCheckingMode;
+import eu.emi.security.authn.x509.OCSPCheckingMode;
+import eu.emi.security.authn.x509.OCSPParametes;
+import eu.emi.security.authn.x509.ProxySupport;
+import eu.emi.security.authn.x509.ValidationErrorCode;
+import eu.emi.security.authn.x509.ValidationResult;
+import eu.emi.security.authn.x509.helpers.trust.OpensslTruststoreHelper;
+import eu.emi.security.authn.x509.impl.CRLParameters;
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.CertificateUtils.Encoding;
+import eu.emi.security.authn.x509.impl.OpensslCertChainValidator;
+import eu.emi.security.authn.x509.impl.RevocationParametersExt;
+import eu.emi.security.authn.x509.impl.ValidatorParamsExt;
+
+public class IncrementalValidatorTest {
+
+	private File trustStore;
+
+	private IncrementalOpensslCertChainValidator validator;
+
+	private static void copy(File from, File to) throws Exception {
+
+		InputStream is = new FileInputStream(from);
+		OutputStream os = new FileOutputStream(to);
+
+		try {
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = is.read(buf)) > 0)
+				os.write(buf, 0, n);
+		} finally {
+			is.close();
+			os.close();
+		}
+	}
+
+	private static byte[] readFile(File f) throws Exception {
+
+		InputStream is = new FileInputStream(f);
+
+		try {
+			byte[] content = new byte[(int) f.length()];
+			new DataInputStream(is).readFully(content);
+			return content;
+		} finally {
+			is.close();
+		}
+	}
+
+	private static void writeFile(File f, byte[] content) throws Exception {
+
+		OutputStream os = new FileOutputStream(f);
+
+		try {
+			os.write(content);
+		} finally {
+			os.close();
+		}
+	}
+
+	private static ValidatorParamsExt newParams() {
+
+		return new ValidatorParamsExt(new RevocationParametersExt(
+				CrlCheckingMode.IF_VALID, new CRLParameters(), new OCSPParametes(
+						OCSPCheckingMode.IGNORE)), ProxySupport.ALLOW);
+	}
+
+	private static X509Certificate[] loadChain(String path) throws Exception {
+
+		InputStream is = new FileInputStream(path);
+		try {
+			return CertificateUtils.loadCertificateChain(is, Encoding.PEM);
+		} finally {
+			is.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+
+		trustStore = File.createTempFile("trust-store", "");
+		trustStore.delete();
+		trustStore.mkdir();
+
+		for (File f : new File("certs/ca").listFiles())
+			copy(f, new File(trustStore, f.getName()));
+
+		validator = new IncrementalOpensslCertChainValidator(
+				trustStore.getPath(), NamespaceCheckingMode.GLOBUS_EUGRIDPMA, 0,
+				newParams());
+	}
+
+	@After
+	public void tearDown() {
+
+		validator.dispose();
+
+		for (File f : trustStore.listFiles())
+			f.delete();
+		trustStore.delete();
+	}
+
+	/**
+	 * The initial load reads the whole directory and validates like the CANL
+	 * validator does.
+	 */
+	@Test
+	public void initialLoadMatchesCANLValidator() throws Exception {
+
+		TrustStoreReloadStats stats = validator.getLastReloadStats();
+
+		Assert.assertTrue(stats.isFullReload());
+		Assert.assertEquals(1, stats.getAnchorsLoaded());
+		Assert.assertEquals(2, stats.getCrlsLoaded());
+		Assert.assertEquals(4, stats.getNamespacesLoaded());
+
+		OpensslCertChainValidator canlValidator = new OpensslCertChainValidator(
+				trustStore.getPath(), false, NamespaceCheckingMode.GLOBUS_EUGRIDPMA,
+				-1, newParams(), false);
+
+		try {
+			X509Certificate[] chain = loadChain("certs/voms_client.cert.pem");
+
+			Assert.assertEquals(canlValidator.getTrustedIssuers().length,
+					validator.getTrustedIssuers().length);
+			Assert.assertEquals(canlValidator.validate(chain).isValid(),
+					validator.validate(chain).isValid());
+		} finally {
+			canlValidator.dispose();
+		}
+	}
+
+	/**
+	 * Only the changed files are reloaded, and removed files are dropped.
+	 */
+	@Test
+	public void onlyChangedFilesAreReloaded() throws Exception {
+
+		File ca = new File(trustStore, "d82942ab.0");
+		File crl = new File(trustStore, "d82942ab.r0");
+
+		Assert.assertTrue(ca.delete());
+
+		TrustStoreReloadStats stats = validator.reload(Arrays.asList(ca, crl));
+
+		Assert.assertFalse(stats.isFullReload());
+		Assert.assertEquals(0, stats.getAnchorsLoaded());
+		Assert.assertEquals(1, stats.getAnchorsRemoved());
+		Assert.assertEquals(1, stats.getCrlsLoaded());
+		Assert.assertEquals(0, stats.getNamespacesLoaded());
+		Assert.assertEquals(0, validator.getTrustedIssuers().length);
+	}
+
+	/**
+	 * A CA stored under a name other than its subject hash in the configured
+	 * OpenSSL mode is not trusted, as with the CANL validator.
+	 */
+	@Test
+	public void caFilesMustBeNamedAfterTheirSubjectHash() throws Exception {
+
+		File ca = new File(trustStore, "d82942ab.0");
+		X509Certificate cert = loadChain(ca.getPath())[0];
+
+		File renamed = new File(trustStore, OpensslTruststoreHelper
+				.getOpenSSLCAHash(cert.getSubjectX500Principal(), true) + ".1");
+		Assert.assertTrue(ca.renameTo(renamed));
+
+		TrustStoreReloadStats stats = validator.reload(Arrays.asList(ca,
+				renamed));
+
+		Assert.assertEquals(0, stats.getAnchorsLoaded());
+		Assert.assertEquals(1, stats.getAnchorsRemoved());
+		Assert.assertEquals(0, validator.getTrustedIssuers().length);
+
+		OpensslCertChainValidator canlValidator = new OpensslCertChainValidator(
+				trustStore.getPath(), false, NamespaceCheckingMode.GLOBUS_EUGRIDPMA,
+				-1, newParams(), false);
+
+		try {
+			Assert.assertEquals(canlValidator.getTrustedIssuers().length,
+					validator.getTrustedIssuers().length);
+		} finally {
+			canlValidator.dispose();
+		}
+	}
+
+	/**
+	 * A restart uses the snapshot for the files that did not change.
+	 */
+	@Test
+	public void snapshotIsUsedOnRestart() throws Exception {
+
+		File snapshot = new File(trustStore.getPath() + ".snapshot");
+
+		try {
+			X509Certificate[] chain = loadChain("certs/voms_client.cert.pem");
+
+			IncrementalOpensslCertChainValidator v1 = new IncrementalOpensslCertChainValidator(
+					trustStore.getPath(), NamespaceCheckingMode.GLOBUS_EUGRIDPMA, 0,
+					newParams(), snapshot.getPath());
+			boolean valid = v1.validate(chain).isValid();
+			int issuers = v1.getTrustedIssuers().length;
+			v1.dispose();
+
+			Assert.assertTrue(snapshot.isFile());
+
+			File crl = new File(trustStore, "d82942ab.r0");
+			Assert.assertTrue(crl.setLastModified(crl.lastModified() - 60000L));
+
+			IncrementalOpensslCertChainValidator v2 = new IncrementalOpensslCertChainValidator(
+					trustStore.getPath(), NamespaceCheckingMode.GLOBUS_EUGRIDPMA, 0,
+					newParams(), snapshot.getPath());
+
+			try {
+				TrustStoreReloadStats stats = v2.getLastReloadStats();
+
+				Assert.assertEquals(6, stats.getRestoredFromSnapshot());
+				Assert.assertEquals(0, stats.getAnchorsLoaded());
+				Assert.assertEquals(1, stats.getCrlsLoaded());
+				Assert.assertEquals(0, stats.getNamespacesLoaded());
+				Assert.assertEquals(issuers, v2.getTrustedIssuers().length);
+				Assert.assertEquals(valid, v2.validate(chain).isValid());
+			} finally {
+				v2.dispose();
+			}
+		} finally {
+			snapshot.delete();
+		}
+	}
+
+	/**
+	 * Snapshot entries are not used when the file changed without changing its
+	 * modification time and size, and a corrupted snapshot is ignored.
+	 */
+	@Test
+	public void snapshotIsCheckedBeforeUse() throws Exception {
+
+		File snapshot = new File(trustStore.getPath() + ".snapshot");
+
+		try {
+			new IncrementalOpensslCertChainValidator(trustStore.getPath(),
+					NamespaceCheckingMode.GLOBUS_EUGRIDPMA, 0, newParams(),
+					snapshot.getPath()).dispose();
+
+			File ns = new File(trustStore, "d82942ab.namespaces");
+			long lastModified = ns.lastModified();
+			byte[] content = readFile(ns);
+			String text = new String(content, "US-ASCII");
+			int i = text.indexOf("C=it");
+			content[i + 2] = 'I';
+			content[i + 3] = 'T';
+			writeFile(ns, content);
+			Assert.assertTrue(ns.setLastModified(lastModified));
+
+			IncrementalOpensslCertChainValidator v2 = new IncrementalOpensslCertChainValidator(
+					trustStore.getPath(), NamespaceCheckingMode.GLOBUS_EUGRIDPMA, 0,
+					newParams(), snapshot.getPath());
+
+			try {
+				TrustStoreReloadStats stats = v2.getLastReloadStats();
+
+				Assert.assertEquals(6, stats.getRestoredFromSnapshot());
+				Assert.assertEquals(1, stats.getNamespacesLoaded());
+			} finally {
+				v2.dispose();
+			}
+
+			byte[] snapshotContent = readFile(snapshot);
+			snapshotContent[snapshotContent.length / 2] ^= 1;
+			writeFile(snapshot, snapshotContent);
+
+			IncrementalOpensslCertChainValidator v3 = new IncrementalOpensslCertChainValidator(
+					trustStore.getPath(), NamespaceCheckingMode.GLOBUS_EUGRIDPMA, 0,
+					newParams(), snapshot.getPath());
+
+			try {
+				TrustStoreReloadStats stats = v3.getLastReloadStats();
+
+				Assert.assertEquals(0, stats.getRestoredFromSnapshot());
+				Assert.assertEquals(1, stats.getAnchorsLoaded());
+				Assert.assertEquals(2, stats.getCrlsLoaded());
+			} finally {
+				v3.dispose();
+			}
+		} finally {
+			snapshot.delete();
+		}
+	}
+
+	/**
+	 * CRLs are compiled into the index directory, and validation gives the same
+	 * outcome as with CRLs loaded in memory.
+	 */
+	@Test
+	public void indexedCRLsMatchInMemoryCRLs() throws Exception {
+
+		File indexDir = new File(trustStore.getPath() + ".idx");
+
+		try {
+			IncrementalOpensslCertChainValidator indexed = new IncrementalOpensslCertChainValidator(
+					trustStore.getPath(), NamespaceCheckingMode.GLOBUS_EUGRIDPMA, 0,
+					newParams(), null, indexDir.getPath());
+
+			try {
+				Assert.assertEquals(2, indexed.getLastReloadStats().getCrlsLoaded());
+				Assert.assertTrue(new File(indexDir, "10b10516.r0.idx").isFile());
+				Assert.assertTrue(new File(indexDir, "d82942ab.r0.idx").isFile());
+
+				for (String path : new String[] { "certs/voms_client.cert.pem",
+						"certs/voms_service.cert.pem" }) {
+					X509Certificate[] chain = loadChain(path);
+
+					Assert.assertEquals(validator.validate(chain).getErrors().size(),
+							indexed.validate(chain).getErrors().size());
+				}
+			} finally {
+				indexed.dispose();
+			}
+		} finally {
+			File[] files = indexDir.listFiles();
+			if (files != null)
+				for (File f : files)
+					f.delete();
+			indexDir.delete();
+		}
+	}
+
+	/**
+	 * A certificate listed in a CRL is rejected both with the CRLs loaded in
+	 * memory and with the CRLs compiled into the index directory, and a
+	 * corrupted index is compiled again rather than used.
+	 */
+	@Test
+	public void revokedCertificatesAreRejected() throws Exception {
+
+		CertificateUtils.configureSecProvider();
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(1024);
+
+		KeyPair caKeys = kpg.generateKeyPair();
+		X500Principal caName = new X500Principal("CN=Revocation CA,O=IGI,C=IT");
+		X509Certificate caCert = newCertificate(BigInteger.ONE, caName, caName,
+				caKeys.getPublic(), caKeys, true);
+
+		KeyPair userKeys = kpg.generateKeyPair();
+		X509Certificate goodCert = newCertificate(BigInteger.valueOf(2), caName,
+				new X500Principal("CN=good,O=IGI,C=IT"), userKeys.getPublic(), caKeys,
+				false);
+		X509Certificate revokedCert = newCertificate(BigInteger.valueOf(3),
+				caName, new X500Principal("CN=revoked,O=IGI,C=IT"),
+				userKeys.getPublic(), caKeys, false);
+
+		X509V2CRLGenerator crlGenerator = new X509V2CRLGenerator();
+		crlGenerator.setIssuerDN(caName);
+		crlGenerator.setThisUpdate(new Date(System.currentTimeMillis() - 3600000L));
+		crlGenerator.setNextUpdate(new Date(System.currentTimeMillis() + 86400000L));
+		crlGenerator.setSignatureAlgorithm("SHA1withRSA");
+		crlGenerator.addCRLEntry(BigInteger.valueOf(3), new Date(
+				System.currentTimeMillis() - 60000L), CRLReason.keyCompromise);
+		X509CRL crl = crlGenerator.generate(caKeys.getPrivate(), "BC");
+
+		File dir = File.createTempFile("revocation", "");
+		dir.delete();
+		dir.mkdir();
+
+		File indexDir = new File(dir.getPath() + ".idx");
+
+		try {
+			String hash = OpensslTruststoreHelper.getOpenSSLCAHash(caName, false);
+			writePEM(new File(dir, hash + ".0"), caCert);
+			writePEM(new File(dir, hash + ".r0"), crl);
+
+			for (int i = 0; i < 3; i++) {
+
+				IncrementalOpensslCertChainValidator v = new IncrementalOpensslCertChainValidator(
+						dir.getPath(), NamespaceCheckingMode.IGNORE, 0, newParams(), null,
+						i == 0 ? null : indexDir.getPath());
+
+				try {
+					Assert.assertTrue(v.validate(new X509Certificate[] { goodCert })
+							.isValid());
+
+					ValidationResult result = v
+							.validate(new X509Certificate[] { revokedCert });
+
+					Assert.assertFalse(result.isValid());
+					Assert.assertEquals(ValidationErrorCode.certRevoked, result
+							.getErrors().get(0).getErrorCode());
+					Assert.assertTrue(result.getErrors().get(0).getMessage()
+							.startsWith("Certificate was revoked"));
+				} finally {
+					v.dispose();
+				}
+
+				if (i == 1) {
+					// Truncate the index; it must be compiled again
+					File index = new File(indexDir, hash + ".r0.idx");
+					byte[] content = readFile(index);
+					byte[] truncated = new byte[content.length - 64];
+					System.arraycopy(content, 0, truncated, 0, truncated.length);
+					writeFile(index, truncated);
+				}
+			}
+		} finally {
+			for (File d : new File[] { dir, indexDir }) {
+				File[] files = d.listFiles();
+				if (files != null)
+					for (File f : files)
+						f.delete();
+				d.delete();
+			}
+		}
+	}
+
+	private static X509Certificate newCertificate(BigInteger serial,
+			X500Principal issuer, X500Principal subject, PublicKey key,
+			KeyPair caKeys, boolean ca) throws Exception {
+
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(serial);
+		generator.setIssuerDN(issuer);
+		generator.setSubjectDN(subject);
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 3600000L));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + 86400000L));
+		generator.setPublicKey(key);
+		generator.setSignatureAlgorithm("SHA1withRSA");
+		generator.addExtension(X509Extensions.BasicConstraints, true,
+				new BasicConstraints(ca));
+
+		return generator.generate(caKeys.getPrivate(), "BC");
+	}
+
+	private static void writePEM(File f, Object o) throws Exception {
+
+		PEMWriter writer = new PEMWriter(new FileWriter(f));
+
+		try {
+			writer.writeObject(o);
+		} finally {
+			writer.close();
+		}
+	}
+}
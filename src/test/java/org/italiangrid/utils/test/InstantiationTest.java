@@ -15,8 +15,12 @@
  */
 package org.italiangrid.utils.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import org.italiangrid.utils.https.SSLOptions;
 import org.italiangrid.utils.https.ServerFactory;
+import org.italiangrid.utils.https.StartupTimings;
 import org.junit.Test;
 
 /**
@@ -78,6 +82,29 @@ public class InstantiationTest {
 		ServerFactory.newServer("localhost", 443, options);
 		
 	}
-	
-	
+
+	/**
+	 * Calling newServer with startup timings records every connector phase.
+	 * 
+	 */
+	@Test
+	public void startupPhasesAreTimed() {
+		
+		SSLOptions options = new SSLOptions();
+		
+		options.setCertificateFile("certs/voms_service.cert.pem");
+		options.setKeyFile("certs/voms_service.key.pem");
+		options.setTrustStoreDirectory("certs/ca");
+		
+		StartupTimings timings = new StartupTimings();
+		
+		ServerFactory.newServer("localhost", 443, options, null, 0, 0, timings);
+		
+		assertEquals(4, timings.getPhases().size());
+		assertTrue(timings.getPhase(StartupTimings.CREDENTIAL) >= 0);
+		assertTrue(timings.getPhase(StartupTimings.VALIDATOR) >= 0);
+		assertTrue(timings.getPhase(StartupTimings.SSL_CONTEXT) >= 0);
+		assertTrue(timings.getPhase(StartupTimings.CONNECTOR) >= 0);
+		
+	}
 }
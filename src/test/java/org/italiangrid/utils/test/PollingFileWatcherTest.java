@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.italiangrid.utils.concurrent.PollingFileWatcher;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PollingFileWatcherTest {
+
+	private File dir;
+
+	private PollingFileWatcher watcher;
+
+	private final List<Set<File>> notifications = new ArrayList<Set<File>>();
+
+	private File writeFile(String name, String content, long lastModified)
+			throws IOException {
+
+		File f = new File(dir, name);
+		FileWriter w = new FileWriter(f);
+		w.write(content);
+		w.close();
+		f.setLastModified(lastModified);
+		return f;
+	}
+
+	@Before
+	public void setUp() throws IOException {
+
+		dir = File.createTempFile("watcher", "");
+		dir.delete();
+		dir.mkdir();
+
+		writeFile("a.pem", "a", 1000000L);
+
+		watcher = new PollingFileWatcher(Arrays.asList(dir), null,
+				3600000L, new PollingFileWatcher.Listener() {
+
+					public void filesChanged(Set<File> changedFiles) {
+
+						notifications.add(changedFiles);
+					}
+				});
+
+		watcher.start();
+	}
+
+	@After
+	public void tearDown() {
+
+		watcher.stop();
+
+		for (File f : dir.listFiles())
+			f.delete();
+
+		dir.delete();
+	}
+
+	/**
+	 * A burst of changes is reported once, after files stop changing.
+	 */
+	@Test
+	public void changesAreDebounced() throws IOException {
+
+		File a = writeFile("a.pem", "aa", 2000000L);
+		watcher.poll();
+
+		File b = writeFile("b.pem", "b", 2000000L);
+		watcher.poll();
+
+		Assert.assertTrue(notifications.isEmpty());
+
+		watcher.poll();
+
+		Assert.assertEquals(1, notifications.size());
+		Assert.assertEquals(2, notifications.get(0).size());
+		Assert.assertTrue(notifications.get(0).contains(a));
+		Assert.assertTrue(notifications.get(0).contains(b));
+
+		watcher.poll();
+		Assert.assertEquals(1, notifications.size());
+	}
+
+	/**
+	 * Removed files are reported as changed.
+	 */
+	@Test
+	public void removalIsReported() {
+
+		File a = new File(dir, "a.pem");
+		a.delete();
+
+		watcher.poll();
+		watcher.poll();
+
+		Assert.assertEquals(1, notifications.size());
+		Assert.assertTrue(notifications.get(0).contains(a));
+	}
+}
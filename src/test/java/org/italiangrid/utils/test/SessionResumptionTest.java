@@ -0,0 +1,229 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Server;
+import org.italiangrid.utils.https.SSLOptions;
+import org.italiangrid.utils.https.impl.HandshakeCountingSslConnector;
+import org.italiangrid.utils.https.impl.SSLContextConnectorConfigurator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+
+public class SessionResumptionTest {
+
+	private SSLContext serverContext;
+
+	private Server server;
+
+	private HandshakeCountingSslConnector connector;
+
+	private static SSLContext newServerContext() throws Exception {
+
+		CertificateUtils.configureSecProvider();
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(1024);
+		KeyPair keys = kpg.generateKeyPair();
+
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(BigInteger.ONE);
+		generator.setIssuerDN(new X500Principal("CN=localhost"));
+		generator.setSubjectDN(new X500Principal("CN=localhost"));
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 3600000L));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + 3600000L));
+		generator.setPublicKey(keys.getPublic());
+		generator.setSignatureAlgorithm("SHA256withRSA");
+		X509Certificate cert = generator.generate(keys.getPrivate(), "BC");
+
+		KeyStore ks = KeyStore.getInstance("JKS");
+		ks.load(null, null);
+		ks.setKeyEntry("server", keys.getPrivate(), "pass".toCharArray(),
+				new Certificate[] { cert });
+
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory
+				.getDefaultAlgorithm());
+		kmf.init(ks, "pass".toCharArray());
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(kmf.getKeyManagers(), null, null);
+		return context;
+	}
+
+	private static SSLContext newClientContext() throws Exception {
+
+		TrustManager trustAll = new X509TrustManager() {
+
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+
+			}
+
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+
+			}
+
+			public X509Certificate[] getAcceptedIssuers() {
+
+				return new X509Certificate[0];
+			}
+		};
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { trustAll }, null);
+		return context;
+	}
+
+	private void handshake(SSLContext clientContext, String... protocols)
+			throws Exception {
+
+		SSLSocket socket = (SSLSocket) clientContext.getSocketFactory()
+				.createSocket("localhost", connector.getLocalPort());
+
+		if (protocols.length > 0)
+			socket.setEnabledProtocols(protocols);
+
+		try {
+			socket.startHandshake();
+			socket.getOutputStream().write(
+					"GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+							.getBytes("ASCII"));
+			socket.getOutputStream().flush();
+			socket.getInputStream().read();
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+
+		SSLOptions options = new SSLOptions();
+		options.setWantClientAuth(false);
+		options.setNeedClientAuth(false);
+		options.setSessionCacheSize(1000);
+		options.setSessionTimeoutInSecs(3600);
+		options.setHandshakeCounting(true);
+
+		serverContext = newServerContext();
+
+		connector = (HandshakeCountingSslConnector) new SSLContextConnectorConfigurator(
+				serverContext).configureConnector("localhost", 0, options);
+
+		server = new Server();
+		server.addConnector(connector);
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+
+		server.stop();
+	}
+
+	/**
+	 * The session cache settings are applied to the SSL context.
+	 */
+	@Test
+	public void sessionCacheIsConfigured() {
+
+		Assert.assertEquals(1000, serverContext.getServerSessionContext()
+				.getSessionCacheSize());
+		Assert.assertEquals(3600, serverContext.getServerSessionContext()
+				.getSessionTimeout());
+	}
+
+	/**
+	 * A client reconnecting resumes its session, and handshakes are counted
+	 * accordingly.
+	 */
+	@Test
+	public void resumedHandshakesAreCounted() throws Exception {
+
+		SSLContext clientContext = newClientContext();
+
+		handshake(clientContext);
+		handshake(clientContext);
+		handshake(newClientContext());
+
+		for (int i = 0; i < 50
+				&& connector.getHandshakeStats().getFullHandshakes()
+						+ connector.getHandshakeStats().getResumedHandshakes() < 3; i++)
+			Thread.sleep(20);
+
+		Assert.assertEquals(2, connector.getHandshakeStats().getFullHandshakes());
+		Assert.assertEquals(1, connector.getHandshakeStats()
+				.getResumedHandshakes());
+	}
+
+	/**
+	 * TLS 1.2 resumptions are told apart by session ID.
+	 */
+	@Test
+	public void resumedTLS12HandshakesAreCounted() throws Exception {
+
+		SSLContext clientContext = newClientContext();
+
+		handshake(clientContext, "TLSv1.2");
+		handshake(clientContext, "TLSv1.2");
+		handshake(clientContext, "TLSv1.2");
+		handshake(newClientContext(), "TLSv1.2");
+
+		for (int i = 0; i < 50
+				&& connector.getHandshakeStats().getFullHandshakes()
+						+ connector.getHandshakeStats().getResumedHandshakes() < 4; i++)
+			Thread.sleep(20);
+
+		Assert.assertEquals(2, connector.getHandshakeStats().getFullHandshakes());
+		Assert.assertEquals(2, connector.getHandshakeStats()
+				.getResumedHandshakes());
+	}
+
+	/**
+	 * Handshakes are counted only when asked for.
+	 */
+	@Test
+	public void handshakeCountingIsOptIn() {
+
+		SSLOptions options = new SSLOptions();
+		options.setWantClientAuth(false);
+		options.setNeedClientAuth(false);
+
+		Connector plain = new SSLContextConnectorConfigurator(serverContext)
+				.configureConnector("localhost", 0, options);
+
+		Assert.assertFalse(plain instanceof HandshakeCountingSslConnector);
+	}
+}
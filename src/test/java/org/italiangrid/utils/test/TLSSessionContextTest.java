@@ -0,0 +1,786 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import javax.security.auth.x500.X500Principal;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.bouncycastle.asn1.x509.AttributeCertificate;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.handler.HandlerCollection;
+import org.eclipse.jetty.server.handler.HandlerList;
+import org.eclipse.jetty.server.session.HashSessionManager;
+import org.eclipse.jetty.server.session.SessionHandler;
+import org.italiangrid.utils.https.SSLOptions;
+import org.italiangrid.utils.https.impl.SSLContextConnectorConfigurator;
+import org.italiangrid.utils.https.impl.canl.IncrementalOpensslCertChainValidator;
+import org.italiangrid.utils.voms.AsyncVOMSSecurityContextHandler;
+import org.italiangrid.utils.voms.SecurityContextStore;
+import org.italiangrid.utils.voms.VOMSSecurityContext;
+import org.italiangrid.utils.voms.VOMSSecurityContextHandler;
+import org.italiangrid.utils.voms.VOMSSecurityContextHandler.ContextScope;
+import org.italiangrid.voms.VOMSAttribute;
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.ac.VOMSValidationResult;
+import org.italiangrid.voms.ac.ValidationResultListener;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.NamespaceCheckingMode;
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.ValidatorParamsExt;
+
+public class TLSSessionContextTest {
+
+	private static TrustManager trustAll = new X509TrustManager() {
+
+		public void checkClientTrusted(X509Certificate[] chain, String authType) {
+
+		}
+
+		public void checkServerTrusted(X509Certificate[] chain, String authType) {
+
+		}
+
+		public X509Certificate[] getAcceptedIssuers() {
+
+			return new X509Certificate[0];
+		}
+	};
+
+	/**
+	 * A validator that finds no attributes, taking its time.
+	 */
+	private static class EmptyValidator implements VOMSACValidator {
+
+		final AtomicInteger parsed = new AtomicInteger();
+
+		volatile long delay = 0;
+
+		public List<VOMSAttribute> parse(X509Certificate[] certChain) {
+
+			parsed.incrementAndGet();
+
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			return Collections.emptyList();
+		}
+
+		public List<VOMSAttribute> validate(X509Certificate[] certChain) {
+
+			return Collections.emptyList();
+		}
+
+		public List<VOMSValidationResult> validateWithResult(
+				X509Certificate[] certChain) {
+
+			return Collections.emptyList();
+		}
+
+		public List<AttributeCertificate> validateACs(
+				List<AttributeCertificate> acs) {
+
+			return acs;
+		}
+
+		public void setValidationResultListener(ValidationResultListener listener) {
+
+		}
+
+		public void shutdown() {
+
+		}
+	}
+
+	/**
+	 * Records the security context and whether an HTTP session exists.
+	 */
+	private static class RecordingHandler extends AbstractHandler {
+
+		final List<Object> contexts = new CopyOnWriteArrayList<Object>();
+
+		volatile boolean sessionCreated = false;
+
+		public void handle(String target, Request baseRequest,
+				HttpServletRequest request, HttpServletResponse response)
+				throws IOException, ServletException {
+
+			contexts.add(request
+					.getAttribute(VOMSSecurityContextHandler.CONTEXT_KEY));
+
+			if (request.getSession(false) != null)
+				sessionCreated = true;
+
+			baseRequest.setHandled(true);
+			response.setStatus(HttpServletResponse.SC_OK);
+		}
+	}
+
+	private static KeyManager[] serverKeys;
+
+	private static KeyManager[] clientKeys;
+
+	private Server server;
+
+	private Connector connector;
+
+	private RecordingHandler recorder;
+
+	private EmptyValidator validator;
+
+	private IncrementalOpensslCertChainValidator chainValidator;
+
+	private VOMSSecurityContextHandler vomsHandler;
+
+	private static KeyManager[] newKeyManagers(String subject) throws Exception {
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(1024);
+		KeyPair keys = kpg.generateKeyPair();
+
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(BigInteger.valueOf(System.nanoTime()));
+		generator.setIssuerDN(new X500Principal(subject));
+		generator.setSubjectDN(new X500Principal(subject));
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 3600000L));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + 3600000L));
+		generator.setPublicKey(keys.getPublic());
+		generator.setSignatureAlgorithm("SHA256withRSA");
+		X509Certificate cert = generator.generate(keys.getPrivate(), "BC");
+
+		KeyStore ks = KeyStore.getInstance("JKS");
+		ks.load(null, null);
+		ks.setKeyEntry("key", keys.getPrivate(), "pass".toCharArray(),
+				new Certificate[] { cert });
+
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory
+				.getDefaultAlgorithm());
+		kmf.init(ks, "pass".toCharArray());
+		return kmf.getKeyManagers();
+	}
+
+	private static X509Certificate issue(String subject, PublicKey key,
+			String issuer, PrivateKey issuerKey) throws Exception {
+
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(BigInteger.valueOf(System.nanoTime()));
+		generator.setIssuerDN(new X500Principal(issuer));
+		generator.setSubjectDN(new X500Principal(subject));
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 3600000L));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + 3600000L));
+		generator.setPublicKey(key);
+		generator.setSignatureAlgorithm("SHA256withRSA");
+		return generator.generate(issuerKey, "BC");
+	}
+
+	/**
+	 * Builds key managers presenting a chain issued by an intermediate CA, with
+	 * the root sent before the intermediate.
+	 */
+	private static KeyManager[] newUnorderedChainKeyManagers() throws Exception {
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(1024);
+		KeyPair rootKeys = kpg.generateKeyPair();
+		KeyPair intermediateKeys = kpg.generateKeyPair();
+		KeyPair keys = kpg.generateKeyPair();
+
+		String root = "CN=root,O=IGI,C=IT";
+		String intermediate = "CN=intermediate,O=IGI,C=IT";
+
+		X509Certificate rootCert = issue(root, rootKeys.getPublic(), root,
+				rootKeys.getPrivate());
+		X509Certificate intermediateCert = issue(intermediate,
+				intermediateKeys.getPublic(), root, rootKeys.getPrivate());
+		X509Certificate cert = issue("CN=chained,O=IGI,C=IT", keys.getPublic(),
+				intermediate, intermediateKeys.getPrivate());
+
+		KeyStore ks = KeyStore.getInstance("JKS");
+		ks.load(null, null);
+		ks.setKeyEntry("key", keys.getPrivate(), "pass".toCharArray(),
+				new Certificate[] { cert, rootCert, intermediateCert });
+
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory
+				.getDefaultAlgorithm());
+		kmf.init(ks, "pass".toCharArray());
+		return kmf.getKeyManagers();
+	}
+
+	private static SSLContext newClientContext() throws Exception {
+
+		return newClientContext(clientKeys);
+	}
+
+	private static SSLContext newClientContext(KeyManager[] keys)
+			throws Exception {
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keys, new TrustManager[] { trustAll }, null);
+		return context;
+	}
+
+	private int request(SSLContext clientContext) throws Exception {
+
+		return status(exchange(clientContext, ""));
+	}
+
+	/**
+	 * Sends a request with the given extra headers, returning the response.
+	 */
+	private String exchange(SSLContext clientContext, String headers)
+			throws Exception {
+
+		SSLSocket socket = (SSLSocket) clientContext.getSocketFactory()
+				.createSocket("localhost", connector.getLocalPort());
+
+		try {
+			sendRequest(socket, headers);
+			return readResponse(socket);
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void sendRequest(SSLSocket socket, String headers)
+			throws IOException {
+
+		socket.getOutputStream().write(
+				("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n"
+						+ headers + "\r\n").getBytes("ASCII"));
+		socket.getOutputStream().flush();
+	}
+
+	private static String readResponse(SSLSocket socket) throws IOException {
+
+		StringBuilder response = new StringBuilder();
+		int c;
+
+		while ((c = socket.getInputStream().read()) != -1)
+			response.append((char) c);
+
+		return response.toString();
+	}
+
+	private static int status(String response) {
+
+		return Integer.parseInt(response.substring(9, 12));
+	}
+
+	@BeforeClass
+	public static void setUpKeys() throws Exception {
+
+		CertificateUtils.configureSecProvider();
+
+		serverKeys = newKeyManagers("CN=localhost");
+		clientKeys = newKeyManagers("CN=test,O=IGI,C=IT");
+	}
+
+	@Before
+	public void setUp() throws Exception {
+
+		validator = new EmptyValidator();
+		chainValidator = new IncrementalOpensslCertChainValidator("certs/ca",
+				NamespaceCheckingMode.IGNORE, 0, new ValidatorParamsExt());
+		vomsHandler = new VOMSSecurityContextHandler(validator, chainValidator,
+				false);
+		vomsHandler.setContextScope(ContextScope.TLS_SESSION);
+
+		recorder = new RecordingHandler();
+	}
+
+	private void startServer(Handler handler) throws Exception {
+
+		SSLOptions options = new SSLOptions();
+		options.setSessionCacheSize(1000);
+
+		SSLContext serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(serverKeys, new TrustManager[] { trustAll }, null);
+
+		connector = new SSLContextConnectorConfigurator(serverContext)
+				.configureConnector("localhost", 0, options);
+
+		server = new Server();
+		server.addConnector(connector);
+		server.setHandler(handler);
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+
+		server.stop();
+		chainValidator.dispose();
+	}
+
+	/**
+	 * Connections resuming a TLS session share its security context, and no
+	 * HTTP session is created.
+	 */
+	@Test
+	public void contextIsKeptInTLSSession() throws Exception {
+
+		HandlerCollection handlers = new HandlerCollection();
+		handlers.setHandlers(new Handler[] { vomsHandler, recorder });
+		startServer(handlers);
+
+		SSLContext clientContext = newClientContext();
+
+		request(clientContext);
+		request(clientContext);
+		request(newClientContext());
+
+		Assert.assertEquals(3, recorder.contexts.size());
+		Assert.assertNotNull(recorder.contexts.get(0));
+		Assert.assertSame(recorder.contexts.get(0), recorder.contexts.get(1));
+		Assert.assertNotSame(recorder.contexts.get(0), recorder.contexts.get(2));
+		Assert.assertFalse(recorder.sessionCreated);
+	}
+
+	/**
+	 * A context kept longer than the maximum lifetime is built again.
+	 */
+	@Test
+	public void contextExpiresAfterMaxLifetime() throws Exception {
+
+		vomsHandler.setMaxContextLifetimeInMsec(200);
+
+		HandlerCollection handlers = new HandlerCollection();
+		handlers.setHandlers(new Handler[] { vomsHandler, recorder });
+		startServer(handlers);
+
+		SSLContext clientContext = newClientContext();
+
+		request(clientContext);
+		request(clientContext);
+		Thread.sleep(300);
+		request(clientContext);
+
+		Assert.assertEquals(3, recorder.contexts.size());
+		Assert.assertSame(recorder.contexts.get(0), recorder.contexts.get(1));
+		Assert.assertNotSame(recorder.contexts.get(1), recorder.contexts.get(2));
+	}
+
+	/**
+	 * Connections presenting the same chain share the context kept in the
+	 * context store, and no HTTP session is created.
+	 */
+	@Test
+	public void contextIsKeptInContextStore() throws Exception {
+
+		SecurityContextStore store = new SecurityContextStore();
+		vomsHandler.setContextStore(store);
+
+		HandlerCollection handlers = new HandlerCollection();
+		handlers.setHandlers(new Handler[] { vomsHandler, recorder });
+		startServer(handlers);
+
+		request(newClientContext());
+		request(newClientContext());
+		request(newClientContext());
+
+		Assert.assertEquals(3, recorder.contexts.size());
+		Assert.assertSame(recorder.contexts.get(0), recorder.contexts.get(1));
+		Assert.assertSame(recorder.contexts.get(0), recorder.contexts.get(2));
+
+		for (Object context : recorder.contexts)
+			((VOMSSecurityContext) context).getVOMSAttributes();
+
+		Assert.assertEquals(1, validator.parsed.get());
+		Assert.assertEquals(1, store.size());
+		Assert.assertEquals(0, store.getEvictionCount());
+		Assert.assertTrue(store.getMemoryUsage() > 0);
+		Assert.assertFalse(recorder.sessionCreated);
+	}
+
+	/**
+	 * The least recently used contexts are evicted when the store exceeds its
+	 * memory budget.
+	 */
+	@Test
+	public void contextStoreEvictsWhenFull() throws Exception {
+
+		SecurityContextStore store = new SecurityContextStore(1500, 0);
+		vomsHandler.setContextStore(store);
+
+		HandlerCollection handlers = new HandlerCollection();
+		handlers.setHandlers(new Handler[] { vomsHandler, recorder });
+		startServer(handlers);
+
+		KeyManager[] otherKeys = newKeyManagers("CN=other,O=IGI,C=IT");
+
+		request(newClientContext());
+		request(newClientContext(otherKeys));
+		request(newClientContext());
+
+		for (Object context : recorder.contexts)
+			((VOMSSecurityContext) context).getVOMSAttributes();
+
+		Assert.assertEquals(3, validator.parsed.get());
+		Assert.assertEquals(1, store.size());
+		Assert.assertEquals(2, store.getEvictionCount());
+		Assert.assertTrue(store.getMemoryUsage() <= store.getMaxMemory());
+	}
+
+	/**
+	 * Requests presenting the same chain at the same time are suspended while a
+	 * single validation runs, and then share its context.
+	 */
+	@Test
+	public void concurrentValidationsAreCoalesced() throws Exception {
+
+		validator.delay = 1000;
+
+		AsyncVOMSSecurityContextHandler asyncHandler = new AsyncVOMSSecurityContextHandler(
+				vomsHandler, 2, 10);
+		asyncHandler.setHandler(recorder);
+		startServer(asyncHandler);
+
+		final int clients = 5;
+		final CountDownLatch done = new CountDownLatch(clients);
+
+		for (int i = 0; i < clients; i++) {
+			new Thread() {
+
+				public void run() {
+
+					try {
+						request(newClientContext());
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		done.await();
+
+		Assert.assertEquals(clients, recorder.contexts.size());
+		Assert.assertEquals(1, validator.parsed.get());
+
+		for (Object context : recorder.contexts)
+			Assert.assertSame(recorder.contexts.get(0), context);
+
+		Assert.assertEquals(0, asyncHandler.getPendingValidations());
+	}
+
+	/**
+	 * Requests needing a new context are refused once the validation queue is
+	 * full, instead of being validated in the request thread.
+	 */
+	@Test
+	public void validationsBeyondQueueAreRefused() throws Exception {
+
+		validator.delay = 1000;
+
+		AsyncVOMSSecurityContextHandler asyncHandler = new AsyncVOMSSecurityContextHandler(
+				vomsHandler, 1, 1);
+		asyncHandler.setHandler(recorder);
+		startServer(asyncHandler);
+
+		final int clients = 3;
+		final List<Integer> statuses = new CopyOnWriteArrayList<Integer>();
+		final CountDownLatch done = new CountDownLatch(clients);
+
+		for (int i = 0; i < clients; i++) {
+
+			final SSLContext clientContext = newClientContext(newKeyManagers("CN=client"
+					+ i + ",O=IGI,C=IT"));
+
+			new Thread() {
+
+				public void run() {
+
+					try {
+						statuses.add(request(clientContext));
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+
+			Thread.sleep(200);
+		}
+
+		done.await();
+
+		Assert.assertEquals(clients, statuses.size());
+		Assert.assertEquals(2,
+				Collections.frequency(statuses, HttpServletResponse.SC_OK));
+		Assert.assertEquals(1, Collections.frequency(statuses,
+				HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+		Assert.assertEquals(2, validator.parsed.get());
+	}
+
+	/**
+	 * Requests waiting for their context are refused when the handler is
+	 * stopped, rather than left waiting until they time out.
+	 */
+	@Test
+	public void waitingRequestsAreRefusedOnStop() throws Exception {
+
+		validator.delay = 2000;
+
+		AsyncVOMSSecurityContextHandler asyncHandler = new AsyncVOMSSecurityContextHandler(
+				vomsHandler, 1, 10);
+		asyncHandler.setHandler(recorder);
+		asyncHandler.setTimeoutInMsec(60000);
+		startServer(asyncHandler);
+
+		SSLSocket running = (SSLSocket) newClientContext().getSocketFactory()
+				.createSocket("localhost", connector.getLocalPort());
+		SSLSocket queued = (SSLSocket) newClientContext(
+				newKeyManagers("CN=queued,O=IGI,C=IT")).getSocketFactory()
+				.createSocket("localhost", connector.getLocalPort());
+
+		try {
+			sendRequest(running, "");
+			Thread.sleep(200);
+			sendRequest(queued, "");
+			Thread.sleep(200);
+
+			Assert.assertEquals(2, asyncHandler.getPendingValidations());
+
+			long start = System.currentTimeMillis();
+			asyncHandler.stop();
+
+			Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+					status(readResponse(queued)));
+			Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+			Assert.assertEquals(0, asyncHandler.getPendingValidations());
+			Assert.assertEquals(1, validator.parsed.get());
+		} finally {
+			running.close();
+			queued.close();
+		}
+	}
+
+	/**
+	 * The server accepts connections while the VOMS validator is being built,
+	 * and requests are handled once it is ready.
+	 */
+	@Test
+	public void connectionsAreAcceptedBeforeVOMSValidatorIsBuilt()
+			throws Exception {
+
+		FutureTask<VOMSACValidator> pending = new FutureTask<VOMSACValidator>(
+				new Callable<VOMSACValidator>() {
+
+					public VOMSACValidator call() {
+
+						return validator;
+					}
+				});
+
+		vomsHandler = new VOMSSecurityContextHandler(pending,
+				chainValidator, false);
+		vomsHandler.setContextScope(ContextScope.TLS_SESSION);
+
+		HandlerCollection handlers = new HandlerCollection();
+		handlers.setHandlers(new Handler[] { vomsHandler, recorder });
+		startServer(handlers);
+
+		SSLSocket socket = (SSLSocket) newClientContext().getSocketFactory()
+				.createSocket("localhost", connector.getLocalPort());
+
+		try {
+			socket.startHandshake();
+			sendRequest(socket, "");
+
+			Thread.sleep(200);
+			Assert.assertFalse(pending.isDone());
+			Assert.assertTrue(recorder.contexts.isEmpty());
+
+			pending.run();
+
+			Assert.assertEquals(HttpServletResponse.SC_OK,
+					status(readResponse(socket)));
+			Assert.assertEquals(1, recorder.contexts.size());
+			Assert.assertNotNull(recorder.contexts.get(0));
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Requests are refused when the VOMS validator could not be built.
+	 */
+	@Test
+	public void requestsAreRefusedWhenVOMSValidatorCannotBeBuilt()
+			throws Exception {
+
+		FutureTask<VOMSACValidator> failed = new FutureTask<VOMSACValidator>(
+				new Callable<VOMSACValidator>() {
+
+					public VOMSACValidator call() throws Exception {
+
+						throw new IOException("No VOMS trust store");
+					}
+				});
+		failed.run();
+
+		vomsHandler = new VOMSSecurityContextHandler(failed,
+				chainValidator, false);
+		vomsHandler.setContextScope(ContextScope.TLS_SESSION);
+
+		HandlerList handlers = new HandlerList();
+		handlers.setHandlers(new Handler[] { vomsHandler, recorder });
+		startServer(handlers);
+
+		Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+				request(newClientContext()));
+		Assert.assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+				request(newClientContext()));
+		Assert.assertTrue(recorder.contexts.isEmpty());
+	}
+
+	/**
+	 * Contexts created before the client certificate chain validator loads a
+	 * changed trust anchor are built again, while loading unchanged files keeps
+	 * them.
+	 */
+	@Test
+	public void contextExpiresWhenTrustStoreChanges() throws Exception {
+
+		HandlerCollection handlers = new HandlerCollection();
+		handlers.setHandlers(new Handler[] { vomsHandler, recorder });
+		startServer(handlers);
+
+		SSLContext clientContext = newClientContext();
+		File caFile = new File("certs/ca/d82942ab.0");
+		long lastModified = caFile.lastModified();
+
+		request(clientContext);
+		chainValidator.reload(Collections.singletonList(caFile));
+		request(clientContext);
+
+		try {
+
+			Assert.assertTrue(caFile.setLastModified(System.currentTimeMillis()
+					+ 10000L));
+			chainValidator.reload(Collections.singletonList(caFile));
+			request(clientContext);
+
+		} finally {
+
+			caFile.setLastModified(lastModified);
+		}
+
+		Assert.assertEquals(3, recorder.contexts.size());
+		Assert.assertSame(recorder.contexts.get(0), recorder.contexts.get(1));
+		Assert.assertNotSame(recorder.contexts.get(1), recorder.contexts.get(2));
+	}
+
+	/**
+	 * A context kept in the HTTP session is found again when the client sends
+	 * its chain out of order.
+	 */
+	@Test
+	public void sessionContextIsKeptForUnorderedChain() throws Exception {
+
+		vomsHandler.setContextScope(ContextScope.HTTP_SESSION);
+
+		HandlerCollection handlers = new HandlerCollection();
+		handlers.setHandlers(new Handler[] {
+				new SessionHandler(new HashSessionManager()), vomsHandler, recorder });
+		startServer(handlers);
+
+		SSLContext clientContext = newClientContext(newUnorderedChainKeyManagers());
+
+		String response = exchange(clientContext, "");
+		Matcher m = Pattern.compile("Set-Cookie: ([^;\\r]+)").matcher(response);
+		Assert.assertTrue(m.find());
+
+		exchange(clientContext, "Cookie: " + m.group(1) + "\r\n");
+
+		Assert.assertEquals(2, recorder.contexts.size());
+		Assert.assertSame(recorder.contexts.get(0), recorder.contexts.get(1));
+	}
+
+	/**
+	 * A context kept in the HTTP session is not given to a request presenting
+	 * another certificate chain with the same session cookie.
+	 */
+	@Test
+	public void sessionContextIsBoundToCertificateChain() throws Exception {
+
+		vomsHandler.setContextScope(ContextScope.HTTP_SESSION);
+
+		HandlerCollection handlers = new HandlerCollection();
+		handlers.setHandlers(new Handler[] {
+				new SessionHandler(new HashSessionManager()), vomsHandler, recorder });
+		startServer(handlers);
+
+		String response = exchange(newClientContext(), "");
+		Matcher m = Pattern.compile("Set-Cookie: ([^;\\r]+)").matcher(response);
+		Assert.assertTrue(m.find());
+		String cookie = "Cookie: " + m.group(1) + "\r\n";
+
+		exchange(newClientContext(), cookie);
+		exchange(newClientContext(newKeyManagers("CN=other,O=IGI,C=IT")), cookie);
+
+		Assert.assertEquals(3, recorder.contexts.size());
+		Assert.assertSame(recorder.contexts.get(0), recorder.contexts.get(1));
+		Assert.assertNotSame(recorder.contexts.get(1), recorder.contexts.get(2));
+		Assert.assertEquals("CN=other,O=IGI,C=IT",
+				((VOMSSecurityContext) recorder.contexts.get(2)).getClientCert()
+						.getSubjectX500Principal().getName());
+	}
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.AttributeCertificate;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.italiangrid.utils.voms.FQANPattern;
+import org.italiangrid.utils.voms.SecurityContext;
+import org.italiangrid.utils.voms.SecurityContextFactory;
+import org.italiangrid.utils.voms.VOMSSecurityContextImpl;
+import org.italiangrid.voms.VOMSAttribute;
+import org.italiangrid.voms.VOMSGenericAttribute;
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.ac.VOMSValidationResult;
+import org.italiangrid.voms.ac.ValidationResultListener;
+import org.italiangrid.voms.asn1.VOMSACGenerator;
+import org.italiangrid.voms.asn1.VOMSACUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.KeyAndCertCredential;
+import eu.emi.security.authn.x509.proxy.ProxyCertificate;
+import eu.emi.security.authn.x509.proxy.ProxyCertificateOptions;
+import eu.emi.security.authn.x509.proxy.ProxyGenerator;
+
+public class VOMSSecurityContextImplTest {
+
+	private static X509Certificate[] chain;
+
+	private static KeyPair keys;
+
+	/**
+	 * A validator that finds no attributes, counting calls.
+	 */
+	private static class CountingValidator implements VOMSACValidator {
+
+		final AtomicInteger parsed = new AtomicInteger();
+
+		final AtomicInteger validated = new AtomicInteger();
+
+		volatile List<VOMSAttribute> attributes = Collections.emptyList();
+
+		public List<VOMSAttribute> parse(X509Certificate[] certChain) {
+
+			parsed.incrementAndGet();
+			return attributes;
+		}
+
+		public List<VOMSAttribute> validate(X509Certificate[] certChain) {
+
+			validated.incrementAndGet();
+			return Collections.emptyList();
+		}
+
+		public List<VOMSValidationResult> validateWithResult(
+				X509Certificate[] certChain) {
+
+			validated.incrementAndGet();
+			return Collections.emptyList();
+		}
+
+		public List<AttributeCertificate> validateACs(
+				List<AttributeCertificate> acs) {
+
+			return acs;
+		}
+
+		public void setValidationResultListener(ValidationResultListener listener) {
+
+		}
+
+		public void shutdown() {
+
+		}
+	}
+
+	private CountingValidator validator;
+
+	@BeforeClass
+	public static void setUpChain() throws Exception {
+
+		CertificateUtils.configureSecProvider();
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(1024);
+		keys = kpg.generateKeyPair();
+
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(BigInteger.ONE);
+		generator.setIssuerDN(new X500Principal("CN=Test CA,O=IGI,C=IT"));
+		generator.setSubjectDN(new X500Principal("CN=test,O=IGI,C=IT"));
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 3600000L));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + 3600000L));
+		generator.setPublicKey(keys.getPublic());
+		generator.setSignatureAlgorithm("SHA1withRSA");
+
+		chain = new X509Certificate[] { generator.generate(keys.getPrivate(),
+				"BC") };
+	}
+
+	@Before
+	public void setUp() {
+
+		validator = new CountingValidator();
+	}
+
+	@Test
+	public void attributesAreValidatedOnDemand() {
+
+		VOMSSecurityContextImpl sc = new VOMSSecurityContextImpl(validator, true);
+		sc.setClientCertChain(chain);
+
+		Assert.assertEquals(0, validator.validated.get());
+		Assert.assertEquals(Long.MAX_VALUE, sc.getAttributesNotAfter());
+		Assert.assertEquals(0, validator.validated.get());
+
+		Assert.assertTrue(sc.getVOMSAttributes().isEmpty());
+		Assert.assertTrue(sc.getValidationResults().isEmpty());
+		Assert.assertTrue(sc.getVOMSAttributes().isEmpty());
+		Assert.assertTrue(sc.getValidationResults().isEmpty());
+
+		Assert.assertEquals(1, validator.validated.get());
+		Assert.assertEquals(0, validator.parsed.get());
+	}
+
+	@Test
+	public void insecureContextOnlyParsesAttributes() {
+
+		VOMSSecurityContextImpl sc = new VOMSSecurityContextImpl(validator, false);
+		sc.setClientCertChain(chain);
+
+		sc.getVOMSAttributes();
+		sc.getVOMSAttributes();
+
+		Assert.assertEquals(1, validator.parsed.get());
+		Assert.assertEquals(0, validator.validated.get());
+	}
+
+	@Test
+	public void membershipIsAnsweredFromFQANs() throws Exception {
+
+		AttributeCertificate ac = new VOMSACGenerator(new KeyAndCertCredential(
+				keys.getPrivate(), chain)).generateVOMSAttributeCertificate(
+				Arrays.asList("/test.vo/Role=NULL/Capability=NULL",
+						"/test.vo/prod/Role=admin/Capability=NULL"),
+				Collections.<VOMSGenericAttribute> emptyList(),
+				Collections.<String> emptyList(), chain[0], BigInteger.TEN,
+				new Date(System.currentTimeMillis() - 60000L),
+				new Date(System.currentTimeMillis() + 3600000L), "test.vo",
+				"voms.example.org", 15000).toASN1Structure();
+
+		validator.attributes = Arrays.asList(VOMSACUtils
+				.deserializeVOMSAttributes(ac));
+
+		VOMSSecurityContextImpl sc = new VOMSSecurityContextImpl(validator, false);
+		sc.setClientCertChain(chain);
+
+		Assert.assertTrue(sc.hasFqan("/test.vo"));
+		Assert.assertTrue(sc.hasFqan("/test.vo/Role=NULL/Capability=NULL"));
+		Assert.assertTrue(sc.hasFqan("/test.vo/prod/Role=admin"));
+		Assert.assertFalse(sc.hasFqan("/test.vo/prod"));
+
+		Assert.assertTrue(sc.hasGroup("/test.vo/prod"));
+		Assert.assertFalse(sc.hasGroup("/other.vo"));
+
+		Assert.assertTrue(sc.hasRole("/test.vo/prod", "admin"));
+		Assert.assertFalse(sc.hasRole("/test.vo", "admin"));
+
+		Assert.assertTrue(sc.hasFqan(FQANPattern.compile("/test.vo/*")));
+		Assert.assertTrue(sc.hasFqan(FQANPattern.compile("/*/Role=admin")));
+		Assert.assertFalse(sc.hasFqan(FQANPattern.compile("/test.vo/Role=*")));
+		Assert.assertFalse(sc.hasFqan(FQANPattern.compile("/other.vo/*")));
+
+		Assert.assertEquals(1, validator.parsed.get());
+	}
+
+	@Test
+	public void namesAreSharedAcrossContexts() {
+
+		VOMSSecurityContextImpl first = new VOMSSecurityContextImpl(validator);
+		first.setClientCertChain(chain);
+
+		VOMSSecurityContextImpl second = new VOMSSecurityContextImpl(validator);
+		second.setClientCertChain(chain);
+
+		Assert.assertEquals("CN=test,O=IGI,C=IT", first.getClientX500Name());
+		Assert.assertEquals("/C=IT/O=IGI/CN=test", first.getClientName());
+		Assert.assertEquals("/C=IT/O=IGI/CN=Test CA", first.getIssuerName());
+
+		Assert.assertSame(first.getClientX500Name(), second.getClientX500Name());
+		Assert.assertSame(first.getClientName(), second.getClientName());
+		Assert.assertSame(first.getIssuerX500Name(), second.getIssuerX500Name());
+		Assert.assertSame(first.getIssuerName(), second.getIssuerName());
+	}
+
+	@Test
+	public void proxyChainsAreOrdered() throws Exception {
+
+		X509Certificate[] proxyChain = chain;
+		PrivateKey key = keys.getPrivate();
+
+		for (int i = 0; i < 2; i++) {
+			ProxyCertificate proxy = ProxyGenerator.generate(
+					new ProxyCertificateOptions(proxyChain), key);
+			proxyChain = proxy.getCertificateChain();
+			key = proxy.getPrivateKey();
+		}
+
+		VOMSSecurityContextImpl sc = new VOMSSecurityContextImpl(validator);
+		sc.setClientCertChain(proxyChain);
+
+		Assert.assertArrayEquals(proxyChain, sc.getClientCertChain());
+		Assert.assertEquals(chain[0], sc.getClientCert());
+
+		X509Certificate[] reversed = new X509Certificate[] { proxyChain[2],
+				proxyChain[0], proxyChain[1] };
+
+		sc = new VOMSSecurityContextImpl(validator);
+		sc.setClientCertChain(reversed);
+
+		Assert.assertArrayEquals(proxyChain, sc.getClientCertChain());
+		Assert.assertEquals(chain[0], sc.getClientCert());
+		Assert.assertEquals("/C=IT/O=IGI/CN=test", sc.getClientName());
+	}
+
+	@Test
+	public void immutableContextsSerializeTheirChain() throws Exception {
+
+		X509Certificate[] proxyChain = ProxyGenerator.generate(
+				new ProxyCertificateOptions(chain), keys.getPrivate())
+				.getCertificateChain();
+
+		X509Certificate[] reversed = new X509Certificate[] { proxyChain[1],
+				proxyChain[0] };
+
+		SecurityContext sc = SecurityContextFactory.newSecurityContext(reversed,
+				"127.0.0.1");
+
+		Assert.assertArrayEquals(proxyChain, sc.getClientCertChain());
+		Assert.assertEquals(chain[0], sc.getClientCert());
+		Assert.assertEquals("/C=IT/O=IGI/CN=test", sc.getClientName());
+		Assert.assertEquals("/C=IT/O=IGI/CN=Test CA", sc.getIssuerName());
+
+		try {
+			sc.setClientCertChain(chain);
+			Assert.fail("Immutable context modified");
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(sc);
+		out.close();
+
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()));
+		SecurityContext copy = (SecurityContext) in.readObject();
+
+		Assert.assertArrayEquals(proxyChain, copy.getClientCertChain());
+		Assert.assertEquals("127.0.0.1", copy.getRemoteAddr());
+		Assert.assertSame(sc.getClientName(), copy.getClientName());
+		Assert.assertEquals(sc.getClientX500Principal(),
+				copy.getClientX500Principal());
+	}
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.component.AggregateLifeCycle;
+import org.italiangrid.utils.https.SSLOptions;
+import org.italiangrid.utils.https.impl.canl.CANLSSLConnectorConfigurator;
+import org.italiangrid.utils.https.impl.canl.CertChainValidatorRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.X509CertChainValidatorExt;
+
+public class ValidatorRegistryTest {
+
+	private SSLOptions newOptions(long refreshInterval) {
+
+		SSLOptions options = new SSLOptions();
+		options.setTrustStoreDirectory("certs/ca");
+		options.setTrustStoreRefreshIntervalInMsec(refreshInterval);
+		return options;
+	}
+
+	/**
+	 * Connectors with the same trust settings share one validator, which is
+	 * released when the last handle is disposed.
+	 */
+	@Test
+	public void sameSettingsShareValidator() {
+
+		CertChainValidatorRegistry registry = CertChainValidatorRegistry
+				.instance();
+
+		int initialSize = registry.size();
+
+		X509CertChainValidatorExt v1 = registry.acquire(newOptions(60000L));
+		X509CertChainValidatorExt v2 = registry.acquire(newOptions(60000L));
+
+		Assert.assertNotSame(v1, v2);
+		Assert.assertEquals(initialSize + 1, registry.size());
+		Assert.assertEquals(v1.getTrustedIssuers().length,
+				v2.getTrustedIssuers().length);
+
+		v1.dispose();
+		v1.dispose();
+		Assert.assertEquals(initialSize + 1, registry.size());
+
+		v2.dispose();
+		Assert.assertEquals(initialSize, registry.size());
+	}
+
+	/**
+	 * Different trust settings give distinct validators.
+	 */
+	@Test
+	public void differentSettingsDoNotShareValidator() {
+
+		CertChainValidatorRegistry registry = CertChainValidatorRegistry
+				.instance();
+
+		int initialSize = registry.size();
+
+		X509CertChainValidatorExt v1 = registry.acquire(newOptions(60000L));
+		X509CertChainValidatorExt v2 = registry.acquire(newOptions(120000L));
+
+		Assert.assertEquals(initialSize + 2, registry.size());
+
+		v1.dispose();
+		v2.dispose();
+		Assert.assertEquals(initialSize, registry.size());
+	}
+
+	/**
+	 * The validator acquired by a connector is released when the server is
+	 * stopped, as Jetty does not destroy the connectors of a stopped server.
+	 */
+	@Test
+	public void validatorIsReleasedWhenServerStops() throws Exception {
+
+		CertChainValidatorRegistry registry = CertChainValidatorRegistry
+				.instance();
+
+		int initialSize = registry.size();
+
+		SSLOptions options = newOptions(90000L);
+		options.setCertificateFile("certs/voms_service.cert.pem");
+		options.setKeyFile("certs/voms_service.key.pem");
+
+		Server server = new Server();
+		server.addConnector(new CANLSSLConnectorConfigurator()
+				.configureConnector("localhost", 0, options));
+
+		server.start();
+		Assert.assertEquals(initialSize + 1, registry.size());
+
+		server.stop();
+		Assert.assertEquals(initialSize, registry.size());
+	}
+
+	/**
+	 * A restarted connector acquires again the resources released when it was
+	 * stopped.
+	 */
+	@Test
+	public void validatorIsAcquiredAgainWhenServerRestarts() throws Exception {
+
+		CertChainValidatorRegistry registry = CertChainValidatorRegistry
+				.instance();
+
+		int initialSize = registry.size();
+
+		SSLOptions options = newOptions(95000L);
+		options.setCertificateFile("certs/voms_service.cert.pem");
+		options.setKeyFile("certs/voms_service.key.pem");
+		options.setCredentialRefreshIntervalInMsec(95000L);
+
+		Connector connector = new CANLSSLConnectorConfigurator()
+				.configureConnector("localhost", 0, options);
+
+		Server server = new Server();
+		server.addConnector(connector);
+
+		server.start();
+		server.stop();
+		Assert.assertEquals(initialSize, registry.size());
+
+		server.start();
+		Assert.assertEquals(initialSize + 1, registry.size());
+
+		X509CertChainValidatorExt validator = ((AggregateLifeCycle) connector)
+				.getBean(X509CertChainValidatorExt.class);
+
+		Assert.assertTrue(validator.getTrustedIssuers().length > 0);
+
+		server.stop();
+		Assert.assertEquals(initialSize, registry.size());
+
+		server.destroy();
+		Assert.assertEquals(initialSize, registry.size());
+	}
+
+	/**
+	 * The listeners added through a handle follow it when it is disposed and
+	 * acquired again.
+	 */
+	@Test
+	public void handleListenersFollowReacquire() {
+
+		CertChainValidatorRegistry registry = CertChainValidatorRegistry
+				.instance();
+
+		int initialSize = registry.size();
+
+		X509CertChainValidatorExt handle = registry.acquire(newOptions(65000L));
+
+		StoreUpdateListener listener = new StoreUpdateListener() {
+
+			public void loadingNotification(String location, String type,
+					Severity level, Exception cause) {
+
+			}
+		};
+
+		handle.addUpdateListener(listener);
+		handle.dispose();
+		Assert.assertEquals(initialSize, registry.size());
+
+		registry.reacquire(handle);
+		registry.reacquire(handle);
+		Assert.assertEquals(initialSize + 1, registry.size());
+		Assert.assertTrue(handle.getTrustedIssuers().length > 0);
+
+		handle.removeUpdateListener(listener);
+		handle.dispose();
+		Assert.assertEquals(initialSize, registry.size());
+	}
+}
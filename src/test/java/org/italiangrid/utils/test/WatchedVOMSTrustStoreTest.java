@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) Istituto Nazionale di Fisica Nucleare, 2006-2014.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.italiangrid.utils.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.italiangrid.utils.voms.WatchedVOMSTrustStore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.CertificateUtils.Encoding;
+
+public class WatchedVOMSTrustStoreTest {
+
+	private File dir;
+
+	private File voDir;
+
+	private WatchedVOMSTrustStore store;
+
+	private final List<Set<String>> updates = new ArrayList<Set<String>>();
+
+	private File writeLSC(String hostname) throws IOException {
+
+		File f = new File(voDir, hostname + ".lsc");
+		FileWriter w = new FileWriter(f);
+		w.write("/C=IT/O=IGI/CN=" + hostname + "\n/C=IT/O=IGI/CN=Test CA\n");
+		w.close();
+		return f;
+	}
+
+	private File writeCertificate(String name, String subject) throws Exception {
+
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+		kpg.initialize(1024);
+		KeyPair keys = kpg.generateKeyPair();
+
+		X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+		generator.setSerialNumber(BigInteger.valueOf(System.nanoTime()));
+		generator.setIssuerDN(new X500Principal("CN=Test CA,O=IGI,C=IT"));
+		generator.setSubjectDN(new X500Principal(subject));
+		generator.setNotBefore(new Date(System.currentTimeMillis() - 3600000L));
+		generator.setNotAfter(new Date(System.currentTimeMillis() + 3600000L));
+		generator.setPublicKey(keys.getPublic());
+		generator.setSignatureAlgorithm("SHA1withRSA");
+		X509Certificate cert = generator.generate(keys.getPrivate(), "BC");
+
+		File f = new File(dir, name);
+		OutputStream os = new FileOutputStream(f);
+		CertificateUtils.saveCertificate(os, cert, Encoding.PEM);
+		os.close();
+		return f;
+	}
+
+	private static void delete(File f) {
+
+		if (f.isDirectory()) {
+			for (File c : f.listFiles())
+				delete(c);
+		}
+
+		f.delete();
+	}
+
+	@Before
+	public void setUp() throws IOException {
+
+		CertificateUtils.configureSecProvider();
+
+		dir = File.createTempFile("vomsdir", "");
+		dir.delete();
+		dir.mkdir();
+
+		voDir = new File(dir, "test.vo");
+		voDir.mkdir();
+
+		writeLSC("voms.example.org");
+
+		store = new WatchedVOMSTrustStore(Arrays.asList(dir.getAbsolutePath()),
+				0);
+
+		store.addUpdateListener(new WatchedVOMSTrustStore.UpdateListener() {
+
+			public void trustInformationUpdated(Set<String> voNames) {
+
+				updates.add(voNames);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+
+		store.cancel();
+		delete(dir);
+	}
+
+	@Test
+	public void trustInformationIsLoaded() {
+
+		Assert.assertNotNull(store.getLSC("test.vo", "voms.example.org"));
+		Assert.assertEquals(1, store.getAllLSCInfo().get("test.vo").size());
+		Assert.assertTrue(store.getLocalAACertificates().isEmpty());
+	}
+
+	@Test
+	public void changedLSCFilesAreReloaded() throws IOException {
+
+		File added = writeLSC("voms2.example.org");
+		store.filesChanged(Collections.singleton(added));
+
+		Assert.assertNotNull(store.getLSC("test.vo", "voms2.example.org"));
+		Assert.assertEquals(2, store.getAllLSCInfo().get("test.vo").size());
+
+		added.delete();
+		store.filesChanged(Collections.singleton(added));
+
+		Assert.assertNull(store.getLSC("test.vo", "voms2.example.org"));
+		Assert.assertNotNull(store.getLSC("test.vo", "voms.example.org"));
+
+		Assert.assertEquals(2, updates.size());
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("test.vo")),
+				updates.get(0));
+	}
+
+	@Test
+	public void sharedCertificatesAffectAllVOs() throws Exception {
+
+		File cert = writeCertificate("voms.pem", "CN=voms.example.org,O=IGI,C=IT");
+		store.filesChanged(Collections.singleton(cert));
+
+		Assert.assertEquals(1, store.getLocalAACertificates().size());
+		Assert.assertNotNull(store.getAACertificateBySubject(new X500Principal(
+				"CN=voms.example.org,O=IGI,C=IT")));
+
+		Assert.assertEquals(1, updates.size());
+		Assert.assertNull(updates.get(0));
+	}
+
+	@Test
+	public void unrelatedFilesAreIgnored() throws IOException {
+
+		File other = new File(dir, "README");
+		other.createNewFile();
+		store.filesChanged(Collections.singleton(other));
+
+		Assert.assertTrue(updates.isEmpty());
+	}
+}